@@ -1,10 +1,9 @@
 package weiner.noah.wifidirect;
 
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.File;
 
 import weiner.noah.wifidirect.control.MainActivity;
+import weiner.noah.wifidirect.utils.SysfsSampler;
 
 public class Battery {
     final String basePath;
@@ -16,71 +15,35 @@ public class Battery {
     private final String LOG_TAG = "Thermal";
     private boolean res;
 
+    //current_now and voltage_now stay open, the governor polls them during flight
+    private final SysfsSampler sampler;
+    private final int currentNode;
+    private final int voltageNode;
+
     public Battery(String path, MainActivity mainActivity) {
         this.basePath = path;
         this.mainActivity = mainActivity;
         //this.hwPropsMgr = mainActivity.getApplicationContext().getSystemService(HardwarePropertiesManager.class);
 
+        sampler = new SysfsSampler(new File(path));
+        currentNode = sampler.add("battery/current_now", 0);
+        voltageNode = sampler.add("battery/voltage_now", 0);
     }
 
 
+    //battery current in microamps. Sign depends on the device (Pixels report discharge as negative)
     public int getBattCurrent() {
-        String content = "";
-        Process mProc = null;
-
-
-        String line = "";
-        RandomAccessFile reader = null;
-        try {
-            reader = new RandomAccessFile(basePath + "battery/current_now", "r");
-        }
-        catch (FileNotFoundException e) {
-            e.printStackTrace();
-        }
-
-        //if there's a problem instantiating RandomAccessFile, return -1
-        if (reader == null)
-            return -1;
-
-        try {
-            //read a line from the file
-            line = reader.readLine();
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        //return battery temp as Integer
-        return Integer.parseInt(line);
+        return readInt(currentNode);
     }
 
+    //battery voltage in microvolts
     public int getBattVoltage() {
-        String content = "";
-        Process mProc = null;
-
-
-        String line = "";
-        RandomAccessFile reader = null;
-        try {
-            reader = new RandomAccessFile(basePath + "battery/voltage_now", "r");
-        }
-        catch (FileNotFoundException e) {
-            e.printStackTrace();
-        }
-
-        //if there's a problem instantiating RandomAccessFile, return -1
-        if (reader == null)
-            return -1;
-
-        try {
-            //read a line from the file
-            line = reader.readLine();
-        }
-        catch (IOException e) {
-            e.printStackTrace();
-        }
+        return readInt(voltageNode);
+    }
 
-        //return battery temp as Integer
-        return Integer.parseInt(line);
+    //read one integer out of a sysfs file, -1 if it can't be read. Synchronized since the sampler shares one buffer
+    private synchronized int readInt(int node) {
+        long value = sampler.read(node, System.nanoTime());
+        return value == SysfsSampler.MISSING ? -1 : (int) value;
     }
 }
@@ -34,6 +34,9 @@ public class Constants {
     //average pupillary distance for adults? use this *for now* to estimate drone's distance from person
     public static final float PD = (float) 0.063; //63 mm
 
+    //average adult height, the same way, for distance from the torso and the whole body when the eyes are too small
+    public static final float HUMAN_HEIGHT = 1.70f;
+
     //91 cm away -> ~90 pixel pupillary distance.
     //Thus experimental focal len of camera = (P x D) / W = (90px x 0.91m) / 0.063m = 1300
     public static final float focalLenExpAdjusted = 1300f;
@@ -45,6 +48,14 @@ public class Constants {
 
     //Meanwhile, using opencv chessboard calibration, claimed focal length x is 524.1, y is 523.9
 
+    //the back camera's intrinsics from OpenCV chessboard calibration, at the preview size it was calibrated at
+    public static final double CAMERA_FOCAL_X = 526.69;
+    public static final double CAMERA_FOCAL_Y = 540.36;
+    public static final double CAMERA_CENTER_X = 313.07;
+    public static final double CAMERA_CENTER_Y = 238.39;
+    public static final int CAMERA_CALIBRATION_WIDTH = 640;
+    public static final int CAMERA_CALIBRATION_HEIGHT = 480;
+
     public static final float angleCalibrationAdjustmentLeft = 0f;
     public static final float angleCalibrationAdjustmentRight = 0f;
 
@@ -10,31 +10,27 @@ import android.util.Log;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.StreamCorruptedException;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Enumeration;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.Hashtable;
-import java.util.Iterator;
-import java.util.LinkedHashSet;
-import java.util.Map;
-import java.util.Properties;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.Locale;
 
 import weiner.noah.wifidirect.control.MainActivity;
 import weiner.noah.wifidirect.crtp.CommanderPacket;
 import weiner.noah.wifidirect.crtp.HeightHoldPacket;
+import weiner.noah.wifidirect.utils.SysfsSampler;
+import weiner.noah.wifidirect.utils.ThermalLogWriter;
+import weiner.noah.wifidirect.utils.ThermalZones;
 
 public class Thermal {
     private final String basePath;
@@ -46,6 +42,13 @@ public class Thermal {
     private final String LOG_TAG = "Thermal";
     private boolean res;
 
+    //time between rows of the thermal log
+    private final long LOG_PERIOD_MS = 700;
+
+    //zones that track our load (see ThermalZones.DEFAULT_FAST_PREFIXES) are read on every log pass, the rest less often
+    private final long FAST_ZONE_PERIOD_NANOS = 700000000L;
+    private final long SLOW_ZONE_PERIOD_NANOS = 5000000000L;
+
     //Thread to run logging in background
     private Thread mLoggingThread;
 
@@ -126,6 +129,21 @@ public class Thermal {
             e.printStackTrace();
             return null;
         }
+        finally {
+            closeQuietly(reader);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null)
+            return;
+
+        try {
+            closeable.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
 
@@ -284,54 +302,17 @@ public class Thermal {
     }
 
 
-    class SortedStoreProperties extends Properties {
-
-        @Override
-        public void storeToXML(OutputStream out, String comments) throws IOException {
-            Properties sortedProps = new Properties() {
-                @Override
-                public Set<Map.Entry<Object, Object>> entrySet() {
-                    /*
-                     * Using comparator to avoid the following exception on jdk >=9:
-                     * java.lang.ClassCastException: java.base/java.util.concurrent.ConcurrentHashMap$MapEntry cannot be cast to java.base/java.lang.Comparable
-                     */
-                    Set<Map.Entry<Object, Object>> sortedSet = new TreeSet<Map.Entry<Object, Object>>(new Comparator<Map.Entry<Object, Object>>() {
-                        @Override
-                        public int compare(Map.Entry<Object, Object> o1, Map.Entry<Object, Object> o2) {
-                            return o1.getKey().toString().compareTo(o2.getKey().toString());
-                        }
-                    }
-                    );
-                    sortedSet.addAll(super.entrySet());
-                    return sortedSet;
-                }
-
-                @Override
-                public Set<Object> keySet() {
-                    return new TreeSet<Object>(super.keySet());
-                }
-
-                @Override
-                public synchronized Enumeration<Object> keys() {
-                    return Collections.enumeration(new TreeSet<Object>(super.keySet()));
-                }
-
-            };
-            sortedProps.putAll(this);
-            sortedProps.storeToXML(out, comments);
-        }
-    }
-
-
     class LogRunnable implements Runnable {
         private final Object mPauseLock;
         private boolean mPaused;
         private volatile boolean mFinished = false;
-        //Hashtable<String, String> thermalData = new Hashtable<String, String>();
 
-        private FileOutputStream thermalDataXmlFile;
+        private SysfsSampler sampler;
+        private ThermalZones zones;
+        private ThermalLogWriter log;
 
-        private final Properties thermalData = new Properties();
+        //one row of the log: every zone's temp, then every zone's trip point
+        private long[] row;
 
         public LogRunnable() {
             mPauseLock = new Object();
@@ -340,240 +321,69 @@ public class Thermal {
         }
 
 
-        //Log all thermal data to a file on the phone every second
+        //Log all thermal data to a file on the phone every LOG_PERIOD_MS
         public void run() {
-            float timeElapsed = 0;
-            while (true) {
-                //check to see if stopLogging() was called
-                if (mFinished)
-                    return;
-
-                /*
-                thermalData.put("", "Apple");
-                my_dict.put("10", "Banana");
-
-                // using get() method
-                System.out.println("\nValue at key = 10 : " + my_dict.get("10"));
-                System.out.println("Value at key = 11 : " + my_dict.get("11"));
-
-                // using isEmpty() method
-                System.out.println("\nIs my dictionary empty? : " + my_dict.isEmpty() + "\n");
-
-                // using remove() method
-                // remove value at key 10
-                my_dict.remove("10");
-                System.out.println("Checking if the removed value exists: " + my_dict.get("10"));
-                System.out.println("\nSize of my_dict : " + my_dict.size());*/
-
-
-                /*
-                thermalData.setProperty("camera-lowf", getData("tz-by-name/camera-lowf/temp"));
-                thermalData.setProperty("camera-usr", getData("tz-by-name/camera-usr/temp"));
-                thermalData.setProperty("cpuss-0-usr", getData("tz-by-name/cpuss-0-usr/temp"));
-                thermalData.setProperty("cpuss-1-usr", getData("tz-by-name/cpuss-1-usr/temp"));
-                thermalData.setProperty("cwlan-usr", getData("tz-by-name/cwlan-usr/temp"));
-                thermalData.setProperty("ddr-usr", getData("tz-by-name/ddr-usr/temp"));
-                thermalData.setProperty("cpuss-1-usr", getData("tz-by-name/cpuss-1-usr/temp"));
-
-
-                for (int j = 0; j < 4; j++) {
-
-                    for (int i = 0; i < 2; i++) {
-                        String specifier;
-
-                        if (i == 0) {
-                            specifier = "cpu-0-" + j + "-step";
-                        }
-                        else {
-                            specifier = "cpu-0-" + j + "-usr";
-                        }
-                        thermalData.setProperty(specifier, getData("tz-by-name/" + specifier + "/temp"));
-                    }
-                }
-
-                for (int j = 0; j < 8; j++) {
-
-                    for (int i = 0; i < 2; i++) {
-                        String specifier;
-
-                        if (i == 0) {
-                            specifier = "cpu-1-" + j + "-step";
-                        }
-                        else {
-                            specifier = "cpu-1-" + j + "-usr";
-                        }
-                        thermalData.setProperty(specifier, getData("tz-by-name/" + specifier + "/temp"));
-                    }
-                }*/
-
-
-
-                //iterate over all 90 thermal zones, creating xml property for each one
-                for (int i = 0; i < 90; i++) {
-                    String name = "", val = "", trip_pt = "";
-                    RandomAccessFile reader = null;
-                    try {
-                        reader = new RandomAccessFile(basePath + "thermal_zone" + i + "/type", "r");
-                    }
-                    catch (FileNotFoundException e) {
-                        e.printStackTrace();
-                    }
-
-                    //if there's a problem instantiating RandomAccessFile, return -1
-                    if (reader == null) {
-                        Log.e(LOG_TAG, "LogRunnable: name reader is NULL for zone " + i);
-                    }
-                    else {
-
-                        try {
-                            //read a line from the file
-                            name = reader.readLine();
-                            reader.close();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-
-                    Log.i(LOG_TAG, "Name is " + name);
-
-                    try {
-                        reader = new RandomAccessFile(basePath + "thermal_zone" + i + "/temp", "r");
-                    }
-                    catch (FileNotFoundException e) {
-                        e.printStackTrace();
-                    }
-
-                    //if there's a problem instantiating RandomAccessFile, return -1
-                    if (reader == null) {
-                        Log.e(LOG_TAG, "LogRunnable: val reader is NULL for zone " + i);
-                    }
-                    else {
-
-                        try {
-                            //read a line from the file
-                            val = reader.readLine();
-                            reader.close();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-
-                    Log.i(LOG_TAG, "Val is " + val);
-
-                    try {
-                        reader = new RandomAccessFile(basePath + "thermal_zone" + i + "/trip_point_0_temp", "r");
-                    }
-                    catch (FileNotFoundException e) {
-                        e.printStackTrace();
-                    }
-
-                    //if there's a problem instantiating RandomAccessFile, return -1
-                    if (reader == null) {
-                        Log.e(LOG_TAG, "LogRunnable: trip pt reader is NULL for zone " + i);
-                    }
-                    else {
-
-                        try {
-                            //read a line from the file
-                            trip_pt = reader.readLine();
-                            reader.close();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-
-                    Log.i(LOG_TAG, "Trip pt is " + trip_pt);
-
-                    //see if the temp passed the trip point
-                    if (!val.equals("") && !trip_pt.equals("") && Integer.parseInt(val) > Integer.parseInt(trip_pt)) {
-                        val = val + "****";
-                    }
-
-                    //create xml property for this thermal zone
-                    thermalData.setProperty(name, val);
-                    thermalData.setProperty(name + "-TRIP", trip_pt);
-                }
-
-                thermalData.setProperty("total_time_elapsed", String.valueOf(timeElapsed));
-
-
-                Properties tmp = new Properties() {
-                    @Override
-                    public Set<Object> keySet() {
-                        return Collections.unmodifiableSet(new TreeSet<>(super.keySet()));
-                    }
-                };
-
-                Properties temp = new Properties() {
-                    private static final long serialVersionUID = 1L;
-
-                    @Override
-                    public Set<Object> keySet() {
-                        return Collections.unmodifiableSet(new TreeSet<Object>(super.keySet()));
-                    }
-
-                    @Override
-                    public Set<Map.Entry<Object, Object>> entrySet() {
-
-                        Set<Map.Entry<Object, Object>> set1 = super.entrySet();
-                        Set<Map.Entry<Object, Object>> set2 = new LinkedHashSet<>(set1.size());
-
-                        Iterator<Entry<Object, Object>> iterator = set1.stream().sorted(new Comparator<Entry<Object, Object>>() {
-                            @Override
-                            public int compare(java.util.Map.Entry<Object, Object> o1, java.util.Map.Entry<Object, Object> o2) {
-                                return o1.getKey().toString().compareTo(o2.getKey().toString());
-                            }
-                        }).iterator();
-
-                        while (iterator.hasNext())
-                            set2.add(iterator.next());
-
-                        return set2;
-                    }
-
-                    @Override
-                    public synchronized Enumeration<Object> keys() {
-                        return Collections.enumeration(new TreeSet<Object>(super.keySet()));
-                    }
-                };
-
-
-                temp.putAll(thermalData);
-
-                SortedStoreProperties test = new SortedStoreProperties();
-                test.putAll(thermalData);
+            //every zone's temp and trip point stays open for the whole run, see SysfsSampler
+            sampler = new SysfsSampler(new File(basePath));
+            zones = new ThermalZones(new File(basePath), sampler, FAST_ZONE_PERIOD_NANOS, SLOW_ZONE_PERIOD_NANOS,
+                    ThermalZones.DEFAULT_FAST_PREFIXES);
+
+            int count = zones.size();
+            String[] columns = new String[count * 2];
+            for (int i = 0; i < count; i++) {
+                columns[i] = zones.getName(i);
+                columns[count + i] = zones.getName(i) + "-TRIP";
+            }
+            row = new long[columns.length];
 
+            //next to the flight and keypoint logs. Export with pctool's ThermalLogTool
+            String fileName = "thermal_" + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date()) + ".thermlog";
+            File file = new File(mainActivity.getExternalFilesDir(null), fileName);
 
-                Log.i(LOG_TAG, "Path is " + mainActivity.getFilesDir().getPath());
+            try {
+                log = new ThermalLogWriter(file, columns);
+            }
+            catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to open thermal log " + file, e);
+                sampler.close();
+                return;
+            }
+            Log.i(LOG_TAG, "Logging " + count + " thermal zones to " + file);
 
+            try {
+                logLoop();
+            }
+            finally {
                 try {
-                    thermalDataXmlFile = new FileOutputStream(mainActivity.getFilesDir().getPath() + "/thermal.xml");
+                    log.close();
                 }
                 catch (IOException e) {
-                    e.printStackTrace();
+                    Log.e(LOG_TAG, "Failed to close thermal log", e);
                 }
+                Log.i(LOG_TAG, "Thermal log: " + log.getRowCount() + " rows, " + log.getLength() + " bytes");
+                sampler.close();
+            }
+        }
 
-                if (thermalDataXmlFile == null) {
-                    Log.e(LOG_TAG, "LogRunnable: thermalDataXmlFile came up null");
-                }
+        private void logLoop() {
+            int count = zones.size();
 
-                try {
-                    temp.storeToXML(thermalDataXmlFile, null);
-                }
-                catch (IOException e) {
-                    e.printStackTrace();
-                }
+            while (!mFinished) {
+                long now = System.nanoTime();
+                sampler.sample(now);
 
+                for (int i = 0; i < count; i++) {
+                    row[i] = zones.getTempMilliC(i);
+                    row[count + i] = zones.getTripMilliC(i);
+                }
+                log.write(now, row);
 
                 try {
-                    Thread.sleep(700);
+                    Thread.sleep(LOG_PERIOD_MS);
                 }
-
                 catch (InterruptedException e) {
-                    e.printStackTrace();
+                    return;
                 }
-
-                timeElapsed += 0.7;
             }
         }
 
@@ -4,8 +4,18 @@ import android.content.Context;
 import android.os.PowerManager;
 import android.util.Log;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
 import weiner.noah.wifidirect.control.HumanFollower;
+import weiner.noah.wifidirect.control.InferenceGovernor;
 import weiner.noah.wifidirect.control.MainActivity;
+import weiner.noah.wifidirect.control.ThermalPredictor;
+import weiner.noah.wifidirect.metrics.Gauge;
+import weiner.noah.wifidirect.metrics.MetricsRegistry;
+import weiner.noah.wifidirect.utils.SysfsSampler;
+import weiner.noah.wifidirect.utils.ThermalZones;
 
 public class ThermalService {
         private PowerManager.OnThermalStatusChangedListener thermalStatusListener = null;
@@ -13,27 +23,125 @@ public class ThermalService {
         private MainActivity mainActivity;
         private HumanFollower humanFollower;
 
+        //backs Posenet off as the phone heats up, so we hopefully never get to EMERGENCY
+        private InferenceGovernor inferenceGovernor = null;
+
         //is the phone running too hot, and we need to stop Posenet to let it cool down?
         private boolean needToStopPosenet = false;
 
         //is the phone running too hot, and we need to land immediately to avoid a shutdown?
         private boolean needToLand = false;
 
+        //forecasts throttling and EMERGENCY from the fast zones' temps, so HumanFollower can act before PowerManager
+        //makes it. Sampled every FORECAST_PERIOD_MS on forecastThread, which keeps running between flights since the
+        //phone keeps heating or cooling between them
+        private final long FORECAST_PERIOD_MS = 1000;
+        private final long SLOW_ZONE_PERIOD_NANOS = 30000000000L;
+        private volatile ThermalPredictor thermalPredictor = null;
+        private Thread forecastThread = null;
+
+        //the forecast on the HUD and over the relay
+        private final Gauge throttleGauge = MetricsRegistry.get().gauge("throttle s");
+        private final Gauge emergencyGauge = MetricsRegistry.get().gauge("emergency s");
+
 
         public ThermalService(MainActivity mainActivity, HumanFollower humanFollower) {
             this.mainActivity = mainActivity;
             this.humanFollower = humanFollower;
         }
 
+        public void setInferenceGovernor(InferenceGovernor inferenceGovernor) {
+            this.inferenceGovernor = inferenceGovernor;
+        }
+
+        //safe to call for every flight: the listener and the forecast thread are only started once, and keep running
+        //until stopListening()
         public void startListening() {
             registerThermalListener();
+            startForecasting();
         }
 
         public void stopListening() {
             unregisterThermalListener();
+            stopForecasting();
+        }
+
+        public ThermalPredictor getThermalPredictor() {
+            return thermalPredictor;
+        }
+
+        private void startForecasting() {
+            if (forecastThread != null) {
+                return;
+            }
+
+            forecastThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    File root = new File("/sys/class/thermal/");
+                    SysfsSampler sampler = new SysfsSampler(root);
+                    ThermalZones zones = new ThermalZones(root, sampler, FORECAST_PERIOD_MS * 1000000, SLOW_ZONE_PERIOD_NANOS,
+                            ThermalZones.DEFAULT_FAST_PREFIXES);
+
+                    //only the fast zones: they're the ones our load heats
+                    List<Integer> fast = new ArrayList<Integer>();
+                    for (int i = 0; i < zones.size(); i++) {
+                        if (zones.isFast(i)) {
+                            fast.add(i);
+                        }
+                    }
+                    String[] names = new String[fast.size()];
+                    for (int i = 0; i < names.length; i++) {
+                        names[i] = zones.getName(fast.get(i));
+                    }
+                    long[] temps = new long[names.length];
+                    long[] trips = new long[names.length];
+
+                    ThermalPredictor predictor = new ThermalPredictor(names);
+                    thermalPredictor = predictor;
+                    Log.i(LOG_TAG, "Forecasting from " + names.length + " thermal zones");
+
+                    try {
+                        while (!Thread.currentThread().isInterrupted()) {
+                            long now = System.nanoTime();
+                            sampler.sample(now);
+                            for (int i = 0; i < names.length; i++) {
+                                temps[i] = zones.getTempMilliC(fast.get(i));
+                                trips[i] = zones.getTripMilliC(fast.get(i));
+                            }
+                            predictor.onSample(temps, trips, now);
+
+                            throttleGauge.set(predictor.getSecondsToThrottle());
+                            emergencyGauge.set(predictor.getSecondsToEmergency());
+                            humanFollower.onThermalForecast(predictor);
+
+                            Thread.sleep(FORECAST_PERIOD_MS);
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        //stopForecasting()
+                    }
+                    finally {
+                        sampler.close();
+                    }
+                }
+            }, "ThermalForecast");
+            forecastThread.start();
+        }
+
+        private void stopForecasting() {
+            if (forecastThread != null) {
+                forecastThread.interrupt();
+                forecastThread = null;
+            }
+            thermalPredictor = null;
         }
 
         private void registerThermalListener() {
+            if (thermalStatusListener != null) {
+                return;
+            }
+
             thermalStatusListener = new PowerManager.OnThermalStatusChangedListener() {
                 @Override
                 public void onThermalStatusChanged(int status) {
@@ -43,7 +151,21 @@ public class ThermalService {
                     //set text for thermal stats text at top of screen
                     mainActivity.setThermalStatusText(status);
 
-                    //if the thermal status is "EMERGENCY", a shutdown is likely soon
+                    //tells the predictor where this phone's limits actually are
+                    ThermalPredictor predictor = thermalPredictor;
+                    if (predictor != null) {
+                        predictor.onThermalStatus(status, System.nanoTime());
+                        Log.i(LOG_TAG, "Thermal forecast now " + predictor);
+                    }
+
+                    //below EMERGENCY, slowing Posenet down is the answer
+                    if (inferenceGovernor != null) {
+                        inferenceGovernor.onThermalStatus(status, System.nanoTime());
+                        Log.i(LOG_TAG, "Inference governor now at " + inferenceGovernor);
+                    }
+
+                    //if the thermal status is "EMERGENCY", a shutdown is likely soon. The forecast should have had us land
+                    //before this, so this is the backstop
                     if (status == PowerManager.THERMAL_STATUS_EMERGENCY) {
                         Log.i(LOG_TAG, "EMERGENCY LAND DUE TO PHONE OVERHEATING");
 
@@ -0,0 +1,142 @@
+package weiner.noah.wifidirect.control;
+
+/**
+ * Table lookups for the tracking trig that runs on every frame: the human's pivot angle from the torso and face
+ * ratios, and how much the pivot shrinks the apparent pupillary distance. The exact closed forms (sqrt, atan,
+ * toDegrees, sin and cos, all in double) are kept here too, to build the tables from and to check them against.
+ *
+ * The ratio can be anything from -inf to inf, so the angle tables aren't indexed by the ratio itself. With
+ * s = (r - 1) / (r + 1), w = s / (1 + |s|) squeezes the whole line into [-1, 1]: r = 1 lands on 0, r = 0 on -0.5,
+ * r = +-inf on 0.5 and r = -1 on the ends. The angle is smooth in w, so straight-line interpolation between
+ * {@link #ANGLE_STEPS} + 1 points is within {@link #MAX_ANGLE_ERROR_DEG} of the exact formula everywhere.
+ *
+ * The pivot shrink is 2 * min(0.0315 * (1 - cos), 0.0875 * |sin|), which has a kink where the two cross (about 140
+ * degrees), so it's sin and cos that are tabulated, every quarter degree, and the min is taken after.
+ *
+ * Plain Java, so AngleTablesTest can check the error bounds and pctool's AngleTableBench can time the lookups against
+ * the exact formulas.
+ */
+public class AngleTables {
+    //points in each angle table, and the most any lookup may be off by from the exact formula
+    static final int ANGLE_STEPS = 1024;
+    public static final double MAX_ANGLE_ERROR_DEG = 0.001;
+
+    //sin and cos every quarter degree over [0, 180], and the most the pivot shrink may be off by, in meters
+    static final int TRIG_STEPS = 720;
+    public static final double MAX_SHRINK_ERROR_M = 0.00001;
+
+    //where the eyes sit relative to the pivot, in meters: half the pupillary distance across, and how far in front
+    private static final double EYE_HALF_WIDTH_M = 0.0315;
+    private static final double EYE_DEPTH_M = 0.0875;
+
+    private static final float[] TORSO = new float[ANGLE_STEPS + 1];
+    private static final float[] FACE = new float[ANGLE_STEPS + 1];
+    private static final float[] SIN = new float[TRIG_STEPS + 1];
+    private static final float[] COS = new float[TRIG_STEPS + 1];
+
+    static {
+        for (int i = 0; i <= ANGLE_STEPS; i++) {
+            double r = ratioAt(-1 + 2.0 * i / ANGLE_STEPS);
+            TORSO[i] = (float) exactTorsoAngle(r);
+            FACE[i] = (float) exactFaceAngle(r);
+        }
+        //the ends are both r = -1, where the formulas jump from -90 to 90
+        TORSO[0] = FACE[0] = -90f;
+        TORSO[ANGLE_STEPS] = FACE[ANGLE_STEPS] = 90f;
+
+        for (int i = 0; i <= TRIG_STEPS; i++) {
+            double radians = Math.PI * i / TRIG_STEPS;
+            SIN[i] = (float) Math.sin(radians);
+            COS[i] = (float) Math.cos(radians);
+        }
+    }
+
+    private AngleTables() {
+    }
+
+    //the ratio a table point stands for. w = 0.5 is r = inf, where both formulas tend to a finite limit
+    private static double ratioAt(double w) {
+        double s = w / (1 - Math.abs(w));
+        return Math.abs(s - 1) < 1e-12 ? 1e9 : (1 + s) / (1 - s);
+    }
+
+    //s / (1 + |s|) for s = (r - 1) / (r + 1), rearranged so r = -1 doesn't divide by zero. r = -1 comes out at -1
+    static double squeeze(double ratio) {
+        return (ratio >= -1 ? ratio - 1 : 1 - ratio) / (Math.abs(ratio + 1) + Math.abs(ratio - 1));
+    }
+
+    private static double lookup(float[] table, double w) {
+        double x = (w + 1) * (ANGLE_STEPS / 2);
+        int i = Math.min((int) x, ANGLE_STEPS - 1);
+        return table[i] + (table[i + 1] - table[i]) * (x - i);
+    }
+
+    /**
+     * The human's pivot angle in degrees from the ratio of right shoulder-eye to left shoulder-eye distances, negative
+     * turning right. The ratio has to be finite.
+     */
+    public static double torsoAngle(float ratio) {
+        return lookup(TORSO, squeeze(ratio));
+    }
+
+    /**
+     * The human's pivot angle in degrees from the ratio of nose-right eye to nose-left eye distances. The ratio has to
+     * be finite.
+     */
+    public static double faceAngle(float ratio) {
+        return lookup(FACE, squeeze(ratio));
+    }
+
+    /**
+     * How much narrower the eyes look, in meters, when the human has pivoted by the given angle in degrees.
+     */
+    public static float pivotShrink(float degrees) {
+        //even in the angle and periodic, so fold it into [0, 180]
+        double folded = Math.abs(degrees) % 360;
+        if (folded > 180) {
+            folded = 360 - folded;
+        }
+
+        double x = folded * (TRIG_STEPS / 180.0);
+        int i = Math.min((int) x, TRIG_STEPS - 1);
+        double f = x - i;
+        double sin = SIN[i] + (SIN[i + 1] - SIN[i]) * f;
+        double cos = COS[i] + (COS[i + 1] - COS[i]) * f;
+
+        return (float) (2 * Math.min(EYE_HALF_WIDTH_M * (1 - cos), EYE_DEPTH_M * sin));
+    }
+
+    //trig derived from the left:right ratio of shoulder-eye distances
+    public static double exactTorsoAngle(double ratio) {
+        //angle is 0 if ratio exactly 1
+        if (ratio == 1) {
+            return 0;
+        }
+
+        final double v = (Math.sqrt(2) * Math.sqrt((29257 * ratio * ratio) + (2736 * ratio) + 29257)) / (167 * ratio - 167);
+        final double rest = (175 * ratio / (167 * ratio - 167)) + (175 / (167 * ratio - 167));
+        return Math.toDegrees(-2 * Math.atan((ratio >= -1 ? -v : v) + rest));
+    }
+
+    public static double exactFaceAngle(double ratio) {
+        if (ratio == 1) {
+            return 0;
+        }
+
+        final double v = Math.sqrt((4594 * ratio * ratio) - (6688 * ratio) + 4594);
+        return Math.toDegrees(-2 * Math.atan(((ratio >= -1 ? -v : v) + (25 * ratio) + 25) / (63 * (ratio - 1))));
+    }
+
+    //where each eye ends up across the image when the head pivots, and the difference in how far each moved
+    public static double exactPivotShrink(double degrees) {
+        double radians = Math.toRadians(degrees);
+
+        double rtEyeNewX = (-EYE_HALF_WIDTH_M * Math.cos(radians)) + (EYE_DEPTH_M * Math.sin(radians));
+        double rtEyeDisp = Math.abs(rtEyeNewX - (-EYE_HALF_WIDTH_M));
+
+        double leftEyeNewX = (EYE_HALF_WIDTH_M * Math.cos(radians)) + (EYE_DEPTH_M * Math.sin(radians));
+        double leftEyeDisp = Math.abs(leftEyeNewX - EYE_HALF_WIDTH_M);
+
+        return Math.abs(leftEyeDisp - rtEyeDisp);
+    }
+}
@@ -0,0 +1,184 @@
+package weiner.noah.wifidirect.control;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+import weiner.noah.wifidirect.Constants;
+
+/**
+ * The tracking parameters that depend on the operator and the camera mount: pupillary distance, focal length, how much
+ * the pivot correction counts, the torso and face angle offsets and where the person should sit in the frame. The
+ * defaults are the compile-time values in Constants and HumanFollower, which were tuned for one person; a
+ * {@link Calibrator} flight fits them for whoever is flying, and the result is saved and loaded on the next start.
+ *
+ * Immutable, so PosenetStats and HumanFollower can share one without locking.
+ *
+ * File layout, little-endian, {@link #FILE_LENGTH} bytes:
+ * <pre>
+ *   0  magic "CALPROF1"   8  the parameters, in field order (8 x f32)   40  wall clock when calibrated, ms (s64)
+ *  48  CRC32 of bytes 0-47 (u32)
+ * </pre>
+ */
+public class CalibrationProfile {
+    public static final String FILE_NAME = "calibration.prof";
+
+    static final byte[] MAGIC = {'C', 'A', 'L', 'P', 'R', 'O', 'F', '1'};
+    static final int FILE_LENGTH = 52;
+    private static final int PARAMETERS = 8;
+
+    //HumanFollower's CTR_OFFSET_DESIRED before it was calibrated
+    private static final float DEFAULT_CTR_OFFSET_PX = -15f;
+
+    public static final CalibrationProfile DEFAULT = new CalibrationProfile(Constants.PD, Constants.focalLenExp,
+            Constants.PIVOT_WEIGHT, Constants.angleCalibrationAdjustmentLeft, Constants.angleCalibrationAdjustmentRight,
+            Constants.angleCalibrationAdjustmentFaceLeft, Constants.angleCalibrationAdjustmentFaceRight, DEFAULT_CTR_OFFSET_PX,
+            0);
+
+    //meters between the eyes, and focal length in Posenet input pixels. Only their product matters for distance; PD on
+    //its own sets the meters per pixel across the frame
+    public final float pd;
+    public final float focalLength;
+
+    //how much of the apparent PD shrink from the person pivoting to take off
+    public final float pivotWeight;
+
+    //degrees taken off angles to the left (positive) and added to angles to the right (negative), torso and face
+    public final float torsoLeft;
+    public final float torsoRight;
+    public final float faceLeft;
+    public final float faceRight;
+
+    //bounding box offset from the frame center, in pixels, at which the person is straight in front of the drone
+    public final float ctrOffset;
+
+    //when it was calibrated, 0 for the defaults
+    public final long calibratedMillis;
+
+    public CalibrationProfile(float pd, float focalLength, float pivotWeight, float torsoLeft, float torsoRight,
+                              float faceLeft, float faceRight, float ctrOffset, long calibratedMillis) {
+        this.pd = pd;
+        this.focalLength = focalLength;
+        this.pivotWeight = pivotWeight;
+        this.torsoLeft = torsoLeft;
+        this.torsoRight = torsoRight;
+        this.faceLeft = faceLeft;
+        this.faceRight = faceRight;
+        this.ctrOffset = ctrOffset;
+        this.calibratedMillis = calibratedMillis;
+    }
+
+    private float[] parameters() {
+        return new float[]{pd, focalLength, pivotWeight, torsoLeft, torsoRight, faceLeft, faceRight, ctrOffset};
+    }
+
+    byte[] encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(FILE_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(MAGIC);
+        for (float parameter : parameters()) {
+            buffer.putFloat(parameter);
+        }
+        buffer.putLong(calibratedMillis);
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, FILE_LENGTH - 4);
+        buffer.putInt((int) crc.getValue());
+        return buffer.array();
+    }
+
+    /**
+     * Null if the bytes aren't a profile: wrong length, magic or checksum, or a parameter that isn't a number.
+     */
+    static CalibrationProfile decode(byte[] bytes) {
+        if (bytes.length != FILE_LENGTH || !Arrays.equals(Arrays.copyOf(bytes, MAGIC.length), MAGIC)) {
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, FILE_LENGTH - 4);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt(FILE_LENGTH - 4) != (int) crc.getValue()) {
+            return null;
+        }
+
+        buffer.position(MAGIC.length);
+        float[] p = new float[PARAMETERS];
+        for (int i = 0; i < PARAMETERS; i++) {
+            p[i] = buffer.getFloat();
+            if (Float.isNaN(p[i]) || Float.isInfinite(p[i])) {
+                return null;
+            }
+        }
+        if (p[0] <= 0 || p[1] <= 0) {
+            return null;
+        }
+        return new CalibrationProfile(p[0], p[1], p[2], p[3], p[4], p[5], p[6], p[7], buffer.getLong());
+    }
+
+    /**
+     * Write the profile next to the old one and move it over, so a crash mid-write leaves the old one.
+     */
+    public void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(encode());
+            out.getFD().sync();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Couldn't move " + temp + " to " + file);
+        }
+    }
+
+    /**
+     * The saved profile, or null if there isn't one or it's damaged.
+     */
+    public static CalibrationProfile load(File file) throws IOException {
+        if (!file.exists() || file.length() != FILE_LENGTH) {
+            return null;
+        }
+
+        byte[] bytes = new byte[FILE_LENGTH];
+        try (FileInputStream in = new FileInputStream(file)) {
+            int read = 0;
+            while (read < FILE_LENGTH) {
+                int n = in.read(bytes, read, FILE_LENGTH - read);
+                if (n < 0) {
+                    return null;
+                }
+                read += n;
+            }
+        }
+        return decode(bytes);
+    }
+
+    public boolean isDefault() {
+        return calibratedMillis == 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof CalibrationProfile)) {
+            return false;
+        }
+        CalibrationProfile other = (CalibrationProfile) o;
+        return Arrays.equals(parameters(), other.parameters()) && calibratedMillis == other.calibratedMillis;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(parameters()) * 31 + (int) calibratedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "PD %.1fmm, focal %.1fpx, pivot weight %.2f, torso -%.1f/+%.1f deg, " +
+                "face -%.1f/+%.1f deg, center %.1fpx%s", pd * 1000, focalLength, pivotWeight, torsoLeft, torsoRight, faceLeft,
+                faceRight, ctrOffset, isDefault() ? " (defaults)" : "");
+    }
+}
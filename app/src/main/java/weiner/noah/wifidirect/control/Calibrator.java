@@ -0,0 +1,287 @@
+package weiner.noah.wifidirect.control;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import weiner.noah.wifidirect.Constants;
+
+/**
+ * Fits a {@link CalibrationProfile} for whoever is flying, from Posenet's measurements while the drone hovers and the
+ * operator stands at known distances and angles in front of it.
+ *
+ * The calibration is a schedule of phases, each held for dwellNanos: at every distance, the operator faces the drone,
+ * then turns to their left, then to their right, by the given angle. HumanFollower shows each phase's
+ * {@link Phase#getInstruction()} and PosenetStats feeds in every tracked frame's raw measurements
+ * ({@link #onFrame}). The first settleNanos of each phase are thrown away, while the operator gets into place.
+ *
+ * Then {@link #fit} works out, by least squares:
+ * - PD x focal length and pivot weight x focal length, from distance x eye pixels = PD F - w F shrink(angle), a line
+ *   in the pivot shrink. Distances alone can't tell PD from focal length, so the split uses the camera's calibrated
+ *   focal length, which makes PD / eye pixels the right meters per pixel across the frame too
+ * - each angle offset, as the mean difference between the raw angle and the phase's angle, over the turned phases'
+ *   frames on that side, like PosenetStats applies them. Facing the drone, which side a raw angle lands on is noise
+ * - the center offset, as the mean bounding box offset while the operator faces the drone from straight in front
+ * Anything without enough frames behind it keeps its current value.
+ *
+ * Plain Java. Safe to call from any thread.
+ */
+public class Calibrator {
+    //frames a parameter needs before it's fitted instead of kept
+    static final int MIN_FRAMES = 10;
+
+    //turned phases are this far either side, in degrees
+    public static final double DEFAULT_TURN_DEG = 45;
+
+    /**
+     * One distance and angle the operator holds, and what Posenet saw.
+     */
+    public static class Phase {
+        public final double distanceM;
+        //0 facing the drone, positive turned to their left
+        public final double angleDeg;
+
+        //per frame: corrected eye pixels, raw torso angle, raw face angle, bounding box offset. NaN for what's missing
+        private final List<double[]> frames = new ArrayList<double[]>();
+
+        Phase(double distanceM, double angleDeg) {
+            this.distanceM = distanceM;
+            this.angleDeg = angleDeg;
+        }
+
+        public String getInstruction() {
+            String facing = angleDeg == 0 ? "face the drone" : String.format(Locale.US, "turn %.0f degrees to your %s",
+                    Math.abs(angleDeg), angleDeg > 0 ? "left" : "right");
+            return String.format(Locale.US, "Stand %.0fcm from the drone and %s", distanceM * 100, facing);
+        }
+
+        public int getFrames() {
+            return frames.size();
+        }
+    }
+
+    private final List<Phase> phases = new ArrayList<Phase>();
+    private final long dwellNanos;
+    private final long settleNanos;
+
+    private long startNanos = -1;
+
+    /**
+     * @param distancesM where the operator stands, in meters from the camera
+     * @param turnDeg    how far they turn each way at every distance
+     */
+    public Calibrator(double[] distancesM, double turnDeg, long dwellNanos, long settleNanos) {
+        if (settleNanos >= dwellNanos) {
+            throw new IllegalArgumentException("Settling takes the whole phase");
+        }
+
+        this.dwellNanos = dwellNanos;
+        this.settleNanos = settleNanos;
+
+        for (double distance : distancesM) {
+            phases.add(new Phase(distance, 0));
+            phases.add(new Phase(distance, turnDeg));
+            phases.add(new Phase(distance, -turnDeg));
+        }
+    }
+
+    public synchronized void start(long nowNanos) {
+        startNanos = nowNanos;
+    }
+
+    //lock must be held. -1 before the start and after the last phase
+    private int indexAt(long nowNanos) {
+        if (startNanos < 0 || nowNanos < startNanos) {
+            return -1;
+        }
+        long index = (nowNanos - startNanos) / dwellNanos;
+        return index < phases.size() ? (int) index : -1;
+    }
+
+    /**
+     * The phase the operator should be holding, or null once the calibration is done (or before it starts).
+     */
+    public synchronized Phase getPhase(long nowNanos) {
+        int index = indexAt(nowNanos);
+        return index < 0 ? null : phases.get(index);
+    }
+
+    public synchronized boolean isDone(long nowNanos) {
+        return startNanos >= 0 && indexAt(nowNanos) < 0;
+    }
+
+    public long getDurationNanos() {
+        return dwellNanos * phases.size();
+    }
+
+    public List<Phase> getPhases() {
+        return phases;
+    }
+
+    /**
+     * A tracked frame's raw measurements, NaN for whatever Posenet didn't find.
+     *
+     * @param eyePixels  distance between the eyes in Posenet input pixels, with PosenetStats' correction for turning right
+     * @param torsoAngle angle from the shoulder/eye ratio, before offsets
+     * @param faceAngle  angle from the nose/eye ratio, before offsets
+     * @param bbOffset   bounding box center's offset from the frame center, pixels
+     */
+    public synchronized void onFrame(long nowNanos, double eyePixels, double torsoAngle, double faceAngle, double bbOffset) {
+        int index = indexAt(nowNanos);
+        if (index < 0 || (nowNanos - startNanos) % dwellNanos < settleNanos) {
+            return;
+        }
+        phases.get(index).frames.add(new double[]{eyePixels, torsoAngle, faceAngle, bbOffset});
+    }
+
+    /**
+     * The calibrated focal length of the camera in Posenet input pixels: the preview is cropped to the model's aspect
+     * ratio and scaled down.
+     */
+    public static double modelFocalLength() {
+        double previewToModel = Math.max((double) Constants.MODEL_WIDTH / Constants.CAMERA_CALIBRATION_WIDTH,
+                (double) Constants.MODEL_HEIGHT / Constants.CAMERA_CALIBRATION_HEIGHT);
+        return Constants.CAMERA_FOCAL_X * previewToModel;
+    }
+
+    /**
+     * Fit a profile to everything measured, keeping current's value for anything there weren't enough frames for.
+     *
+     * @param cameraFocalPx camera focal length in Posenet input pixels, see {@link #modelFocalLength()}
+     */
+    public synchronized CalibrationProfile fit(CalibrationProfile current, double cameraFocalPx, long wallMillis) {
+        //distance x eye pixels against the pivot shrink at the phase's angle
+        double n = 0, sx = 0, sy = 0, sxx = 0, sxy = 0;
+        for (Phase phase : phases) {
+            double shrink = AngleTables.pivotShrink((float) phase.angleDeg);
+            for (double[] frame : phase.frames) {
+                if (Double.isNaN(frame[0]) || frame[0] <= 0) {
+                    continue;
+                }
+                double y = phase.distanceM * frame[0];
+                n++;
+                sx += shrink;
+                sy += y;
+                sxx += shrink * shrink;
+                sxy += shrink * y;
+            }
+        }
+
+        float pd = current.pd;
+        float focal = current.focalLength;
+        float pivotWeight = current.pivotWeight;
+        if (n >= MIN_FRAMES) {
+            double denominator = n * sxx - sx * sx;
+            double pdTimesFocal;
+            //with no spread in the angles the slope can't be fitted, so keep the pivot weight and fit the intercept
+            if (denominator > 1e-12 * n * n) {
+                double slope = (n * sxy - sx * sy) / denominator;
+                pdTimesFocal = (sy - slope * sx) / n;
+                focal = (float) cameraFocalPx;
+                pivotWeight = (float) (-slope / focal);
+            }
+            else {
+                double k = current.pivotWeight / current.pd;
+                double num = 0, den = 0;
+                for (Phase phase : phases) {
+                    double shrink = AngleTables.pivotShrink((float) phase.angleDeg);
+                    for (double[] frame : phase.frames) {
+                        if (!Double.isNaN(frame[0]) && frame[0] > 0) {
+                            num += phase.distanceM * frame[0] * (1 - k * shrink);
+                            den += (1 - k * shrink) * (1 - k * shrink);
+                        }
+                    }
+                }
+                pdTimesFocal = num / den;
+                focal = (float) cameraFocalPx;
+            }
+            pd = (float) (pdTimesFocal / focal);
+        }
+
+        float torsoLeft = offset(1, true, current.torsoLeft);
+        float torsoRight = offset(1, false, current.torsoRight);
+        float faceLeft = offset(2, true, current.faceLeft);
+        float faceRight = offset(2, false, current.faceRight);
+
+        //straight in front, facing the drone
+        double offsetSum = 0;
+        int offsetCount = 0;
+        for (Phase phase : phases) {
+            if (phase.angleDeg != 0) {
+                continue;
+            }
+            for (double[] frame : phase.frames) {
+                if (!Double.isNaN(frame[3])) {
+                    offsetSum += frame[3];
+                    offsetCount++;
+                }
+            }
+        }
+        float ctrOffset = offsetCount >= MIN_FRAMES ? (float) (offsetSum / offsetCount) : current.ctrOffset;
+
+        return new CalibrationProfile(pd, focal, pivotWeight, torsoLeft, torsoRight, faceLeft, faceRight, ctrOffset,
+                wallMillis);
+    }
+
+    //lock must be held. Mean of how far the raw angle is past the phase's angle, over the turned frames whose raw angle
+    //is on this side. PosenetStats takes left offsets off positive angles and adds right offsets to negative ones
+    private float offset(int column, boolean left, float current) {
+        double sum = 0;
+        int count = 0;
+        for (Phase phase : phases) {
+            if (phase.angleDeg == 0) {
+                continue;
+            }
+            for (double[] frame : phase.frames) {
+                double raw = frame[column];
+                if (Double.isNaN(raw) || (raw >= 0) != left) {
+                    continue;
+                }
+                sum += left ? raw - phase.angleDeg : phase.angleDeg - raw;
+                count++;
+            }
+        }
+        return count >= MIN_FRAMES ? (float) (sum / count) : current;
+    }
+
+    /**
+     * Distance in meters the profile would give for a frame, the way PosenetStats works it out.
+     */
+    public static double distance(CalibrationProfile profile, double eyePixels, double angleDeg) {
+        return (profile.pd - AngleTables.pivotShrink((float) angleDeg) * profile.pivotWeight) * profile.focalLength / eyePixels;
+    }
+
+    /**
+     * RMS distance error over the calibration's frames with the given profile, in meters, with the angle PosenetStats
+     * would use taken as the phase's. NaN with no frames.
+     */
+    public synchronized double getDistanceError(CalibrationProfile profile) {
+        double sum = 0;
+        int count = 0;
+        for (Phase phase : phases) {
+            for (double[] frame : phase.frames) {
+                if (!Double.isNaN(frame[0]) && frame[0] > 0) {
+                    double error = distance(profile, frame[0], phase.angleDeg) - phase.distanceM;
+                    sum += error * error;
+                    count++;
+                }
+            }
+        }
+        return count == 0 ? Double.NaN : Math.sqrt(sum / count);
+    }
+
+    /**
+     * The phases and how many frames each got, then the old and new profiles with their distance error.
+     */
+    public synchronized String report(CalibrationProfile before, CalibrationProfile after) {
+        StringBuilder report = new StringBuilder();
+        report.append("Calibration\n");
+        for (Phase phase : phases) {
+            report.append(String.format(Locale.US, "  %5.2fm %+4.0f deg: %d frames\n", phase.distanceM, phase.angleDeg,
+                    phase.frames.size()));
+        }
+        report.append(String.format(Locale.US, "before: %s, distance RMS %.3fm\n", before, getDistanceError(before)));
+        report.append(String.format(Locale.US, "after:  %s, distance RMS %.3fm\n", after, getDistanceError(after)));
+        return report.toString();
+    }
+}
@@ -0,0 +1,223 @@
+package weiner.noah.wifidirect.control;
+
+import android.Manifest;
+import android.content.pm.PackageManager;
+import android.net.wifi.p2p.WifiP2pConfig;
+import android.net.wifi.p2p.WifiP2pDevice;
+import android.net.wifi.p2p.WifiP2pManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.core.app.ActivityCompat;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import weiner.noah.wifidirect.metrics.MetricsRegistry;
+import weiner.noah.wifidirect.relay.Backoff;
+import weiner.noah.wifidirect.relay.HoverFailsafe;
+import weiner.noah.wifidirect.relay.IDroneLink;
+import weiner.noah.wifidirect.relay.IRelayListener;
+import weiner.noah.wifidirect.relay.ITelemetrySource;
+import weiner.noah.wifidirect.relay.LinkQualityMonitor;
+import weiner.noah.wifidirect.relay.LinkState;
+import weiner.noah.wifidirect.relay.PacketRecorder;
+import weiner.noah.wifidirect.relay.RelayConnector;
+import weiner.noah.wifidirect.relay.RelayProtocol;
+import weiner.noah.wifidirect.relay.RelaySession;
+
+/**
+ * Keeps the link to the controller alive across Wi-Fi Direct drops, so a hiccup costs a few seconds instead of an
+ * app restart on both phones.
+ *
+ * Two layers: if the p2p group itself goes away we keep asking WifiP2pManager to reconnect to the last peer (with
+ * backoff), and while the group is up {@link RelayConnector} keeps the relay socket connected. The drone hovers
+ * under {@link HoverFailsafe} for the gap.
+ */
+public class ConnectionManager implements RelayConnector.IConnectionListener {
+    private static final String TAG = "ConnectionManager";
+
+    //once heartbeats are running the controller echoes a ping every 200ms, so this long with nothing on the socket
+    //means the link is dead. A clean link can fail over sooner, while a congested one gets more slack before we tear
+    //it down and add reconnect traffic on top. A controller that never says hello gets no read timeout at all, it may
+    //just be idle
+    private static final int LINK_READ_TIMEOUT_MIN_MS = 1000;
+    private static final int LINK_READ_TIMEOUT_MAX_MS = 4000;
+
+    private static final int SOCKET_CONNECT_TIMEOUT_MS = 5000;
+
+    //socket retries: the group is usually still up, so try again quickly
+    private static final long SOCKET_BACKOFF_INITIAL_MS = 250;
+    private static final long SOCKET_BACKOFF_MAX_MS = 4000;
+
+    //group rejoin retries: WifiP2pManager.connect() takes a few seconds on its own
+    private static final long GROUP_BACKOFF_INITIAL_MS = 2000;
+    private static final long GROUP_BACKOFF_MAX_MS = 30000;
+
+    //how long the failsafe hovers before giving up and landing
+    private static final long FAILSAFE_HOLD_MS = 15000;
+
+    private final MainActivity mainActivity;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private final RelaySession session = new RelaySession();
+    private final HoverFailsafe failsafe;
+    private final RelayConnector relayConnector;
+    private Thread relayThread = null;
+
+    private final Backoff groupBackoff = new Backoff(GROUP_BACKOFF_INITIAL_MS, GROUP_BACKOFF_MAX_MS);
+
+    //last peer we connected to, so we can rejoin without the user picking it again
+    private WifiP2pConfig lastPeerConfig = null;
+    private boolean groupUp = false;
+
+    //have we told the user the link dropped? Only toast once per outage
+    private boolean outageReported = false;
+
+    public ConnectionManager(MainActivity mainActivity, IDroneLink droneLink, IRelayListener relayListener, AtomicBoolean relayOn) {
+        this.mainActivity = mainActivity;
+
+        failsafe = new HoverFailsafe(droneLink, session, FAILSAFE_HOLD_MS);
+
+        relayConnector = new RelayConnector(RelayProtocol.DEFAULT_PORT, droneLink, relayListener, this, relayOn, session, failsafe,
+                new Backoff(SOCKET_BACKOFF_INITIAL_MS, SOCKET_BACKOFF_MAX_MS));
+        relayConnector.setConnectTimeoutMs(SOCKET_CONNECT_TIMEOUT_MS);
+        relayConnector.setAdaptiveReadTimeoutMs(LINK_READ_TIMEOUT_MIN_MS, LINK_READ_TIMEOUT_MAX_MS);
+        relayConnector.setMetrics(MetricsRegistry.get());
+    }
+
+    public void setTelemetrySource(ITelemetrySource source) {
+        relayConnector.setTelemetrySource(source);
+    }
+
+    //log relay traffic and failsafe hover packets for replay, null to stop
+    public void setRecorder(PacketRecorder recorder) {
+        relayConnector.setRecorder(recorder);
+        failsafe.setRecorder(recorder);
+    }
+
+    public RelaySession getSession() {
+        return session;
+    }
+
+    public LinkQualityMonitor getLinkQuality() {
+        return relayConnector.getLinkQuality();
+    }
+
+    //request connection to a wifi direct peer, and remember it for rejoining
+    public void connectTo(WifiP2pDevice device) {
+        WifiP2pConfig config = new WifiP2pConfig();
+        config.deviceAddress = device.deviceAddress;
+
+        lastPeerConfig = config;
+        groupBackoff.reset();
+
+        requestConnect();
+    }
+
+    private void requestConnect() {
+        if (lastPeerConfig == null) {
+            return;
+        }
+
+        if (ActivityCompat.checkSelfPermission(mainActivity, Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+            Log.e(TAG, "requestConnect(): ACCESS_FINE_LOCATION not granted");
+            return;
+        }
+
+        Log.i(TAG, "Running wifip2pman.connect...");
+        mainActivity.getWifiP2pManager().connect(mainActivity.getWifiDirectChannel(), lastPeerConfig, new WifiP2pManager.ActionListener() {
+            @Override
+            public void onSuccess() {
+                //result comes back through connectionChangedReceiver
+            }
+
+            @Override
+            public void onFailure(int reason) {
+                Log.e(TAG, "wifip2pman.connect failed, reason " + reason);
+            }
+        });
+    }
+
+    //keeps retrying the group until onGroupFormed() cancels it
+    private final Runnable groupRejoinRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (groupUp) {
+                return;
+            }
+
+            Log.i(TAG, "Trying to rejoin Wi-Fi Direct group, attempt " + (groupBackoff.getAttempts() + 1));
+            requestConnect();
+
+            handler.postDelayed(this, groupBackoff.nextDelayMs());
+        }
+    };
+
+    /**
+     * Group is up and we're the client. Called on the main thread from connectionChangedReceiver.
+     */
+    public void onGroupFormed(String groupOwnerAddress) {
+        groupUp = true;
+        handler.removeCallbacks(groupRejoinRunnable);
+        groupBackoff.reset();
+
+        relayConnector.onGroupFormed(groupOwnerAddress);
+
+        //first group: start the connector, it runs for the life of the app from here on
+        if (relayThread == null) {
+            relayThread = new Thread(relayConnector, "RelayConnector");
+            relayThread.start();
+        }
+    }
+
+    /**
+     * Group went away. Called on the main thread from connectionChangedReceiver.
+     */
+    public void onGroupLost() {
+        //we get disconnect broadcasts before we've ever connected too
+        if (!groupUp) {
+            return;
+        }
+        groupUp = false;
+
+        relayConnector.onGroupLost();
+
+        if (lastPeerConfig != null) {
+            handler.removeCallbacks(groupRejoinRunnable);
+            handler.postDelayed(groupRejoinRunnable, groupBackoff.nextDelayMs());
+        }
+    }
+
+    public void stop() {
+        handler.removeCallbacks(groupRejoinRunnable);
+        relayConnector.stop();
+    }
+
+    //called on the RelayConnector thread
+    @Override
+    public void onLinkStateChanged(LinkState state, String detail) {
+        Log.i(TAG, "Relay link " + state + (detail != null ? ": " + detail : ""));
+
+        switch (state) {
+            case RELAYING:
+                if (outageReported) {
+                    mainActivity.showToastie("Controller link restored");
+                    outageReported = false;
+                }
+                break;
+            case BACKOFF:
+                Log.i(TAG, "Link quality before the drop: " + getLinkQuality());
+                if (!outageReported && session.getConnectCount() > 0) {
+                    mainActivity.showToastie("Controller link lost, reconnecting..." + (detail != null ? " (" + detail + ")" : ""));
+                    outageReported = true;
+                }
+                break;
+            case WAITING_FOR_DRONE:
+                mainActivity.showToastie("There was a problem with the USB connection. Waiting for the drone...");
+                break;
+            default:
+                break;
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package weiner.noah.wifidirect.control;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Size;
+import org.opencv.core.TermCriteria;
+import org.opencv.video.Video;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+import weiner.noah.wifidirect.Constants;
+import weiner.noah.wifidirect.inference.Pose;
+import weiner.noah.wifidirect.utils.CameraFrame;
+import weiner.noah.wifidirect.utils.MatCounter;
+
+/**
+ * Carries the keypoints tracking reads from one camera frame to the next with sparse Lucas-Kanade optical flow on
+ * the Y plane, so Posenet only has to run on every few frames (keyframes) and tracking still gets a fresh pose on
+ * every one.
+ *
+ * Posenet's answer for a keyframe comes back a few frames late. {@link #seed} hands it over, and the next
+ * {@link #update} flows those keypoints straight from the keyframe's luma (kept since {@link #markKeyframe}) to the
+ * current frame, so a late keyframe still lands on the right spot.
+ *
+ * Every point is flowed forward and then back again. A point that doesn't come back within {@link #MAX_FB_ERROR_PX}
+ * of where it started is dropped (score 0). {@link #wantsKeyframe} asks for Posenet again when:
+ * - it's been keyframeInterval frames
+ * - the mean forward-backward error of the points still tracked has grown past {@link #REDETECT_FB_ERROR_PX}
+ * - an eye was lost, or the eyes' distance apart (what distance to the person comes from) drifted more than
+ *   {@link #MAX_EYE_SCALE_DRIFT} from the keyframe's
+ *
+ * Tracked are the eyes and shoulders, and for MeasurementFusion's range cues and the pose solver also the nose, hips
+ * and ankles. The rest come out with score 0 on propagated frames, as if Posenet hadn't found them, and so do tracked
+ * ones Posenet scored at or under minScore (PosenetStats' minConfidence test). Poses are in model input coordinates
+ * (257x257), flow runs on the full camera frame.
+ *
+ * {@link #seed} is for the inference thread; everything else is for the thread that has the camera frames.
+ */
+public class FlowKeypointTracker {
+    //eyes first, wantsKeyframe() checks them by slot
+    private static final int[] TRACKED = {Pose.LEFT_EYE, Pose.RIGHT_EYE, Pose.LEFT_SHOULDER, Pose.RIGHT_SHOULDER, Pose.NOSE,
+            Pose.LEFT_HIP, Pose.RIGHT_HIP, Pose.LEFT_ANKLE, Pose.RIGHT_ANKLE};
+
+    //LK window and pyramid levels, enough for a person walking across a 640x480 frame at 30fps
+    private static final Size WINDOW = new Size(21, 21);
+    private static final int PYRAMID_LEVELS = 3;
+    private static final TermCriteria CRITERIA = new TermCriteria(TermCriteria.COUNT + TermCriteria.EPS, 20, 0.03);
+
+    //forward-backward error, in camera pixels, past which a point is dropped, and mean over the points kept past which
+    //we want Posenet again
+    private static final double MAX_FB_ERROR_PX = 1.5;
+    private static final double REDETECT_FB_ERROR_PX = 0.6;
+    private static final double MAX_EYE_SCALE_DRIFT = 0.15;
+
+    //keyframes waiting for Posenet: one queued for inference and one running, plus a spare
+    private static final int KEYFRAME_SLOTS = 3;
+
+    private final int keyframeInterval;
+    private final float minScore;
+
+    //luma of the last frame and this one, and of recent keyframes. Allocated for the first frame's size
+    private int width = 0, height = 0;
+    private byte[] lumaBytes;
+    private Mat previous, current;
+    private final Mat[] keyframeLuma = new Mat[KEYFRAME_SLOTS];
+    private final long[] keyframeNanos = new long[KEYFRAME_SLOTS];
+    private int nextKeyframeSlot = 0;
+
+    private final MatOfPoint2f from = MatCounter.created(new MatOfPoint2f());
+    private final MatOfPoint2f to = MatCounter.created(new MatOfPoint2f());
+    private final MatOfPoint2f back = MatCounter.created(new MatOfPoint2f());
+    private final MatOfByte status = MatCounter.created(new MatOfByte());
+    private final MatOfByte backStatus = MatCounter.created(new MatOfByte());
+    private final MatOfFloat error = MatCounter.created(new MatOfFloat());
+    private final float[] fromXy = new float[2 * TRACKED.length];
+    private final float[] toXy = new float[2 * TRACKED.length];
+    private final float[] backXy = new float[2 * TRACKED.length];
+    private final byte[] statusBytes = new byte[TRACKED.length];
+    private final byte[] backStatusBytes = new byte[TRACKED.length];
+
+    //the last Posenet pose, and where its tracked keypoints are now (camera pixels) and whether they're still good
+    private final Pose keyPose;
+    private final float[] pointX = new float[TRACKED.length];
+    private final float[] pointY = new float[TRACKED.length];
+    private final boolean[] alive = new boolean[TRACKED.length];
+    private boolean hasPose = false;
+    private double keyEyeDistance;
+    private double meanFbError = 0;
+    private int framesSinceKeyframe = 0;
+
+    //Posenet's answer, handed over from the inference thread
+    private final Pose seedPose;
+    private long seedNanos = -1;
+
+    //model input crop and scale within the camera frame, as PosenetStats.cropBitmap/scaleForModel do it
+    private float cropX, cropY, scaleX, scaleY;
+
+    private long propagated = 0, keyframes = 0, redetections = 0;
+
+    public FlowKeypointTracker(int keypoints, int keyframeInterval, float minScore) {
+        this.keyframeInterval = keyframeInterval;
+        this.minScore = minScore;
+        keyPose = new Pose(keypoints);
+        seedPose = new Pose(keypoints);
+
+        from.alloc(TRACKED.length);
+    }
+
+    /**
+     * Should this frame go to Posenet? Called before the frame's {@link #update}, so the flow checks are the last
+     * frame's.
+     */
+    public boolean wantsKeyframe() {
+        //this frame is one more on from the keyframe than the frames updated since
+        if (!hasPose || framesSinceKeyframe + 1 >= keyframeInterval) {
+            return true;
+        }
+        if (meanFbError > REDETECT_FB_ERROR_PX || !alive[0] || !alive[1]) {
+            return true;
+        }
+        double drift = Math.abs(eyeDistance() / keyEyeDistance - 1);
+        return drift > MAX_EYE_SCALE_DRIFT;
+    }
+
+    /**
+     * This frame (the one last passed to {@link #update}) is going to Posenet. Keeps its luma for when the answer
+     * comes back.
+     */
+    public void markKeyframe(long capturedNanos) {
+        if (current == null) {
+            return;
+        }
+
+        if (hasPose && framesSinceKeyframe < keyframeInterval) {
+            redetections++;
+        }
+
+        int slot = nextKeyframeSlot;
+        nextKeyframeSlot = (nextKeyframeSlot + 1) % KEYFRAME_SLOTS;
+        current.copyTo(keyframeLuma[slot]);
+        keyframeNanos[slot] = capturedNanos;
+        framesSinceKeyframe = 0;
+        keyframes++;
+    }
+
+    /**
+     * Posenet's pose for a keyframe. Copied, so the caller can reuse it.
+     */
+    public synchronized void seed(long capturedNanos, Pose pose) {
+        copy(pose, seedPose);
+        seedNanos = capturedNanos;
+    }
+
+    /**
+     * Take in a new camera frame and move the keypoints onto it. Must be called while the frame is valid.
+     *
+     * @param out the propagated pose, in model input coordinates
+     * @return false if there's nothing to track yet (no Posenet answer so far, or everything was lost)
+     */
+    public boolean update(CameraFrame frame, Pose out) {
+        readLuma(frame);
+        framesSinceKeyframe++;
+
+        //swap first: current is now this frame, previous the last one
+        Mat swap = previous;
+        previous = current;
+        current = swap;
+        current.put(0, 0, lumaBytes);
+
+        //a keyframe's answer came back: flow it from the keyframe to here
+        int seedSlot = takeSeed();
+        if (seedSlot >= 0) {
+            boolean anyPoint = false;
+            for (int i = 0; i < TRACKED.length; i++) {
+                int k = TRACKED[i];
+                pointX[i] = cropX + keyPose.x[k] * scaleX;
+                pointY[i] = cropY + keyPose.y[k] * scaleY;
+                alive[i] = keyPose.scores[k] > minScore;
+                anyPoint |= alive[i];
+            }
+            hasPose = anyPoint;
+            keyEyeDistance = alive[0] && alive[1] ? eyeDistance() : Double.NaN;
+            if (hasPose) {
+                flow(keyframeLuma[seedSlot], current);
+            }
+        }
+        else if (hasPose && previous != null) {
+            flow(previous, current);
+            propagated++;
+        }
+
+        if (!hasPose) {
+            return false;
+        }
+
+        copy(keyPose, out);
+        for (int k = 0; k < out.getKeypointCount(); k++) {
+            out.scores[k] = 0;
+        }
+        boolean anyAlive = false;
+        for (int i = 0; i < TRACKED.length; i++) {
+            int k = TRACKED[i];
+            if (alive[i]) {
+                out.x[k] = (pointX[i] - cropX) / scaleX;
+                out.y[k] = (pointY[i] - cropY) / scaleY;
+                out.scores[k] = keyPose.scores[k];
+                anyAlive = true;
+            }
+        }
+
+        hasPose = anyAlive;
+        return anyAlive;
+    }
+
+    /**
+     * Forget the person and every pending keyframe, e.g. for a new follow session.
+     */
+    public synchronized void reset() {
+        hasPose = false;
+        seedNanos = -1;
+        framesSinceKeyframe = 0;
+        meanFbError = 0;
+        for (int slot = 0; slot < KEYFRAME_SLOTS; slot++) {
+            keyframeNanos[slot] = -1;
+        }
+    }
+
+    /**
+     * Free the OpenCV buffers. The tracker is done after this.
+     */
+    public void release() {
+        releaseLuma();
+        MatCounter.release(from);
+        MatCounter.release(to);
+        MatCounter.release(back);
+        MatCounter.release(status);
+        MatCounter.release(backStatus);
+        MatCounter.release(error);
+    }
+
+    private void releaseLuma() {
+        MatCounter.release(previous);
+        MatCounter.release(current);
+        for (int slot = 0; slot < KEYFRAME_SLOTS; slot++) {
+            MatCounter.release(keyframeLuma[slot]);
+            keyframeLuma[slot] = null;
+        }
+        previous = current = null;
+        width = height = 0;
+    }
+
+    //copy the pending seed into keyPose and return the slot of its keyframe, or -1. A seed whose keyframe has been
+    //overwritten is dropped
+    private synchronized int takeSeed() {
+        if (seedNanos < 0) {
+            return -1;
+        }
+        long nanos = seedNanos;
+        seedNanos = -1;
+
+        for (int slot = 0; slot < KEYFRAME_SLOTS; slot++) {
+            if (keyframeNanos[slot] == nanos) {
+                keyframeNanos[slot] = -1;
+                copy(seedPose, keyPose);
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    //flow the live points from one luma frame to another, forward and back, and drop the ones that don't come back
+    private void flow(Mat fromLuma, Mat toLuma) {
+        int count = 0;
+        for (int i = 0; i < TRACKED.length; i++) {
+            fromXy[2 * i] = pointX[i];
+            fromXy[2 * i + 1] = pointY[i];
+        }
+        from.put(0, 0, fromXy);
+
+        Video.calcOpticalFlowPyrLK(fromLuma, toLuma, from, to, status, error, WINDOW, PYRAMID_LEVELS, CRITERIA, 0, 1e-4);
+        Video.calcOpticalFlowPyrLK(toLuma, fromLuma, to, back, backStatus, error, WINDOW, PYRAMID_LEVELS, CRITERIA, 0, 1e-4);
+
+        to.get(0, 0, toXy);
+        back.get(0, 0, backXy);
+        status.get(0, 0, statusBytes);
+        backStatus.get(0, 0, backStatusBytes);
+
+        double errorSum = 0;
+        for (int i = 0; i < TRACKED.length; i++) {
+            if (!alive[i]) {
+                continue;
+            }
+
+            double fb = Math.hypot(backXy[2 * i] - fromXy[2 * i], backXy[2 * i + 1] - fromXy[2 * i + 1]);
+            float x = toXy[2 * i], y = toXy[2 * i + 1];
+            boolean inside = x >= 0 && y >= 0 && x < width && y < height;
+
+            if (statusBytes[i] == 0 || backStatusBytes[i] == 0 || !inside || fb > MAX_FB_ERROR_PX) {
+                alive[i] = false;
+                continue;
+            }
+
+            pointX[i] = x;
+            pointY[i] = y;
+            errorSum += fb;
+            count++;
+        }
+
+        meanFbError = count > 0 ? errorSum / count : Double.MAX_VALUE;
+    }
+
+    //copy the Y plane out without its row padding, and set up the buffers the first time (or if the size changes)
+    private void readLuma(CameraFrame frame) {
+        if (frame.getWidth() != width || frame.getHeight() != height) {
+            allocate(frame.getWidth(), frame.getHeight());
+        }
+
+        ByteBuffer y = frame.getYPlane();
+        int stride = frame.getYRowStride();
+        if (stride == width) {
+            y.get(lumaBytes, 0, width * height);
+            return;
+        }
+        for (int row = 0; row < height; row++) {
+            y.position(row * stride);
+            y.get(lumaBytes, row * width, width);
+        }
+    }
+
+    private void allocate(int width, int height) {
+        releaseLuma();
+        this.width = width;
+        this.height = height;
+
+        lumaBytes = new byte[width * height];
+        previous = MatCounter.created(new Mat(height, width, CvType.CV_8UC1));
+        current = MatCounter.created(new Mat(height, width, CvType.CV_8UC1));
+        for (int slot = 0; slot < KEYFRAME_SLOTS; slot++) {
+            keyframeLuma[slot] = MatCounter.created(new Mat(height, width, CvType.CV_8UC1));
+        }
+
+        //same crop as PosenetStats.cropBitmap: the model's aspect ratio out of the middle of the frame
+        float modelRatio = (float) Constants.MODEL_HEIGHT / Constants.MODEL_WIDTH;
+        float cropWidth = width, cropHeight = height;
+        if ((float) height / width > modelRatio) {
+            cropHeight = width * modelRatio;
+        }
+        else {
+            cropWidth = height / modelRatio;
+        }
+        cropX = (width - cropWidth) / 2;
+        cropY = (height - cropHeight) / 2;
+        scaleX = cropWidth / Constants.MODEL_WIDTH;
+        scaleY = cropHeight / Constants.MODEL_HEIGHT;
+
+        //the old frame's points mean nothing at a new size
+        reset();
+    }
+
+    private double eyeDistance() {
+        return Math.hypot(pointX[0] - pointX[1], pointY[0] - pointY[1]);
+    }
+
+    private static void copy(Pose from, Pose to) {
+        System.arraycopy(from.x, 0, to.x, 0, from.x.length);
+        System.arraycopy(from.y, 0, to.y, 0, from.y.length);
+        System.arraycopy(from.scores, 0, to.scores, 0, from.scores.length);
+        to.score = from.score;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%d keyframes (%d early re-detections), %d propagated frames, FB error %.2fpx",
+                keyframes, redetections, propagated, meanFbError == Double.MAX_VALUE ? Double.NaN : meanFbError);
+    }
+}
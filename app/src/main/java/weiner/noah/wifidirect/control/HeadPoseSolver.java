@@ -0,0 +1,244 @@
+package weiner.noah.wifidirect.control;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+import org.opencv.core.Point;
+
+import weiner.noah.wifidirect.Constants;
+import weiner.noah.wifidirect.utils.MatCounter;
+
+/**
+ * Solves the person's head and shoulders pose from Posenet's nose, eyes and shoulders with Calib3d.solvePnP, giving
+ * distance, yaw and lateral offset from one solve instead of the pupillary distance and the shoulder/eye ratios.
+ *
+ * The model is PosenetStats' measured bust, scaled so the eyes are the operator's PD apart, in meters with the
+ * nose at the origin: x towards the person's left, y down and z towards their back. So a person squarely facing the
+ * camera is the identity rotation, and the nose's translation is where they are in the camera's frame.
+ *
+ * Every Mat is allocated once, in the constructor, and solve() only writes into them. Each solve starts from the last
+ * one's rvec/tvec (SOLVEPNP_ITERATIVE with useExtrinsicGuess), which is a few Levenberg-Marquardt steps from a
+ * frame-old pose. The first solve, and the one after a bad one, start from the person facing the camera at the
+ * distance their pupillary distance gives.
+ *
+ * Not thread safe: the tracking thread owns it.
+ */
+public class HeadPoseSolver {
+    //PosenetStats' measured bust, in its own units: 450 of them between the eyes
+    private static final double MODEL_UNITS_PER_PD = 450;
+    private static final double[][] MODEL = {
+            {0, 0, 0},                      //nose
+            {225, -318.75, 262.5},          //left eye
+            {-225, -318.75, 262.5},         //right eye
+            {-871.875, 1087.5, 918.75},     //right shoulder
+            {871.875, 1087.5, 918.75}};     //left shoulder
+
+    //a solve whose points land further than this from the keypoints on average, in camera pixels, is wrong
+    private static final double MAX_REPROJECTION_PX = 12;
+
+    //nobody is followed from further than this
+    private static final double MAX_DISTANCE_M = 15;
+
+    private final MatOfPoint3f modelPoints;
+    private final MatOfPoint2f imagePoints;
+    private final Mat cameraMatrix;
+    private final MatOfDouble distortion;
+    private final Mat rvec;
+    private final Mat tvec;
+    private final Mat rotation;
+
+    //per solve, reused
+    private final float[] image = new float[MODEL.length * 2];
+    private final double[] model = new double[MODEL.length * 3];
+    private final double[] r = new double[3];
+    private final double[] t = new double[3];
+    private final double[] rot = new double[9];
+
+    //camera intrinsics, and how to get from Posenet's input pixels back to the camera's
+    private final double fx, fy, cx, cy;
+    private final double modelToCamera, cropX, cropY;
+    private final double pd;
+
+    //whether rvec/tvec hold a good solve to start the next one from
+    private boolean seeded = false;
+
+    private double distance, yaw, lateral, error;
+
+    /**
+     * @param cameraMatrix the calibrated 3x3 camera matrix, for the camera's full preview. Not copied
+     * @param distortion   the distortion coefficients that go with it
+     * @param previewWidth the preview size the keypoints were cropped and scaled from
+     * @param pd           the operator's pupillary distance in meters, from their CalibrationProfile
+     */
+    public HeadPoseSolver(Mat cameraMatrix, MatOfDouble distortion, int previewWidth, int previewHeight, double pd) {
+        this.pd = pd;
+        this.cameraMatrix = cameraMatrix;
+        this.distortion = distortion;
+
+        fx = cameraMatrix.get(0, 0)[0];
+        fy = cameraMatrix.get(1, 1)[0];
+        cx = cameraMatrix.get(0, 2)[0];
+        cy = cameraMatrix.get(1, 2)[0];
+
+        //PosenetStats.cropBitmap takes the middle of the preview at the model's aspect ratio, then it's scaled to the model
+        modelToCamera = Math.min((double) previewWidth / Constants.MODEL_WIDTH, (double) previewHeight / Constants.MODEL_HEIGHT);
+        cropX = (previewWidth - Constants.MODEL_WIDTH * modelToCamera) / 2;
+        cropY = (previewHeight - Constants.MODEL_HEIGHT * modelToCamera) / 2;
+
+        double scale = pd / MODEL_UNITS_PER_PD;
+        for (int i = 0; i < MODEL.length; i++) {
+            for (int j = 0; j < 3; j++) {
+                model[i * 3 + j] = MODEL[i][j] * scale;
+            }
+        }
+
+        modelPoints = MatCounter.created(new MatOfPoint3f());
+        modelPoints.alloc(MODEL.length);
+        float[] modelFloats = new float[model.length];
+        for (int i = 0; i < model.length; i++) {
+            modelFloats[i] = (float) model[i];
+        }
+        modelPoints.put(0, 0, modelFloats);
+
+        imagePoints = MatCounter.created(new MatOfPoint2f());
+        imagePoints.alloc(MODEL.length);
+
+        rvec = MatCounter.created(new Mat(3, 1, CvType.CV_64FC1));
+        tvec = MatCounter.created(new Mat(3, 1, CvType.CV_64FC1));
+        rotation = MatCounter.created(new Mat(3, 3, CvType.CV_64FC1));
+    }
+
+    /**
+     * Solve for the pose, from keypoints in Posenet's input pixels. False if the solve failed or came out implausible,
+     * in which case the getters keep the last good pose and the next solve starts over.
+     */
+    public boolean solve(Point nose, Point leftEye, Point rightEye, Point rightShoulder, Point leftShoulder) {
+        setImagePoint(0, nose);
+        setImagePoint(1, leftEye);
+        setImagePoint(2, rightEye);
+        setImagePoint(3, rightShoulder);
+        setImagePoint(4, leftShoulder);
+        imagePoints.put(0, 0, image);
+
+        if (!seeded) {
+            seed();
+        }
+
+        if (!Calib3d.solvePnP(modelPoints, imagePoints, cameraMatrix, distortion, rvec, tvec, true, Calib3d.SOLVEPNP_ITERATIVE)) {
+            seeded = false;
+            return false;
+        }
+
+        rvec.get(0, 0, r);
+        tvec.get(0, 0, t);
+        Calib3d.Rodrigues(rvec, rotation);
+        rotation.get(0, 0, rot);
+
+        double rms = reprojectionError();
+        if (Double.isNaN(t[2]) || t[2] <= 0 || t[2] > MAX_DISTANCE_M || !(rms <= MAX_REPROJECTION_PX)) {
+            seeded = false;
+            return false;
+        }
+
+        distance = t[2];
+        lateral = t[0];
+        error = rms;
+
+        //the way the person faces is the model's -z. Turned to their right it points to the camera's -x, which is a
+        //negative angle like the ratio formulas
+        yaw = -Math.toDegrees(Math.atan2(rot[2], rot[8]));
+
+        seeded = true;
+        return true;
+    }
+
+    private void setImagePoint(int i, Point point) {
+        image[i * 2] = (float) (point.x * modelToCamera + cropX);
+        image[i * 2 + 1] = (float) (point.y * modelToCamera + cropY);
+    }
+
+    //the person facing the camera, as far away as their eyes are wide, with the nose where it is in the image
+    private void seed() {
+        double eyePixels = Math.hypot(image[2] - image[4], image[3] - image[5]);
+        double z = eyePixels > 1 ? fx * pd / eyePixels : 1;
+
+        r[0] = r[1] = r[2] = 0;
+        t[0] = (image[0] - cx) * z / fx;
+        t[1] = (image[1] - cy) * z / fy;
+        t[2] = z;
+        rvec.put(0, 0, r);
+        tvec.put(0, 0, t);
+    }
+
+    //RMS distance between the keypoints and the model projected at the solved pose, in camera pixels. No distortion,
+    //like the calibration
+    private double reprojectionError() {
+        double sum = 0;
+        for (int i = 0; i < MODEL.length; i++) {
+            double x = model[i * 3], y = model[i * 3 + 1], z = model[i * 3 + 2];
+            double camX = rot[0] * x + rot[1] * y + rot[2] * z + t[0];
+            double camY = rot[3] * x + rot[4] * y + rot[5] * z + t[1];
+            double camZ = rot[6] * x + rot[7] * y + rot[8] * z + t[2];
+            if (camZ <= 0) {
+                return Double.POSITIVE_INFINITY;
+            }
+            double du = fx * camX / camZ + cx - image[i * 2];
+            double dv = fy * camY / camZ + cy - image[i * 2 + 1];
+            sum += du * du + dv * dv;
+        }
+        return Math.sqrt(sum / MODEL.length);
+    }
+
+    /**
+     * Distance to the person's nose along the camera's axis, in meters.
+     */
+    public double getDistance() {
+        return distance;
+    }
+
+    /**
+     * Which way the person faces relative to the camera's axis, in degrees. Negative turned to their right.
+     */
+    public double getYawDegrees() {
+        return yaw;
+    }
+
+    /**
+     * How far the person's nose is to the right of the camera's axis, in meters.
+     */
+    public double getLateralOffset() {
+        return lateral;
+    }
+
+    /**
+     * The pupillary distance the model was scaled to, in meters.
+     */
+    public double getPd() {
+        return pd;
+    }
+
+    /**
+     * RMS reprojection error of the last good solve, in camera pixels.
+     */
+    public double getError() {
+        return error;
+    }
+
+    /**
+     * Start the next solve over, for a new session or a different person.
+     */
+    public void reset() {
+        seeded = false;
+    }
+
+    public void release() {
+        MatCounter.release(modelPoints);
+        MatCounter.release(imagePoints);
+        MatCounter.release(rvec);
+        MatCounter.release(tvec);
+        MatCounter.release(rotation);
+    }
+}
@@ -4,9 +4,8 @@ import android.graphics.ImageDecoder;
 import android.os.SystemClock;
 import android.util.Log;
 
-import org.tensorflow.lite.examples.noah.lib.Device;
-import org.tensorflow.lite.examples.noah.lib.Posenet;
-
+import java.io.File;
+import java.io.IOException;
 import java.util.Objects;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -15,12 +14,17 @@ import weiner.noah.wifidirect.crtp.CommanderPacket;
 import weiner.noah.wifidirect.crtp.CrtpPacket;
 import weiner.noah.wifidirect.crtp.HeightHoldPacket;
 import weiner.noah.wifidirect.crtp.PositionPacket;
+import weiner.noah.wifidirect.metrics.Histogram;
+import weiner.noah.wifidirect.metrics.MetricsRegistry;
+import weiner.noah.wifidirect.relay.ITelemetrySource;
+import weiner.noah.wifidirect.relay.PacketRecorder;
+import weiner.noah.wifidirect.relay.TelemetryFrame;
 import weiner.noah.wifidirect.usb.UsbController;
 
 /** Convenience class to run a human following script.
  *
  * */
-public class HumanFollower {
+public class HumanFollower implements ITelemetrySource {
     private final UsbController usbController;
     private final float TARG_HEIGHT = 0.3f;
     private final String LOG_TAG = "HumanFollower";
@@ -74,20 +78,27 @@ public class HumanFollower {
 
     //since the camera is located at the far right-hand side of the screen, we can perform a basic correction, considering
     //the human's bounding box center point is usually already about -60 pixels from the frame center even when human is centered wrt the screen
-    private final float CTR_OFFSET_DESIRED = -15f; //NOTE: changes based on how the camera is positioned, etc. You'll probably need to adjust this frequently
+    //NOTE: changes based on how the camera is positioned, etc. Comes from the calibration profile; a CALIBRATE flight measures it
+    private volatile float ctrOffsetDesired = CalibrationProfile.DEFAULT.ctrOffset;
 
     //how far we'll let the person turn before making a pivot correction maneuver
     private final float FOLLOWING_ANGLE_THRESHOLD = 25f; //TODO: this seemed like a parameter that could be tuned better, but it also depends on preference
     private final float FOLLOWING_TILT_RATIO_UPPER_BOUND = 1.70f;
     private final float FOLLOWING_TILT_RATIO_LOWER_BOUND = 0.45f;
-    private final float FOLLOWING_BB_CENTER_THRESHOLD = 30f; //maintain +- x pixels from CTR_OFFSET_DESIRED
+    private final float FOLLOWING_BB_CENTER_THRESHOLD = 30f; //maintain +- x pixels from ctrOffsetDesired
 
-    private final Device PNET_DEV_TO_USE = Device.GPU;
+    //with PosenetStats' measurement fusion on, corrections get full gain while the measurement's standard deviation is
+    //under these, and are scaled down by (this / sd)^2 past them, so a shaky frame moves the drone less
+    private final float DIST_SD_FULL_GAIN = 0.1f;
+    private final float BB_CENTER_SD_FULL_GAIN = 8f;
 
     private final FollowerPid distPid;
     private final FollowerPid yawPid;
     private final FollowerPid xAxisPid;
 
+    //one pass of the PID loop, from reading Posenet's numbers to the drone acking the setpoint
+    private final Histogram controlHistogram = MetricsRegistry.get().histogram("control");
+
     private final float distPidP = 0.25f;
     private final float distPidI = 0.0f;
     private final float distPidD = 0.0f;
@@ -109,6 +120,27 @@ public class HumanFollower {
     //left/right pusher for staying face-to-face with user
     private PushaT mPushaT;
 
+    //latest output of the control loop, published for the telemetry stream. Guarded by itself
+    private final TelemetryFrame controlTelemetry = new TelemetryFrame();
+
+    //going by ThermalPredictor: land with this long to spare before EMERGENCY, and ease Posenet off this long before
+    //throttling (and harder at twice the landing lead), instead of waiting for ThermalService's stop() at EMERGENCY
+    private final double THERMAL_LAND_LEAD_S = 60;
+    private final double THERMAL_EASE_LEAD_S = 180;
+
+    //forecasts in a row that have to say land before we do, so one bad forecast can't bring the drone down. Forecast
+    //thread only
+    private final int THERMAL_LAND_CONFIRMATIONS = 3;
+    private int thermalLandVotes = 0;
+
+    //instead of following, hover while the operator stands at each CALIBRATION_DISTANCES_M distance facing the drone and
+    //turned each way, then fit their PD, focal length, pivot weight, angle offsets and center offset. See Calibrator.
+    //The profile is saved to the files dir and loaded on every start
+    private final boolean CALIBRATE = false;
+    private final double[] CALIBRATION_DISTANCES_M = {0.3, 0.45, 0.6};
+    private final long CALIBRATION_DWELL_NANOS = 8000000000L;
+    private final long CALIBRATION_SETTLE_NANOS = 3000000000L;
+
     /*control guide:
     * HEIGHTHOLD PKTS
     *
@@ -140,7 +172,21 @@ public class HumanFollower {
     public HumanFollower(UsbController usbController, MainActivity mainActivity) {
         this.usbController = usbController;
         this.mainActivity = mainActivity;
-        posenetStats = new PosenetStats(new Posenet(mainActivity.getApplicationContext(), "posenet_model.tflite", PNET_DEV_TO_USE), mainActivity, this);
+        posenetStats = new PosenetStats(mainActivity.getPosenetEngine(), mainActivity, this);
+
+        //this operator's calibration, if they've flown one
+        try {
+            CalibrationProfile profile = CalibrationProfile.load(getCalibrationFile());
+            if (profile != null) {
+                applyCalibrationProfile(profile);
+            }
+            else {
+                Log.i(LOG_TAG, "No calibration profile, using the defaults");
+            }
+        }
+        catch (IOException e) {
+            Log.e(LOG_TAG, "Couldn't read calibration profile: " + e.toString());
+        }
 
         //instantiate the PID controllers
         distPid = new FollowerPid(distPidP, distPidI, distPidD);
@@ -171,6 +217,23 @@ public class HumanFollower {
     }
 
 
+    private File getCalibrationFile() {
+        return new File(mainActivity.getExternalFilesDir(null), CalibrationProfile.FILE_NAME);
+    }
+
+    //1 for a measurement no noisier than fullGainSd (or one without a variance), less the noisier it gets
+    private float measurementGain(float variance, float fullGainSd) {
+        if (Float.isNaN(variance) || variance <= fullGainSd * fullGainSd) {
+            return 1;
+        }
+        return fullGainSd * fullGainSd / variance;
+    }
+
+    private void applyCalibrationProfile(CalibrationProfile profile) {
+        posenetStats.setCalibrationProfile(profile);
+        ctrOffsetDesired = profile.ctrOffset;
+    }
+
     //stop following
     public void stop() {
         following.set(false);
@@ -178,6 +241,52 @@ public class HumanFollower {
     }
 
 
+    /**
+     * The latest thermal forecast, about once a second from ThermalService. Does nothing unless we're following.
+     */
+    public void onThermalForecast(ThermalPredictor predictor) {
+        if (!following.get()) {
+            thermalLandVotes = 0;
+            return;
+        }
+
+        //a shaky trend isn't worth landing for, PowerManager's EMERGENCY is still the backstop
+        double toEmergency = usableForecast(predictor.getSecondsToEmergency());
+        if (!predictor.isEmergencyForecastConfident()) {
+            toEmergency = ThermalPredictor.NEVER;
+        }
+
+        if (toEmergency < THERMAL_LAND_LEAD_S) {
+            thermalLandVotes++;
+            if (thermalLandVotes >= THERMAL_LAND_CONFIRMATIONS && !landing.get()) {
+                Log.i(LOG_TAG, "Landing ahead of thermal emergency: " + predictor);
+                mainActivity.showToastie("Phone overheating, landing");
+                land();
+            }
+            if (landing.get()) {
+                return;
+            }
+        }
+        else {
+            thermalLandVotes = 0;
+        }
+
+        //the governor takes this like a thermal status, just earlier
+        int level = 0;
+        if (toEmergency < 2 * THERMAL_LAND_LEAD_S) {
+            level = ThermalPredictor.EMERGENCY_STATUS - 1;
+        }
+        else if (usableForecast(predictor.getSecondsToThrottle()) < THERMAL_EASE_LEAD_S) {
+            level = ThermalPredictor.THROTTLE_STATUS;
+        }
+        posenetStats.onThermalForecast(level);
+    }
+
+    //a negative or NaN forecast can only be a glitch, treat it as no forecast
+    private double usableForecast(double seconds) {
+        return Double.isNaN(seconds) || seconds < 0 ? ThermalPredictor.NEVER : seconds;
+    }
+
     public void land() {
         //joystick sending thread should already be paused. Let's set the landing AtomicBoolean to true, which will be detected when landCheck() is run inside
         //the hover thread
@@ -228,6 +337,11 @@ public class HumanFollower {
             mLandingThread.interrupt();
     }
 
+    //let go of the thermal listener and forecast. Called from the activity's onDestroy
+    public void close() {
+        posenetStats.close();
+    }
+
     //check if user has requested kill. If so, kill the drone
     public boolean killCheck() {
         if (kill.get()) {
@@ -426,6 +540,12 @@ public class HumanFollower {
                     dataOut[13], dataOut[14], dataOut[15], dataOut[16], dataOut[17]));
         }
 
+        //log it for flight replay
+        PacketRecorder recorder = mainActivity.getPacketRecorder();
+        if (recorder != null) {
+            recorder.record(PacketRecorder.SETPOINT_OUT, dataOut);
+        }
+
         usbController.sendBulkTransfer(dataOut, ack);
 
         if (ack[0] == 0x09)
@@ -433,6 +553,61 @@ public class HumanFollower {
     }
 
 
+    private void publishControlTelemetry(FollowState state, LateralHandlingMethod lateralMethod, float dx, float dy, float yaw, long dtMs) {
+        synchronized (controlTelemetry) {
+            controlTelemetry.followState = (byte) state.ordinal();
+            controlTelemetry.lateralMethod = (byte) lateralMethod.ordinal();
+            controlTelemetry.flags = (byte) (mPushaT.isOn() ? TelemetryFrame.FLAG_PUSHER_ON : 0);
+
+            controlTelemetry.setDx = dx;
+            controlTelemetry.setDy = dy;
+            controlTelemetry.setYaw = yaw;
+            controlTelemetry.setHeight = TARG_HEIGHT;
+
+            controlTelemetry.distP = distPid.componentP();
+            controlTelemetry.distI = distPid.componentI();
+            controlTelemetry.distD = distPid.componentD();
+            controlTelemetry.xAxisP = xAxisPid.componentP();
+            controlTelemetry.xAxisI = xAxisPid.componentI();
+            controlTelemetry.xAxisD = xAxisPid.componentD();
+            controlTelemetry.yawP = yawPid.componentP();
+            controlTelemetry.yawI = yawPid.componentI();
+            controlTelemetry.yawD = yawPid.componentD();
+
+            controlTelemetry.loopDtMs = dtMs;
+        }
+    }
+
+    //called from the relay's telemetry thread
+    @Override
+    public void fillTelemetry(TelemetryFrame frame) {
+        synchronized (controlTelemetry) {
+            frame.copyFrom(controlTelemetry);
+        }
+
+        //Posenet numbers are atomics, so read them fresh rather than what the control loop last saw
+        frame.distToHum = posenetStats.getDistToHum();
+        frame.bbOffCenter = posenetStats.getBbOffCenter();
+        frame.humAngle = posenetStats.getHumAngle();
+        frame.xVel = posenetStats.getXVel();
+        frame.yVel = posenetStats.getYVel();
+        frame.angVel = posenetStats.getAngVel();
+
+        frame.thermalStatus = (byte) mainActivity.getThermalStatus();
+
+        int flags = frame.flags;
+        if (following.get()) {
+            flags |= TelemetryFrame.FLAG_FOLLOWING;
+        }
+        if (landing.get()) {
+            flags |= TelemetryFrame.FLAG_LANDING;
+        }
+        if (mainActivity.getRelay()) {
+            flags |= TelemetryFrame.FLAG_RELAY_ON;
+        }
+        frame.flags = (byte) flags;
+    }
+
     public void onNewDistanceData() {
         synchronized (xAxisUpdateLock) {
             Log.i(LOG_TAG, "Notify xAxisUpdate");
@@ -1079,7 +1254,7 @@ public class HumanFollower {
             float z_cs = posenetStats.getDistToHum();
 
             //estimated dist between drone and hum along camera coordinate frame's x axis
-            float x_cs = (posenetStats.getBbOffCenter() - CTR_OFFSET_DESIRED) * posenetStats.getCurrScale();
+            float x_cs = (posenetStats.getBbOffCenter() - ctrOffsetDesired) * posenetStats.getCurrScale();
 
             //calculate the estimated euclidean dist to the human (should be similar to z_cs)
             double euclidean_dist_to_hum = Math.sqrt((x_cs * x_cs) + (z_cs * z_cs));
@@ -1135,7 +1310,7 @@ public class HumanFollower {
                     Log.i(PID_TAG, "Hum too close or far, ran PID, setting position change " + -recommended_dist_change_pid);
 
                     //set appropriate dist change for PositionPacket. Negate it because, e.g., if recommended change is negative, we need to move drone fwd, etc.
-                    dx = -recommended_dist_change_pid;
+                    dx = -recommended_dist_change_pid * measurementGain(posenetStats.getDistVariance(), DIST_SD_FULL_GAIN);
                 }
 
                 //otherwise human in frame and dist in acceptable range, so don't make pitch adjustments
@@ -1162,16 +1337,16 @@ public class HumanFollower {
                 }
 
                 //if hum not centered in frame, run PID, with desired always being the middle value of the range
-                else if (bb_center_off < CTR_OFFSET_DESIRED - FOLLOWING_BB_CENTER_THRESHOLD || bb_center_off > CTR_OFFSET_DESIRED + FOLLOWING_BB_CENTER_THRESHOLD) {
+                else if (bb_center_off < ctrOffsetDesired - FOLLOWING_BB_CENTER_THRESHOLD || bb_center_off > ctrOffsetDesired + FOLLOWING_BB_CENTER_THRESHOLD) {
                     Log.i(PID_TAG, "Human too far left or right, running PID ctlr...");
 
                     //the value returned from the PID ctrl will actually be in pixels, so scale it up to meters
-                    recommended_x_change_pid = xAxisPid.update(CTR_OFFSET_DESIRED - bb_center_off, timeElapsed) * posenetStats.getCurrScale();
+                    recommended_x_change_pid = xAxisPid.update(ctrOffsetDesired - bb_center_off, timeElapsed) * posenetStats.getCurrScale();
 
                     Log.i(PID_TAG, "Hum not centered in frame, ran PID, setting dy position change " + recommended_x_change_pid);
 
                     //set appropriate x-axis change for PositionPacket
-                    dy = recommended_x_change_pid;
+                    dy = recommended_x_change_pid * measurementGain(posenetStats.getBbOffCenterVariance(), BB_CENTER_SD_FULL_GAIN);
                 }
 
                 //set Posenet bb center offset data NOT fresh anymore
@@ -1192,7 +1367,7 @@ public class HumanFollower {
                 }
 
                 //if hum not centered in frame, run PID, with desired always being the middle value of the range
-                else if (bb_center_off < CTR_OFFSET_DESIRED - FOLLOWING_BB_CENTER_THRESHOLD || bb_center_off > CTR_OFFSET_DESIRED + FOLLOWING_BB_CENTER_THRESHOLD) {
+                else if (bb_center_off < ctrOffsetDesired - FOLLOWING_BB_CENTER_THRESHOLD || bb_center_off > ctrOffsetDesired + FOLLOWING_BB_CENTER_THRESHOLD) {
                     Log.i(PID_TAG, "Human too far left or right, running PID ctlr for yaw...");
 
                     //let's calculate psi, the angle from the drone to the human
@@ -1207,7 +1382,7 @@ public class HumanFollower {
                     Log.i(PID_TAG, "Hum not centered in frame, ran PID, setting yaw change " + recommended_yaw_change_pid);
 
                     //set appropriate x-axis change for PositionPacket
-                    yaw = recommended_yaw_change_pid;
+                    yaw = recommended_yaw_change_pid * measurementGain(posenetStats.getBbOffCenterVariance(), BB_CENTER_SD_FULL_GAIN);
                 }
 
                 //set Posenet bb center offset data NOT fresh anymore
@@ -1265,6 +1440,9 @@ public class HumanFollower {
                 dy = mPushaT.getPush();
             }
 
+            //publish this iteration's numbers for the ground station
+            publishControlTelemetry(currState, mLateralMethod, dx, dy, yaw, timeElapsed);
+
             //send the packet with appropriate correction settings
             sendPacket(new PositionPacket(dx, dy, yaw, TARG_HEIGHT));
 
@@ -1305,23 +1483,93 @@ public class HumanFollower {
         }
 
 
+        /**
+         * Hover in place through the calibration schedule, telling the operator where to stand, then fit and save their
+         * profile and land.
+         */
+        private void calibrate() {
+            Calibrator calibrator = new Calibrator(CALIBRATION_DISTANCES_M, Calibrator.DEFAULT_TURN_DEG, CALIBRATION_DWELL_NANOS,
+                    CALIBRATION_SETTLE_NANOS);
+            calibrator.start(System.nanoTime());
+            posenetStats.startCalibration(calibrator);
+
+            Calibrator.Phase shown = null;
+            long now;
+            while (!calibrator.isDone(now = System.nanoTime())) {
+                Calibrator.Phase phase = calibrator.getPhase(now);
+                if (phase != shown) {
+                    mainActivity.showToastie(phase.getInstruction());
+                    shown = phase;
+                }
+
+                sendPacket(new HeightHoldPacket(0, 0, 0, TARG_HEIGHT));
+
+                //Check if a kill has been requested. If so, end this thread.
+                //NOTE: DRONE WILL FALL
+                if (killCheck() || landCheck()) {
+                    posenetStats.stopCalibration();
+                    return;
+                }
+
+                try {
+                    Thread.sleep(90);
+                }
+
+                //if interrupted by kill()
+                catch (InterruptedException e) {
+                    posenetStats.stopCalibration();
+                    posenetStats.stop();
+                    e.printStackTrace();
+                    following.set(false);
+                    kill.set(false);
+                    return;
+                }
+            }
+            posenetStats.stopCalibration();
+
+            CalibrationProfile before = posenetStats.getCalibrationProfile();
+            CalibrationProfile after = calibrator.fit(before, Calibrator.modelFocalLength(), System.currentTimeMillis());
+            Log.i(LOG_TAG, calibrator.report(before, after));
+
+            try {
+                after.save(getCalibrationFile());
+                applyCalibrationProfile(after);
+                mainActivity.showToastie("Calibrated: " + after);
+            }
+            catch (IOException e) {
+                Log.e(LOG_TAG, "Couldn't save calibration profile: " + e.toString());
+                mainActivity.showToastie("Couldn't save calibration");
+            }
+
+            //the land thread takes it from here
+            land();
+            landCheck();
+        }
+
         public void run() {
             int correctionLock = 0;
             boolean waitOnLock = false;
 
             Log.i(LOG_TAG, "Running FollowRunnable launchSequence()");
 
+            //activate Posenet human tracking (separate thread) now, so the camera is open and the first frames are through
+            //the (already warm) interpreter by the time we're up at TARG_HEIGHT
+            posenetStats.start();
+
             //launch the drone up to TARG_HEIGHT
             if (launchSequence() != 0) {
                 //something went wrong
+                posenetStats.stop();
                 return;
             }
 
             //'landing' should already have been reset to false at this time
             //FIXME: it makes more sense for resetting 'landing' to false to go here
 
-            //at this point, activate Posenet human tracking (separate thread)
-            posenetStats.start();
+            if (CALIBRATE) {
+                calibrate();
+                return;
+            }
 
             //take an initial timestamp
             prevTime = System.currentTimeMillis();
@@ -1398,7 +1646,11 @@ public class HumanFollower {
                 //OTHER IMPLEMENTATION IS IN follow() - SYNCHRONIZED ON XAXISUPDATELOCK OBJECT
 
                 //control loop
-                if (follow_control_pid() != 0) {
+                long start = System.nanoTime();
+                int result = follow_control_pid();
+                controlHistogram.recordSince(start);
+
+                if (result != 0) {
                     //this means a kill or land was requested
                     return;
                 }
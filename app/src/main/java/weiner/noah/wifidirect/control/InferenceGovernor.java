@@ -0,0 +1,294 @@
+package weiner.noah.wifidirect.control;
+
+import java.util.Locale;
+
+import weiner.noah.wifidirect.inference.BackendConfig;
+
+/**
+ * Decides how hard Posenet gets to work, so a long flight backs off step by step as the phone heats up instead of
+ * running flat out until ThermalService has to land at THERMAL_STATUS_EMERGENCY.
+ *
+ * Inputs:
+ * - thermal status from PowerManager's listener. Getting hotter takes effect at once; getting cooler only counts once
+ *   the phone has stayed there for {@link #COOL_HOLD_MS}, one level at a time, so we don't bounce on a boundary
+ * - a forecast level from HumanFollower, off ThermalPredictor: the level the phone is about to get to, so we back off
+ *   before PowerManager says so
+ * - how long each inference took, per delegate
+ * - battery current and voltage. A sagging battery or a heavy draw counts as one thermal level hotter
+ * - how fast the person is moving. A fast mover gets frames up to the thermal cap, someone standing still gets
+ *   {@link #IDLE_HZ}
+ *
+ * Outputs:
+ * - the target period between frames. The preprocess stage waits this long between frames, so skipped frames cost
+ *   nothing past the camera callback
+ * - the backend: the one BackendSelector picked, or its best CPU config, with fewer threads when hot. Posenet is
+ *   rebuilt when this changes, which takes a moment, so the delegate changes at most once per {@link #SWITCH_HOLD_MS}
+ *
+ * Posenet only ships one model, and the tracking math is calibrated to its 257x257 input, so the model and its input
+ * size stay put; CPU threads are the compute knob instead.
+ *
+ * Plain Java. Safe to call from any thread.
+ */
+public class InferenceGovernor {
+    //indexed by PowerManager.THERMAL_STATUS_*: NONE, LIGHT, MODERATE, SEVERE, CRITICAL, EMERGENCY, SHUTDOWN
+    private static final int[] RATE_CAP_HZ = {30, 30, 20, 12, 6, 3, 3};
+
+    //most of the time inference may keep the chip busy, at each level. The rest is cool-down
+    private static final double[] MAX_DUTY = {1, 1, 0.7, 0.5, 0.35, 0.25, 0.25};
+
+    //at this level and above, CPU inference gets at most this many threads
+    private static final int FEWER_THREADS_LEVEL = 3;
+    private static final int HOT_CPU_THREADS = 2;
+
+    //frame rate when the person isn't moving, and the speeds at which they count as moving fast (m/s and deg/s)
+    public static final int IDLE_HZ = 8;
+    private static final double FAST_LINEAR_MPS = 1.0;
+    private static final double FAST_ANGULAR_DPS = 45;
+
+    //demand jumps up at once but decays with this time constant, so one still frame doesn't drop the rate
+    private static final double DEMAND_DECAY_MS = 1000;
+
+    private static final long COOL_HOLD_MS = 20000;
+
+    //battery: below this voltage (uV), or above this draw (W), we're stressing it
+    private static final int LOW_VOLTAGE_UV = 3550000;
+    private static final double HIGH_DRAW_W = 5.0;
+
+    //delegates: inferences before a delegate's timing counts, slowdown over its best that makes us try the other,
+    //and how much faster the other has to be to switch to it
+    private static final int WARMUP_INFERENCES = 20;
+    private static final double THROTTLED_RATIO = 1.5;
+    private static final double SWITCH_RATIO = 1.25;
+    private static final long SWITCH_HOLD_MS = 15000;
+    private static final double EWMA_ALPHA = 0.1;
+
+    //the config BackendSelector picked and its best CPU config, 0 and 1 below. Just the one if it picked the CPU
+    private final BackendConfig[] configs;
+    private final double[] ewmaMs = new double[2];
+    private final double[] bestMs = {Double.MAX_VALUE, Double.MAX_VALUE};
+    private final int[] samples = new int[2];
+    private int current;
+    private long lastSwitchNanos;
+
+    private int thermalStatus = 0;
+    private int thermalLevel = 0;
+    private long coolerSinceNanos = -1;
+    private int forecastLevel = 0;
+
+    private boolean batteryStressed = false;
+    private double batteryWatts = Double.NaN;
+
+    private double demand = 0;
+    private long demandNanos = -1;
+
+    //current decision
+    private long periodNanos;
+    private BackendConfig config;
+    private int level;
+    private int targetHz;
+
+    private long switches = 0;
+
+    /**
+     * @param best    the config to start on
+     * @param bestCpu where to go if best is an accelerator that stops paying off
+     */
+    public InferenceGovernor(BackendConfig best, BackendConfig bestCpu, long nowNanos) {
+        if (best.delegate == BackendConfig.Delegate.CPU) {
+            configs = new BackendConfig[] {best};
+        }
+        else {
+            configs = new BackendConfig[] {best, bestCpu};
+        }
+        current = 0;
+        lastSwitchNanos = nowNanos;
+        decide(nowNanos);
+    }
+
+    /**
+     * New status from PowerManager.OnThermalStatusChangedListener.
+     */
+    public synchronized void onThermalStatus(int status, long nowNanos) {
+        thermalStatus = Math.max(0, Math.min(RATE_CAP_HZ.length - 1, status));
+        if (thermalStatus >= thermalLevel) {
+            thermalLevel = thermalStatus;
+            coolerSinceNanos = -1;
+        }
+        else if (coolerSinceNanos < 0) {
+            coolerSinceNanos = nowNanos;
+        }
+        decide(nowNanos);
+    }
+
+    /**
+     * The thermal level ThermalPredictor says we're about to reach, 0 if none. Counts like a status from PowerManager
+     * but takes effect both ways at once, since the forecast is already smoothed.
+     */
+    public synchronized void onForecast(int level, long nowNanos) {
+        forecastLevel = Math.max(0, Math.min(RATE_CAP_HZ.length - 1, level));
+        decide(nowNanos);
+    }
+
+    /**
+     * An inference finished on the given backend.
+     */
+    public synchronized void onInference(BackendConfig ranOn, long inferenceNanos, long nowNanos) {
+        int index = indexOf(ranOn);
+        if (index < 0 || inferenceNanos <= 0) {
+            return;
+        }
+
+        double ms = inferenceNanos / 1e6;
+        ewmaMs[index] = samples[index] == 0 ? ms : ewmaMs[index] + EWMA_ALPHA * (ms - ewmaMs[index]);
+        samples[index]++;
+
+        if (samples[index] >= WARMUP_INFERENCES) {
+            bestMs[index] = Math.min(bestMs[index], ewmaMs[index]);
+        }
+
+        chooseDevice(nowNanos);
+        decide(nowNanos);
+    }
+
+    /**
+     * A battery reading from {@link weiner.noah.wifidirect.Battery}. Pass -1 for whatever couldn't be read.
+     */
+    public synchronized void onBattery(int currentMicroAmps, int voltageMicroVolts, long nowNanos) {
+        if (voltageMicroVolts <= 0) {
+            return;
+        }
+
+        batteryStressed = voltageMicroVolts < LOW_VOLTAGE_UV;
+        if (currentMicroAmps != -1) {
+            batteryWatts = Math.abs((double) currentMicroAmps) * voltageMicroVolts / 1e12;
+            batteryStressed |= batteryWatts > HIGH_DRAW_W;
+        }
+        decide(nowNanos);
+    }
+
+    /**
+     * How fast the person is moving, from PosenetStats' velocity buffers. NaN for whatever isn't known yet.
+     */
+    public synchronized void onMotion(double xVelMps, double yVelMps, double angVelDps, long nowNanos) {
+        double now = 0;
+        if (!Double.isNaN(xVelMps)) {
+            now = Math.max(now, Math.abs(xVelMps) / FAST_LINEAR_MPS);
+        }
+        if (!Double.isNaN(yVelMps)) {
+            now = Math.max(now, Math.abs(yVelMps) / FAST_LINEAR_MPS);
+        }
+        if (!Double.isNaN(angVelDps)) {
+            now = Math.max(now, Math.abs(angVelDps) / FAST_ANGULAR_DPS);
+        }
+        now = Math.min(1, now);
+
+        decayDemand(nowNanos);
+        demand = Math.max(demand, now);
+        decide(nowNanos);
+    }
+
+    //lock must be held
+    private void decayDemand(long nowNanos) {
+        if (demandNanos >= 0) {
+            demand *= Math.exp(-(nowNanos - demandNanos) / 1e6 / DEMAND_DECAY_MS);
+        }
+        demandNanos = nowNanos;
+    }
+
+    //lock must be held
+    private int indexOf(BackendConfig ranOn) {
+        if (ranOn == null) {
+            return -1;
+        }
+        for (int i = 0; i < configs.length; i++) {
+            if (configs[i].delegate == ranOn.delegate) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    //lock must be held. Switch delegates if the other one has been measured faster, or try it if this one has slowed
+    //down well past its best (a throttled GPU can end up slower than the CPU)
+    private void chooseDevice(long nowNanos) {
+        if (configs.length < 2 || samples[current] < WARMUP_INFERENCES ||
+                (nowNanos - lastSwitchNanos) / 1000000 < SWITCH_HOLD_MS) {
+            return;
+        }
+
+        int other = 1 - current;
+        boolean otherFaster = samples[other] >= WARMUP_INFERENCES && ewmaMs[other] * SWITCH_RATIO < ewmaMs[current];
+        boolean throttled = samples[other] == 0 && ewmaMs[current] > bestMs[current] * THROTTLED_RATIO;
+
+        if (otherFaster || throttled) {
+            current = other;
+            lastSwitchNanos = nowNanos;
+            switches++;
+
+            //measure it afresh: its old timing is from a cooler phone
+            samples[current] = 0;
+        }
+    }
+
+    //lock must be held
+    private void decide(long nowNanos) {
+        //step back down one level per hold while the phone stays cooler
+        if (coolerSinceNanos >= 0 && (nowNanos - coolerSinceNanos) / 1000000 >= COOL_HOLD_MS) {
+            thermalLevel--;
+            coolerSinceNanos = thermalLevel > thermalStatus ? nowNanos : -1;
+        }
+
+        level = Math.min(RATE_CAP_HZ.length - 1, Math.max(thermalLevel, forecastLevel) + (batteryStressed ? 1 : 0));
+
+        decayDemand(nowNanos);
+        int cap = RATE_CAP_HZ[level];
+        int floor = Math.min(IDLE_HZ, cap);
+        double hz = floor + (cap - floor) * demand;
+
+        //don't let inference keep the chip busier than this level allows, however much we'd like the frames
+        if (samples[current] > 0 && MAX_DUTY[level] < 1) {
+            hz = Math.min(hz, MAX_DUTY[level] * 1000 / ewmaMs[current]);
+        }
+
+        targetHz = Math.max(1, (int) Math.round(hz));
+        periodNanos = 1000000000L / targetHz;
+        config = configs[current];
+        if (config.delegate == BackendConfig.Delegate.CPU && level >= FEWER_THREADS_LEVEL) {
+            config = config.withThreads(Math.min(config.threads, HOT_CPU_THREADS));
+        }
+    }
+
+    /**
+     * How long the preprocess stage should leave between frames.
+     */
+    public synchronized long getPeriodNanos(long nowNanos) {
+        decide(nowNanos);
+        return periodNanos;
+    }
+
+    /**
+     * The backend inference should be running on.
+     */
+    public synchronized BackendConfig getConfig() {
+        return config;
+    }
+
+    public synchronized int getLevel() {
+        return level;
+    }
+
+    public synchronized int getTargetHz() {
+        return targetHz;
+    }
+
+    public synchronized long getSwitches() {
+        return switches;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "level %d (thermal %d%s%s), %d Hz for demand %.2f, %s at %.1fms, battery %.2fW",
+                level, thermalStatus, forecastLevel > 0 ? ", forecast " + forecastLevel : "", batteryStressed ? " + battery" : "", targetHz, demand, config, ewmaMs[current],
+                batteryWatts);
+    }
+}
@@ -11,7 +11,6 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.net.NetworkInfo;
-import android.net.wifi.p2p.WifiP2pConfig;
 import android.net.wifi.p2p.WifiP2pDevice;
 import android.net.wifi.p2p.WifiP2pDeviceList;
 import android.net.wifi.p2p.WifiP2pInfo;
@@ -31,22 +30,31 @@ import android.widget.Toast;
 import org.opencv.android.BaseLoaderCallback;
 import org.opencv.android.LoaderCallbackInterface;
 import org.opencv.android.OpenCVLoader;
-import org.opencv.core.MatOfPoint2f;
-import org.opencv.core.MatOfPoint3f;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import weiner.noah.wifidirect.R;
+import weiner.noah.wifidirect.crtp.Signal;
+import weiner.noah.wifidirect.metrics.MetricsRegistry;
+import weiner.noah.wifidirect.metrics.MetricsSnapshot;
+import weiner.noah.wifidirect.relay.IDroneLink;
+import weiner.noah.wifidirect.relay.IRelayListener;
+import weiner.noah.wifidirect.relay.PacketRecorder;
 import weiner.noah.wifidirect.usb.IUsbConnectionHandler;
 import weiner.noah.wifidirect.usb.UsbController;
 
@@ -54,19 +62,40 @@ public class MainActivity extends AppCompatActivity {
 
     private static final String TAG = "MainActivity";
 
-    public MatOfPoint3f humanModelMat;
-    public MatOfPoint2f humanActualMat;
-
     private ListView listView;
     private ArrayAdapter aa;
     private TextView tv;
     private Button buttonDiscover;
     private TextView thermalStatusText = null;
+    private volatile int thermalStatus = 0;
+
+    //per-stage rate and p50/p99 latency under the thermal status, refreshed every HUD_PERIOD_MS while we're in front
+    private TextView metricsHudText = null;
+    private final int HUD_PERIOD_MS = 1000;
+    private final MetricsRegistry.Reader hudReader = MetricsRegistry.get().newReader();
+    private final MetricsSnapshot hudSnapshot = new MetricsSnapshot();
+    private final Runnable hudUpdater = new Runnable() {
+        @Override
+        public void run() {
+            hudReader.read(hudSnapshot);
+            metricsHudText.setText(hudSnapshot.format());
+            handler.postDelayed(this, HUD_PERIOD_MS);
+        }
+    };
 
     /**SET THIS TO TRUE IF YOU WANT TO DEBUG HUMANFOLLOWER WITH NO FLYING*/
     //MAKE SURE DRONE IS OFF OR NOT PLUGGED IN!!!
     private boolean DEBUG_HUMAN_FOLLOW = false;
 
+    /**SET THIS TO TRUE TO RECORD FLIGHT PACKET LOGS*/
+    //logs go to the app's external files dir (Android/data/weiner.noah.wifidirect/files), replay them with pctool's ReplayTool.
+    //A new one every launch, and only the last MAX_PACKET_LOGS are kept
+    private static final boolean RECORD_PACKETS = false;
+    private static final int MAX_PACKET_LOGS = 10;
+
+    //binary log of relay and USB traffic, null if not recording
+    private volatile PacketRecorder packetRecorder = null;
+
     //should we relay packets to the drone? Must be atomic because it's read constantly by main thread, and modified by LandRunnable in HumanFollower
     private AtomicBoolean relayOn = new AtomicBoolean(true);
 
@@ -167,10 +196,17 @@ public class MainActivity extends AppCompatActivity {
     };
 
     public void setThermalStatusText(int status) {
+        thermalStatus = status;
+
         if (thermalStatusText != null)
             thermalStatusText.setText("Thermal status: " + status);
     }
 
+    //last status reported by ThermalService (PowerManager.THERMAL_STATUS_*)
+    public int getThermalStatus() {
+        return thermalStatus;
+    }
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -184,6 +220,17 @@ public class MainActivity extends AppCompatActivity {
 
         initializeWiFiDirect();
 
+        //build and warm up Posenet in the background now, rather than on the first frame after takeoff
+        posenetEngine = new PosenetEngine(this);
+        posenetEngine.preload();
+
+        if (RECORD_PACKETS) {
+            startPacketRecorder();
+        }
+
+        mConnectionManager = new ConnectionManager(this, droneLink, relayListener, relayOn);
+        mConnectionManager.setRecorder(packetRecorder);
+
         peerfilter = new IntentFilter(WifiP2pManager.WIFI_P2P_PEERS_CHANGED_ACTION);
 
         connectionfilter = new IntentFilter(WifiP2pManager.WIFI_P2P_CONNECTION_CHANGED_ACTION);
@@ -222,6 +269,7 @@ public class MainActivity extends AppCompatActivity {
 
         //get thermal status textview
         thermalStatusText = (TextView)findViewById(R.id.thermalStatus_text);
+        metricsHudText = (TextView)findViewById(R.id.metricsHud_text);
 
 
         //USB SETUP----------------------------------------------------------------------------------------------------------------------------------------
@@ -391,17 +439,17 @@ public class MainActivity extends AppCompatActivity {
         }
     };
 
-    //request connection to a wifi direct peer
+    //request connection to a wifi direct peer. ConnectionManager remembers it so it can rejoin the group if it drops
     private void connectTo(WifiP2pDevice device) {
-        WifiP2pConfig config = new WifiP2pConfig();
-        config.deviceAddress = device.deviceAddress;
+        mConnectionManager.connectTo(device);
+    }
 
-        if (ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
-            return;
-        }
+    WifiP2pManager getWifiP2pManager() {
+        return wifiP2pManager;
+    }
 
-        Log.i(TAG, "Running wifip2pman.connect...");
-        wifiP2pManager.connect(wifiDirectChannel, config, actionListener);
+    WifiP2pManager.Channel getWifiDirectChannel() {
+        return wifiDirectChannel;
     }
 
     //wifi direct peer connection callback
@@ -455,6 +503,9 @@ public class MainActivity extends AppCompatActivity {
 
             else {
                 Log.d(TAG, "Wi-Fi Direct Disconnected");
+
+                //keep the drone hovering and try to get the group back
+                mConnectionManager.onGroupLost();
             }
         }
     };
@@ -485,6 +536,60 @@ public class MainActivity extends AppCompatActivity {
 
     public void setRelay(boolean relayStatus) {
         relayOn.set(relayStatus);
+
+        PacketRecorder recorder = packetRecorder;
+        if (recorder != null) {
+            recorder.record(PacketRecorder.RELAY_STATE, new byte[] {(byte) (relayStatus ? 1 : 0)});
+        }
+    }
+
+    public PacketRecorder getPacketRecorder() {
+        return packetRecorder;
+    }
+
+    public PosenetEngine getPosenetEngine() {
+        return posenetEngine;
+    }
+
+    private void startPacketRecorder() {
+        File dir = getExternalFilesDir(null);
+        if (dir == null) {
+            Log.e(TAG, "No external files dir, not recording packets");
+            return;
+        }
+
+        prunePacketLogs(dir);
+
+        File logFile = new File(dir, "flight_" + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date()) + ".crtplog");
+
+        try {
+            packetRecorder = new PacketRecorder(logFile);
+            Log.i(TAG, "Recording packets to " + logFile.getAbsolutePath());
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Couldn't start packet recorder", e);
+        }
+    }
+
+    //delete all but the newest MAX_PACKET_LOGS - 1 flight logs, making room for the one we're about to start
+    private void prunePacketLogs(File dir) {
+        File[] logs = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith("flight_") && name.endsWith(".crtplog");
+            }
+        });
+        if (logs == null || logs.length < MAX_PACKET_LOGS) {
+            return;
+        }
+
+        //names are timestamped, so they sort oldest first
+        Arrays.sort(logs);
+        for (int i = 0; i <= logs.length - MAX_PACKET_LOGS; i++) {
+            if (logs[i].delete()) {
+                Log.i(TAG, "Deleted old packet log " + logs[i].getName());
+            }
+        }
     }
 
     public boolean getRelay() {
@@ -536,184 +641,122 @@ public class MainActivity extends AppCompatActivity {
 
     private BufferedReader in;
     private PrintWriter out;
-    private InputStream inStream;
-    private OutputStream outStream;
-
-
-//----------------------------------------------------------------CLIENT CODE-------------------------------------------------------------------------------
-
-    //create a client socket on a background thread
-    private void initiateClientSocket(final String hostAddress) {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                Log.i(TAG, "Address :" + hostAddress);
-
-                int timeout = 10000;
-                int port = 8988;
-                int success = 0;
 
-                //we assume we have a valid UsbController at this point. Use it to instantiate our HumanFollower
-                mHumanFollower = new HumanFollower(usbController, MainActivity.this);
-
-                //mHumanFollower.start();
-
-                //create packet of host and port information
-                InetSocketAddress socketAddress = new InetSocketAddress(hostAddress, port);
-
-                //test data
-                byte[] bytes = new byte[1];
-                bytes[0] = 0x30;
-
-                //get packet from controller to be relayed
-                final byte[] inData = new byte[18]; //CommanderPackets will be 15 bytes (14 data, 1 header),
-                                                    // HeightHoldPkts will be 18 bytes (16 data, 1 type, 1 header)
-                byte[] outData = new byte[18];
-
-                //create a client socket and connect it to the server
-                Socket socket = new Socket();
-
-                try {
-                    Log.i(TAG, "initiateClientSocket(): calling bind");
+    //keeps the controller link up across Wi-Fi Direct drops
+    private ConnectionManager mConnectionManager;
 
-                    socket.bind(null);
+    //one Posenet interpreter, warmed up at startup and shared by every HumanFollower
+    private PosenetEngine posenetEngine;
 
-                    socket.connect(socketAddress, timeout);
-
-                    Log.i(TAG, "Client-server connection successful!!");
-
-                    //get input and output streams for the socket
-                    outStream = socket.getOutputStream();
-                    inStream = socket.getInputStream();
-                }
-
-                catch (IOException e) {
-                    Log.e(TAG, "IO Exception from trying to bind socket:", e);
-                    showToastie("Failed to connect to server (no route to host/EHOSTUNREACH). Close both apps and try again.");
-                    return;
-                }
+    //forwards to whatever usbController currently is, since 'List Devices' can replace it
+    private final IDroneLink droneLink = new IDroneLink() {
+        @Override
+        public int sendBulkTransfer(byte[] data, byte[] receiveData) {
+            UsbController controller = usbController;
+            return controller != null ? controller.sendBulkTransfer(data, receiveData) : -1;
+        }
 
-                int ctr = 0;
-                //infinitely get packets from the controller, relay them to the drone via USB, get packet back, and relay that back to the controller over WifiDirect
-                while (true) {
-                    try {
-                        if (usbController.getConnection() == null) {
-                            Log.e(TAG, "UsbDeviceConnection came up null in client socket loop");
-                            showToastie("There was a problem with the USB connection. Close both apps and try again.");
-                            return;
-                        }
+        @Override
+        public boolean isConnected() {
+            UsbController controller = usbController;
+            return controller != null && controller.isConnected();
+        }
+    };
 
-                        if (inStream == null || outStream == null) {
-                            Log.e(TAG, "inStream or outStream is null in initiateClientSocket() Thread");
-                            showToastie("There was a problem with the Wifi connection. Close both apps and try again.");
-                            return;
-                        }
+    //reacts to signals the controller sends over the relay socket
+    private final IRelayListener relayListener = new IRelayListener() {
+        @Override
+        public void onSignal(Signal signal) {
+            switch (signal) {
+                case START_FOLLOW:
+                    Log.i(TAG, "Received follow start signal from client app");
 
-                        //this call blocks until it reads in data
-                        int amtDataRead = inStream.read(inData);
+                    //start up the human follower thread
+                    mHumanFollower.start();
+                    break;
+                case STOP_FOLLOW:
+                    Log.i(TAG, "Received follow stop signal from client app");
 
-                        Log.i(TAG, "amtDataRead is " + amtDataRead);
-                        //if there was no data read in, skip directly to inStream.read() again
-                        if (amtDataRead == 0) {
-                            continue;
-                        }
-                        //if there was one byte read and it wasn't just a NULL packet, it's probably a flag from the controller's Flagger
-                        else if (amtDataRead == 1 && inData[0] != (byte) 0xff) {
-                            //check the received byte
-                            switch (inData[0]) {
-                                case (byte)0x01:
-                                    Log.i(TAG, "Received follow start signal from client app");
-
-                                    //TEST: CRASH APP IMMEDIATELY
-                                    //int CRASH = 5 / 0;
-
-                                    //start up the human follower thread
-                                    mHumanFollower.start();
-                                    break;
-                                case (byte)0x02:
-                                    Log.i(TAG, "Received follow stop signal from client app");
-
-                                    //stop human follower thread (land the drone)
-                                    mHumanFollower.stop();
-                                    break;
-                                case (byte)0x03:
-                                    Log.i(TAG, "Received kill signal from client app");
-
-                                    //TEST: CRASH APP IMMEDIATELY
-                                    //int CRASH = 5 / 0;
-
-                                    //kill the drone forcefully, without running landing sequence
-                                    mHumanFollower.kill();
-                            }
+                    //stop human follower thread (land the drone)
+                    mHumanFollower.stop();
+                    break;
+                case KILL:
+                    Log.i(TAG, "Received kill signal from client app");
 
-                            //FIXME: how to deal with ack?
-                            //send fake ack back to controller
-                            outStream.write(new byte[] {0x09});
-                        }
+                    //kill the drone forcefully, without running landing sequence
+                    mHumanFollower.kill();
+                    break;
+            }
+        }
 
-                        //otherwise probably a full packet, so relay it, as long as we currently have relaying turned on
-                        else if (relayOn.get()) {
-                            //put the packet thru to the drone, getting the ack back
-                            usbController.sendBulkTransfer(inData, outData);
+        @Override
+        public void onRelayStopped(String reason, IOException cause) {
+            //ConnectionManager reconnects and tells the user, just log it here
+            Log.e(TAG, "Relay stopped: " + reason, cause);
+        }
+    };
 
-                            //new Thread(new UsbController.BulkTransferRunnable(inData, outData)).start();
 
-                            /*
-                            Log.i(TAG, String.format("indata len is %d", inData.length));
+//----------------------------------------------------------------CLIENT CODE-------------------------------------------------------------------------------
 
-                            //Log HeightHold packets
-                            Log.i(TAG, String.format("Got packet from controller to relay: 0x%02X 0x%02X 0x%02X 0x%02X 0x%02X 0x%02X 0x%02X 0x%02X" +
-                                    " 0x%02X 0x%02X 0x%02X 0x%02X 0x%02X 0x%02X 0x%02X 0x%02X 0x%02X", inData[0], inData[1], inData[2], inData[3],
-                                    inData[4], inData[5], inData[6], inData[7], inData[8], inData[9], inData[10], inData[11], inData[12], inData[13],
-                                    inData[14], inData[15], inData[16]));*/
+    //connect to the controller on a background thread. ConnectionManager keeps the relay socket up from here on,
+    //including reconnecting if the socket or the whole group drops
+    private void initiateClientSocket(final String hostAddress) {
+        Log.i(TAG, "Address :" + hostAddress);
+
+        //first connection: set up the HumanFollower (loads Posenet, so keep it off the main thread)
+        if (mHumanFollower == null) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    //we assume we have a valid UsbController at this point. Use it to instantiate our HumanFollower
+                    mHumanFollower = new HumanFollower(usbController, MainActivity.this);
 
-                            if (outStream == null || inStream == null) {
-                                Log.e(TAG, "inStream or outStream is null in initiateClientSocket() Thread, on relay attempt");
-                                showToastie("There was a problem with the Wifi connection. Close both apps and try again.");
-                                return;
-                            }
+                    //stream follower telemetry back if the controller asks for it
+                    mConnectionManager.setTelemetrySource(mHumanFollower);
 
-                            //send ack to controller //TODO: maybe need to wait for controller to confirm ack?
-                            outStream.write(outData);
-                        }
-                        else {
-                            //regular packet, but relay not allowed
-                            //FIXME: how to deal with ack?
-                            //send fake ack back to controller
-                            outStream.write(new byte[] {0x09});
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            mConnectionManager.onGroupFormed(hostAddress);
                         }
-                    }
-
-                    catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                    ctr++;
+                    });
                 }
+            }).start();
+        }
+        else {
+            mConnectionManager.onGroupFormed(hostAddress);
+        }
+    }
 
+//-----------------------------------------------------------------END CLIENT CODE-------------------------------------------------------------------------------
 
-                /*SOCKET CLOSING CODE
-                //Clean up any open sockets when done transferring or if an exception occurred.
-                //executed no matter what, even if other exceptions occur
-                finally {
-                    if (socket.isConnected()) {
-                        try {
-                            socket.close();
-                        }
+    @Override
+    protected void onDestroy() {
+        mConnectionManager.stop();
+        posenetEngine.close();
 
-                        catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }*/
+        if (mHumanFollower != null) {
+            mHumanFollower.close();
+        }
+
+        //flush and trim the flight log
+        if (packetRecorder != null) {
+            try {
+                packetRecorder.close();
+            }
+            catch (IOException e) {
+                Log.e(TAG, "Failed to close packet recorder", e);
             }
-        }).start();
+            packetRecorder = null;
+        }
 
+        super.onDestroy();
     }
 
-//-----------------------------------------------------------------END CLIENT CODE-------------------------------------------------------------------------------
-
     @Override
     protected void onPause() {
+        handler.removeCallbacks(hudUpdater);
         unregisterReceiver(peerDiscoveryReceiver);
         unregisterReceiver(connectionChangedReceiver);
         unregisterReceiver(p2pStatusReceiver);
@@ -738,6 +781,8 @@ public class MainActivity extends AppCompatActivity {
         registerReceiver(peerDiscoveryReceiver, peerfilter);
         registerReceiver(connectionChangedReceiver, connectionfilter);
         registerReceiver(p2pStatusReceiver, p2pEnabled);
+
+        handler.postDelayed(hudUpdater, HUD_PERIOD_MS);
     }
 
     //use this OpenCV loader callback to instantiate Mat objects, otherwise we'll get an error about Mat not being found
@@ -750,10 +795,6 @@ public class MainActivity extends AppCompatActivity {
                 //everything succeeded
                 Log.i(TAG, "OpenCV loaded successfully, everything created");
 
-                humanModelMat = new MatOfPoint3f();
-
-                humanActualMat = new MatOfPoint2f();
-
                 //if user has selected to debug Posenet/Human following with no drone flying, start HumanFollower Thread now
                 if (DEBUG_HUMAN_FOLLOW) {
                     mHumanFollower = new HumanFollower(usbController, MainActivity.this);
@@ -767,14 +808,6 @@ public class MainActivity extends AppCompatActivity {
         }
     };
 
-    public MatOfPoint3f getHumanModelMat() {
-        return humanModelMat;
-    }
-
-    public MatOfPoint2f getHumanActualMat() {
-        return humanActualMat;
-    }
-
     //the list of p2p devices found
     private List<WifiP2pDevice> deviceList = new ArrayList<>();
 
@@ -0,0 +1,350 @@
+package weiner.noah.wifidirect.control;
+
+import weiner.noah.wifidirect.Constants;
+import weiner.noah.wifidirect.inference.Pose;
+
+/**
+ * Turns a frame's keypoints into one distance and one centering offset, each with a variance, from every cue the
+ * keypoints allow instead of a hard score cut and a fixed fallback order. A cue whose keypoints Posenet is unsure of
+ * still counts, just for less, so the readings don't jump between methods as scores wander around minConfidence.
+ *
+ * Distance cues, each D = K / baseline pixels:
+ * - eyes: the horizontal eye distance with PosenetStats' right turn correction, K = (PD - pivot shrink x pivot weight) F,
+ *   like it's always been worked out
+ * - shoulders: the horizontal shoulder distance, K = shoulder width x cos(angle) x F
+ * - nose: how far the nose is below the eyes (either eye will do), K = nose height x F
+ * - torso: how far the hips are below the shoulders, K = torso length x F
+ * - body: how far the ankles are below the nose, K = nose to ankle height x F
+ * The vertical cues use the camera's vertical focal length, and the torso and body cues assume the average adult's
+ * HUMAN_HEIGHT and proportions. They're worse than the eyes up close, and out of the frame anyway, but their baselines
+ * are 5 to 25 times the eyes', and a cue's variance goes as 1 / baseline^2. So past a meter or so, where the eyes are a
+ * handful of pixels apart and a pixel either way is a big change in distance, the weighting hands over to them.
+ * Centering cues, each an x offset from the frame center: the eyes' midpoint and the shoulders' midpoint.
+ *
+ * Every keypoint's position is taken to be off by KEYPOINT_SIGMA_PX / score, plus the half pixel of Posenet's grid, and
+ * each cue also has a model error for how
+ * far a typical person's proportions are from the ones assumed (shoulder width and nose height are the operator's PD
+ * times HeadPoseSolver's bust proportions). The cues are averaged by inverse variance. When they disagree by more than
+ * their variances allow, the variance is scaled up by how much more, so a frame with a misplaced keypoint reads as
+ * less certain instead of confidently wrong.
+ *
+ * Keypoints are in Posenet input pixels, indexed like BodyPart. Nothing is allocated per frame. Not thread safe: the
+ * tracking thread owns it. Plain Java, so MeasurementFusionTest can check it and pctool's FusionEval can run it on
+ * recorded keypoints.
+ */
+public class MeasurementFusion {
+    //below this Posenet is guessing, so the keypoint is left out altogether
+    public static final float MIN_SCORE = 0.1f;
+
+    //how far a keypoint at score 1 is off, in Posenet input pixels. Grows as 1/score
+    static final double KEYPOINT_SIGMA_PX = 1.5;
+
+    //a keypoint lands on Posenet's pixel grid, so even at score 1 it's up to half a pixel off: variance 1/12 px^2
+    static final double QUANTIZATION_VARIANCE_PX = 1.0 / 12;
+
+    //a baseline shorter than this isn't a measurement
+    static final double MIN_BASELINE_PX = 2;
+
+    //HeadPoseSolver's bust, in PDs: shoulders 1743.75 units apart and the eyes 318.75 above the nose, to 450 between eyes
+    static final double SHOULDERS_PER_PD = 1743.75 / 450;
+    static final double NOSE_HEIGHT_PER_PD = 318.75 / 450;
+
+    //Drillis and Contini's joint heights as fractions of stature: shoulder 0.818, hip 0.530, nose 0.92, ankle 0.039
+    static final double TORSO_PER_HEIGHT = 0.818 - 0.530;
+    static final double NOSE_TO_ANKLE_PER_HEIGHT = 0.92 - 0.039;
+
+    //pixels are taller than they are wide to the camera, by this much
+    static final double VERTICAL_FOCAL_RATIO = Constants.CAMERA_FOCAL_Y / Constants.CAMERA_FOCAL_X;
+
+    //relative error of each cue's geometry. The eyes are calibrated; shoulders and nose height vary by person and posture
+    static final double EYES_MODEL_ERROR = 0.03;
+    static final double SHOULDERS_MODEL_ERROR = 0.12;
+    static final double NOSE_MODEL_ERROR = 0.2;
+    static final double TORSO_MODEL_ERROR = 0.1;
+    static final double BODY_MODEL_ERROR = 0.06;
+
+    //past this the shoulders are mostly side-on and their width says little
+    static final double MAX_SHOULDER_ANGLE_DEG = 60;
+
+    //how far each midpoint wanders off the body's center line, in pixels: the head turns more than the shoulders do
+    static final double EYES_CENTER_SIGMA_PX = 4;
+    static final double SHOULDERS_CENTER_SIGMA_PX = 2;
+
+    public static final int CUE_EYES = 0;
+    public static final int CUE_SHOULDERS = 1;
+    public static final int CUE_NOSE = 2;
+    public static final int CUE_TORSO = 3;
+    public static final int CUE_BODY = 4;
+    public static final int DISTANCE_CUES = 5;
+
+    public static final int CUE_EYES_CENTER = 0;
+    public static final int CUE_SHOULDERS_CENTER = 1;
+    public static final int OFFSET_CUES = 2;
+
+    //this frame's cues, NaN where missing
+    private final double[] distanceCues = new double[DISTANCE_CUES];
+    private final double[] distanceCueVariances = new double[DISTANCE_CUES];
+    private final double[] offsetCues = new double[OFFSET_CUES];
+    private final double[] offsetCueVariances = new double[OFFSET_CUES];
+
+    private double eyePixels;
+    private double distance, distanceVariance;
+    private double offset, offsetVariance;
+
+    //combine()'s second result
+    private double combinedVariance;
+
+    //pairHeight()'s results
+    private double pairY, pairVariance;
+
+    /**
+     * Fuse a frame. False if there wasn't a single cue for either distance or centering.
+     *
+     * @param angleDeg the person's current angle, negative turned to their right, or NaN if it isn't known
+     */
+    public boolean fuse(Pose pose, CalibrationProfile profile, double angleDeg) {
+        double angle = Double.isNaN(angleDeg) ? 0 : angleDeg;
+
+        eyesCue(pose, profile, angle);
+        shouldersCue(pose, profile, angle);
+        noseCue(pose, profile);
+        torsoCue(pose, profile);
+        bodyCue(pose, profile);
+        centerCue(pose, CUE_EYES_CENTER, Pose.LEFT_EYE, Pose.RIGHT_EYE, EYES_CENTER_SIGMA_PX);
+        centerCue(pose, CUE_SHOULDERS_CENTER, Pose.LEFT_SHOULDER, Pose.RIGHT_SHOULDER, SHOULDERS_CENTER_SIGMA_PX);
+
+        distance = combine(distanceCues, distanceCueVariances);
+        distanceVariance = combinedVariance;
+        offset = combine(offsetCues, offsetCueVariances);
+        offsetVariance = combinedVariance;
+
+        return hasDistance() || hasOffset();
+    }
+
+    //position variance of a keypoint, or NaN if it's under MIN_SCORE
+    private static double keypointVariance(Pose pose, int keypoint) {
+        float score = pose.scores[keypoint];
+        if (!(score >= MIN_SCORE)) {
+            return Double.NaN;
+        }
+        double sigma = KEYPOINT_SIGMA_PX / score;
+        return sigma * sigma + QUANTIZATION_VARIANCE_PX;
+    }
+
+    //distance and its variance from K / baseline, with the baseline's pixel variance and the cue's relative model error
+    private static void setDistanceCue(double[] cues, double[] variances, int cue, double k, double baselinePx,
+                                       double baselineVariance, double modelError) {
+        if (Double.isNaN(baselineVariance) || !(baselinePx >= MIN_BASELINE_PX) || !(k > 0)) {
+            return;
+        }
+        double d = k / baselinePx;
+        double fromPixels = d / baselinePx;
+        cues[cue] = d;
+        variances[cue] = fromPixels * fromPixels * baselineVariance + (d * modelError) * (d * modelError);
+    }
+
+    private void eyesCue(Pose pose, CalibrationProfile profile, double angle) {
+        distanceCues[CUE_EYES] = distanceCueVariances[CUE_EYES] = eyePixels = Double.NaN;
+
+        double variance = keypointVariance(pose, Pose.LEFT_EYE) + keypointVariance(pose, Pose.RIGHT_EYE);
+        if (Double.isNaN(variance)) {
+            return;
+        }
+
+        //don't forget left eye is on the right. If human turned to right, correct some for camera location
+        double pixels = pose.x[Pose.LEFT_EYE] - pose.x[Pose.RIGHT_EYE];
+        if (angle < 0) {
+            pixels += 5;
+        }
+
+        double k = (profile.pd - AngleTables.pivotShrink((float) angle) * profile.pivotWeight) * profile.focalLength;
+        setDistanceCue(distanceCues, distanceCueVariances, CUE_EYES, k, pixels, variance, EYES_MODEL_ERROR);
+        if (!Double.isNaN(distanceCues[CUE_EYES])) {
+            eyePixels = pixels;
+        }
+    }
+
+    private void shouldersCue(Pose pose, CalibrationProfile profile, double angle) {
+        distanceCues[CUE_SHOULDERS] = distanceCueVariances[CUE_SHOULDERS] = Double.NaN;
+        if (Math.abs(angle) > MAX_SHOULDER_ANGLE_DEG) {
+            return;
+        }
+
+        double variance = keypointVariance(pose, Pose.LEFT_SHOULDER) + keypointVariance(pose, Pose.RIGHT_SHOULDER);
+        double pixels = pose.x[Pose.LEFT_SHOULDER] - pose.x[Pose.RIGHT_SHOULDER];
+        double k = SHOULDERS_PER_PD * profile.pd * Math.cos(Math.toRadians(angle)) * profile.focalLength;
+        setDistanceCue(distanceCues, distanceCueVariances, CUE_SHOULDERS, k, pixels, variance, SHOULDERS_MODEL_ERROR);
+    }
+
+    //height of a left/right pair, weighted by how sure of each we are, or of whichever one was found. Sets pairY and
+    //pairVariance; false with neither
+    private boolean pairHeight(Pose pose, int left, int right) {
+        double leftVariance = keypointVariance(pose, left);
+        double rightVariance = keypointVariance(pose, right);
+
+        if (!Double.isNaN(leftVariance) && !Double.isNaN(rightVariance)) {
+            pairVariance = leftVariance * rightVariance / (leftVariance + rightVariance);
+            pairY = (pose.y[left] / leftVariance + pose.y[right] / rightVariance) * pairVariance;
+        }
+        else if (!Double.isNaN(leftVariance)) {
+            pairY = pose.y[left];
+            pairVariance = leftVariance;
+        }
+        else if (!Double.isNaN(rightVariance)) {
+            pairY = pose.y[right];
+            pairVariance = rightVariance;
+        }
+        else {
+            return false;
+        }
+        return true;
+    }
+
+    private void noseCue(Pose pose, CalibrationProfile profile) {
+        distanceCues[CUE_NOSE] = distanceCueVariances[CUE_NOSE] = Double.NaN;
+        if (!pairHeight(pose, Pose.LEFT_EYE, Pose.RIGHT_EYE)) {
+            return;
+        }
+
+        double k = NOSE_HEIGHT_PER_PD * profile.pd * profile.focalLength * VERTICAL_FOCAL_RATIO;
+        setDistanceCue(distanceCues, distanceCueVariances, CUE_NOSE, k, pose.y[Pose.NOSE] - pairY,
+                keypointVariance(pose, Pose.NOSE) + pairVariance, NOSE_MODEL_ERROR);
+    }
+
+    private void torsoCue(Pose pose, CalibrationProfile profile) {
+        distanceCues[CUE_TORSO] = distanceCueVariances[CUE_TORSO] = Double.NaN;
+        if (!pairHeight(pose, Pose.LEFT_SHOULDER, Pose.RIGHT_SHOULDER)) {
+            return;
+        }
+        double shoulderY = pairY;
+        double shoulderVariance = pairVariance;
+        if (!pairHeight(pose, Pose.LEFT_HIP, Pose.RIGHT_HIP)) {
+            return;
+        }
+
+        double k = TORSO_PER_HEIGHT * Constants.HUMAN_HEIGHT * profile.focalLength * VERTICAL_FOCAL_RATIO;
+        setDistanceCue(distanceCues, distanceCueVariances, CUE_TORSO, k, pairY - shoulderY, shoulderVariance + pairVariance,
+                TORSO_MODEL_ERROR);
+    }
+
+    private void bodyCue(Pose pose, CalibrationProfile profile) {
+        distanceCues[CUE_BODY] = distanceCueVariances[CUE_BODY] = Double.NaN;
+        if (!pairHeight(pose, Pose.LEFT_ANKLE, Pose.RIGHT_ANKLE)) {
+            return;
+        }
+
+        double k = NOSE_TO_ANKLE_PER_HEIGHT * Constants.HUMAN_HEIGHT * profile.focalLength * VERTICAL_FOCAL_RATIO;
+        setDistanceCue(distanceCues, distanceCueVariances, CUE_BODY, k, pairY - pose.y[Pose.NOSE],
+                keypointVariance(pose, Pose.NOSE) + pairVariance, BODY_MODEL_ERROR);
+    }
+
+    private void centerCue(Pose pose, int cue, int left, int right, double centerSigma) {
+        offsetCues[cue] = offsetCueVariances[cue] = Double.NaN;
+
+        double variance = keypointVariance(pose, left) + keypointVariance(pose, right);
+        if (Double.isNaN(variance)) {
+            return;
+        }
+        offsetCues[cue] = (pose.x[left] + pose.x[right]) / 2 - Constants.FRAME_CENTER;
+        offsetCueVariances[cue] = variance / 4 + centerSigma * centerSigma;
+    }
+
+    //inverse variance weighted mean of the cues that are there, NaN with none. Sets combinedVariance, scaled up by the
+    //reduced chi-square when the cues disagree more than their variances explain
+    private double combine(double[] cues, double[] variances) {
+        double weights = 0;
+        double sum = 0;
+        int n = 0;
+        for (int i = 0; i < cues.length; i++) {
+            if (!Double.isNaN(cues[i]) && variances[i] > 0) {
+                weights += 1 / variances[i];
+                sum += cues[i] / variances[i];
+                n++;
+            }
+        }
+        if (n == 0) {
+            combinedVariance = Double.NaN;
+            return Double.NaN;
+        }
+
+        double mean = sum / weights;
+        combinedVariance = 1 / weights;
+
+        if (n > 1) {
+            double chiSquare = 0;
+            for (int i = 0; i < cues.length; i++) {
+                if (!Double.isNaN(cues[i]) && variances[i] > 0) {
+                    chiSquare += (cues[i] - mean) * (cues[i] - mean) / variances[i];
+                }
+            }
+            combinedVariance *= Math.max(1, chiSquare / (n - 1));
+        }
+        return mean;
+    }
+
+    public boolean hasDistance() {
+        return !Double.isNaN(distance);
+    }
+
+    /**
+     * Fused distance to the person in meters, NaN if no cue had its keypoints.
+     */
+    public double getDistance() {
+        return distance;
+    }
+
+    /**
+     * In square meters, NaN with no distance.
+     */
+    public double getDistanceVariance() {
+        return distanceVariance;
+    }
+
+    public boolean hasOffset() {
+        return !Double.isNaN(offset);
+    }
+
+    /**
+     * Fused offset of the person's center line from the frame center, in Posenet input pixels, NaN if neither the eyes
+     * nor the shoulders were found.
+     */
+    public double getOffset() {
+        return offset;
+    }
+
+    /**
+     * In square pixels, NaN with no offset.
+     */
+    public double getOffsetVariance() {
+        return offsetVariance;
+    }
+
+    /**
+     * The eye distance the eyes cue used, right turn correction included, NaN without it. What Calibrator fits.
+     */
+    public double getEyePixels() {
+        return eyePixels;
+    }
+
+    /**
+     * One of the CUE_ distances, NaN if its keypoints weren't found.
+     */
+    public double getDistanceCue(int cue) {
+        return distanceCues[cue];
+    }
+
+    public double getDistanceCueVariance(int cue) {
+        return distanceCueVariances[cue];
+    }
+
+    /**
+     * CUE_EYES_CENTER or CUE_SHOULDERS_CENTER's offset, NaN if its keypoints weren't found.
+     */
+    public double getOffsetCue(int cue) {
+        return offsetCues[cue];
+    }
+
+    public double getOffsetCueVariance(int cue) {
+        return offsetCueVariances[cue];
+    }
+}
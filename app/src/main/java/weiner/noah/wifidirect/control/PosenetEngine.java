@@ -0,0 +1,328 @@
+package weiner.noah.wifidirect.control;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.AssetFileDescriptor;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import weiner.noah.wifidirect.inference.BackendConfig;
+import weiner.noah.wifidirect.inference.BackendSelector;
+import weiner.noah.wifidirect.inference.InferenceBackend;
+import weiner.noah.wifidirect.inference.Pose;
+import weiner.noah.wifidirect.inference.PosenetModel;
+import weiner.noah.wifidirect.inference.TfliteBackend;
+import weiner.noah.wifidirect.metrics.Histogram;
+import weiner.noah.wifidirect.metrics.MetricsRegistry;
+
+/**
+ * One Posenet interpreter for the life of the app, built and warmed up before anybody takes off.
+ *
+ * Building the interpreter, and on the GPU initializing the delegate and compiling its shaders, takes a good fraction
+ * of a second. Left to Posenet's lazy getInterpreter() that happened on the first camera frame after takeoff, every
+ * flight. MainActivity now calls {@link #preload} at startup, which picks a backend (see {@link BackendSelector}: the
+ * first run on a phone benchmarks them all, later runs load the saved choice), builds it and runs a few inferences on
+ * a blank input in the background. Every follower session after that runs on the same interpreter.
+ *
+ * The GPU delegate has to be used from the thread that created it, so everything that touches the backend (picking,
+ * building, warm-up, inference, rebuilding for the governor) runs on this engine's own thread, and callers wait for
+ * the result.
+ */
+public class PosenetEngine {
+    private static final String TAG = "PosenetEngine";
+
+    private static final String PREFS_NAME = "inference_backend";
+    private static final int WARMUP_RUNS = 3;
+
+    private final Context context;
+    private final ExecutorService executor;
+
+    //only touched on the engine thread
+    private InferenceBackend backend = null;
+    private ByteBuffer input;
+    private float[][] outputs;
+    private int[] heatmapShape;
+    private int[] pixels = new int[0];
+
+    //readable from anywhere
+    private volatile BackendConfig config = BackendSelector.DEFAULT_CPU;
+    private volatile BackendConfig best = BackendSelector.DEFAULT_CPU;
+    private volatile BackendConfig bestCpu = BackendSelector.DEFAULT_CPU;
+    private volatile long lastInferenceTimeNanos = -1;
+    private volatile BackendConfig lastInferenceConfig = null;
+
+    private final CountDownLatch selected = new CountDownLatch(1);
+
+    //the three parts of an estimate(), for the HUD: bitmap to input tensor, the model itself, heatmaps to keypoints
+    private final Histogram inputHistogram = MetricsRegistry.get().histogram("input");
+    private final Histogram runHistogram = MetricsRegistry.get().histogram("run");
+    private final Histogram decodeHistogram = MetricsRegistry.get().histogram("decode");
+
+    public PosenetEngine(Context context) {
+        this.context = context.getApplicationContext();
+
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "PosenetEngine");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Pick a backend, build it and warm it up in the background. Returns immediately; the first {@link #estimate}
+     * waits for it if it hasn't finished.
+     */
+    public void preload() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    select();
+                }
+                catch (RuntimeException e) {
+                    Log.e(TAG, "Backend selection failed, staying on " + BackendSelector.DEFAULT_CPU, e);
+                }
+                finally {
+                    selected.countDown();
+                }
+
+                config = best;
+                build(best);
+            }
+        });
+    }
+
+    //engine thread only
+    private void select() {
+        final SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+
+        BackendSelector selector = new BackendSelector(new BackendSelector.Factory() {
+            @Override
+            public InferenceBackend create(BackendConfig config) throws IOException {
+                return new TfliteBackend(context, PosenetModel.MODEL_FILE, config);
+            }
+        }, new BackendSelector.Store() {
+            @Override
+            public String load(String key) {
+                return prefs.getString(key, null);
+            }
+
+            @Override
+            public void save(String key, String value) {
+                prefs.edit().putString(key, value).apply();
+            }
+        }, modelKey());
+
+        long start = System.nanoTime();
+        boolean benchmarked = selector.select(BackendSelector.defaultCandidates(Runtime.getRuntime().availableProcessors()));
+
+        if (benchmarked) {
+            for (BackendSelector.Result result : selector.getResults()) {
+                Log.i(TAG, "Benchmark " + result);
+            }
+            Log.i(TAG, String.format("Benchmarked backends in %.1fs", (System.nanoTime() - start) / 1e9));
+        }
+
+        best = selector.getBest();
+        bestCpu = selector.getBestCpu();
+        Log.i(TAG, "Running Posenet on " + best + " (CPU fallback " + bestCpu + ")" + (benchmarked ? "" : ", as saved"));
+    }
+
+    //a new model file or a system update (new GPU/NNAPI drivers) means benchmarking again
+    private String modelKey() {
+        long length = -1;
+        try {
+            AssetFileDescriptor fd = context.getAssets().openFd(PosenetModel.MODEL_FILE);
+            length = fd.getLength();
+            fd.close();
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Can't open " + PosenetModel.MODEL_FILE, e);
+        }
+        return PosenetModel.MODEL_FILE + ":" + length + ":" + Build.FINGERPRINT;
+    }
+
+    /**
+     * Switch to another backend config. The new one is built and warmed up on the engine thread, so an inference
+     * already queued runs on the old one and the next one on the new one.
+     */
+    public void reconfigure(final BackendConfig config) {
+        this.config = config;
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                build(config);
+            }
+        });
+    }
+
+    //engine thread only. The old backend keeps running inferences until the new one has built and warmed up, and
+    //stays if none of them do
+    private void build(BackendConfig wanted) {
+        //if this phone won't build what was asked for after all, the CPU always will
+        BackendConfig[] tries = {wanted, bestCpu, BackendSelector.DEFAULT_CPU};
+        for (BackendConfig attempt : tries) {
+            if (backend != null && backend.getConfig().equals(attempt)) {
+                config = attempt;
+                return;
+            }
+
+            InferenceBackend built = null;
+            try {
+                built = new TfliteBackend(context, PosenetModel.MODEL_FILE, attempt);
+
+                ByteBuffer builtInput = PosenetModel.allocateInput(built);
+                float[][] builtOutputs = PosenetModel.allocateOutputs(built);
+
+                long start = System.nanoTime();
+                for (int i = 0; i < WARMUP_RUNS; i++) {
+                    built.run(builtInput, builtOutputs);
+                }
+                Log.i(TAG, String.format("Posenet on %s ready, %d warm-up runs took %.1fms", attempt, WARMUP_RUNS,
+                        (System.nanoTime() - start) / 1e6));
+
+                if (backend != null) {
+                    backend.close();
+                }
+                backend = built;
+                input = builtInput;
+                outputs = builtOutputs;
+                heatmapShape = built.getOutputShape(PosenetModel.HEATMAPS);
+                config = attempt;
+                return;
+            }
+            catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Couldn't build Posenet on " + attempt, e);
+                if (built != null) {
+                    built.close();
+                }
+            }
+        }
+
+        if (backend != null) {
+            config = backend.getConfig();
+            Log.e(TAG, "Staying on " + config);
+        }
+        else {
+            Log.e(TAG, "No Posenet backend at all, frames will be skipped");
+        }
+    }
+
+    /**
+     * Run Posenet on one model-sized frame, on the engine thread, and decode the pose into out. Blocks until it's done.
+     *
+     * @return false if there was no pose: no backend could be built, or the run failed. out is left as it was
+     */
+    public boolean estimate(final Bitmap bitmap, final Pose out) throws InterruptedException {
+        Future<Boolean> result = executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                if (backend == null) {
+                    return false;
+                }
+
+                long inputStart = System.nanoTime();
+                int count = bitmap.getWidth() * bitmap.getHeight();
+                if (pixels.length != count) {
+                    pixels = new int[count];
+                }
+                bitmap.getPixels(pixels, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+                PosenetModel.fillInput(pixels, count, input);
+
+                long start = System.nanoTime();
+                inputHistogram.record(start - inputStart);
+                backend.run(input, outputs);
+                long end = System.nanoTime();
+                lastInferenceTimeNanos = end - start;
+                lastInferenceConfig = backend.getConfig();
+                runHistogram.record(lastInferenceTimeNanos);
+
+                PosenetModel.decode(outputs[PosenetModel.HEATMAPS], outputs[PosenetModel.OFFSETS], heatmapShape,
+                        bitmap.getWidth(), bitmap.getHeight(), out);
+                decodeHistogram.recordSince(end);
+                return true;
+            }
+        });
+
+        try {
+            return result.get();
+        }
+        catch (ExecutionException e) {
+            Log.e(TAG, "Posenet failed on " + config + ", skipping the frame", e.getCause());
+            return false;
+        }
+        catch (InterruptedException e) {
+            result.cancel(false);
+            throw e;
+        }
+    }
+
+    /**
+     * Wait until the backend has been picked. Only takes a while on a phone's first run, while it benchmarks.
+     */
+    public void awaitSelection() throws InterruptedException {
+        selected.await();
+    }
+
+    /**
+     * What BackendSelector picked for this phone. The CPU default until it's done.
+     */
+    public BackendConfig getBest() {
+        return best;
+    }
+
+    /**
+     * Its best CPU-only config, for the governor to fall back to.
+     */
+    public BackendConfig getBestCpu() {
+        return bestCpu;
+    }
+
+    /**
+     * The config the current (or soon to be current) backend runs.
+     */
+    public BackendConfig getConfig() {
+        return config;
+    }
+
+    //how long the backend itself took on the last frame
+    public long getLastInferenceTimeNanos() {
+        return lastInferenceTimeNanos;
+    }
+
+    //and what it ran on, which lags getConfig() while a switch is pending
+    public BackendConfig getLastInferenceConfig() {
+        return lastInferenceConfig;
+    }
+
+    /**
+     * Free the backend and stop the engine thread. For the activity's onDestroy.
+     */
+    public void close() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (backend != null) {
+                    backend.close();
+                    backend = null;
+                }
+            }
+        });
+        executor.shutdown();
+    }
+}
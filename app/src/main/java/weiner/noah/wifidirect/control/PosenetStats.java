@@ -36,20 +36,20 @@ import androidx.core.util.Pair;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfDouble;
-import org.opencv.core.MatOfPoint2f;
-import org.opencv.core.MatOfPoint3f;
 import org.opencv.core.Point;
-import org.opencv.core.Point3;
 import org.tensorflow.lite.examples.noah.lib.BodyPart;
-import org.tensorflow.lite.examples.noah.lib.KeyPoint;
-import org.tensorflow.lite.examples.noah.lib.Person;
-import org.tensorflow.lite.examples.noah.lib.Posenet;
-import org.tensorflow.lite.examples.noah.lib.Position;
 
-import java.nio.ByteBuffer;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
@@ -62,11 +62,28 @@ import weiner.noah.wifidirect.ErrorDialog;
 import weiner.noah.wifidirect.R;
 import weiner.noah.wifidirect.Thermal;
 import weiner.noah.wifidirect.ThermalService;
+import weiner.noah.wifidirect.inference.BackendConfig;
+import weiner.noah.wifidirect.inference.KeypointLog;
+import weiner.noah.wifidirect.inference.OneEuroFilterBank;
+import weiner.noah.wifidirect.inference.Pose;
+import weiner.noah.wifidirect.inference.PosenetModel;
+import weiner.noah.wifidirect.inference.PowerProfiler;
+import weiner.noah.wifidirect.metrics.Counter;
+import weiner.noah.wifidirect.metrics.Gauge;
+import weiner.noah.wifidirect.metrics.Histogram;
+import weiner.noah.wifidirect.metrics.MetricsRegistry;
+import weiner.noah.wifidirect.utils.CameraFrame;
 import weiner.noah.wifidirect.utils.CircBuffer;
-import weiner.noah.wifidirect.utils.ImageUtils;
+import weiner.noah.wifidirect.utils.LatestSlot;
+import weiner.noah.wifidirect.utils.MatCounter;
+import weiner.noah.wifidirect.utils.StageStats;
+import weiner.noah.wifidirect.utils.SysfsSampler;
+import weiner.noah.wifidirect.utils.ThermalZones;
+import weiner.noah.wifidirect.utils.YuvConverter;
 
 public class PosenetStats {
-    private Posenet posenet;
+    //shared, preloaded interpreter. Owned by MainActivity
+    private final PosenetEngine posenetEngine;
     private MainActivity mainActivity;
     private HumanFollower caller;
     private final String TAG = "PosenetStats";
@@ -74,6 +91,9 @@ public class PosenetStats {
     //whether we have both eyes of human in the frame. Determines whether or not we can calculate dist to the human
     private boolean bothEyesFound = false;
 
+    //whether we have a distance to the human. Same as bothEyesFound, unless USE_MEASUREMENT_FUSION got one from other cues
+    private boolean distFound = false;
+
     //whether we were able to get a solid reading of the angle
     private boolean angleCalculatedCorrectly = false;
 
@@ -89,6 +109,32 @@ public class PosenetStats {
     //should we log thermal data?
     private final boolean SHOULD_LOG_THERM_DATA = false;
 
+    //should we record raw keypoints for pctool's SmoothingEval?
+    private final boolean RECORD_KEYPOINTS = false;
+
+    //run Posenet only every FLOW_KEYFRAME_INTERVAL frames (or sooner if the flow goes bad) and carry the keypoints
+    //tracking reads through the frames in between with optical flow. See FlowKeypointTracker. Off until pctool's
+    //FlowTrackerSim has passed on the desktop OpenCV
+    private final boolean USE_FLOW_TRACKING = false;
+    private final int FLOW_KEYFRAME_INTERVAL = 3;
+
+    //solve the person's pose with solvePnP when the nose, eyes and shoulders are all found, for distance, angle and
+    //lateral offset in one go. See HeadPoseSolver. Off until pctool's PoseSolverBench has passed on the desktop OpenCV
+    private final boolean USE_POSE_SOLVER = false;
+
+    //get distance and centering from every cue the keypoints allow, weighted by their scores, instead of the minConfidence
+    //cut and the eyes/shoulders fallbacks. Also gives each a variance, which HumanFollower scales its corrections by.
+    //See MeasurementFusion
+    private final boolean USE_MEASUREMENT_FUSION = true;
+
+    //instead of following, step Posenet through every backend config at every PROFILE_RATES_HZ rate and measure what
+    //each costs in battery and heat. See PowerProfiler. The report goes to the log and power_*.txt/csv in the files dir
+    private final boolean PROFILE_POWER = false;
+    private final int[] PROFILE_RATES_HZ = {30, 20, 12, 6};
+    private final long PROFILE_DWELL_NANOS = 60000000000L;
+    private final long PROFILE_SETTLE_NANOS = 10000000000L;
+    private final long PROFILE_SAMPLE_NANOS = 250000000L;
+
     private Thread mLiveFeedThread = null;
     private PosenetLiveStatFeed posenetLiveStatFeed;
 
@@ -99,19 +145,38 @@ public class PosenetStats {
     private final AtomicFloat hum_tilt_ratio = new AtomicFloat();
     private final AtomicFloat bb_off_center = new AtomicFloat();
 
+    //variances of the two above, NaN without USE_MEASUREMENT_FUSION
+    private final AtomicFloat dist_variance = new AtomicFloat(Float.NaN);
+    private final AtomicFloat bb_off_center_variance = new AtomicFloat(Float.NaN);
+
     private final Thermal thermal;
     private final ThermalService thermalService;
     private final Battery battery;
 
+    //picks the frame rate and backend from thermal status, inference time, battery and how fast the person moves. New
+    //each session, starting from the backend the engine picked for this phone
+    private volatile InferenceGovernor governor;
+
+    //One-Euro smoothing of Posenet's keypoints before any tracking math sees them, reset each session. See
+    //setKeypointSmoothing()
+    private final OneEuroFilterBank keypointFilter = new OneEuroFilterBank(PosenetModel.NUM_KEYPOINTS, 0.5f);
+
     private final CircBuffer xVelBuffer = new CircBuffer(CIRC_BUFF_SIZE);
     private final CircBuffer yVelBuffer = new CircBuffer(CIRC_BUFF_SIZE);
     private final CircBuffer angVelBuffer = new CircBuffer(CIRC_BUFF_SIZE);
 
     private AtomicFloat mPerPixel = new AtomicFloat();
 
+    //PD, focal length, pivot weight and angle offsets for whoever is flying. HumanFollower loads it at startup and
+    //replaces it after a calibration flight
+    private volatile CalibrationProfile calibration = CalibrationProfile.DEFAULT;
 
-    public PosenetStats(Posenet posenet, MainActivity mainActivity, HumanFollower caller) {
-        this.posenet = posenet;
+    //gets every tracked frame's raw measurements while a calibration flight runs, null otherwise
+    private volatile Calibrator calibrator = null;
+
+
+    public PosenetStats(PosenetEngine posenetEngine, MainActivity mainActivity, HumanFollower caller) {
+        this.posenetEngine = posenetEngine;
         this.mainActivity = mainActivity;
         this.caller = caller;
 
@@ -119,7 +184,7 @@ public class PosenetStats {
         this.thermal = new Thermal("/sys/class/thermal/", mainActivity);
 
         //instantiate new Battery
-        this.battery = new Battery("sys/class/power_supply/", mainActivity);
+        this.battery = new Battery("/sys/class/power_supply/", mainActivity);
 
         this.thermalService = new ThermalService(mainActivity, caller);
 
@@ -128,6 +193,16 @@ public class PosenetStats {
     }
 
     public void start() {
+        //only waits on the phone's very first run, while the engine benchmarks backends
+        try {
+            posenetEngine.awaitSelection();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        governor = new InferenceGovernor(posenetEngine.getBest(), posenetEngine.getBestCpu(), System.nanoTime());
+        thermalService.setInferenceGovernor(governor);
+
         posenetLiveStatFeed = new PosenetLiveStatFeed();
         mLiveFeedThread = new Thread(posenetLiveStatFeed);
         mLiveFeedThread.start();
@@ -148,6 +223,8 @@ public class PosenetStats {
         mLiveFeedThread = null;
 
         if (posenetLiveStatFeed != null) {
+            //stages let go of their images before the ImageReader goes away
+            posenetLiveStatFeed.stopPipeline();
             posenetLiveStatFeed.closeCamera();
             posenetLiveStatFeed.stopBackgroundThread();
             posenetLiveStatFeed = null;
@@ -156,11 +233,50 @@ public class PosenetStats {
         //stop logging thermal and battery readings?
         //thermal.stopLogging();
 
-        //thermalService.stopListening();
+        //thermalService keeps its status listener and forecast running between flights (the phone keeps heating or
+        //cooling), and start() doesn't register them again. close() lets go of them
+    }
+
+    /**
+     * Stop listening to thermal status and stop forecasting. For when this PosenetStats won't fly again.
+     */
+    public void close() {
+        thermalService.stopListening();
+    }
+
+    /**
+     * The thermal level the phone is about to reach, from HumanFollower's read of the forecast. Backs Posenet off ahead
+     * of time.
+     */
+    public void onThermalForecast(int level) {
+        InferenceGovernor current = governor;
+        if (current != null) {
+            current.onForecast(level, System.nanoTime());
+        }
+    }
+
+    public void setCalibrationProfile(CalibrationProfile profile) {
+        calibration = profile;
+        Log.i(TAG, "Calibration: " + profile);
+    }
+
+    public CalibrationProfile getCalibrationProfile() {
+        return calibration;
+    }
+
+    /**
+     * Feed every tracked frame's raw eye pixels, angles and offset to the calibrator until {@link #stopCalibration()}.
+     */
+    public void startCalibration(Calibrator calibrator) {
+        this.calibrator = calibrator;
+    }
+
+    public void stopCalibration() {
+        calibrator = null;
     }
 
     public float getDistToHum() {
-        if (bothEyesFound)
+        if (distFound)
             return dist_to_hum.get();
         else
             return -1;
@@ -187,6 +303,32 @@ public class PosenetStats {
             return -1;
     }
 
+    /**
+     * Variance of getDistToHum() in square meters, NaN if it isn't known.
+     */
+    public float getDistVariance() {
+        return distFound ? dist_variance.get() : Float.NaN;
+    }
+
+    /**
+     * Variance of getBbOffCenter() in square pixels, NaN if it isn't known.
+     */
+    public float getBbOffCenterVariance() {
+        return bbOffCenterCalculatedCorrectly ? bb_off_center_variance.get() : Float.NaN;
+    }
+
+    /**
+     * Tune the keypoint smoothing while running. Lower minCutoffHz steadies a still person's distance reading; higher
+     * beta keeps a moving one from lagging. pctool's SmoothingEval shows the trade-off on a recorded session
+     */
+    public void setKeypointSmoothing(double minCutoffHz, double beta, double dCutoffHz) {
+        keypointFilter.setParameters(minCutoffHz, beta, dCutoffHz);
+    }
+
+    public void setKeypointSmoothingEnabled(boolean enabled) {
+        keypointFilter.setEnabled(enabled);
+    }
+
     public float getXVel() {
         float ret = xVelBuffer.getDispOverTime();
 
@@ -251,10 +393,6 @@ public class PosenetStats {
 
 
 
-        //Macros for 'looking' variable
-        private final int LOOKING_LEFT = 0;
-        private final int LOOKING_RIGHT = 1;
-
         /**
          * Tag for the [Log].
          */
@@ -297,19 +435,73 @@ public class PosenetStats {
         private int previewHeight = 0;
 
         /**
-         * A counter to keep count of total frames.
+         * Converts camera frames to ARGB8888 on a few worker threads. Same output as ImageUtils.convertYUV420ToARGB8888
+         */
+        private YuvConverter yuvConverter = new YuvConverter(YuvConverter.defaultThreads());
+
+        /**
+         * The frame currently being processed. Gives zero-copy access to the Y plane, and only converts to ARGB if asked
          */
-        private int frameCounter = 0;
+        private CameraFrame cameraFrame = new CameraFrame(yuvConverter);
 
         /**
-         * An IntArray to save image data in ARGB8888 format
+         * Latest-frame handoffs between the pipeline stages: camera -> preprocess -> inference -> tracking. Each stage
+         * runs on its own thread and always works on the newest frame, so preprocessing frame N+1 overlaps inference on
+         * frame N and nothing ever backs up
          */
-        private int[] rgbBytes;
+        private final LatestSlot<PipelineFrame> captureSlot = new LatestSlot<PipelineFrame>();
+        private final LatestSlot<PipelineFrame> inferenceSlot = new LatestSlot<PipelineFrame>();
+        private final LatestSlot<PipelineFrame> trackingSlot = new LatestSlot<PipelineFrame>();
+
+        private Thread preprocessThread = null;
+        private Thread inferenceThread = null;
+        private Thread trackingThread = null;
 
         /**
-         * A ByteArray to save image data in YUV format
+         * Per-stage timings, logged every PIPELINE_REPORT_EVERY tracked frames. Latency is camera callback to tracking done
          */
-        private byte[][] yuvBytes = new byte[3][];  //???
+        private final StageStats preprocessStats = new StageStats("preprocess");
+        private final StageStats inferenceStats = new StageStats("inference");
+        private final StageStats trackingStats = new StageStats("tracking");
+        private final StageStats latencyStats = new StageStats("latency");
+        private final int PIPELINE_REPORT_EVERY = 100;
+
+        /**
+         * Finer-grained timings inside the stages, plus camera rate and the governor's target, for the HUD and the relay
+         */
+        private final Counter cameraFrames = MetricsRegistry.get().counter("camera");
+        private final Histogram yuvHistogram = MetricsRegistry.get().histogram("yuv");
+        private final Histogram scaleHistogram = MetricsRegistry.get().histogram("crop+scale");
+        private final Histogram flowHistogram = MetricsRegistry.get().histogram("flow");
+        private final Histogram poseHistogram = MetricsRegistry.get().histogram("pose solve");
+        private final Gauge targetHzGauge = MetricsRegistry.get().gauge("target hz");
+        private final Gauge distSdGauge = MetricsRegistry.get().gauge("dist sd cm");
+
+        /**
+         * How often the inference stage reads the battery for the governor, and how many tracked frames between motion updates
+         */
+        private final long BATTERY_SAMPLE_NANOS = 2000000000L;
+        private long lastBatterySampleNanos = 0;
+        private final int MOTION_UPDATE_EVERY = 5;
+
+        //last backend config asked of the engine this session, inference thread only
+        private BackendConfig requestedConfig = null;
+
+        //carries keypoints between Posenet keyframes when USE_FLOW_TRACKING is on. Preprocess thread, apart from seed()
+        //combines the distance and centering cues with USE_MEASUREMENT_FUSION on
+        private final MeasurementFusion fusion = new MeasurementFusion();
+
+        private final FlowKeypointTracker flowTracker = new FlowKeypointTracker(PosenetModel.NUM_KEYPOINTS,
+                FLOW_KEYFRAME_INTERVAL, (float) minConfidence);
+        private long lastKeyframeNanos = 0;
+
+        //raw keypoints of this session when RECORD_KEYPOINTS is on, written by the tracking thread
+        private volatile KeypointLog keypointLog = null;
+
+        //holds Posenet to its schedule while PROFILE_POWER is on, null once the profile is done. Its thread samples
+        //battery and thermal zones
+        private volatile PowerProfiler powerProfiler = null;
+        private Thread profilerThread = null;
 
         /**
          * An additional thread for running tasks that shouldn't block the UI.
@@ -413,40 +605,23 @@ public class PosenetStats {
 
         float noseDeltaX, noseDeltaY;
 
-        //declare global matrix containing my model 3D coordinates of human pose, to be used for camera pose estimation
-        private Point3[] humanModelRaw = new Point3[6];
-        private List<Point3> humanModelList = new ArrayList<Point3>();
-        private MatOfPoint3f humanModelMat;
-
-        //declare global matrix containing the actual 2D coordinates of the human found
+        //declare global matrix containing the actual 2D coordinates of the human found. Each slot is either null or its
+        //Point in humanActualPoints, which getTrackingInformation() overwrites every frame
         private Point[] humanActualRaw = new Point[6];
+        private final Point[] humanActualPoints = {new Point(), new Point(), new Point(), new Point(), new Point(), new Point()};
 
-        //used for bounding box points
-        private Point[] boundingBox = new Point[4];
-
-        private List<Point> humanActualList = new ArrayList<Point>();
-        private MatOfPoint2f humanActualMat;
-
-        //matrices to be used for pose estimation calculation
-        private Mat cameraMatrix, rotationMat, translationMat;
+        //camera intrinsics for HeadPoseSolver. Allocated once per session in allocateCameraMats() and released in
+        //stopPipeline()
+        private Mat cameraMatrix;
         private MatOfDouble distortionMat;
 
-        Point3[] testPts = new Point3[3];
-        List<Point3> testPtList = new ArrayList<Point3>();
+        //made on the tracking thread the first time there's a pose to solve, once the preview size is known
+        private HeadPoseSolver poseSolver;
 
         private int capture = 0;
 
-        //which direction the person is looking (split at exactly perp to camera)
-        private int looking;
-
-        //declare floats for computing actual 2D dist found between nose and eyes and shoulders
-        //this lets us deduce whether the person is looking left or rt (we need to swap axes)
-        private float distToLeftEyeX, distToRightEyeX, distToLeftShouldX, distToRtShouldX;
-
-        //float for finding center of human bust (pt between shoulders) in 2D coordinates, used as "origin" for drawing
-        private float torsoCtrX, torsoCtrY;
-
-        private Point torsoCenter;
+        //this frame's raw measurements for the calibrator, NaN for what wasn't found. Tracking thread
+        private double frameEyePixels, frameTorsoAngle, frameFaceAngle, frameBbOffset;
 
         /**
          * [CameraDevice.StateCallback] is called when [CameraDevice] changes its state.
@@ -503,7 +678,8 @@ public class PosenetStats {
         private void createCameraPreviewSession() {
             try {
                 // We capture images from preview in YUV format.
-                imageReader = ImageReader.newInstance(previewSize.getWidth(), previewSize.getHeight(), ImageFormat.YUV_420_888, 2);
+                //3 buffers: one being converted by the preprocess stage, one waiting in captureSlot, one for the camera to fill
+                imageReader = ImageReader.newInstance(previewSize.getWidth(), previewSize.getHeight(), ImageFormat.YUV_420_888, 3);
 
                 imageReader.setOnImageAvailableListener(new imageAvailableListener(), backgroundHandler);
 
@@ -565,26 +741,6 @@ public class PosenetStats {
             }
         }
 
-        /**
-         * Fill the yuvBytes with data from image planes.
-         */
-        private void fillBytes(Image.Plane[] planes, byte[][] yuvBytes) {
-            // Row stride is the total number of bytes occupied in memory by a row of an image.
-            // Because of the variable row stride it's not possible to know in
-            // advance the actual necessary dimensions of the yuv planes.
-            for (int i = 0; i < planes.length; i++) {
-                ByteBuffer buffer = planes[i].getBuffer();
-
-                //create new byte array in yuvBytes the size of this plane
-                if (yuvBytes[i] == null) {
-                    yuvBytes[i] = new byte[(buffer.capacity())];
-                }
-
-                //store the raw ByteBuffer of the plane at this location in yuvBytes 2D array
-                buffer.get(yuvBytes[i]);
-            }
-        }
-
         /**
          * Starts a background thread and its [Handler].
          */
@@ -625,6 +781,9 @@ public class PosenetStats {
                 //clear background thread vars
                 backgroundThread = null;
                 backgroundHandler = null;
+
+                //no more frames coming, let the conversion workers go
+                yuvConverter.close();
             }
             catch (InterruptedException e) {
                 Log.e(TAG, e.toString());
@@ -638,8 +797,6 @@ public class PosenetStats {
         private class imageAvailableListener implements ImageReader.OnImageAvailableListener {
             @Override
             public void onImageAvailable(ImageReader imageReader) {
-                Log.i(TAG, "onImageAvailable");
-
                 /*
                 int temp = thermal.getBattTemp();
                 Log.i(TAG, "Batter ytemp is " + temp);*/
@@ -654,138 +811,535 @@ public class PosenetStats {
                 if (image == null) {
                     return;
                 }
+                cameraFrames.increment();
 
-                //get the planes from the image
-                Image.Plane[] planes = image.getPlanes();
+                //nothing else happens on the camera thread: hand the image to the preprocess stage and get out of the way.
+                //If it hasn't picked up the last one yet, that one is stale now, so give its buffer back to the camera
+                PipelineFrame dropped = captureSlot.offer(new PipelineFrame(image, System.nanoTime()));
+                if (dropped != null) {
+                    dropped.image.close();
+                }
+            }
+        }
 
-                //put all planes data into 2D byte array called yuvBytes
-                fillBytes(planes, yuvBytes);
+        /**
+         * One frame on its way through the pipeline. Each stage fills in its part and passes it on.
+         */
+        private class PipelineFrame {
+            //camera stage: held open until preprocess has converted it
+            Image image;
 
-                //get first plane
-                Image.Plane copy = planes[0];
+            //preprocess stage: cropped and scaled to the model's input size
+            Bitmap modelBitmap;
 
-                //get raw bytes from incoming 2d image
-                ByteBuffer byteBuffer = copy.getBuffer();
+            //inference stage
+            final Pose pose = new Pose(PosenetModel.NUM_KEYPOINTS);
 
-                //create new array of raw bytes of the appropriate size (remaining)
-                byte[] buffer = new byte[byteBuffer.remaining()];
+            //when the camera handed us the frame, for end-to-end latency
+            final long capturedNanos;
 
-                //store the ByteBuffer in the raw byte array (the pixels from first plane of image)
-                byteBuffer.get(buffer);
+            PipelineFrame(Image image, long capturedNanos) {
+                this.image = image;
+                this.capturedNanos = capturedNanos;
+            }
+        }
 
-                //instantiate new Matrix object to hold the image pixels
-                Mat imageGrab = new Mat();
+        /**
+         * Start the preprocess, inference and tracking threads. The camera callback feeds the first one.
+         */
+        private void startPipeline() {
+            keypointFilter.setMinScore((float) minConfidence);
+            keypointFilter.reset();
+            flowTracker.reset();
 
-                //put all of the bytes into the Mat
-                imageGrab.put(0, 0, buffer);
+            if (RECORD_KEYPOINTS) {
+                startKeypointLog();
+            }
+
+            if (PROFILE_POWER) {
+                startPowerProfile();
+            }
 
-                ImageUtils imageUtils = new ImageUtils();
+            preprocessThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        PipelineFrame frame;
+                        while ((frame = captureSlot.take()) != null) {
+                            long start = System.nanoTime();
+
+                            //the profile's idle step measures the phone with the camera running and nothing else
+                            PowerProfiler.Step step = profileStep(start);
+                            if (step != null && step.isIdle()) {
+                                frame.image.close();
+                                continue;
+                            }
 
-                //convert the three planes into single int array called rgbBytes
-                imageUtils.convertYUV420ToARGB8888(yuvBytes[0], yuvBytes[1], yuvBytes[2], previewWidth, previewHeight,
-                        /*yRowStride=*/ image.getPlanes()[0].getRowStride(),
-                        /*uvRowStride=*/ image.getPlanes()[1].getRowStride(),
-                        /*uvPixelStride=*/ image.getPlanes()[1].getPixelStride(),
-                        rgbBytes //an int[]
-                );
+                            //every frame gets flowed, and the governor's rate only applies to the keyframes
+                            if (USE_FLOW_TRACKING) {
+                                preprocessFlowFrame(frame);
+                                preprocessStats.record(System.nanoTime() - start);
+                                continue;
+                            }
 
-                // Create bitmap from int array
-                Bitmap imageBitmap = Bitmap.createBitmap(rgbBytes, previewWidth, previewHeight, Bitmap.Config.ARGB_8888);
+                            preprocessFrame(frame);
+                            preprocessStats.record(System.nanoTime() - start);
 
-                /*
-                // Create rotated version (FOR PORTRAIT DISPLAY)
-                Matrix rotateMatrix = new Matrix();
-                rotateMatrix.postRotate(90.0f);
+                            //inference still busy with an older frame? This one replaces it
+                            inferenceSlot.offer(frame);
 
-                Bitmap rotatedBitmap = Bitmap.createBitmap(imageBitmap, 0, 0, previewWidth, previewHeight, rotateMatrix, true);*/
-                image.close();
+                            //rest until the governor wants another frame. Meanwhile the camera keeps replacing whatever is
+                            //waiting in captureSlot, so skipped frames cost nothing past the camera callback
+                            long wait = start + getPeriodNanos(System.nanoTime()) - System.nanoTime();
+                            if (wait > 0) {
+                                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                            }
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, "PosenetPreprocess");
 
-                //testing convert bitmap to OpenCV Mat
-                Mat testMat = new Mat();
+            inferenceThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        PipelineFrame frame;
+                        while ((frame = inferenceSlot.take()) != null) {
+                            updatePosenet();
 
-                org.opencv.android.Utils.bitmapToMat(imageBitmap, testMat);
+                            long start = System.nanoTime();
 
-                /*
-                //save the final rotated 480 x 640 bitmap
-                if (capture == 0) {
-                        Log.i(TAG, "Writing image");
-                        Imgcodecs.imwrite("/data/data/weiner.noah.noshake.posenet.test/testCapture.jpg", testMat);
-                }*/
+                            //Perform inference. No pose (no backend, or the run failed) just drops the frame, the next one
+                            //tries again
+                            if (!posenetEngine.estimate(frame.modelBitmap, frame.pose)) {
+                                continue;
+                            }
 
-                Log.i(TAG, String.format("Focal length found is %d", testMat.cols()));
+                            long end = System.nanoTime();
+                            inferenceStats.record(end - start);
+                            governor.onInference(posenetEngine.getLastInferenceConfig(), posenetEngine.getLastInferenceTimeNanos(), end);
+                            targetHzGauge.set(governor.getTargetHz());
 
-                //set up the intrinsic camera matrix and initialize the world-to-camera translation and rotation matrices
-                makeCameraMat();
+                            PowerProfiler profiler = powerProfiler;
+                            if (profiler != null) {
+                                profiler.onInference(posenetEngine.getLastInferenceConfig(), posenetEngine.getLastInferenceTimeNanos(), end);
+                            }
 
-                //send the final bitmap to be drawn on and output to the screen
-                processImage(imageBitmap);
+                            if (end - lastBatterySampleNanos >= BATTERY_SAMPLE_NANOS) {
+                                governor.onBattery(battery.getBattCurrent(), battery.getBattVoltage(), end);
+                                lastBatterySampleNanos = end;
+                            }
+
+                            //with flow tracking the pose reaches tracking through the flow, on the next camera frame
+                            if (USE_FLOW_TRACKING) {
+                                flowTracker.seed(frame.capturedNanos, frame.pose);
+                            }
+                            else {
+                                trackingSlot.offer(frame);
+                            }
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, "PosenetInference");
+
+            trackingThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        PipelineFrame frame;
+                        while ((frame = trackingSlot.take()) != null) {
+                            long start = System.nanoTime();
+
+                            if (keypointLog != null) {
+                                writeKeypoints(frame);
+                            }
+
+                            //smooth out Posenet's frame-to-frame jitter before it turns into distance and angle noise
+                            keypointFilter.filter(frame.pose, frame.capturedNanos);
+
+                            getTrackingInformation(frame.pose);
+
+                            long end = System.nanoTime();
+                            trackingStats.record(end - start);
+                            latencyStats.record(end - frame.capturedNanos);
+
+                            if (trackingStats.getCount() % MOTION_UPDATE_EVERY == 0) {
+                                governor.onMotion(velocityOrNaN(getXVel()), velocityOrNaN(getYVel()), velocityOrNaN(getAngVel()), end);
+                            }
+
+                            if (trackingStats.getCount() % PIPELINE_REPORT_EVERY == 0) {
+                                logPipelineStats();
+                            }
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, "PosenetTracking");
+
+            preprocessThread.start();
+            inferenceThread.start();
+            trackingThread.start();
+        }
+
+        /**
+         * Stop the stage threads and give back any image they were holding. Must run before the ImageReader is closed.
+         */
+        private void stopPipeline() {
+            PipelineFrame left = captureSlot.close();
+            if (left != null) {
+                left.image.close();
+            }
+            inferenceSlot.close();
+            trackingSlot.close();
+
+            joinQuietly(preprocessThread);
+            joinQuietly(inferenceThread);
+            joinQuietly(trackingThread);
+
+            preprocessThread = inferenceThread = trackingThread = null;
+
+            //nothing uses them once the tracking thread is gone
+            releaseCameraMats();
+            flowTracker.release();
+
+            if (USE_FLOW_TRACKING) {
+                Log.i(TAG, "Flow tracking: " + flowTracker);
+            }
+
+            if (keypointLog != null) {
+                try {
+                    keypointLog.close();
+                }
+                catch (IOException e) {
+                    Log.e(TAG, "Closing keypoint log: " + e.toString());
+                }
+                keypointLog = null;
             }
+
+            if (profilerThread != null) {
+                profilerThread.interrupt();
+                joinQuietly(profilerThread);
+                profilerThread = null;
+            }
+            powerProfiler = null;
         }
 
-        private void makeCameraMat() {
-            // Camera internals
-            double focal_length_x = 526.69; // Approximate focal length, found from OpenCV chessboard calibration
-            double focal_length_y = 540.36;
+        private void startKeypointLog() {
+            String fileName = "keypoints_" + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date()) + ".csv";
+            File file = new File(mainActivity.getExternalFilesDir(null), fileName);
 
-            //center of image plane
-            Point center = new Point(313.07, 238.39);
+            try {
+                keypointLog = new KeypointLog(file);
+                Log.i(TAG, "Recording keypoints to " + file.getAbsolutePath());
+            }
+            catch (IOException e) {
+                Log.e(TAG, "Couldn't open keypoint log: " + e.toString());
+            }
+        }
 
-            //Log.i(TAG, String.format("Center at %f, %f", center.x, center.y));
+        //tracking thread only. A failed write stops the recording, not the tracking
+        private void writeKeypoints(PipelineFrame frame) {
+            try {
+                keypointLog.write(frame.capturedNanos, frame.pose);
+            }
+            catch (IOException e) {
+                Log.e(TAG, "Keypoint log write failed, no longer recording: " + e.toString());
+                try {
+                    keypointLog.close();
+                }
+                catch (IOException ignored) {
+                }
+                keypointLog = null;
+            }
+        }
 
-            //create a 3x3 camera (intrinsic params) matrix
-            cameraMatrix = Mat.eye(3, 3, CvType.CV_64F);
+        /**
+         * Start stepping through the power profile: every config the governor might use (the selector's pick, its best
+         * CPU config, and that with the governor's hot thread count) at every rate. A thread samples battery and the
+         * zone groups every PROFILE_SAMPLE_NANOS, and writes the report once the last step is done.
+         */
+        private void startPowerProfile() {
+            List<BackendConfig> configs = new ArrayList<BackendConfig>();
+            BackendConfig[] candidates = {posenetEngine.getBest(), posenetEngine.getBestCpu(),
+                    posenetEngine.getBestCpu().withThreads(Math.min(2, posenetEngine.getBestCpu().threads))};
+            for (BackendConfig config : candidates) {
+                if (!configs.contains(config)) {
+                    configs.add(config);
+                }
+            }
 
-            double[] vals = {focal_length_x, 0, center.x, 0, focal_length_y, center.y, 0, 0, 1};
+            final PowerProfiler profiler = new PowerProfiler(configs, PROFILE_RATES_HZ, PowerProfiler.DEFAULT_GROUPS,
+                    PROFILE_DWELL_NANOS, PROFILE_SETTLE_NANOS);
+            Log.i(TAG, String.format(Locale.US, "Power profile of %s at %s Hz, %.1f min", configs,
+                    Arrays.toString(PROFILE_RATES_HZ), profiler.getDurationNanos() / 60e9));
 
-            //populate the 3x3 camera matrix
-            cameraMatrix.put(0, 0, vals);
+            profilerThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    File root = new File("/sys/class/thermal/");
+                    SysfsSampler sampler = new SysfsSampler(root);
+
+                    //only the grouped zones matter here, the rest (and the trip points) get read once a step
+                    ThermalZones zones = new ThermalZones(root, sampler, PROFILE_SAMPLE_NANOS, PROFILE_DWELL_NANOS,
+                            PowerProfiler.DEFAULT_GROUPS);
+                    int[][] members = PowerProfiler.findGroups(zones, PowerProfiler.DEFAULT_GROUPS);
+                    long[] temps = new long[members.length];
+
+                    profiler.start(System.nanoTime());
+                    powerProfiler = profiler;
+
+                    try {
+                        long now;
+                        while (!profiler.isDone(now = System.nanoTime())) {
+                            profiler.onPower(battery.getBattCurrent(), battery.getBattVoltage(), now);
+
+                            sampler.sample(now);
+                            PowerProfiler.readGroups(zones, members, temps);
+                            profiler.onTemps(temps, now);
+
+                            Thread.sleep(PROFILE_SAMPLE_NANOS / 1000000);
+                        }
+                        writePowerReport(profiler);
+                    }
+                    catch (InterruptedException e) {
+                        Log.i(TAG, "Power profile stopped early");
+                    }
+                    finally {
+                        sampler.close();
+
+                        //back to the governor
+                        powerProfiler = null;
+                    }
+                }
+            }, "PowerProfiler");
+            profilerThread.start();
+        }
+
+        private void writePowerReport(PowerProfiler profiler) {
+            String report = profiler.report();
+            for (String line : report.split("\n")) {
+                Log.i(TAG, line);
+            }
+
+            String name = "power_" + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+            File dir = mainActivity.getExternalFilesDir(null);
+            try {
+                Writer out = new BufferedWriter(new FileWriter(new File(dir, name + ".txt")));
+                try {
+                    out.write(report);
+                }
+                finally {
+                    out.close();
+                }
+
+                out = new BufferedWriter(new FileWriter(new File(dir, name + ".csv")));
+                try {
+                    profiler.writeCsv(out);
+                }
+                finally {
+                    out.close();
+                }
+                Log.i(TAG, "Power profile saved to " + new File(dir, name + ".txt").getAbsolutePath());
+            }
+            catch (IOException e) {
+                Log.e(TAG, "Couldn't save power profile: " + e.toString());
+            }
+        }
+
+        //the profile's step while one is running, else null
+        private PowerProfiler.Step profileStep(long nowNanos) {
+            PowerProfiler profiler = powerProfiler;
+            return profiler == null ? null : profiler.getStep(nowNanos);
+        }
+
+        //between Posenet frames: the profile's rate while it runs, otherwise the governor's
+        private long getPeriodNanos(long nowNanos) {
+            PowerProfiler.Step step = profileStep(nowNanos);
+            if (step != null && !step.isIdle()) {
+                return 1000000000L / step.hz;
+            }
+            return governor.getPeriodNanos(nowNanos);
+        }
+
+        private void joinQuietly(Thread thread) {
+            if (thread == null) {
+                return;
+            }
+
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                Log.e(TAG, e.toString());
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void logPipelineStats() {
+            Log.i(TAG, "Pipeline " + preprocessStats.report() + ", " + inferenceStats.report() + ", " + trackingStats.report() +
+                    ", " + latencyStats.report() + String.format(Locale.US, "; dropped %d before preprocess, %d before inference, " +
+                    "%d before tracking", captureSlot.getDropped(), inferenceSlot.getDropped(), trackingSlot.getDropped()) +
+                    "; " + MatCounter.report(trackingStats.getCount()));
+            Log.i(TAG, "Governor " + governor);
+        }
+
+        /**
+         * Rebuild Posenet if the governor has moved us to another backend config. The engine builds and warms up the new
+         * one on its own thread, ahead of the next frame. Only asks once per change, in case the engine can't build it
+         * and falls back.
+         */
+        private void updatePosenet() {
+            PowerProfiler.Step step = profileStep(System.nanoTime());
+            BackendConfig wanted = step != null && !step.isIdle() ? step.config : governor.getConfig();
+
+            if (wanted.equals(requestedConfig) || (requestedConfig == null && wanted.equals(posenetEngine.getConfig()))) {
+                return;
+            }
+
+            Log.i(TAG, "Switching Posenet to " + wanted + ": " + governor);
+            posenetEngine.reconfigure(wanted);
+            requestedConfig = wanted;
+        }
+
+        //the velocity buffers return -100000 until they have two readings
+        private double velocityOrNaN(float velocity) {
+            return velocity == -100000 ? Double.NaN : velocity;
+        }
+
+        /**
+         * Preprocess stage: YUV to ARGB, then crop and scale to the model's input. Closes the frame's image.
+         */
+        private void preprocessFrame(PipelineFrame frame) {
+            Image image = frame.image;
+
+            //get the planes from the image
+            Image.Plane[] planes = image.getPlanes();
+
+            //wrap the planes without copying them. Anything that only needs brightness should read cameraFrame.getYPlane()
+            //here, before the image is closed, and never touch the color conversion
+            cameraFrame.set(planes[0].getBuffer(), planes[1].getBuffer(), planes[2].getBuffer(), previewWidth, previewHeight,
+                    planes[0].getRowStride(), planes[1].getRowStride(), planes[1].getPixelStride(), image.getTimestamp());
+
+            //Posenet needs color: convert the three planes into a single ARGB int array
+            long start = System.nanoTime();
+            int[] rgbBytes = cameraFrame.getArgb();
+
+            // Create bitmap from int array (copies it, so the frame can go)
+            Bitmap imageBitmap = Bitmap.createBitmap(rgbBytes, previewWidth, previewHeight, Bitmap.Config.ARGB_8888);
+            yuvHistogram.recordSince(start);
 
             /*
-            cameraMatrix.put(0, 0, 400);
-            cameraMatrix.put(1, 1, 400);
-            cameraMatrix.put(0, 2, 640 / 2f);
-            cameraMatrix.put(1, 2, 480 / 2f);
-             */
+            // Create rotated version (FOR PORTRAIT DISPLAY)
+            Matrix rotateMatrix = new Matrix();
+            rotateMatrix.postRotate(90.0f);
 
-            //distortionMat = new MatOfDouble(0,0,0,0);
+            Bitmap rotatedBitmap = Bitmap.createBitmap(imageBitmap, 0, 0, previewWidth, previewHeight, rotateMatrix, true);*/
+            cameraFrame.release();
+            image.close();
+            frame.image = null;
 
             /*
-            cameraMatrix.put(0, 0, 400);
-            cameraMatrix.put(1, 1, 400);
-            cameraMatrix.put(0, 2, 640 / 2f);
-            cameraMatrix.put(1, 2, 480 / 2f);
-             */
+            //testing convert bitmap to OpenCV Mat
+            Mat testMat = new Mat();
+            org.opencv.android.Utils.bitmapToMat(imageBitmap, testMat);
 
-            //assume no camera distortion
-            distortionMat = new MatOfDouble(new Mat(4, 1, CvType.CV_64FC1));
-            distortionMat.put(0, 0, 0);
-            distortionMat.put(1, 0, 0);
-            distortionMat.put(2, 0, 0);
-            distortionMat.put(3, 0, 0);
-
-            //new mat objects to store rotation and translation matrices from camera coords to world coords when solvePnp runs
-            rotationMat = new Mat(1, 3, CvType.CV_64FC1);
-            translationMat = new Mat(1, 3, CvType.CV_64FC1);
-
-            //Hack! initialize transition and rotation matrixes to improve estimation
-            translationMat.put(0, 0, -100);
-            translationMat.put(0, 0, 100);
-            translationMat.put(0, 0, 1000);
-
-            if (distToLeftEyeX < distToRightEyeX) {
-                //looking at left
-                rotationMat.put(0, 0, -1.0);
-                rotationMat.put(1, 0, -0.75);
-                rotationMat.put(2, 0, -3.0);
-                looking = LOOKING_LEFT;
-            } else {
-                //looking at right
-                rotationMat.put(0, 0, 1.0);
-                rotationMat.put(1, 0, -0.75);
-                rotationMat.put(2, 0, -3.0);
-                looking = LOOKING_RIGHT;
+            //save the final rotated 480 x 640 bitmap
+            if (capture == 0) {
+                    Log.i(TAG, "Writing image");
+                    Imgcodecs.imwrite("/data/data/weiner.noah.noshake.posenet.test/testCapture.jpg", testMat);
+            }*/
+
+            start = System.nanoTime();
+            frame.modelBitmap = scaleForModel(imageBitmap);
+            scaleHistogram.recordSince(start);
+        }
+
+        /**
+         * Flow tracking's preprocess: move the tracked keypoints onto this frame and pass them to tracking, and if it's
+         * time for a keyframe also convert the frame for Posenet. Only keyframes pay for the color conversion.
+         */
+        private void preprocessFlowFrame(PipelineFrame frame) {
+            Image image = frame.image;
+            Image.Plane[] planes = image.getPlanes();
+
+            cameraFrame.set(planes[0].getBuffer(), planes[1].getBuffer(), planes[2].getBuffer(), previewWidth, previewHeight,
+                    planes[0].getRowStride(), planes[1].getRowStride(), planes[1].getPixelStride(), image.getTimestamp());
+
+            //no more often than the governor's (or the profile's) rate, however badly the flow wants one
+            boolean keyframe = flowTracker.wantsKeyframe() &&
+                    frame.capturedNanos - lastKeyframeNanos >= getPeriodNanos(frame.capturedNanos);
+
+            //a keyframe's own PipelineFrame goes to inference, so its flowed pose needs another one
+            PipelineFrame flowed = keyframe ? new PipelineFrame(null, frame.capturedNanos) : frame;
+            long start = System.nanoTime();
+            boolean tracked = flowTracker.update(cameraFrame, flowed.pose);
+            flowHistogram.recordSince(start);
+
+            Bitmap imageBitmap = null;
+            if (keyframe) {
+                flowTracker.markKeyframe(frame.capturedNanos);
+                lastKeyframeNanos = frame.capturedNanos;
+                start = System.nanoTime();
+                imageBitmap = Bitmap.createBitmap(cameraFrame.getArgb(), previewWidth, previewHeight, Bitmap.Config.ARGB_8888);
+                yuvHistogram.recordSince(start);
+            }
+
+            cameraFrame.release();
+            image.close();
+            frame.image = null;
+
+            if (keyframe) {
+                start = System.nanoTime();
+                frame.modelBitmap = scaleForModel(imageBitmap);
+                scaleHistogram.recordSince(start);
+                inferenceSlot.offer(frame);
             }
+            if (tracked) {
+                trackingSlot.offer(flowed);
+            }
+        }
+
+        /**
+         * Create the camera matrix and distortion coefficients HeadPoseSolver works with, once per session. Before
+         * startPipeline()
+         */
+        private void allocateCameraMats() {
+            // Camera internals
+            double focal_length_x = Constants.CAMERA_FOCAL_X; // Approximate focal length, found from OpenCV chessboard calibration
+            double focal_length_y = Constants.CAMERA_FOCAL_Y;
+
+            //center of image plane
+            Point center = new Point(Constants.CAMERA_CENTER_X, Constants.CAMERA_CENTER_Y);
+
+            //create a 3x3 camera (intrinsic params) matrix
+            cameraMatrix = MatCounter.created(Mat.eye(3, 3, CvType.CV_64F));
+
+            double[] vals = {focal_length_x, 0, center.x, 0, focal_length_y, center.y, 0, 0, 1};
+
+            //populate the 3x3 camera matrix
+            cameraMatrix.put(0, 0, vals);
 
+            //assume no camera distortion
+            distortionMat = MatCounter.created(new MatOfDouble(0, 0, 0, 0));
+        }
+
+        private void releaseCameraMats() {
+            MatCounter.release(cameraMatrix);
+            MatCounter.release(distortionMat);
+            if (poseSolver != null) {
+                poseSolver.release();
+                poseSolver = null;
+            }
+            cameraMatrix = null;
+            distortionMat = null;
         }
 
         /**
@@ -816,11 +1370,10 @@ public class PosenetStats {
                 croppedBitmap = Bitmap.createBitmap(bitmap, (int) (cropWidth / 2), 0, (int) (bitmap.getWidth() - cropWidth), bitmap.getHeight());
             }
 
+            /*
             Mat croppedImage = new Mat();
-
             org.opencv.android.Utils.bitmapToMat(croppedBitmap, croppedImage);
 
-            /*
             if (capture == 0) {
                     Log.i(TAG, "Writing cropped image");
                     Imgcodecs.imwrite("/data/data/weiner.noah.noshake.posenet.test/testCaptureCropped.jpg", croppedImage);
@@ -830,23 +1383,20 @@ public class PosenetStats {
         }
 
 
-        //Process image using Posenet library. The image needs to be scaled in order to fit Posenet's input dimension requirements of
+        //Prepare image for the Posenet library. The image needs to be scaled in order to fit Posenet's input dimension requirements of
         //257 x 257 (defined in Constants.java), and probably needs to be cropped in order to preserve the image's aspect ratio
-        private void processImage(Bitmap bitmap) {
+        private Bitmap scaleForModel(Bitmap bitmap) {
             // Crop bitmap.
             Bitmap croppedBitmap = cropBitmap(bitmap);
 
-            Mat scaledImage = new Mat();
-
-            Log.i(TAG, String.valueOf(croppedBitmap.getConfig()));
-
             // Created scaled version of bitmap for model input (scales it to 257 x 257)
             Bitmap scaledBitmap = Bitmap.createScaledBitmap(croppedBitmap, Constants.MODEL_WIDTH, Constants.MODEL_HEIGHT, true);
 
+            /*
             //get bitmap from mat
+            Mat scaledImage = new Mat();
             org.opencv.android.Utils.bitmapToMat(scaledBitmap, scaledImage);
 
-            /*
             //save the scaled down bitmap of the first image taken (as a jpg)
             if (capture == 0) {
                     capture = 1;
@@ -854,12 +1404,8 @@ public class PosenetStats {
                     Imgcodecs.imwrite("/data/data/weiner.noah.noshake.posenet.test/testCaptureScaled0.jpg", scaledImage);
             }*/
 
-            //Perform inference.
-            Person person = posenet.estimateSinglePose(scaledBitmap);
-
-            getTrackingInformation(person, scaledBitmap);
-
-            //displacementOnly(person, canvas);
+            //inference and tracking happen on their own threads, see startPipeline()
+            return scaledBitmap;
         }
 
         private int noseFound = 0;
@@ -871,116 +1417,66 @@ public class PosenetStats {
         //the Canvas class holds the draw() calls. To draw something, you need 4 basic components: A Bitmap to hold the pixels,
         // a Canvas to host the draw calls (writing into the bitmap),
         // a drawing primitive (e.g. Rect, Path, text, Bitmap), and a paint (to describe the colors and styles for the drawing).
-        private void getTrackingInformation(Person person, Bitmap bitmap) { //NOTE: the Bitmap passed here is 257x257 pixels, good for Posenet model
+        private void getTrackingInformation(Pose pose) { //NOTE: keypoints are in the 257x257 model input's pixels, good for Posenet model
             //Draw `bitmap` and `person` in square canvas.
             int screenWidth, screenHeight, left, right, top, bottom, canvasHeight, canvasWidth;
 
-            //initialize right and left eye found flags to false
-            int rightEyeFound = 0, leftEyeFound = 0;
-
-            humanActualRaw[0] = humanActualRaw[1] = humanActualRaw[2] = humanActualRaw[3] = humanActualRaw[4] = humanActualRaw[5] = null;
+            frameEyePixels = frameTorsoAngle = frameFaceAngle = frameBbOffset = Double.NaN;
 
             //initialize angle calculated correctly to false?
             //angleCalculatedCorrectly = false;
 
-            float xValue, yValue, xVel, yVel;
+            float xVel, yVel;
             float dist = 0;
 
             double bbox_center = 0;
 
-            BodyPart currentPart;
-            Position leftEye = null, rightEye = null;
-
-
-            int bmWidth = bitmap.getWidth(); //should be 257
-            int bmHeight = bitmap.getHeight(); //should be 257
-
-            Log.i(TAG, String.format("Bitmap width and height are %d and %d", bmWidth, bmHeight)); //should be 257x257
-
-
-            //get the keypoints list ONCE at the beginning
-            List<KeyPoint> keyPoints = person.getKeyPoints();
-
-            //Log.d(TAG, String.format("Found %d keypoints for the person", keyPoints.size()));
-
-            //Process keypoints of the person's body
-            for (KeyPoint keyPoint : keyPoints) {
-                //get the body part ONCE at the beginning
-                currentPart = keyPoint.getBodyPart();
-
-                //make sure we're confident enough about where this posenet pose is to display it
-                if (keyPoint.getScore() > minConfidence) {
-                    Position position = keyPoint.getPosition();
-                    xValue = (float) position.getX();
-                    yValue = (float) position.getY();
 
+            //flow-tracked frames don't have a model bitmap, so go by the model's input size
+            int bmWidth = Constants.MODEL_WIDTH;
+            int bmHeight = Constants.MODEL_HEIGHT;
 
-                    //I'll start by just using the person's nose to try to estimate how fast the phone is moving
-                    if (currentPart == BodyPart.NOSE) {
-                        //add nose to first slot of Point array for pose estimation
-                        humanActualRaw[0] = new Point(xValue, yValue);
-                        humanActualRaw[1] = new Point(xValue, yValue);
 
-                    } else if (currentPart == BodyPart.LEFT_EYE) {
-                        //add nose to first slot of Point array for pose estimation
-                        humanActualRaw[2] = new Point(xValue, yValue);
+            //pick the keypoints we need straight out of the pose by index, as long as we're confident enough about
+            //where they are. Nose in the first two slots of the Point array for pose estimation, then left eye, right
+            //eye, right shoulder, left shoulder
+            humanActualRaw[0] = keypoint(pose, Pose.NOSE, 0);
+            humanActualRaw[1] = keypoint(pose, Pose.NOSE, 1);
+            humanActualRaw[2] = keypoint(pose, Pose.LEFT_EYE, 2);
+            humanActualRaw[3] = keypoint(pose, Pose.RIGHT_EYE, 3);
+            humanActualRaw[4] = keypoint(pose, Pose.RIGHT_SHOULDER, 4);
+            humanActualRaw[5] = keypoint(pose, Pose.LEFT_SHOULDER, 5);
 
-                        //add x val of left eye to bbox array
-                        boundingBox[1] = new Point(xValue, yValue);
-
-                        leftEyeFound = 1;
-                        leftEye = new Position(xValue, yValue);
-
-                        //if we've also already found right eye, we have both eyes. Send data to the scale computer
-                        if (rightEyeFound == 1) {
-                            bothEyesFound = true;
-                            dist = computeScale(leftEye, rightEye);
-                            dist_to_hum.set(dist);
-
-                            //add dist to human to the circular buffer
-                            xVelBuffer.put(dist, SystemClock.elapsedRealtimeNanos());
-
-                            Log.i(TAG, "Dist to hum is " + dist_to_hum.get());
-                        }
-                    } else if (currentPart == BodyPart.RIGHT_EYE) {
-                        //add nose to first slot of Point array for pose estimation
-                        humanActualRaw[3] = new Point(xValue, yValue);
-
-                        //add x val of rt eye to bbox array
-                        boundingBox[0] = new Point(xValue, yValue);
-
-                        rightEyeFound = 1;
-                        rightEye = new Position(xValue, yValue);
-
-                        //if we've also already found left eye, we have both eyes. Send data to the scale computer
-                        if (leftEyeFound == 1) {
-                            bothEyesFound = true;
-                            dist = computeScale(leftEye, rightEye);
-                            dist_to_hum.set(dist);
+            //check whether both left and right eyes were in the frame, and set bothEyesFound accordingly
+            bothEyesFound = humanActualRaw[2] != null && humanActualRaw[3] != null;
+            distFound = bothEyesFound;
 
-                            //add dist to human to the circular buffer
-                            xVelBuffer.put(dist, SystemClock.elapsedRealtimeNanos());
+            //if we have both eyes, send data to the scale computer
+            if (bothEyesFound) {
+                dist = computeScale(pose.x[Pose.LEFT_EYE], pose.x[Pose.RIGHT_EYE]);
+            }
 
-                            Log.i(TAG, "Dist to hum is " + dist_to_hum.get());
-                        }
+            //with the nose, eyes and shoulders all found, get distance, angle and offset from one pose solve. Without
+            //them, or if the solve fails, they come from the pupillary distance and the shoulder/eye ratios
+            boolean poseSolved = USE_POSE_SOLVER && solvePose();
 
-                    } else if (currentPart == BodyPart.RIGHT_SHOULDER) {
-                        //add rt shoulder to fifth slot of Point array for pose estimation
-                        humanActualRaw[4] = new Point(xValue, yValue);
+            if (USE_MEASUREMENT_FUSION) {
+                //with last frame's angle for the pivot correction, like computeScale
+                fusion.fuse(pose, calibration, angleCalculatedCorrectly ? hum_angle.get() : Double.NaN);
+                applyFusedDistance(poseSolved);
+            }
+            else if (bothEyesFound) {
+                if (poseSolved) {
+                    dist = (float) poseSolver.getDistance();
+                }
+                dist_to_hum.set(dist);
 
-                        boundingBox[2] = new Point(xValue, yValue);
-                    } else if (currentPart == BodyPart.LEFT_SHOULDER) {
-                        //add left shoulder to sixth slot of Point array for pose estimation
-                        humanActualRaw[5] = new Point(xValue, yValue);
+                //add dist to human to the circular buffer
+                xVelBuffer.put(dist, SystemClock.elapsedRealtimeNanos());
 
-                        boundingBox[3] = new Point(xValue, yValue);
-                    }
-                }
+                Log.i(TAG, "Dist to hum is " + dist_to_hum.get());
             }
 
-            //check whether both left and right eyes were in the frame, and set bothEyesFound accordingly
-            bothEyesFound = (rightEyeFound & leftEyeFound) == 1;
-
             //notify HumanFollower that there's new distance data available
             caller.onNewDistanceData();
             caller.setFreshDist(true);
@@ -999,22 +1495,30 @@ public class PosenetStats {
                 Log.i(TAG, "Posenet: human torso ratio " + hum_tilt_ratio.get());
 
                 //get raw torso angle and adjust it based on camera location
-                double human_angle_raw = getHumAngleFromTorsoRatio(hum_tilt_ratio.get());
+                double human_angle_raw = poseSolved ? poseSolver.getYawDegrees() : getHumAngleFromTorsoRatio(hum_tilt_ratio.get());
 
                 //the angle couldn't be calculated correctly
                 if (human_angle_raw == -10000) {
                     angleCalculatedCorrectly = false;
                 }
                 else {
+                    if (!poseSolved) {
+                        frameTorsoAngle = human_angle_raw;
+                    }
+
+                    //the solve's yaw needs no correction, the torso offsets are the shoulder/eye ratio's bias
+                    if (poseSolved) {
+                        adjusted_hum_ang_raw = (float) human_angle_raw;
+                    }
                     //negative means turning right
-                    if (human_angle_raw < 0) {
-                        adjusted_hum_ang_raw = (float) human_angle_raw + Constants.angleCalibrationAdjustmentRight;
+                    else if (human_angle_raw < 0) {
+                        adjusted_hum_ang_raw = (float) human_angle_raw + calibration.torsoRight;
                         //positive means turning left
 
                         //add curr angle to circular buff
                     }
                     else {
-                        adjusted_hum_ang_raw = (float) human_angle_raw - Constants.angleCalibrationAdjustmentLeft;
+                        adjusted_hum_ang_raw = (float) human_angle_raw - calibration.torsoLeft;
 
                         //add curr angle to circular buff
                     }
@@ -1054,14 +1558,16 @@ public class PosenetStats {
                     angleCalculatedCorrectly = false;
                 }
                 else {
+                    frameFaceAngle = human_angle_raw;
+
                     //negative means turning right
                     if (human_angle_raw < 0) {
-                        adjusted_hum_ang_raw = (float) human_angle_raw + Constants.angleCalibrationAdjustmentFaceRight;
+                        adjusted_hum_ang_raw = (float) human_angle_raw + calibration.faceRight;
 
                         //positive means turning left
                     }
                     else {
-                        adjusted_hum_ang_raw = (float) human_angle_raw - Constants.angleCalibrationAdjustmentFaceLeft;
+                        adjusted_hum_ang_raw = (float) human_angle_raw - calibration.faceLeft;
 
                     }
                     hum_angle.set(adjusted_hum_ang_raw);
@@ -1087,8 +1593,12 @@ public class PosenetStats {
             caller.setFreshAngle(true);
 
 
+            if (USE_MEASUREMENT_FUSION) {
+                applyFusedOffset(poseSolved);
+            }
+
             //check that all of the keypoints for a human body bust area were found
-            if (humanActualRaw[0] != null && humanActualRaw[1] != null && humanActualRaw[2] != null && humanActualRaw[3] != null
+            else if (humanActualRaw[0] != null && humanActualRaw[1] != null && humanActualRaw[2] != null && humanActualRaw[3] != null
                     && humanActualRaw[4] != null && humanActualRaw[5] != null) {
                 //BOUNDING BOX
                 //top is aligned with uppermost eye
@@ -1111,37 +1621,13 @@ public class PosenetStats {
 
                 //save bounding box's offset from center of frame into the bb_off_center AtomicFloat
                 bb_off_center.set(offset);
+                frameBbOffset = offset;
 
-                //this one is in pixels
-                yVelBuffer.put(offset * mPerPixel.get(), SystemClock.elapsedRealtimeNanos());
+                //this one is in meters
+                yVelBuffer.put(poseSolved ? (float) poseSolver.getLateralOffset() : offset * mPerPixel.get(),
+                        SystemClock.elapsedRealtimeNanos());
 
                 bbOffCenterCalculatedCorrectly = true;
-
-
-                //IF USING SOLVEPNP
-                /*
-                distToLeftEyeX = (float) Math.abs(humanActualRaw[2].x - humanActualRaw[0].x);
-                distToRightEyeX = (float) Math.abs(humanActualRaw[3].x - humanActualRaw[0].x);
-
-                distToLeftEyeX = (float) Math.abs(humanActualRaw[5].x - humanActualRaw[0].x);
-                distToRightEyeX = (float) Math.abs(humanActualRaw[4].x - humanActualRaw[0].x);
-
-
-                //correction for axis flipping
-                if (distToLeftEyeX > distToRightEyeX) {
-                    //person looking towards left, swap left eye and rt eye for actual
-                    Point temp = humanActualRaw[2];
-                    humanActualRaw[2] = humanActualRaw[3];
-                    humanActualRaw[3] = temp;
-                }
-
-                //correction for axis flipping
-                if (distToLeftShouldX < distToRtShouldX) {
-                    //person looking towards left, swap left eye and rt eye for actual
-                    Point temp = humanActualRaw[5];
-                    humanActualRaw[5] = humanActualRaw[4];
-                    humanActualRaw[4] = temp;
-                }*/
             }
             //otherwise maybe we have the two eyes, so can calculate a center offset with just those
             else if (humanActualRaw[2] != null && humanActualRaw[3] != null) {
@@ -1154,6 +1640,7 @@ public class PosenetStats {
 
                 //save bounding box's offset from center of frame into the bb_off_center AtomicFloat
                 bb_off_center.set(offset);
+                frameBbOffset = offset;
 
                 yVelBuffer.put(offset * mPerPixel.get(), SystemClock.elapsedRealtimeNanos());
 
@@ -1168,226 +1655,126 @@ public class PosenetStats {
             //notify HumanFollower of new bb center offset data available
             caller.setFreshBbCenterOffset(true);
 
+            Calibrator currentCalibrator = calibrator;
+            if (currentCalibrator != null) {
+                currentCalibrator.onFrame(System.nanoTime(), frameEyePixels, frameTorsoAngle, frameFaceAngle, frameBbOffset);
+            }
+        }
 
-                //HARDCODED, FIXME
-                /*
-                //find chest pt (midpt between shoulders)
-                torsoCtrX = (float) (humanActualRaw[4].x + humanActualRaw[5].x) / 2;
-                torsoCtrY = (float) (humanActualRaw[4].y + humanActualRaw[5].y) / 2;
-
-                torsoCenter = new Point(torsoCtrX, torsoCtrY);
-                //torsoCenter = new Point((rt_should.x + left_should.x)/2, (rt_should.y + left_should.y)/2);
-                //humanActualRaw[0] = torsoCenter;
-
-                //clear out the ArrayList
-                humanActualList.clear();
-
-                //compute pose estimation and draw line coming out of person's chest
-
-                //add the pts of interest to a list
-                humanActualList.add(humanActualRaw[0]);
-                humanActualList.add(humanActualRaw[1]);
-                humanActualList.add(humanActualRaw[2]);
-                humanActualList.add(humanActualRaw[3]);
-                humanActualList.add(humanActualRaw[4]);
-                humanActualList.add(humanActualRaw[5]);
-
-                Log.i(TAG, String.format("Human actual: [%f,%f], [%f,%f], [%f,%f], [%f,%f], [%f,%f], [%f, %f]",
-                        humanActualList.get(0).x,
-                        humanActualList.get(0).y,
-                        humanActualList.get(1).x,
-                        humanActualList.get(1).y,
-                        humanActualList.get(2).x,
-                        humanActualList.get(2).y,
-                        humanActualList.get(3).x,
-                        humanActualList.get(3).y,
-                        humanActualList.get(4).x,
-                        humanActualList.get(4).y,
-                        humanActualList.get(5).x,
-                        humanActualList.get(5).y));
-
-                humanActualMat.fromList(humanActualList);
-
-                //now should have everything we need to run solvePnP
-
-                //solve for translation and rotation matrices based on a model of 3d pts for human bust area
-                Calib3d.solvePnP(humanModelMat, humanActualMat, cameraMatrix, distortionMat, rotationMat, translationMat);
-
-                //Now we'll try projecting our 3D axes onto the image plane
-                MatOfPoint3f testPtMat = new MatOfPoint3f();
-                testPtMat.fromList(testPtList);
-
-                //the 2d pts that correspond to the 3d pts above. Will be filled upon return of projectPoints()
-                MatOfPoint2f imagePts = new MatOfPoint2f();
-
-                //project our basic x-y-z axis from the world coordinate system onto the camera coord system using rot and trans mats we solved
-                Calib3d.projectPoints(testPtMat, rotationMat, translationMat, cameraMatrix, distortionMat, imagePts);
-
-                //imagePts now contains 3 2D coordinates which correspond to ends of the 3D axes
-
-                Log.i(TAG, String.format("Resulting imagepts Mat is of size %d x %d", imagePts.rows(), imagePts.cols()));
-
-                //extract the 3 2D coordinates for drawing the 3D axes
-                double[] x_ax = imagePts.get(0, 0);
-                double[] y_ax = imagePts.get(1, 0);
-                double[] z_ax = imagePts.get(2, 0);
-
-
-                Log.i(TAG, String.format("Found point %f, %f for x axis", x_ax[0], x_ax[1]));
-                Log.i(TAG, String.format("Found point %f, %f for y axis", y_ax[0], y_ax[1]));
-                Log.i(TAG, String.format("Found point %f, %f for z axis", z_ax[0], z_ax[1]));
-
-
-                //filter out the weird bogus data I was getting
-                if (!(x_ax[0] > 2500 || x_ax[1] > 1400 || y_ax[0] > 1500 || y_ax[1] < -1000 || z_ax[0] > 1500 || z_ax[1] < -900
-                        //check for illogical axes layout
-                        || (looking == LOOKING_LEFT && z_ax[0] < y_ax[0]) || (looking == LOOKING_RIGHT && z_ax[0] > y_ax[0]))) {
-
-
-                    //estimate angles for yaw and pitch of the human's upper body
-
-                    //Mat eulerAngles = new Mat();
-
-                    //THIS FXN DOESN'T WORK RIGHT NOW
-                    //getEulerAngles(eulerAngles);
-
-                    Log.i(TAG, "z ax[0] is " + z_ax[0]);
-                    Log.i(TAG, "torsoCenter.x is ");
-                    //we know length of z axis to be 81.25. Let's find length of 'opposite' side of the rt triangle so that we can use sine to find angle
-                    float lenOpposite = (float) z_ax[0] - (float) torsoCenter.x;
-                    Log.i(TAG, "Len opposite is " + lenOpposite);
-
-                    float humAngle = getHumAnglesTrig(lenOpposite, 135f); //81.25?
-
-                    hum_angle.set(humAngle);
-
-                    //check to see if the human angle calculated successfully (90 or -90 almost always indicates corruption)
-                    angleCalculatedCorrectly = (humAngle != -90f && humAngle != 90f);
-
-                    //notify HumanFollower of new angle data available
-                    caller.setFreshAngle(true);
+        //this frame's fused distance, or the pose solver's with the fused variance. Tracking thread
+        private void applyFusedDistance(boolean poseSolved) {
+            distFound = fusion.hasDistance();
+            if (!distFound) {
+                Log.i(TAG, "Posenet: no distance cue found");
+                return;
+            }
 
-                    Log.i(TAG, "Human angle is " + humAngle + " degrees");
+            float dist = poseSolved ? (float) poseSolver.getDistance() : (float) fusion.getDistance();
+            dist_to_hum.set(dist);
+            dist_variance.set((float) fusion.getDistanceVariance());
+            distSdGauge.set(100 * Math.sqrt(fusion.getDistanceVariance()));
 
-                    //Log.i(TAG, String.format("Euler angles mat is of size %d x %d", eulerAngles.rows(), eulerAngles.cols()));
+            //meters per pixel in the plane of the person's face
+            mPerPixel.set(dist / calibration.focalLength);
+            frameEyePixels = fusion.getEyePixels();
 
-                    //pitch, yaw, roll
-                    //double[] angles = eulerAngles.get(0,0);
+            //add dist to human to the circular buffer
+            xVelBuffer.put(dist, SystemClock.elapsedRealtimeNanos());
 
-                    double[] pitch = rotationMat.get(0, 0);
-                    double[] yaw = rotationMat.get(1, 0);
+            Log.i(TAG, String.format(Locale.US, "Posenet: fused dist %.2fm, sd %.2fm (eyes %.2f, shoulders %.2f, nose %.2f, " +
+                    "torso %.2f, body %.2f)", dist, Math.sqrt(fusion.getDistanceVariance()),
+                    fusion.getDistanceCue(MeasurementFusion.CUE_EYES), fusion.getDistanceCue(MeasurementFusion.CUE_SHOULDERS),
+                    fusion.getDistanceCue(MeasurementFusion.CUE_NOSE), fusion.getDistanceCue(MeasurementFusion.CUE_TORSO),
+                    fusion.getDistanceCue(MeasurementFusion.CUE_BODY)));
+        }
 
-                } else {
-                    Log.i(TAG, "Something preventing angle data calculation");
-                }
+        //this frame's fused center offset. Tracking thread
+        private void applyFusedOffset(boolean poseSolved) {
+            bbOffCenterCalculatedCorrectly = fusion.hasOffset();
+            if (!bbOffCenterCalculatedCorrectly) {
+                Log.i(TAG, "Posenet: UNABLE to calculate bounding box center offset!!");
+                return;
             }
 
-            //reset contents of the arrays
+            float offset = (float) fusion.getOffset();
+            bb_off_center.set(offset);
+            bb_off_center_variance.set((float) fusion.getOffsetVariance());
+            frameBbOffset = offset;
 
-            humanActualRaw[0] = humanActualRaw[1] = humanActualRaw[2] = humanActualRaw[3] = humanActualRaw[4] = null;
+            //this one is in meters
+            yVelBuffer.put(poseSolved ? (float) poseSolver.getLateralOffset() : offset * mPerPixel.get(),
+                    SystemClock.elapsedRealtimeNanos());
+        }
 
-            //increment framecounter, if at 4 set to 0
-            frameCounter++;
-            if (frameCounter == 4) {
-                frameCounter = 0;
-            }*/
+        //slot's Point set to the keypoint's position, or null if Posenet isn't confident enough about it. Tracking thread
+        private Point keypoint(Pose pose, int part, int slot) {
+            if (!(pose.scores[part] > minConfidence)) {
+                return null;
+            }
+            Point point = humanActualPoints[slot];
+            point.x = pose.x[part];
+            point.y = pose.y[part];
+            return point;
         }
 
-        private float getHumAnglesTrig(float opp, float hyp) {
-            Log.i(TAG, "opp/hyp is " + (opp / hyp));
+        //solve the pose from this frame's nose, eyes and shoulders, in the session's preallocated Mats. Tracking thread
+        private boolean solvePose() {
+            if (humanActualRaw[0] == null || humanActualRaw[2] == null || humanActualRaw[3] == null ||
+                    humanActualRaw[4] == null || humanActualRaw[5] == null) {
+                return false;
+            }
 
-            float ratio = opp / hyp;
+            //a new calibration brings a new PD, and the model is scaled to it
+            if (poseSolver != null && poseSolver.getPd() != calibration.pd) {
+                poseSolver.release();
+                poseSolver = null;
+            }
+            if (poseSolver == null) {
+                poseSolver = new HeadPoseSolver(cameraMatrix, distortionMat, previewWidth, previewHeight, calibration.pd);
+            }
 
-            if (ratio <= -1)
-                return -90f;
-            else if (ratio >= 1)
-                return 90f;
+            long start = System.nanoTime();
+            boolean solved = poseSolver.solve(humanActualRaw[0], humanActualRaw[2], humanActualRaw[3], humanActualRaw[4],
+                    humanActualRaw[5]);
+            poseHistogram.recordSince(start);
 
-            return (float) Math.toDegrees(Math.asin(ratio));
+            if (solved) {
+                Log.i(TAG, String.format(Locale.US, "Posenet: pose solve %.2fm, %.1f deg, %.3fm lateral (%.1fpx error)",
+                        poseSolver.getDistance(), poseSolver.getYawDegrees(), poseSolver.getLateralOffset(),
+                        poseSolver.getError()));
+            }
+            else {
+                Log.i(TAG, "Posenet: pose solve failed, falling back to ratios");
+            }
+            return solved;
         }
 
-        //used trig to derive basic function of human's pivot angle on left:right ratio of shoulder-eye distances
+        //used trig to derive basic function of human's pivot angle on left:right ratio of shoulder-eye distances, looked up
+        //from AngleTables. -10000 if the ratio isn't a number (an eye or shoulder at the same x as the other)
         private double getHumAngleFromTorsoRatio(float ratio) {
-            float infinity = Float.POSITIVE_INFINITY;
-            float nan = infinity - infinity;
-            float neg_infinity = infinity * -1;
-
-            if (ratio > neg_infinity && ratio < infinity && ratio != nan) {
-                //angle is 0 if ratio exactly 1
-                if (ratio == 1)
-                    return 0;
-
-                final double v = (Math.sqrt(2f) * Math.sqrt((29257f * ratio * ratio) + (2736f * ratio) + 29257f)) / (167f * ratio - 167f);
-                if (ratio >= -1f) {
-                    return Math.toDegrees((
-                            -2f * Math.atan(
-                                    -v +
-                                            (175 * ratio / (167 * ratio - 167)) +
-                                            (175 / (167 * ratio - 167))
-                            )
-                    ));
-                }
-
-                else {
-                    return Math.toDegrees((
-                            -2f * Math.atan(
-                                    v +
-                                            (175 * ratio / (167 * ratio - 167)) +
-                                            (175 / (167 * ratio - 167))
-                            )
-                    ));
-                }
+            if (Float.isNaN(ratio) || Float.isInfinite(ratio)) {
+                return -10000;
             }
-            return -10000;
+            return AngleTables.torsoAngle(ratio);
         }
 
         private double getHumAngleFromFaceRatio(float ratio) {
-            float infinity = Float.POSITIVE_INFINITY;
-            float nan = infinity - infinity;
-            float neg_infinity = infinity * -1;
-
-            if (ratio > neg_infinity && ratio < infinity && ratio != nan) {
-                //angle is 0 if ratio exactly 1
-                if (ratio == 1)
-                    return 0;
-
-                final double v = Math.sqrt( (4594 * ratio * ratio) - (6688 * ratio) + 4594) ;
-
-                if (ratio >= -1f) {
-                    return Math.toDegrees((
-                            -2f * Math.atan(
-                                    (-v + (25 * ratio) + 25
-                                    ) /
-                                            ( 63 * (ratio - 1) )
-
-                            )
-                    ));
-                }
-
-                else {
-                    return Math.toDegrees((
-                            -2f * Math.atan(
-                                    (v + (25 * ratio) + 25
-                                    ) /
-                                            ( 63 * (ratio - 1) )
-
-                            )
-                    ));
-                }
+            if (Float.isNaN(ratio) || Float.isInfinite(ratio)) {
+                return -10000;
             }
-            return -10000;
+            return AngleTables.faceAngle(ratio);
         }
 
         //compute how much distance each pixel currently represents in real life, using known data about avg human pupillary distance
-        private float computeScale(Position leftEye, Position rightEye) {
+        private float computeScale(float leftEyeX, float rightEyeX) {
             //I'll just use the x distance between left eye and right eye points to get distance in pixels between eyes
             //don't forget left eye is on the right and vice versa
-            float pixelDistance = leftEye.getX() - rightEye.getX();
+            float pixelDistance = leftEyeX - rightEyeX;
 
             Log.d(TAG, String.format("Pupillary distance in pixels: %f", pixelDistance));
 
             //now we want to find out how many real meters each pixel on the display corresponds to
-            float scale = Constants.PD / pixelDistance;
+            float scale = calibration.pd / pixelDistance;
             //how many real-world meters each pixel in the camera image represents
 
             Log.d(TAG, String.format("Each pixel on the screen represents %f meters in real life in plane of person's face", scale));
@@ -1405,50 +1792,29 @@ public class PosenetStats {
             //D = (W * F) / P, where d = distance to hum, W = width of obj in real world coordinate frame, F = focal len of camera,
             //P = distance between eyes in pixels
 
-            float curr_hum_angle_radians = (float)Math.toRadians(hum_angle.get());
+            float curr_hum_angle = hum_angle.get();
 
             float apparent_pd_shrink_from_pivot = 0;
 
             //if human turned to right, correct some for camera location
-            if (curr_hum_angle_radians < 0)
+            if (curr_hum_angle < 0)
                 pixelDistance += 5;
 
             //work in the angle: negative angle means person rotating rt from their perspective
             //pos angle means person rotating left form their POV
             if (getHumAngle() != -1.0f) {
-
-
-                //find how far the eyes have displaced due to the human's current pivot angle
-                float rt_eye_new_x_coord = (float)
-                                //new x coordinate of right eye due to pivoting
-                                ( (-0.0315 * Math.cos(curr_hum_angle_radians)) + (0.0875 * Math.sin(curr_hum_angle_radians)) );
-
-                float rt_eye_disp_due_to_pivot = (float) Math.abs(rt_eye_new_x_coord -
-                        //original x coordinate of right eye
-                        (-.0315));
-
-
-                //find how far the eyes have displaced due to the human's current pivot angle
-                float left_eye_new_x_coord = (float)
-                                //new x coordinate of left eye due to pivoting
-                                ( (0.0315 * Math.cos(curr_hum_angle_radians)) + (0.0875 * Math.sin(curr_hum_angle_radians)) );
-
-                float left_eye_disp_due_to_pivot = (float) Math.abs(left_eye_new_x_coord -
-                //original x coordinate of left eye
-                (.0315));
-
-                Log.i("TORSO_DBUG", "Posenet: rt eye new x coord is " + rt_eye_new_x_coord + ", left eye new x coord is " + left_eye_new_x_coord);
-                Log.i(TAG, "Posenet: rt eye disp is " + rt_eye_disp_due_to_pivot + ", left eye disp is " + left_eye_disp_due_to_pivot);
-
-                //find how much the actual distance would have appeared to shrink in real life (in meters). WAS .063
-                //this is the difference in displacements
-                apparent_pd_shrink_from_pivot = Math.abs(left_eye_disp_due_to_pivot - rt_eye_disp_due_to_pivot);
+                //find how much the actual distance would have appeared to shrink in real life (in meters), from how far
+                //each eye has moved across due to the human's current pivot angle
+                apparent_pd_shrink_from_pivot = AngleTables.pivotShrink(curr_hum_angle);
 
                 Log.i("TORSO DBUG", "Apparent pd shrink from pivot is " + apparent_pd_shrink_from_pivot);
             }
 
+            frameEyePixels = pixelDistance;
+
             //find distance to human in meters, subtracting
-            return (Constants.PD - (apparent_pd_shrink_from_pivot * Constants.PIVOT_WEIGHT)) * Constants.focalLenExp / pixelDistance;
+            CalibrationProfile profile = calibration;
+            return (profile.pd - (apparent_pd_shrink_from_pivot * profile.pivotWeight)) * profile.focalLength / pixelDistance;
         }
 
 
@@ -1502,7 +1868,7 @@ public class PosenetStats {
 
                     previewSize = new Size(PREVIEW_WIDTH, PREVIEW_HEIGHT);
 
-                    imageReader = ImageReader.newInstance(PREVIEW_WIDTH, PREVIEW_HEIGHT, ImageFormat.YUV_420_888, 2);
+                    //the ImageReader is made in createCameraPreviewSession(), a second one here would leak its buffers
 
                     try {
                         //get current orientation of camera sensor
@@ -1515,8 +1881,6 @@ public class PosenetStats {
                     previewHeight = previewSize.getHeight();
                     previewWidth = previewSize.getWidth();
 
-                    rgbBytes = new int[previewWidth * previewHeight];
-
                     flashSupported = cameraCharacteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
 
                     this.cameraId = cameraId;
@@ -1623,50 +1987,11 @@ public class PosenetStats {
 
             startBackgroundThread();
 
+            allocateCameraMats();
 
-            //get the Mats created AFTER OpenCV was loaded successfully
-            humanModelMat = mainActivity.getHumanModelMat();
-            humanActualMat = mainActivity.getHumanActualMat();
-
-
-            //these are the 3d pts we'd like to draw: essentially projecting a 3D axis magnitude 1000 onto 2D image in middle of person's chest
-            testPts[0] = new Point3(1000.0, -1087.5, -918.75);
-            testPts[1] = new Point3(0, 2087.5, -918.75);
-            testPts[2] = new Point3(0, -1087.5, 81.25);
-
-            testPtList.add(testPts[0]);
-            testPtList.add(testPts[1]);
-            testPtList.add(testPts[2]);
-
-            /*
-            //populate the 3D human model
-            humanModelRaw[0] = new Point3(0.0f, 0.0f, 0.0f); //nose
-            humanModelRaw[1] = new Point3(0.0f, 0.0f, 0.0f); //nose again
-            humanModelRaw[2] = new Point3(-215.0f, 170.0f, -135.0f); //left eye ctr WAS -150
-            humanModelRaw[3] = new Point3(215.0f, 170.0f, -135.0f); //rt eye ctr
-
-            //humanModelRaw[3] = new Point3(450.0f, -700.0f, -600.0f); //rt shoulder
-            //humanModelRaw[4] = new Point3(-450.0f, -700.0f, -600.0f); //left shoulder
-             */
-
-
-            //from real measured coords
-            humanModelRaw[0] = new Point3(0.0f, 0.0f, 0.0f); //nose
-            humanModelRaw[1] = new Point3(0.0f, 0.0f, 0.0f); //nose
-            humanModelRaw[2] = new Point3(-225.0f, 318.75f, -262.5f); //left eye ctr
-            humanModelRaw[3] = new Point3(225.0f, 318.75f, -262.5f); //right eye ctr WAS -150
-            humanModelRaw[4] = new Point3(-871.875f, -1087.5f, -918.75f); //rt shoulder 450, -700, -600
-            humanModelRaw[5] = new Point3(871.875f, -1087.5f, -918.75f); //left shoulder -450, -700, -600
-
-            //push all of the model coordinates into the ArrayList version so they can be converted to a MatofPoint3f
-            humanModelList.add(humanModelRaw[0]);
-            humanModelList.add(humanModelRaw[1]);
-            humanModelList.add(humanModelRaw[2]);
-            humanModelList.add(humanModelRaw[3]);
-            humanModelList.add(humanModelRaw[4]);
-            humanModelList.add(humanModelRaw[5]);
-
-            humanModelMat.fromList(humanModelList);
+            //preprocess, inference and tracking threads, fed by the camera callback on the background thread. Started after
+            //everything above is set up, so the tracking thread sees the camera Mats
+            startPipeline();
 
             showToast("PosenetStatsLiveFeed calling openCamera()!");
             openCamera();
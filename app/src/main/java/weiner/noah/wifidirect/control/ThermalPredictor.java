@@ -0,0 +1,309 @@
+package weiner.noah.wifidirect.control;
+
+import java.util.Locale;
+
+/**
+ * Forecasts how long until the phone throttles and until it hits THERMAL_STATUS_EMERGENCY at the current workload, from
+ * the fast sysfs zone temps, so HumanFollower can back off or land while there's still time to do it calmly. PowerManager's
+ * status on its own only says where the phone is, not where it's heading.
+ *
+ * Each zone gets its own trend: an exponentially weighted least squares line through its temps, weighted over the last
+ * {@link #TREND_TAU_S} or so. A zone throttles when it reaches its trip point plus a throttle margin, and the phone gets
+ * to EMERGENCY when a zone reaches its trip point plus an emergency margin. The time to each is the soonest over all
+ * zones, extrapolating each zone's line. Real heating slows down as the phone nears equilibrium, and the line is fit to
+ * the recent past, so the forecast errs early rather than late.
+ *
+ * The margins start out as defaults and are learned from PowerManager: when the status first reaches
+ * {@link #THROTTLE_STATUS} or {@link #EMERGENCY_STATUS}, the hottest zone's excess over its trip point at that moment
+ * becomes the margin for that status.
+ *
+ * Extrapolating a line that's mostly sensor noise can say anything, so {@link #isEmergencyForecastConfident()} tells
+ * whether the limiting zone is heating clearly faster than its temps scatter about its line.
+ *
+ * A zone without a trip point, or already over it on its first reading, is ignored. Its trip point can't be a limit
+ * we're heading for.
+ *
+ * Plain Java, fed samples with their timestamps, so recorded traces can be replayed through it (pctool's
+ * ThermalForecastReplay). Safe to call from any thread.
+ */
+public class ThermalPredictor {
+    //PowerManager.THERMAL_STATUS_MODERATE and THERMAL_STATUS_EMERGENCY
+    public static final int THROTTLE_STATUS = 2;
+    public static final int EMERGENCY_STATUS = 5;
+
+    //what the forecast says when a zone isn't heading for its limit
+    public static final double NEVER = Double.POSITIVE_INFINITY;
+
+    //how far back the trend looks, how much of it a zone needs before it counts, and the slowest heating that counts as
+    //heading anywhere (0.12C a minute)
+    static final double TREND_TAU_S = 60;
+    private static final double MIN_HISTORY_S = 15;
+    private static final double MIN_SLOPE_C_PER_S = 0.002;
+
+    //a slope within this many standard errors of flat could be noise
+    private static final double MIN_SLOPE_T = 3;
+
+    //margins over the trip point until PowerManager tells us better. An unlearned emergency margin stays at least this
+    //far over the throttle one
+    private static final double DEFAULT_THROTTLE_MARGIN_C = 0;
+    private static final double DEFAULT_EMERGENCY_MARGIN_C = 10;
+    private static final double EMERGENCY_OVER_THROTTLE_C = 5;
+
+    private final String[] names;
+
+    //per zone: weighted sums for the trend line, time in seconds since the first sample and temp in C
+    private final double[] s0;
+    private final double[] st;
+    private final double[] sy;
+    private final double[] stt;
+    private final double[] sty;
+    private final double[] syy;
+    private final double[] lastT;
+    private final double[] firstT;
+    private final double[] tripC;
+    private final boolean[] seen;
+    private final boolean[] ignored;
+
+    private long originNanos = -1;
+    private double nowT = 0;
+
+    //set by soonest()
+    private int soonestZone = -1;
+
+    private double throttleMarginC = DEFAULT_THROTTLE_MARGIN_C;
+    private double emergencyMarginC = DEFAULT_EMERGENCY_MARGIN_C;
+    private boolean throttleLearned = false;
+    private boolean emergencyLearned = false;
+    private int status = 0;
+
+    /**
+     * @param names the zones, in the order their temps and trip points will be passed to {@link #onSample}
+     */
+    public ThermalPredictor(String[] names) {
+        this.names = names;
+        int count = names.length;
+        s0 = new double[count];
+        st = new double[count];
+        sy = new double[count];
+        stt = new double[count];
+        sty = new double[count];
+        syy = new double[count];
+        lastT = new double[count];
+        firstT = new double[count];
+        tripC = new double[count];
+        seen = new boolean[count];
+        ignored = new boolean[count];
+    }
+
+    /**
+     * A reading of every zone, in millidegrees. Long.MIN_VALUE (SysfsSampler.MISSING) for anything that couldn't be read.
+     */
+    public synchronized void onSample(long[] tempsMilliC, long[] tripsMilliC, long nowNanos) {
+        if (originNanos < 0) {
+            originNanos = nowNanos;
+        }
+        double t = (nowNanos - originNanos) / 1e9;
+        nowT = Math.max(nowT, t);
+
+        for (int zone = 0; zone < names.length; zone++) {
+            if (ignored[zone] || tempsMilliC[zone] == Long.MIN_VALUE) {
+                continue;
+            }
+
+            double c = tempsMilliC[zone] / 1000.0;
+            if (tripsMilliC[zone] != Long.MIN_VALUE && tripsMilliC[zone] > 0) {
+                tripC[zone] = tripsMilliC[zone] / 1000.0;
+            }
+
+            if (!seen[zone]) {
+                if (tripC[zone] <= 0 || c >= tripC[zone]) {
+                    ignored[zone] = true;
+                    continue;
+                }
+                seen[zone] = true;
+                firstT[zone] = t;
+                lastT[zone] = t;
+            }
+
+            //older samples fade out with the time since the last one
+            double decay = Math.exp(-(t - lastT[zone]) / TREND_TAU_S);
+            s0[zone] = s0[zone] * decay + 1;
+            st[zone] = st[zone] * decay + t;
+            sy[zone] = sy[zone] * decay + c;
+            stt[zone] = stt[zone] * decay + t * t;
+            sty[zone] = sty[zone] * decay + t * c;
+            syy[zone] = syy[zone] * decay + c * c;
+            lastT[zone] = t;
+        }
+    }
+
+    /**
+     * New status from PowerManager. The first time it reaches throttling or emergency, that's where the limit is.
+     */
+    public synchronized void onThermalStatus(int newStatus, long nowNanos) {
+        if (newStatus >= THROTTLE_STATUS && status < THROTTLE_STATUS) {
+            double excess = hottestExcess();
+            if (!Double.isNaN(excess)) {
+                throttleMarginC = excess;
+                throttleLearned = true;
+            }
+        }
+        if (newStatus >= EMERGENCY_STATUS && status < EMERGENCY_STATUS) {
+            double excess = hottestExcess();
+            if (!Double.isNaN(excess)) {
+                emergencyMarginC = excess;
+                emergencyLearned = true;
+            }
+        }
+        if (!emergencyLearned) {
+            emergencyMarginC = Math.max(DEFAULT_EMERGENCY_MARGIN_C, throttleMarginC + EMERGENCY_OVER_THROTTLE_C);
+        }
+        status = newStatus;
+    }
+
+    //lock must be held. Whether the zone has enough history to have a trend
+    private boolean hasTrend(int zone) {
+        return seen[zone] && lastT[zone] - firstT[zone] >= MIN_HISTORY_S;
+    }
+
+    //lock must be held. C per second
+    private double slope(int zone) {
+        double denominator = s0[zone] * stt[zone] - st[zone] * st[zone];
+        if (denominator <= 0) {
+            return 0;
+        }
+        return (s0[zone] * sty[zone] - st[zone] * sy[zone]) / denominator;
+    }
+
+    //lock must be held. Standard error of the slope, from how far the temps scatter about the line. Infinite without
+    //enough samples to tell
+    private double slopeError(int zone) {
+        double denominator = s0[zone] * stt[zone] - st[zone] * st[zone];
+        if (denominator <= 0 || s0[zone] <= 2) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double spreadC = syy[zone] - sy[zone] * sy[zone] / s0[zone];
+        double covariance = sty[zone] - st[zone] * sy[zone] / s0[zone];
+        double residuals = Math.max(0, spreadC - slope(zone) * covariance);
+        return Math.sqrt(residuals / (s0[zone] - 2) * s0[zone] / denominator);
+    }
+
+    //lock must be held. Where the zone's line is now, which is smoother than its last reading
+    private double level(int zone) {
+        double meanT = st[zone] / s0[zone];
+        double meanC = sy[zone] / s0[zone];
+        return meanC + slope(zone) * (nowT - meanT);
+    }
+
+    //lock must be held. How far the hottest zone is over its trip point, NaN if none has a trend yet
+    private double hottestExcess() {
+        double hottest = Double.NaN;
+        for (int zone = 0; zone < names.length; zone++) {
+            if (hasTrend(zone)) {
+                double excess = level(zone) - tripC[zone];
+                if (Double.isNaN(hottest) || excess > hottest) {
+                    hottest = excess;
+                }
+            }
+        }
+        return hottest;
+    }
+
+    //lock must be held. Seconds until the zone reaches its trip point plus the margin
+    private double secondsTo(int zone, double marginC) {
+        double left = tripC[zone] + marginC - level(zone);
+        if (left <= 0) {
+            return 0;
+        }
+        double slope = slope(zone);
+        return slope < MIN_SLOPE_C_PER_S ? NEVER : left / slope;
+    }
+
+    //lock must be held. Soonest over the zones, leaving which zone that is in soonestZone
+    private double soonest(double marginC) {
+        double soonest = NEVER;
+        soonestZone = -1;
+        for (int zone = 0; zone < names.length; zone++) {
+            if (!hasTrend(zone)) {
+                continue;
+            }
+            double seconds = secondsTo(zone, marginC);
+            if (seconds < soonest) {
+                soonest = seconds;
+                soonestZone = zone;
+            }
+        }
+        return soonest;
+    }
+
+    /**
+     * Seconds until the phone throttles at this rate of heating, 0 if it already is, {@link #NEVER} if it isn't heading
+     * there (or nothing has a trend yet).
+     */
+    public synchronized double getSecondsToThrottle() {
+        return status >= THROTTLE_STATUS ? 0 : soonest(throttleMarginC);
+    }
+
+    /**
+     * Seconds until THERMAL_STATUS_EMERGENCY at this rate of heating. Same conventions as {@link #getSecondsToThrottle()}.
+     */
+    public synchronized double getSecondsToEmergency() {
+        return status >= EMERGENCY_STATUS ? 0 : soonest(emergencyMarginC);
+    }
+
+    /**
+     * Whether {@link #getSecondsToEmergency()} is worth acting on: PowerManager already said EMERGENCY, the limiting
+     * zone's line is already over the limit, or that zone is heating by at least {@link #MIN_SLOPE_T} standard errors
+     * of its slope. False if nothing is heading there.
+     */
+    public synchronized boolean isEmergencyForecastConfident() {
+        if (status >= EMERGENCY_STATUS) {
+            return true;
+        }
+        double seconds = soonest(emergencyMarginC);
+        if (soonestZone < 0) {
+            return false;
+        }
+        return seconds == 0 || slope(soonestZone) >= MIN_SLOPE_T * slopeError(soonestZone);
+    }
+
+    /**
+     * The zone that will get to EMERGENCY first, null if none is heading there.
+     */
+    public synchronized String getLimitingZone() {
+        soonest(emergencyMarginC);
+        return soonestZone < 0 ? null : names[soonestZone];
+    }
+
+    /**
+     * How fast a zone is heating, C per minute. NaN until it has a trend.
+     */
+    public synchronized double getHeatingPerMinute(int zone) {
+        return hasTrend(zone) ? slope(zone) * 60 : Double.NaN;
+    }
+
+    public synchronized double getThrottleMarginC() {
+        return throttleMarginC;
+    }
+
+    public synchronized double getEmergencyMarginC() {
+        return emergencyMarginC;
+    }
+
+    public synchronized boolean isIgnored(int zone) {
+        return ignored[zone];
+    }
+
+    public int getZoneCount() {
+        return names.length;
+    }
+
+    @Override
+    public synchronized String toString() {
+        double toEmergency = soonest(emergencyMarginC);
+        String limiting = soonestZone < 0 ? "none" : names[soonestZone];
+        return String.format(Locale.US, "%.0fs to throttle, %.0fs to emergency (%s), margins +%.1fC%s / +%.1fC%s",
+                getSecondsToThrottle(), status >= EMERGENCY_STATUS ? 0 : toEmergency, limiting, throttleMarginC,
+                throttleLearned ? " learned" : "", emergencyMarginC, emergencyLearned ? " learned" : "");
+    }
+}
@@ -2,7 +2,23 @@ package weiner.noah.wifidirect.crtp;
 
 public enum Signal {
     START_FOLLOW(1),
-    STOP_FOLLOW(2);
+    STOP_FOLLOW(2),
+    KILL(3),
+
+    //followed by one byte: telemetry rate in Hz, 0 turns it off
+    TELEMETRY(4),
+
+    //ask for the phone's RelaySession (session id and handled frame count), answered with a session frame instead of an ack
+    SESSION(5),
+
+    //followed by a u16 ping seq: echoes one of the phone's heartbeat pings. Seq 0 is a hello that turns pings on
+    HEARTBEAT(6),
+
+    //ask for the phone's stage metrics since the last METRICS on this connection, answered with a metrics frame
+    METRICS(7),
+
+    //from now on, send each relayed ack as RelayProtocol.ACK_RELAYED followed by the drone's reply
+    FRAMED_ACKS(8);
 
     private byte mNumber;
 
@@ -18,4 +34,19 @@ public enum Signal {
     public byte getNumber() {
         return mNumber;
     }
+
+    /**
+     * Get the signal with a specific number.
+     *
+     * @param number the number of the signal
+     * @return the signal or <code>null</code> if no signal with the specified number exists.
+     */
+    public static Signal getByNumber(byte number) {
+        for (Signal s : Signal.values()) {
+            if (s.getNumber() == number) {
+                return s;
+            }
+        }
+        return null;
+    }
 }
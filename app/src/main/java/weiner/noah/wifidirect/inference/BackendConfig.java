@@ -0,0 +1,88 @@
+package weiner.noah.wifidirect.inference;
+
+import java.util.Locale;
+
+/**
+ * Where and how a model runs: which delegate, how many CPU threads, and whether the CPU path uses XNNPACK. Immutable.
+ * Encodes to a short string ("CPU/4/xnnpack", "GPU/4") for SharedPreferences.
+ */
+public final class BackendConfig {
+    public enum Delegate {
+        CPU,
+        GPU,
+        NNAPI
+    }
+
+    public final Delegate delegate;
+    public final int threads;
+    public final boolean xnnpack;
+
+    public BackendConfig(Delegate delegate, int threads, boolean xnnpack) {
+        this.delegate = delegate;
+        this.threads = Math.max(1, threads);
+
+        //XNNPACK is a CPU thing
+        this.xnnpack = delegate == Delegate.CPU && xnnpack;
+    }
+
+    public static BackendConfig cpu(int threads, boolean xnnpack) {
+        return new BackendConfig(Delegate.CPU, threads, xnnpack);
+    }
+
+    /**
+     * Same delegate, different thread count.
+     */
+    public BackendConfig withThreads(int threads) {
+        return threads == this.threads ? this : new BackendConfig(delegate, threads, xnnpack);
+    }
+
+    public String encode() {
+        return delegate + "/" + threads + (xnnpack ? "/xnnpack" : "");
+    }
+
+    /**
+     * @return the config, or null if the string isn't one of ours
+     */
+    public static BackendConfig decode(String encoded) {
+        if (encoded == null) {
+            return null;
+        }
+
+        String[] parts = encoded.split("/");
+        if (parts.length < 2 || parts.length > 3) {
+            return null;
+        }
+
+        try {
+            Delegate delegate = Delegate.valueOf(parts[0]);
+            int threads = Integer.parseInt(parts[1]);
+            boolean xnnpack = parts.length == 3 && parts[2].equals("xnnpack");
+            if (parts.length == 3 && !xnnpack) {
+                return null;
+            }
+            return new BackendConfig(delegate, threads, xnnpack);
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof BackendConfig)) {
+            return false;
+        }
+        BackendConfig other = (BackendConfig) o;
+        return delegate == other.delegate && threads == other.threads && xnnpack == other.xnnpack;
+    }
+
+    @Override
+    public int hashCode() {
+        return (delegate.ordinal() * 31 + threads) * 2 + (xnnpack ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s x%d%s", delegate, threads, xnnpack ? " xnnpack" : "");
+    }
+}
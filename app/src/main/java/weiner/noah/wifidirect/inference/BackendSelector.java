@@ -0,0 +1,220 @@
+package weiner.noah.wifidirect.inference;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Picks the fastest way to run a model on this particular phone, once, and remembers it.
+ *
+ * The first time a model is seen (keyed by whatever identifies it, e.g. file name and size), every candidate config
+ * is built, warmed up and timed on a blank input: CPU at a few thread counts with and without XNNPACK, the GPU
+ * delegate and NNAPI. Candidates that fail to build or run are skipped. Of the rest, the one with the fastest median
+ * wins, as long as it's stable (its 90th percentile within {@link #MAX_P90_OVER_MEDIAN} of the median); a delegate
+ * that's quick on average but stalls now and then is worse for control than a steady slower one. The winner and the
+ * best CPU config (the governor's fallback) are saved to the {@link Store}, and later runs just load them.
+ *
+ * Has to run on the thread that will use the backends, for the GPU delegate's sake. Takes a few seconds.
+ */
+public class BackendSelector {
+    public interface Factory {
+        //build a backend for this config, or throw if this phone can't
+        InferenceBackend create(BackendConfig config) throws Exception;
+    }
+
+    public interface Store {
+        //null if nothing saved
+        String load(String key);
+
+        void save(String key, String value);
+    }
+
+    private static final String KEY_MODEL = "model";
+    private static final String KEY_BEST = "best";
+    private static final String KEY_CPU = "cpu";
+
+    private static final int WARMUP_RUNS = 3;
+    private static final int TIMED_RUNS = 15;
+    private static final double MAX_P90_OVER_MEDIAN = 1.5;
+
+    //what we use if nothing at all works out, e.g. while the benchmark hasn't run
+    public static final BackendConfig DEFAULT_CPU = BackendConfig.cpu(4, false);
+
+    private final Factory factory;
+    private final Store store;
+    private final String modelKey;
+
+    private BackendConfig best = null;
+    private BackendConfig bestCpu = null;
+    private final List<Result> results = new ArrayList<Result>();
+
+    /**
+     * How one candidate did.
+     */
+    public static class Result {
+        public final BackendConfig config;
+        public final long medianNanos;
+        public final long p90Nanos;
+        //null if it ran
+        public final String error;
+
+        Result(BackendConfig config, long medianNanos, long p90Nanos, String error) {
+            this.config = config;
+            this.medianNanos = medianNanos;
+            this.p90Nanos = p90Nanos;
+            this.error = error;
+        }
+
+        public boolean isStable() {
+            return error == null && p90Nanos <= medianNanos * MAX_P90_OVER_MEDIAN;
+        }
+
+        @Override
+        public String toString() {
+            if (error != null) {
+                return config + ": failed (" + error + ")";
+            }
+            return String.format(Locale.US, "%s: median %.1fms, p90 %.1fms%s", config, medianNanos / 1e6, p90Nanos / 1e6,
+                    isStable() ? "" : ", unstable");
+        }
+    }
+
+    public BackendSelector(Factory factory, Store store, String modelKey) {
+        this.factory = factory;
+        this.store = store;
+        this.modelKey = modelKey;
+    }
+
+    /**
+     * What to benchmark on a phone with this many cores.
+     */
+    public static List<BackendConfig> defaultCandidates(int cores) {
+        List<BackendConfig> candidates = new ArrayList<BackendConfig>();
+
+        for (int threads = 1; threads <= Math.min(cores, 4); threads *= 2) {
+            candidates.add(BackendConfig.cpu(threads, false));
+            candidates.add(BackendConfig.cpu(threads, true));
+        }
+        candidates.add(new BackendConfig(BackendConfig.Delegate.GPU, 4, false));
+        candidates.add(new BackendConfig(BackendConfig.Delegate.NNAPI, 4, false));
+        return candidates;
+    }
+
+    /**
+     * Load the saved choice for this model, or benchmark the candidates and save the result.
+     *
+     * @return true if it benchmarked, false if it loaded
+     */
+    public boolean select(List<BackendConfig> candidates) {
+        if (modelKey.equals(store.load(KEY_MODEL))) {
+            BackendConfig savedBest = BackendConfig.decode(store.load(KEY_BEST));
+            BackendConfig savedCpu = BackendConfig.decode(store.load(KEY_CPU));
+
+            if (savedBest != null && savedCpu != null) {
+                best = savedBest;
+                bestCpu = savedCpu;
+                return false;
+            }
+        }
+
+        benchmark(candidates);
+
+        store.save(KEY_BEST, best.encode());
+        store.save(KEY_CPU, bestCpu.encode());
+
+        //last, so a benchmark cut short by the app dying runs again next time
+        store.save(KEY_MODEL, modelKey);
+        return true;
+    }
+
+    /**
+     * Time every candidate and pick, without touching the store.
+     */
+    public void benchmark(List<BackendConfig> candidates) {
+        results.clear();
+        for (BackendConfig config : candidates) {
+            results.add(time(config));
+        }
+
+        best = pick(false);
+        bestCpu = pick(true);
+    }
+
+    private Result time(BackendConfig config) {
+        InferenceBackend backend = null;
+        try {
+            backend = factory.create(config);
+
+            ByteBuffer input = PosenetModel.allocateInput(backend);
+            float[][] outputs = PosenetModel.allocateOutputs(backend);
+
+            for (int i = 0; i < WARMUP_RUNS; i++) {
+                backend.run(input, outputs);
+            }
+
+            long[] nanos = new long[TIMED_RUNS];
+            for (int i = 0; i < TIMED_RUNS; i++) {
+                long start = System.nanoTime();
+                backend.run(input, outputs);
+                nanos[i] = System.nanoTime() - start;
+            }
+            Arrays.sort(nanos);
+
+            return new Result(config, nanos[TIMED_RUNS / 2], nanos[(TIMED_RUNS * 9) / 10], null);
+        }
+        catch (Exception e) {
+            return new Result(config, 0, 0, e.toString());
+        }
+        finally {
+            if (backend != null) {
+                backend.close();
+            }
+        }
+    }
+
+    //fastest stable one, else fastest that ran at all, else the default
+    private BackendConfig pick(boolean cpuOnly) {
+        Result fastestStable = null;
+        Result fastest = null;
+
+        for (Result result : results) {
+            if (result.error != null || (cpuOnly && result.config.delegate != BackendConfig.Delegate.CPU)) {
+                continue;
+            }
+            if (fastest == null || result.medianNanos < fastest.medianNanos) {
+                fastest = result;
+            }
+            if (result.isStable() && (fastestStable == null || result.medianNanos < fastestStable.medianNanos)) {
+                fastestStable = result;
+            }
+        }
+
+        if (fastestStable != null) {
+            return fastestStable.config;
+        }
+        return fastest != null ? fastest.config : DEFAULT_CPU;
+    }
+
+    /**
+     * The config to run on. Only valid after {@link #select} or {@link #benchmark}.
+     */
+    public BackendConfig getBest() {
+        return best;
+    }
+
+    /**
+     * The best CPU-only config, for when the accelerator has to be let go.
+     */
+    public BackendConfig getBestCpu() {
+        return bestCpu;
+    }
+
+    /**
+     * Timings from the last benchmark, empty if the choice was loaded.
+     */
+    public List<Result> getResults() {
+        return results;
+    }
+}
@@ -0,0 +1,137 @@
+package weiner.noah.wifidirect.inference;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stand-in for Posenet on a plain JVM: same tensor shapes, but the outputs encode whatever pose it was last given
+ * with {@link #setPose}, so {@link PosenetModel#decode} should get exactly that pose back. Each run takes as long as
+ * it's told to, give or take some jitter and the odd stall, which is enough to drive {@link BackendSelector} and the inference governor
+ * off the phone.
+ */
+public class FakeBackend implements InferenceBackend {
+    private static final int[] INPUT_SHAPE = {1, 257, 257, 3};
+    private static final int[][] OUTPUT_SHAPES = {{1, 9, 9, 17}, {1, 9, 9, 34}, {1, 9, 9, 32}, {1, 9, 9, 32}};
+
+    //logit everywhere but the keypoint's cell
+    private static final float BACKGROUND = -4f;
+
+    private final BackendConfig config;
+    private final long latencyNanos;
+    private double jitter = 0;
+    private Random random = null;
+    private int stallEvery = 0;
+    private double stallFactor = 1;
+
+    private final int[] poseX = new int[PosenetModel.NUM_KEYPOINTS];
+    private final int[] poseY = new int[PosenetModel.NUM_KEYPOINTS];
+    private float poseScore = 0.9f;
+
+    private long runs = 0;
+
+    public FakeBackend(BackendConfig config, long latencyNanos) {
+        this.config = config;
+        this.latencyNanos = latencyNanos;
+    }
+
+    /**
+     * Spread run times uniformly over +-fraction of the latency.
+     */
+    public void setJitter(double fraction, Random random) {
+        this.jitter = fraction;
+        this.random = random;
+    }
+
+    /**
+     * Make every n-th run take factor times as long, like a delegate that's quick on average but stalls now and then.
+     */
+    public void setStalls(int every, double factor) {
+        this.stallEvery = every;
+        this.stallFactor = factor;
+    }
+
+    /**
+     * The pose the next runs should report, in whole input pixels, with the same score for every keypoint (0-1).
+     */
+    public void setPose(int[] x, int[] y, float score) {
+        System.arraycopy(x, 0, poseX, 0, poseX.length);
+        System.arraycopy(y, 0, poseY, 0, poseY.length);
+        poseScore = score;
+    }
+
+    @Override
+    public BackendConfig getConfig() {
+        return config;
+    }
+
+    @Override
+    public int[] getInputShape() {
+        return INPUT_SHAPE.clone();
+    }
+
+    @Override
+    public int getOutputCount() {
+        return OUTPUT_SHAPES.length;
+    }
+
+    @Override
+    public int[] getOutputShape(int index) {
+        return OUTPUT_SHAPES[index].clone();
+    }
+
+    @Override
+    public void run(ByteBuffer input, float[][] outputs) {
+        long start = System.nanoTime();
+
+        int[] shape = OUTPUT_SHAPES[PosenetModel.HEATMAPS];
+        int height = shape[1];
+        int width = shape[2];
+        int keypoints = shape[3];
+        float[] heatmaps = outputs[PosenetModel.HEATMAPS];
+        float[] offsets = outputs[PosenetModel.OFFSETS];
+
+        Arrays.fill(heatmaps, 0, PosenetModel.elementCount(shape), BACKGROUND);
+        float logit = (float) Math.log(poseScore / (1 - poseScore));
+
+        for (int k = 0; k < keypoints; k++) {
+            //nearest cell, then the offset that lands the decode on the pixel. Decode truncates, so aim half a pixel in
+            int row = cell(poseY[k], height, INPUT_SHAPE[1]);
+            int col = cell(poseX[k], width, INPUT_SHAPE[2]);
+
+            heatmaps[(row * width + col) * keypoints + k] = logit;
+
+            int offsetBase = (row * width + col) * 2 * keypoints;
+            offsets[offsetBase + k] = poseY[k] + 0.5f - row / (float) (height - 1) * INPUT_SHAPE[1];
+            offsets[offsetBase + k + keypoints] = poseX[k] + 0.5f - col / (float) (width - 1) * INPUT_SHAPE[2];
+        }
+
+        runs++;
+
+        long target = latencyNanos;
+        if (random != null && jitter > 0) {
+            target += (long) (latencyNanos * jitter * (2 * random.nextDouble() - 1));
+        }
+        if (stallEvery > 0 && runs % stallEvery == 0) {
+            target = (long) (target * stallFactor);
+        }
+        long remaining = target - (System.nanoTime() - start);
+        if (remaining > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    private static int cell(int pixel, int cells, int pixels) {
+        int cell = Math.round(pixel * (cells - 1) / (float) pixels);
+        return Math.max(0, Math.min(cells - 1, cell));
+    }
+
+    public long getRuns() {
+        return runs;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,41 @@
+package weiner.noah.wifidirect.inference;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Something that runs a model: one float32 input tensor in, float32 output tensors out. {@link TfliteBackend} runs a
+ * .tflite file on whatever delegate its {@link BackendConfig} asks for; {@link FakeBackend} makes up Posenet-shaped
+ * outputs on any JVM, so the decode and control path can be exercised without a phone.
+ *
+ * Nothing here is Posenet-specific. What the tensors mean is up to the caller ({@link PosenetModel} for Posenet).
+ *
+ * Not thread safe. A backend using the GPU delegate has to be run on the thread that created it.
+ */
+public interface InferenceBackend {
+    /**
+     * What this backend runs on, for logs.
+     */
+    BackendConfig getConfig();
+
+    /**
+     * Shape of the input tensor, e.g. {1, 257, 257, 3}.
+     */
+    int[] getInputShape();
+
+    int getOutputCount();
+
+    int[] getOutputShape(int index);
+
+    /**
+     * Run the model once.
+     *
+     * @param input   the input tensor as native-order float32, positioned at 0
+     * @param outputs one flat array per output tensor, each at least as long as its shape's element count
+     */
+    void run(ByteBuffer input, float[][] outputs);
+
+    /**
+     * Free whatever the backend holds (interpreter, delegate).
+     */
+    void close();
+}
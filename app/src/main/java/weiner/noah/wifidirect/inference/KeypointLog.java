@@ -0,0 +1,96 @@
+package weiner.noah.wifidirect.inference;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Raw Posenet output, one CSV line per frame: capture time in ns, then x, y, score for each keypoint. The phone writes
+ * one when PosenetStats.RECORD_KEYPOINTS is on; pctool's SmoothingEval reads it back to tune {@link OneEuroFilterBank}
+ * offline.
+ */
+public class KeypointLog implements Closeable {
+    private final BufferedWriter writer;
+    private final StringBuilder line = new StringBuilder(512);
+
+    public KeypointLog(File file) throws IOException {
+        writer = new BufferedWriter(new FileWriter(file));
+    }
+
+    public void write(long timestampNanos, Pose pose) throws IOException {
+        line.setLength(0);
+        line.append(timestampNanos);
+        for (int k = 0; k < pose.getKeypointCount(); k++) {
+            line.append(',').append(pose.x[k]).append(',').append(pose.y[k]).append(',')
+                    .append(String.format(Locale.US, "%.3f", pose.scores[k]));
+        }
+        line.append('\n');
+        writer.write(line.toString());
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    /**
+     * One recorded frame.
+     */
+    public static class Frame {
+        public final long timestampNanos;
+        public final Pose pose;
+
+        public Frame(long timestampNanos, Pose pose) {
+            this.timestampNanos = timestampNanos;
+            this.pose = pose;
+        }
+    }
+
+    /**
+     * Read a whole log. Blank lines are skipped; anything else malformed is an error.
+     */
+    public static List<Frame> read(File file) throws IOException {
+        List<Frame> frames = new ArrayList<Frame>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+
+        try {
+            String text;
+            int lineNumber = 0;
+            while ((text = reader.readLine()) != null) {
+                lineNumber++;
+                if (text.trim().isEmpty()) {
+                    continue;
+                }
+
+                String[] fields = text.split(",");
+                if (fields.length < 4 || (fields.length - 1) % 3 != 0) {
+                    throw new IOException(file + ":" + lineNumber + ": expected a timestamp and x,y,score triples");
+                }
+
+                try {
+                    Pose pose = new Pose((fields.length - 1) / 3);
+                    for (int k = 0; k < pose.getKeypointCount(); k++) {
+                        pose.x[k] = Float.parseFloat(fields[1 + 3 * k]);
+                        pose.y[k] = Float.parseFloat(fields[2 + 3 * k]);
+                        pose.scores[k] = Float.parseFloat(fields[3 + 3 * k]);
+                    }
+                    frames.add(new Frame(Long.parseLong(fields[0].trim()), pose));
+                }
+                catch (NumberFormatException e) {
+                    throw new IOException(file + ":" + lineNumber + ": " + e.getMessage());
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,152 @@
+package weiner.noah.wifidirect.inference;
+
+/**
+ * One-Euro filters (Casiez et al., CHI 2012) on the x and y of every keypoint of a {@link Pose}, in place.
+ *
+ * A One-Euro filter is a low-pass whose cutoff rises with speed. A still keypoint gets a low cutoff, so the pixel
+ * or two of jitter Posenet adds frame to frame goes away. That matters for the eyes, since a pixel of pupil distance
+ * at 257x257 is several centimetres of distance. A moving keypoint gets a high cutoff, so it doesn't trail behind.
+ * Three knobs, all settable while running:
+ * - minCutoff (Hz): cutoff when still. Lower means less jitter, more lag at slow speeds
+ * - beta (1/px): how fast the cutoff rises with speed (px/s). Higher means less lag when moving
+ * - dCutoff (Hz): cutoff for the speed estimate itself
+ *
+ * Keypoints at or under the score threshold aren't fed in (their positions are noise) and come out unchanged. One
+ * that's been missing for longer than {@link #RESET_AFTER_NANOS} starts over from its next raw position, rather than
+ * gliding there from where it was last seen.
+ *
+ * State lives in primitive arrays, nothing is allocated per frame. {@link #filter} is for one thread; the setters
+ * can be called from any.
+ */
+public class OneEuroFilterBank {
+    public static final double DEFAULT_MIN_CUTOFF_HZ = 1.0;
+    public static final double DEFAULT_BETA = 0.02;
+    public static final double DEFAULT_D_CUTOFF_HZ = 1.0;
+
+    private static final long RESET_AFTER_NANOS = 500000000L;
+
+    private final int keypoints;
+
+    //per keypoint, x then y: last filtered position and speed, and when it was last fed
+    private final float[] xHat;
+    private final float[] yHat;
+    private final float[] dxHat;
+    private final float[] dyHat;
+    private final long[] lastNanos;
+
+    private volatile double minCutoffHz = DEFAULT_MIN_CUTOFF_HZ;
+    private volatile double beta = DEFAULT_BETA;
+    private volatile double dCutoffHz = DEFAULT_D_CUTOFF_HZ;
+    private volatile float minScore;
+    private volatile boolean enabled = true;
+
+    public OneEuroFilterBank(int keypoints, float minScore) {
+        this.keypoints = keypoints;
+        this.minScore = minScore;
+
+        xHat = new float[keypoints];
+        yHat = new float[keypoints];
+        dxHat = new float[keypoints];
+        dyHat = new float[keypoints];
+        lastNanos = new long[keypoints];
+        reset();
+    }
+
+    public void setParameters(double minCutoffHz, double beta, double dCutoffHz) {
+        this.minCutoffHz = minCutoffHz;
+        this.beta = beta;
+        this.dCutoffHz = dCutoffHz;
+    }
+
+    public void setMinScore(float minScore) {
+        this.minScore = minScore;
+    }
+
+    /**
+     * Off passes poses through untouched (and forgets its state, so turning it back on starts clean).
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public double getMinCutoffHz() {
+        return minCutoffHz;
+    }
+
+    public double getBeta() {
+        return beta;
+    }
+
+    public double getDCutoffHz() {
+        return dCutoffHz;
+    }
+
+    /**
+     * Forget every keypoint, e.g. for a new follow session.
+     */
+    public void reset() {
+        for (int k = 0; k < keypoints; k++) {
+            lastNanos[k] = -1;
+        }
+    }
+
+    /**
+     * Smooth the pose in place.
+     *
+     * @param timestampNanos when the frame was captured. Must not go backwards
+     */
+    public void filter(Pose pose, long timestampNanos) {
+        if (!enabled) {
+            reset();
+            return;
+        }
+
+        //one consistent set of parameters per frame
+        double minCutoff = minCutoffHz;
+        double speedGain = beta;
+        double dCutoff = dCutoffHz;
+        float threshold = minScore;
+
+        for (int k = 0; k < keypoints; k++) {
+            if (!(pose.scores[k] > threshold)) {
+                continue;
+            }
+
+            long last = lastNanos[k];
+            lastNanos[k] = timestampNanos;
+
+            if (last < 0 || timestampNanos - last > RESET_AFTER_NANOS || timestampNanos <= last) {
+                xHat[k] = pose.x[k];
+                yHat[k] = pose.y[k];
+                dxHat[k] = 0;
+                dyHat[k] = 0;
+                continue;
+            }
+
+            double dt = (timestampNanos - last) / 1e9;
+            double aD = alpha(dCutoff, dt);
+
+            //speed estimate, itself smoothed
+            double dx = (pose.x[k] - xHat[k]) / dt;
+            double dy = (pose.y[k] - yHat[k]) / dt;
+            dxHat[k] += (float) (aD * (dx - dxHat[k]));
+            dyHat[k] += (float) (aD * (dy - dyHat[k]));
+
+            //both axes get the cutoff for the keypoint's overall speed, so a diagonal move isn't smoothed unevenly
+            double speed = Math.sqrt((double) dxHat[k] * dxHat[k] + (double) dyHat[k] * dyHat[k]);
+            double a = alpha(minCutoff + speedGain * speed, dt);
+
+            xHat[k] += (float) (a * (pose.x[k] - xHat[k]));
+            yHat[k] += (float) (a * (pose.y[k] - yHat[k]));
+
+            pose.x[k] = xHat[k];
+            pose.y[k] = yHat[k];
+        }
+    }
+
+    //smoothing factor of a first-order low-pass with this cutoff, sampled every dt seconds
+    private static double alpha(double cutoffHz, double dt) {
+        double tau = 1.0 / (2 * Math.PI * cutoffHz);
+        return 1.0 / (1.0 + tau / dt);
+    }
+}
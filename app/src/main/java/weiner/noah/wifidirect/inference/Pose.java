@@ -0,0 +1,45 @@
+package weiner.noah.wifidirect.inference;
+
+/**
+ * One decoded pose: a position and confidence per keypoint, in model input pixels, indexed like BodyPart. Reused
+ * frame to frame by whoever decodes into it.
+ *
+ * The tracking code reads keypoints straight out of the arrays by these indices, which are BodyPart.value, so a frame
+ * costs no KeyPoint, Position or list.
+ */
+public class Pose {
+    public static final int NOSE = 0;
+    public static final int LEFT_EYE = 1;
+    public static final int RIGHT_EYE = 2;
+    public static final int LEFT_EAR = 3;
+    public static final int RIGHT_EAR = 4;
+    public static final int LEFT_SHOULDER = 5;
+    public static final int RIGHT_SHOULDER = 6;
+    public static final int LEFT_ELBOW = 7;
+    public static final int RIGHT_ELBOW = 8;
+    public static final int LEFT_WRIST = 9;
+    public static final int RIGHT_WRIST = 10;
+    public static final int LEFT_HIP = 11;
+    public static final int RIGHT_HIP = 12;
+    public static final int LEFT_KNEE = 13;
+    public static final int RIGHT_KNEE = 14;
+    public static final int LEFT_ANKLE = 15;
+    public static final int RIGHT_ANKLE = 16;
+
+    public final float[] x;
+    public final float[] y;
+    public final float[] scores;
+
+    //mean of the keypoint scores
+    public float score;
+
+    public Pose(int keypoints) {
+        x = new float[keypoints];
+        y = new float[keypoints];
+        scores = new float[keypoints];
+    }
+
+    public int getKeypointCount() {
+        return scores.length;
+    }
+}
@@ -0,0 +1,116 @@
+package weiner.noah.wifidirect.inference;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * What Posenet's tensors mean, independent of what runs it. Pixels go in scaled to [-1, 1]; out come heatmaps
+ * (1 x h x w x 17) and offsets (1 x h x w x 34, all the y offsets then all the x offsets), plus two displacement
+ * tensors that single-pose decoding doesn't use.
+ *
+ * Plain Java, so the decode can run off the phone. This is the only single-pose decode: Posenet.kt's went away with
+ * its interpreter.
+ */
+public class PosenetModel {
+    public static final String MODEL_FILE = "posenet_model.tflite";
+
+    public static final int NUM_KEYPOINTS = 17;
+
+    public static final int HEATMAPS = 0;
+    public static final int OFFSETS = 1;
+
+    private static final float MEAN = 128.0f;
+    private static final float STD = 128.0f;
+
+    private PosenetModel() {
+    }
+
+    public static int elementCount(int[] shape) {
+        int count = 1;
+        for (int dim : shape) {
+            count *= dim;
+        }
+        return count;
+    }
+
+    /**
+     * A native-order float buffer big enough for the backend's input tensor.
+     */
+    public static ByteBuffer allocateInput(InferenceBackend backend) {
+        ByteBuffer input = ByteBuffer.allocateDirect(4 * elementCount(backend.getInputShape()));
+        input.order(ByteOrder.nativeOrder());
+        return input;
+    }
+
+    /**
+     * One flat array per output tensor of the backend.
+     */
+    public static float[][] allocateOutputs(InferenceBackend backend) {
+        float[][] outputs = new float[backend.getOutputCount()][];
+        for (int i = 0; i < outputs.length; i++) {
+            outputs[i] = new float[elementCount(backend.getOutputShape(i))];
+        }
+        return outputs;
+    }
+
+    /**
+     * Scale model-sized ARGB pixels into the input tensor, RGB order, each channel mapped to [-1, 1].
+     */
+    public static void fillInput(int[] argb, int count, ByteBuffer input) {
+        input.rewind();
+        for (int i = 0; i < count; i++) {
+            int pixel = argb[i];
+            input.putFloat(((pixel >> 16 & 0xff) - MEAN) / STD);
+            input.putFloat(((pixel >> 8 & 0xff) - MEAN) / STD);
+            input.putFloat(((pixel & 0xff) - MEAN) / STD);
+        }
+        input.rewind();
+    }
+
+    /**
+     * Single-pose decode: each keypoint goes to its heatmap's strongest cell, nudged by that cell's offset.
+     *
+     * @param heatmapShape {1, h, w, keypoints}
+     * @param inputWidth   width of the image the model saw, to scale cells back to pixels
+     * @param inputHeight  and its height
+     */
+    public static void decode(float[] heatmaps, float[] offsets, int[] heatmapShape, int inputWidth, int inputHeight, Pose out) {
+        int height = heatmapShape[1];
+        int width = heatmapShape[2];
+        int keypoints = heatmapShape[3];
+
+        float totalScore = 0;
+
+        for (int k = 0; k < keypoints; k++) {
+            //first cell wins a tie, like the TensorFlow example this came from
+            float maxVal = heatmaps[k];
+            int maxRow = 0;
+            int maxCol = 0;
+
+            for (int row = 0; row < height; row++) {
+                int rowBase = row * width * keypoints;
+                for (int col = 0; col < width; col++) {
+                    float value = heatmaps[rowBase + col * keypoints + k];
+                    if (value > maxVal) {
+                        maxVal = value;
+                        maxRow = row;
+                        maxCol = col;
+                    }
+                }
+            }
+
+            int offsetBase = (maxRow * width + maxCol) * 2 * keypoints;
+
+            out.y[k] = (int) (maxRow / (float) (height - 1) * inputHeight + offsets[offsetBase + k]);
+            out.x[k] = (int) (maxCol / (float) (width - 1) * inputWidth + offsets[offsetBase + k + keypoints]);
+            out.scores[k] = sigmoid(maxVal);
+            totalScore += out.scores[k];
+        }
+
+        out.score = totalScore / keypoints;
+    }
+
+    private static float sigmoid(float x) {
+        return 1.0f / (1.0f + (float) Math.exp(-x));
+    }
+}
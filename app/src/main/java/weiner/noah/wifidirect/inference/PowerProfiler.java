@@ -0,0 +1,403 @@
+package weiner.noah.wifidirect.inference;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import weiner.noah.wifidirect.utils.SysfsSampler;
+import weiner.noah.wifidirect.utils.ThermalZones;
+
+/**
+ * What each backend config and frame rate costs in battery and heat, so the delegate and rate for a long flight can be
+ * picked from measurements instead of inference time alone.
+ *
+ * The profile is a schedule of steps, each held for dwellNanos: first an idle step (camera running, no inference) to get
+ * the phone's baseline draw, then every config at every rate. While it runs the caller pins Posenet to
+ * {@link #getStep(long)}'s config and rate instead of the governor's, and feeds in:
+ * - every inference, from the inference thread ({@link #onInference})
+ * - battery current and voltage, and the temps of the zone groups, every so often from wherever is convenient
+ *   ({@link #onPower}, {@link #onTemps})
+ * All of it is timestamped with System.nanoTime(), so the samples line up with the inferences they paid for. The first
+ * settleNanos of each step are thrown away, while the backend is rebuilt and the draw changes over.
+ *
+ * Per step it works out:
+ * - the rate Posenet actually kept up, and its mean inference time
+ * - mean battery power, from the trapezoid of the power samples
+ * - joules per inference, gross (all the phone's power over the inference rate) and over idle (what the inference
+ *   itself added)
+ * - how fast each zone group heated, in degrees C per minute, from a least squares line through its temps. Heating
+ *   slows as the phone nears equilibrium, so compare steps at similar starting temps, or read it as the worst case.
+ *   Zones report in 0.1C steps, so heating of less than one step over a step's measuring window reads as noise
+ *
+ * Plain Java. Safe to call from any thread.
+ */
+public class PowerProfiler {
+    //the zones the load actually heats. Each group's temp is the hottest of its zones
+    public static final String[] DEFAULT_GROUPS = {"cpu", "gpuss", "npu", "camera"};
+
+    /**
+     * One backend config held at one frame rate, and what it cost.
+     */
+    public static class Step {
+        //null and 0 for the idle step
+        public final BackendConfig config;
+        public final int hz;
+
+        private long inferences = 0;
+        private long inferenceNanos = 0;
+
+        private double joules = 0;
+        private long powerNanos = 0;
+
+        //least squares sums per group: time in minutes since the step started measuring, temp in degrees C
+        private final long[] tempCount;
+        private final double[] sumT;
+        private final double[] sumY;
+        private final double[] sumTT;
+        private final double[] sumTY;
+
+        Step(BackendConfig config, int hz, int groups) {
+            this.config = config;
+            this.hz = hz;
+            tempCount = new long[groups];
+            sumT = new double[groups];
+            sumY = new double[groups];
+            sumTT = new double[groups];
+            sumTY = new double[groups];
+        }
+
+        public boolean isIdle() {
+            return config == null;
+        }
+
+        public long getInferences() {
+            return inferences;
+        }
+
+        public double getMeanInferenceMs() {
+            return inferences == 0 ? Double.NaN : inferenceNanos / 1e6 / inferences;
+        }
+
+        //NaN if no power samples landed in the step
+        public double getMeanWatts() {
+            return powerNanos == 0 ? Double.NaN : joules / (powerNanos / 1e9);
+        }
+
+        /**
+         * Degrees C per minute the group heated during the step, NaN with fewer than two readings.
+         */
+        public double getHeatingPerMinute(int group) {
+            long n = tempCount[group];
+            double denominator = n * sumTT[group] - sumT[group] * sumT[group];
+            if (n < 2 || denominator <= 0) {
+                return Double.NaN;
+            }
+            return (n * sumTY[group] - sumT[group] * sumY[group]) / denominator;
+        }
+    }
+
+    private final List<Step> steps = new ArrayList<Step>();
+    private final String[] groups;
+    private final long dwellNanos;
+    private final long settleNanos;
+    private final long measureNanos;
+
+    private long startNanos = -1;
+
+    //last power sample, for the trapezoid
+    private long lastPowerNanos = -1;
+    private double lastWatts = Double.NaN;
+
+    /**
+     * @param configs backend configs to try, each at every rate
+     * @param rates   frame rates to hold, in Hz
+     * @param groups  zone name prefixes to track, e.g. {@link #DEFAULT_GROUPS}
+     */
+    public PowerProfiler(List<BackendConfig> configs, int[] rates, String[] groups, long dwellNanos, long settleNanos) {
+        if (settleNanos >= dwellNanos) {
+            throw new IllegalArgumentException("Settling takes the whole step");
+        }
+
+        this.groups = groups;
+        this.dwellNanos = dwellNanos;
+        this.settleNanos = settleNanos;
+        this.measureNanos = dwellNanos - settleNanos;
+
+        steps.add(new Step(null, 0, groups.length));
+        for (BackendConfig config : configs) {
+            for (int hz : rates) {
+                steps.add(new Step(config, hz, groups.length));
+            }
+        }
+    }
+
+    public synchronized void start(long nowNanos) {
+        startNanos = nowNanos;
+        lastPowerNanos = -1;
+    }
+
+    //lock must be held. -1 before the start and after the last step
+    private int indexAt(long nowNanos) {
+        if (startNanos < 0 || nowNanos < startNanos) {
+            return -1;
+        }
+        long index = (nowNanos - startNanos) / dwellNanos;
+        return index < steps.size() ? (int) index : -1;
+    }
+
+    //lock must be held. The step whose measuring window nowNanos is in, or null while settling or outside the schedule
+    private Step measuring(long nowNanos) {
+        int index = indexAt(nowNanos);
+        if (index < 0 || (nowNanos - startNanos) % dwellNanos < settleNanos) {
+            return null;
+        }
+        return steps.get(index);
+    }
+
+    /**
+     * The step Posenet should be held at, or null once the profile is done (or before it starts).
+     */
+    public synchronized Step getStep(long nowNanos) {
+        int index = indexAt(nowNanos);
+        return index < 0 ? null : steps.get(index);
+    }
+
+    public synchronized boolean isDone(long nowNanos) {
+        return startNanos >= 0 && indexAt(nowNanos) < 0;
+    }
+
+    /**
+     * How long the whole profile takes.
+     */
+    public long getDurationNanos() {
+        return dwellNanos * steps.size();
+    }
+
+    public String[] getGroups() {
+        return groups;
+    }
+
+    /**
+     * An inference finished. Only counts if it ran on the step's config: right after a switch the old backend may still
+     * run a frame or two.
+     */
+    public synchronized void onInference(BackendConfig ranOn, long inferenceNanos, long nowNanos) {
+        Step step = measuring(nowNanos);
+        if (step == null || step.isIdle() || !step.config.equals(ranOn)) {
+            return;
+        }
+        step.inferences++;
+        step.inferenceNanos += inferenceNanos;
+    }
+
+    /**
+     * A battery reading from {@link weiner.noah.wifidirect.Battery}. Pass -1 for whatever couldn't be read.
+     */
+    public synchronized void onPower(int currentMicroAmps, int voltageMicroVolts, long nowNanos) {
+        if (currentMicroAmps == -1 || voltageMicroVolts <= 0) {
+            return;
+        }
+        double watts = Math.abs((double) currentMicroAmps) * voltageMicroVolts / 1e12;
+
+        //only the stretch between two samples in the same step counts, so nothing leaks across a switch
+        Step step = measuring(nowNanos);
+        if (step != null && lastPowerNanos >= 0 && measuring(lastPowerNanos) == step) {
+            long dt = nowNanos - lastPowerNanos;
+            step.joules += (watts + lastWatts) / 2 * (dt / 1e9);
+            step.powerNanos += dt;
+        }
+        lastPowerNanos = nowNanos;
+        lastWatts = watts;
+    }
+
+    /**
+     * Temps of the groups, in millidegrees, in {@link #getGroups()} order. {@link SysfsSampler#MISSING} for a group
+     * that couldn't be read.
+     */
+    public synchronized void onTemps(long[] groupMilliC, long nowNanos) {
+        Step step = measuring(nowNanos);
+        if (step == null) {
+            return;
+        }
+
+        double minutes = ((nowNanos - startNanos) % dwellNanos - settleNanos) / 60e9;
+        for (int g = 0; g < groups.length; g++) {
+            if (groupMilliC[g] == SysfsSampler.MISSING) {
+                continue;
+            }
+            double c = groupMilliC[g] / 1000.0;
+            step.tempCount[g]++;
+            step.sumT[g] += minutes;
+            step.sumY[g] += c;
+            step.sumTT[g] += minutes * minutes;
+            step.sumTY[g] += minutes * c;
+        }
+    }
+
+    /**
+     * The rate Posenet actually kept up during a step.
+     */
+    public synchronized double getAchievedHz(Step step) {
+        return step.inferences / (measureNanos / 1e9);
+    }
+
+    /**
+     * Baseline draw, from the idle step. NaN until it's measured.
+     */
+    public synchronized double getIdleWatts() {
+        return steps.get(0).getMeanWatts();
+    }
+
+    /**
+     * All of the phone's power during the step over the inferences it ran.
+     */
+    public synchronized double getJoulesPerInference(Step step) {
+        double hz = getAchievedHz(step);
+        return hz > 0 ? step.getMeanWatts() / hz : Double.NaN;
+    }
+
+    /**
+     * Just what inference added over idle, per inference.
+     */
+    public synchronized double getMarginalJoulesPerInference(Step step) {
+        double hz = getAchievedHz(step);
+        return hz > 0 ? (step.getMeanWatts() - getIdleWatts()) / hz : Double.NaN;
+    }
+
+    /**
+     * The fastest-heating group during the step, in degrees C per minute.
+     */
+    public synchronized double getWorstHeatingPerMinute(Step step) {
+        double worst = Double.NaN;
+        for (int g = 0; g < groups.length; g++) {
+            double heating = step.getHeatingPerMinute(g);
+            if (!Double.isNaN(heating) && (Double.isNaN(worst) || heating > worst)) {
+                worst = heating;
+            }
+        }
+        return worst;
+    }
+
+    public synchronized List<Step> getSteps() {
+        return new ArrayList<Step>(steps);
+    }
+
+    /**
+     * Per rate, the config that cost the least over idle per inference, among those that kept up at least 90% of the
+     * rate. Null if none did.
+     */
+    public synchronized Step getCheapest(int hz) {
+        Step cheapest = null;
+        for (Step step : steps) {
+            if (step.isIdle() || step.hz != hz || getAchievedHz(step) < 0.9 * hz ||
+                    Double.isNaN(getMarginalJoulesPerInference(step))) {
+                continue;
+            }
+            if (cheapest == null || getMarginalJoulesPerInference(step) < getMarginalJoulesPerInference(cheapest)) {
+                cheapest = step;
+            }
+        }
+        return cheapest;
+    }
+
+    /**
+     * A table of every step, then the cheapest config at each rate.
+     */
+    public synchronized String report() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format(Locale.US, "Power profile: %ds per step, first %ds settling. Idle %.2fW\n",
+                dwellNanos / 1000000000L, settleNanos / 1000000000L, getIdleWatts()));
+
+        out.append(String.format(Locale.US, "%-18s %4s %6s %7s %6s %7s %7s", "config", "hz", "got", "inf ms", "W", "J/inf",
+                "+J/inf"));
+        for (String group : groups) {
+            out.append(String.format(Locale.US, " %9s", group + " C/m"));
+        }
+        out.append('\n');
+
+        List<Integer> rates = new ArrayList<Integer>();
+        for (Step step : steps) {
+            out.append(String.format(Locale.US, "%-18s %4d %6.1f %7.1f %6.2f %7.3f %7.3f",
+                    step.isIdle() ? "idle" : step.config.toString(), step.hz, getAchievedHz(step), step.getMeanInferenceMs(),
+                    step.getMeanWatts(), getJoulesPerInference(step), getMarginalJoulesPerInference(step)));
+            for (int g = 0; g < groups.length; g++) {
+                out.append(String.format(Locale.US, " %9.2f", step.getHeatingPerMinute(g)));
+            }
+            out.append('\n');
+
+            if (!step.isIdle() && !rates.contains(step.hz)) {
+                rates.add(step.hz);
+            }
+        }
+
+        for (int hz : rates) {
+            Step cheapest = getCheapest(hz);
+            if (cheapest == null) {
+                out.append(String.format(Locale.US, "%d Hz: nothing kept up\n", hz));
+            }
+            else {
+                out.append(String.format(Locale.US, "%d Hz: cheapest on %s, %.3fJ per inference over idle, heating up to %.2fC/min\n",
+                        hz, cheapest.config, getMarginalJoulesPerInference(cheapest), getWorstHeatingPerMinute(cheapest)));
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * The same table as CSV, for plotting.
+     */
+    public synchronized void writeCsv(Writer out) throws IOException {
+        StringBuilder line = new StringBuilder("config,hz,achieved_hz,inference_ms,watts,joules_per_inference," +
+                "marginal_joules_per_inference");
+        for (String group : groups) {
+            line.append(',').append(group).append("_c_per_min");
+        }
+        out.write(line.append('\n').toString());
+
+        for (Step step : steps) {
+            line.setLength(0);
+            line.append(step.isIdle() ? "idle" : step.config.encode()).append(',').append(step.hz);
+            line.append(String.format(Locale.US, ",%.2f,%.2f,%.3f,%.4f,%.4f", getAchievedHz(step), step.getMeanInferenceMs(),
+                    step.getMeanWatts(), getJoulesPerInference(step), getMarginalJoulesPerInference(step)));
+            for (int g = 0; g < groups.length; g++) {
+                line.append(String.format(Locale.US, ",%.3f", step.getHeatingPerMinute(g)));
+            }
+            out.write(line.append('\n').toString());
+        }
+    }
+
+    /**
+     * Which of the zones belong to each group, by name prefix. A group with no zones on this phone gets an empty list.
+     */
+    public static int[][] findGroups(ThermalZones zones, String[] groups) {
+        int[][] members = new int[groups.length][];
+        for (int g = 0; g < groups.length; g++) {
+            List<Integer> found = new ArrayList<Integer>();
+            for (int zone = 0; zone < zones.size(); zone++) {
+                if (zones.getName(zone).startsWith(groups[g])) {
+                    found.add(zone);
+                }
+            }
+            members[g] = new int[found.size()];
+            for (int i = 0; i < members[g].length; i++) {
+                members[g][i] = found.get(i);
+            }
+        }
+        return members;
+    }
+
+    /**
+     * The hottest zone of each group, from the zones' last sample, into out.
+     */
+    public static void readGroups(ThermalZones zones, int[][] members, long[] out) {
+        for (int g = 0; g < members.length; g++) {
+            long hottest = SysfsSampler.MISSING;
+            for (int zone : members[g]) {
+                hottest = Math.max(hottest, zones.getTempMilliC(zone));
+            }
+            out[g] = hottest;
+        }
+    }
+}
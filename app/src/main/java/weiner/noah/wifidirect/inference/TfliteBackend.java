@@ -0,0 +1,135 @@
+package weiner.noah.wifidirect.inference;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
+import org.tensorflow.lite.gpu.GpuDelegate;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs a .tflite model from the app's assets with TensorFlow Lite, on the delegate its {@link BackendConfig} names.
+ * Outputs come back through direct buffers and are copied into the caller's float arrays.
+ */
+public class TfliteBackend implements InferenceBackend {
+    private final BackendConfig config;
+    private final Interpreter interpreter;
+    private GpuDelegate gpuDelegate = null;
+
+    private final int[] inputShape;
+    private final int[][] outputShapes;
+    private final ByteBuffer[] outputBuffers;
+    private final Map<Integer, Object> outputMap = new HashMap<Integer, Object>();
+    private final Object[] inputs = new Object[1];
+
+    public TfliteBackend(Context context, String modelFile, BackendConfig config) throws IOException {
+        this.config = config;
+
+        Interpreter.Options options = new Interpreter.Options();
+        options.setNumThreads(config.threads);
+
+        switch (config.delegate) {
+            case CPU:
+                options.setUseXNNPACK(config.xnnpack);
+                break;
+            case GPU:
+                gpuDelegate = new GpuDelegate();
+                options.addDelegate(gpuDelegate);
+                break;
+            case NNAPI:
+                options.setUseNNAPI(true);
+                break;
+        }
+
+        try {
+            interpreter = new Interpreter(loadModelFile(context, modelFile), options);
+        }
+        catch (RuntimeException e) {
+            //delegate refused the model. Don't leak it
+            if (gpuDelegate != null) {
+                gpuDelegate.close();
+            }
+            throw e;
+        }
+
+        inputShape = interpreter.getInputTensor(0).shape();
+
+        int count = interpreter.getOutputTensorCount();
+        outputShapes = new int[count][];
+        outputBuffers = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            Tensor tensor = interpreter.getOutputTensor(i);
+            outputShapes[i] = tensor.shape();
+            outputBuffers[i] = ByteBuffer.allocateDirect(tensor.numBytes());
+            outputBuffers[i].order(ByteOrder.nativeOrder());
+            outputMap.put(i, outputBuffers[i]);
+        }
+    }
+
+    //memory map the model straight out of the APK (it's stored uncompressed, see aaptOptions)
+    private static MappedByteBuffer loadModelFile(Context context, String path) throws IOException {
+        AssetFileDescriptor fileDescriptor = context.getAssets().openFd(path);
+        FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor());
+        try {
+            return inputStream.getChannel().map(FileChannel.MapMode.READ_ONLY, fileDescriptor.getStartOffset(),
+                    fileDescriptor.getDeclaredLength());
+        }
+        finally {
+            inputStream.close();
+            fileDescriptor.close();
+        }
+    }
+
+    @Override
+    public BackendConfig getConfig() {
+        return config;
+    }
+
+    @Override
+    public int[] getInputShape() {
+        return inputShape.clone();
+    }
+
+    @Override
+    public int getOutputCount() {
+        return outputShapes.length;
+    }
+
+    @Override
+    public int[] getOutputShape(int index) {
+        return outputShapes[index].clone();
+    }
+
+    @Override
+    public void run(ByteBuffer input, float[][] outputs) {
+        inputs[0] = input;
+        for (ByteBuffer buffer : outputBuffers) {
+            buffer.rewind();
+        }
+
+        interpreter.runForMultipleInputsOutputs(inputs, outputMap);
+
+        for (int i = 0; i < outputBuffers.length; i++) {
+            outputBuffers[i].rewind();
+            outputBuffers[i].asFloatBuffer().get(outputs[i], 0, outputBuffers[i].capacity() / 4);
+        }
+    }
+
+    @Override
+    public void close() {
+        interpreter.close();
+        if (gpuDelegate != null) {
+            gpuDelegate.close();
+            gpuDelegate = null;
+        }
+    }
+}
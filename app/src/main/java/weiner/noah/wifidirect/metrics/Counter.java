@@ -0,0 +1,31 @@
+package weiner.noah.wifidirect.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Something that only goes up, like frames seen. Readers turn it into a rate.
+ */
+public class Counter {
+    private final String name;
+    private final AtomicLong count = new AtomicLong();
+
+    Counter(String name) {
+        this.name = name;
+    }
+
+    public void increment() {
+        count.incrementAndGet();
+    }
+
+    public void add(long n) {
+        count.addAndGet(n);
+    }
+
+    public long get() {
+        return count.get();
+    }
+
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,25 @@
+package weiner.noah.wifidirect.metrics;
+
+/**
+ * The current value of something, like the governor's target rate. Last write wins.
+ */
+public class Gauge {
+    private final String name;
+    private volatile double value = Double.NaN;
+
+    Gauge(String name) {
+        this.name = name;
+    }
+
+    public void set(double value) {
+        this.value = value;
+    }
+
+    public double get() {
+        return value;
+    }
+
+    public String getName() {
+        return name;
+    }
+}
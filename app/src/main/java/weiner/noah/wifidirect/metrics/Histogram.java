@@ -0,0 +1,82 @@
+package weiner.noah.wifidirect.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram for one stage. {@link #record} is one atomic increment, so stage threads can time
+ * every frame without contending with each other or with whoever reads the numbers.
+ *
+ * Buckets are log-linear over nanoseconds: {@link #SUB_BUCKETS} per power of two from 1us up to about a minute, so a
+ * percentile is within 12.5% of the real value. Anything under 1us lands in the first bucket, anything over a minute
+ * in the last.
+ *
+ * The counts only ever grow. A {@link MetricsRegistry.Reader} remembers what it saw last time, so each reader gets
+ * its own window (the HUD every second, the relay whenever the controller asks).
+ */
+public class Histogram {
+    private static final int SUB_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MIN_EXP = 10;
+    private static final int MAX_EXP = 36;
+
+    //bucket 0 is everything under 2^MIN_EXP ns, then SUB_BUCKETS per power of two, then one for overflow
+    static final int BUCKETS = 2 + (MAX_EXP - MIN_EXP) * SUB_BUCKETS;
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    Histogram(String name) {
+        this.name = name;
+    }
+
+    public void record(long nanos) {
+        counts.incrementAndGet(index(nanos));
+    }
+
+    /**
+     * Time since start, from System.nanoTime().
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    //copy the running counts out. Not atomic across buckets, which only matters for a sample or two
+    void copyCounts(long[] into) {
+        for (int i = 0; i < BUCKETS; i++) {
+            into[i] = counts.get(i);
+        }
+    }
+
+    static int index(long nanos) {
+        if (nanos < (1L << MIN_EXP)) {
+            return 0;
+        }
+
+        int exp = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exp >= MAX_EXP) {
+            return BUCKETS - 1;
+        }
+
+        int sub = (int) ((nanos >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1));
+        return 1 + (exp - MIN_EXP) * SUB_BUCKETS + sub;
+    }
+
+    //middle of a bucket, in ns, which is what a percentile landing in it reports
+    static double midpoint(int index) {
+        if (index == 0) {
+            return (1L << MIN_EXP) / 2.0;
+        }
+        if (index == BUCKETS - 1) {
+            return 1L << MAX_EXP;
+        }
+
+        int exp = (index - 1) / SUB_BUCKETS + MIN_EXP;
+        int sub = (index - 1) % SUB_BUCKETS;
+        long width = 1L << (exp - SUB_BITS);
+        return (1L << exp) + sub * width + width / 2.0;
+    }
+}
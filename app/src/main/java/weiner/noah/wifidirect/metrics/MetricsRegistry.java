@@ -0,0 +1,183 @@
+package weiner.noah.wifidirect.metrics;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Every counter, gauge and stage histogram in the app, by name. Stages look theirs up once (in a field) and then
+ * record without locking; the HUD in MainActivity and the relay's metrics frame read them through a {@link Reader}
+ * each.
+ *
+ * Plain Java, so the PC tool can build it and the relay can export it.
+ */
+public class MetricsRegistry {
+    private static final MetricsRegistry INSTANCE = new MetricsRegistry();
+
+    //registration order is display order
+    private final List<Object> metrics = new CopyOnWriteArrayList<Object>();
+    private final Map<String, Object> byName = new HashMap<String, Object>();
+
+    /**
+     * The app's registry.
+     */
+    public static MetricsRegistry get() {
+        return INSTANCE;
+    }
+
+    public Counter counter(String name) {
+        synchronized (byName) {
+            Object metric = byName.get(name);
+            if (metric == null) {
+                metric = register(name, new Counter(name));
+            }
+            return (Counter) metric;
+        }
+    }
+
+    public Gauge gauge(String name) {
+        synchronized (byName) {
+            Object metric = byName.get(name);
+            if (metric == null) {
+                metric = register(name, new Gauge(name));
+            }
+            return (Gauge) metric;
+        }
+    }
+
+    public Histogram histogram(String name) {
+        synchronized (byName) {
+            Object metric = byName.get(name);
+            if (metric == null) {
+                metric = register(name, new Histogram(name));
+            }
+            return (Histogram) metric;
+        }
+    }
+
+    /**
+     * A reader whose first window starts now.
+     */
+    public Reader newReader() {
+        return new Reader();
+    }
+
+    //lock on byName must be held. A name is one kind of metric for good; asking for it as another throws
+    private Object register(String name, Object metric) {
+        if (name.length() > MetricsSnapshot.MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Metric name too long: " + name);
+        }
+        byName.put(name, metric);
+        metrics.add(metric);
+        return metric;
+    }
+
+    /**
+     * Turns the running totals into per-window numbers: rates and percentiles since this reader's last
+     * {@link #read}. Each reader has its own window. Not thread-safe itself, give each reading thread its own.
+     */
+    public class Reader {
+        private final Map<Object, long[]> previous = new HashMap<Object, long[]>();
+        private final long[] scratch = new long[Histogram.BUCKETS];
+        private long lastNanos;
+
+        private Reader() {
+            lastNanos = System.nanoTime();
+            //start the window now, not at app start
+            for (Object metric : metrics) {
+                remember(metric, true);
+            }
+        }
+
+        /**
+         * Fill in the snapshot with everything since the last read (or since this reader was made).
+         */
+        public void read(MetricsSnapshot out) {
+            long now = System.nanoTime();
+            double seconds = Math.max(1e-3, (now - lastNanos) / 1e9);
+            out.clear();
+            out.windowMs = (int) Math.min(Integer.MAX_VALUE, (now - lastNanos) / 1000000);
+            lastNanos = now;
+
+            for (Object metric : metrics) {
+                MetricsSnapshot.Entry entry;
+
+                if (metric instanceof Histogram) {
+                    Histogram histogram = (Histogram) metric;
+                    long[] last = remember(histogram, false);
+                    histogram.copyCounts(scratch);
+
+                    long count = 0;
+                    for (int i = 0; i < Histogram.BUCKETS; i++) {
+                        long delta = scratch[i] - last[i];
+                        last[i] = scratch[i];
+                        scratch[i] = delta;
+                        count += delta;
+                    }
+
+                    entry = out.add(MetricsSnapshot.HISTOGRAM, histogram.getName());
+                    entry.count = count;
+                    entry.rate = count / seconds;
+                    entry.p50Ms = percentile(scratch, count, 50) / 1e6;
+                    entry.p99Ms = percentile(scratch, count, 99) / 1e6;
+                    entry.maxMs = percentile(scratch, count, 100) / 1e6;
+                }
+                else if (metric instanceof Counter) {
+                    Counter counter = (Counter) metric;
+                    long[] last = remember(counter, false);
+                    long total = counter.get();
+
+                    entry = out.add(MetricsSnapshot.COUNTER, counter.getName());
+                    entry.count = total;
+                    entry.rate = (total - last[0]) / seconds;
+                    last[0] = total;
+                }
+                else {
+                    Gauge gauge = (Gauge) metric;
+                    entry = out.add(MetricsSnapshot.GAUGE, gauge.getName());
+                    entry.value = gauge.get();
+                }
+            }
+        }
+
+        //previous totals for a metric. One this reader hasn't seen yet was registered after the reader was made, so
+        //everything it has counted so far is in this window: start it from zero unless we're starting the window now
+        private long[] remember(Object metric, boolean fromNow) {
+            long[] last = previous.get(metric);
+            if (last == null) {
+                if (metric instanceof Histogram) {
+                    last = new long[Histogram.BUCKETS];
+                    if (fromNow) {
+                        ((Histogram) metric).copyCounts(last);
+                    }
+                }
+                else {
+                    last = new long[1];
+                    if (fromNow && metric instanceof Counter) {
+                        last[0] = ((Counter) metric).get();
+                    }
+                }
+                previous.put(metric, last);
+            }
+            return last;
+        }
+    }
+
+    //ns at the given percentile of a window's bucket counts, 0 if empty
+    private static double percentile(long[] buckets, long count, double p) {
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(p / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return Histogram.midpoint(i);
+            }
+        }
+        return Histogram.midpoint(buckets.length - 1);
+    }
+}
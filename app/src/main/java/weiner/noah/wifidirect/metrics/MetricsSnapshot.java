@@ -0,0 +1,122 @@
+package weiner.noah.wifidirect.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * One window of metrics as a {@link MetricsRegistry.Reader} saw it, or as the PC tool decoded it from the relay.
+ * Entries are reused from one read to the next.
+ */
+public class MetricsSnapshot {
+    public static final int HISTOGRAM = 0;
+    public static final int COUNTER = 1;
+    public static final int GAUGE = 2;
+
+    public static final int MAX_NAME_LENGTH = 32;
+
+    public static class Entry {
+        public int kind;
+        public String name;
+
+        //histogram: samples in the window. Counter: running total
+        public long count;
+
+        //per second over the window: samples for a histogram, increments for a counter
+        public double rate;
+
+        //histogram only
+        public double p50Ms, p99Ms, maxMs;
+
+        //gauge only
+        public double value;
+    }
+
+    public int windowMs;
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private int size = 0;
+
+    public void clear() {
+        size = 0;
+        windowMs = 0;
+    }
+
+    public Entry add(int kind, String name) {
+        if (size == entries.size()) {
+            entries.add(new Entry());
+        }
+
+        Entry entry = entries.get(size++);
+        entry.kind = kind;
+        entry.name = name;
+        entry.count = 0;
+        entry.rate = 0;
+        entry.p50Ms = entry.p99Ms = entry.maxMs = 0;
+        entry.value = Double.NaN;
+        return entry;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Entry get(int i) {
+        if (i >= size) {
+            throw new IndexOutOfBoundsException("Entry " + i + " of " + size);
+        }
+        return entries.get(i);
+    }
+
+    /**
+     * By name, or null.
+     */
+    public Entry find(String name) {
+        for (int i = 0; i < size; i++) {
+            if (entries.get(i).name.equals(name)) {
+                return entries.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * One line per metric, short enough for the on-screen HUD: stages as rate and p50/p99, counters as rate, gauges as
+     * value. Stages that saw nothing this window are left out.
+     */
+    public String format() {
+        StringBuilder text = new StringBuilder();
+
+        for (int i = 0; i < size; i++) {
+            Entry entry = entries.get(i);
+
+            switch (entry.kind) {
+                case HISTOGRAM:
+                    if (entry.count == 0) {
+                        continue;
+                    }
+                    text.append(String.format(Locale.US, "%-11s %5.1f/s %6.1f %6.1f ms", entry.name, entry.rate, entry.p50Ms,
+                            entry.p99Ms));
+                    break;
+                case COUNTER:
+                    text.append(String.format(Locale.US, "%-11s %5.1f/s (%d)", entry.name, entry.rate, entry.count));
+                    break;
+                default:
+                    text.append(String.format(Locale.US, "%-11s %7.2f", entry.name, entry.value));
+                    break;
+            }
+            text.append('\n');
+        }
+
+        //no trailing newline
+        if (text.length() > 0) {
+            text.setLength(text.length() - 1);
+        }
+        return text.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "window " + windowMs + "ms\n" + format();
+    }
+}
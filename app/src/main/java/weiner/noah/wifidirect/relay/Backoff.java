@@ -0,0 +1,47 @@
+package weiner.noah.wifidirect.relay;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter for reconnect attempts. Starts short, since the usual failure is a brief Wi-Fi blip,
+ * and caps out so we never sit idle for long once the link is back.
+ */
+public class Backoff {
+    private final long initialMs;
+    private final long maxMs;
+
+    //+- this fraction of the delay is random, so the phone and controller don't retry in lockstep
+    private static final double JITTER = 0.2;
+
+    private final Random random = new Random();
+    private long currentMs;
+    private int attempts = 0;
+
+    public Backoff(long initialMs, long maxMs) {
+        this.initialMs = initialMs;
+        this.maxMs = maxMs;
+        this.currentMs = initialMs;
+    }
+
+    /**
+     * @return how long to wait before the next attempt, doubling each call up to the cap
+     */
+    public synchronized long nextDelayMs() {
+        long base = currentMs;
+        currentMs = Math.min(maxMs, currentMs * 2);
+        attempts++;
+
+        double jitter = (random.nextDouble() * 2 - 1) * JITTER;
+        return Math.max(0, Math.round(base * (1 + jitter)));
+    }
+
+    //call once an attempt succeeds
+    public synchronized void reset() {
+        currentMs = initialMs;
+        attempts = 0;
+    }
+
+    public synchronized int getAttempts() {
+        return attempts;
+    }
+}
@@ -0,0 +1,83 @@
+package weiner.noah.wifidirect.relay;
+
+import java.io.IOException;
+
+/**
+ * Pings the controller down the relay socket a few times a second and feeds the echoes into a
+ * {@link LinkQualityMonitor}. Runs on its own thread, started once the controller says hello with a
+ * {@link weiner.noah.wifidirect.crtp.Signal#HEARTBEAT} frame, so controllers that don't echo never see a ping.
+ *
+ * Ping, phone to controller ({@link #LENGTH} bytes):
+ * <pre>
+ *   0  {@link #MAGIC}   1  seq (u16, little-endian)   3  link score, 0-255   4  setpoint rate the controller should use, Hz
+ * </pre>
+ * The controller echoes it as HEARTBEAT + the same seq, and doesn't get an ack for the echo.
+ */
+public class Heartbeat implements Runnable {
+    public interface IListener {
+        //called on the heartbeat thread after every ping
+        void onLinkQuality(LinkQualityMonitor monitor);
+    }
+
+    public static final byte MAGIC = (byte) 0xa7;
+    public static final int LENGTH = 5;
+
+    public static final long PERIOD_MS = 200;
+
+    private final PacketRelay relay;
+    private final LinkQualityMonitor monitor;
+    private final IListener listener;
+
+    private final byte[] ping = new byte[LENGTH];
+
+    private final Object lock = new Object();
+    private volatile boolean running = true;
+
+    public Heartbeat(PacketRelay relay, LinkQualityMonitor monitor, IListener listener) {
+        this.relay = relay;
+        this.monitor = monitor;
+        this.listener = listener;
+    }
+
+    public void stop() {
+        running = false;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                long now = System.nanoTime();
+                monitor.expire(now);
+
+                int seq = monitor.onPingSent(now);
+
+                ping[0] = MAGIC;
+                ping[1] = (byte) seq;
+                ping[2] = (byte) (seq >> 8);
+                ping[3] = (byte) Math.round(monitor.getScore() * 255);
+                ping[4] = (byte) monitor.recommendRateHz(RelayProtocol.MIN_SETPOINT_RATE_HZ, RelayProtocol.MAX_SETPOINT_RATE_HZ);
+                relay.write(ping, 0, LENGTH);
+
+                if (listener != null) {
+                    listener.onLinkQuality(monitor);
+                }
+
+                synchronized (lock) {
+                    if (running) {
+                        lock.wait(PERIOD_MS);
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            //relay socket is gone, PacketRelay will report it
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package weiner.noah.wifidirect.relay;
+
+import java.util.Arrays;
+
+import weiner.noah.wifidirect.crtp.CommanderPacket;
+import weiner.noah.wifidirect.crtp.CrtpPacket;
+import weiner.noah.wifidirect.crtp.HeightHoldPacket;
+
+/**
+ * Keeps the drone hovering while the controller link is down. Without it the drone just stops getting setpoints
+ * and its commander watchdog cuts the motors mid-air.
+ *
+ * While engaged we stream HeightHold packets at the last commanded height. If the link stays down past the hold
+ * timeout we bring the drone down the same way HumanFollower's LandRunnable does and stop the motors. We only hover
+ * if the last packet had a height in it: a raw Commander packet only gives us thrust, and holding that blind is
+ * worse than letting the watchdog land it.
+ */
+public class HoverFailsafe {
+    //how often to resend the hover setpoint, same as HumanFollower's HoverRunnable
+    private static final long HOVER_PERIOD_MS = 100;
+
+    //landing ramp, same as LandRunnable
+    private static final int LAND_STEPS = 50;
+    private static final long LAND_STEP_MS = 50;
+    private static final float LAND_FLOOR = 0.05f;
+
+    private final IDroneLink droneLink;
+    private final RelaySession session;
+    private final long holdTimeoutMs;
+
+    private volatile PacketRecorder recorder = null;
+
+    private final Object lock = new Object();
+    private Thread hoverThread = null;
+    private boolean cancelled = false;
+
+    //pad everything to what the drone expects over USB, same as PacketRelay does
+    private final byte[] usbFrame = new byte[RelayProtocol.USB_FRAME_LENGTH];
+    private final byte[] ack = new byte[RelayProtocol.RELAY_ACK_LENGTH];
+
+    public HoverFailsafe(IDroneLink droneLink, RelaySession session, long holdTimeoutMs) {
+        this.droneLink = droneLink;
+        this.session = session;
+        this.holdTimeoutMs = holdTimeoutMs;
+    }
+
+    public void setRecorder(PacketRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Start hovering, if there's a height to hold.
+     *
+     * @return the height we're holding, or NaN if we didn't engage
+     */
+    public float engage() {
+        synchronized (lock) {
+            final float height = session.getHoldHeight();
+
+            if (hoverThread != null || Float.isNaN(height) || droneLink == null || !droneLink.isConnected()) {
+                return hoverThread != null ? height : Float.NaN;
+            }
+
+            cancelled = false;
+            hoverThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    hover(height);
+                }
+            }, "HoverFailsafe");
+            hoverThread.start();
+
+            return height;
+        }
+    }
+
+    /**
+     * Stop hovering and wait for the last packet to finish going out, so whoever takes over the USB link next
+     * doesn't interleave with us.
+     */
+    public void disengage() {
+        Thread thread;
+
+        synchronized (lock) {
+            cancelled = true;
+            lock.notifyAll();
+            thread = hoverThread;
+        }
+
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public boolean isEngaged() {
+        synchronized (lock) {
+            return hoverThread != null;
+        }
+    }
+
+    private void hover(float height) {
+        try {
+            long start = System.currentTimeMillis();
+
+            //HOLD
+            while (System.currentTimeMillis() - start < holdTimeoutMs) {
+                send(new HeightHoldPacket(0, 0, 0, height));
+
+                if (sleepUnlessCancelled(HOVER_PERIOD_MS)) {
+                    return;
+                }
+            }
+
+            //DOWN SEQUENCE: link never came back, don't hover until the battery dies
+            for (int i = 0; i < LAND_STEPS; i++) {
+                send(new HeightHoldPacket(0, 0, 0, height + (LAND_FLOOR - height) * (i / (float) LAND_STEPS)));
+
+                if (sleepUnlessCancelled(LAND_STEP_MS)) {
+                    return;
+                }
+            }
+
+            //STOP
+            send(new CommanderPacket(0, 0, 0, (char) 0));
+            session.clearSetpoint();
+        }
+        finally {
+            synchronized (lock) {
+                hoverThread = null;
+            }
+        }
+    }
+
+    private void send(CrtpPacket packet) {
+        byte[] data = packet.toByteArray();
+
+        Arrays.fill(usbFrame, (byte) 0);
+        System.arraycopy(data, 0, usbFrame, 0, Math.min(data.length, usbFrame.length));
+
+        PacketRecorder rec = recorder;
+        if (rec != null) {
+            rec.record(PacketRecorder.FAILSAFE_OUT, usbFrame, 0, usbFrame.length);
+        }
+
+        droneLink.sendBulkTransfer(usbFrame, ack);
+    }
+
+    //returns true if disengage() was called
+    private boolean sleepUnlessCancelled(long ms) {
+        synchronized (lock) {
+            long deadline = System.currentTimeMillis() + ms;
+            long remaining;
+
+            while (!cancelled && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    lock.wait(remaining);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return true;
+                }
+            }
+
+            return cancelled;
+        }
+    }
+}
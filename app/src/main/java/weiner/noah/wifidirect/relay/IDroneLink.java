@@ -0,0 +1,12 @@
+package weiner.noah.wifidirect.relay;
+
+/**
+ * Whatever carries relayed packets to the drone. On the phone this is the USB link
+ * ({@link weiner.noah.wifidirect.usb.UsbController}); the PC tool swaps in a fake one for loopback runs.
+ */
+public interface IDroneLink {
+    //send one packet to the drone and block until it has acked, filling receiveData with whatever came back
+    int sendBulkTransfer(byte[] data, byte[] receiveData);
+
+    boolean isConnected();
+}
@@ -0,0 +1,15 @@
+package weiner.noah.wifidirect.relay;
+
+import java.io.IOException;
+
+import weiner.noah.wifidirect.crtp.Signal;
+
+/**
+ * Callbacks from {@link PacketRelay}. These run on the relay thread, so hand off anything slow.
+ */
+public interface IRelayListener {
+    void onSignal(Signal signal);
+
+    //cause is null if the controller just closed the socket
+    void onRelayStopped(String reason, IOException cause);
+}
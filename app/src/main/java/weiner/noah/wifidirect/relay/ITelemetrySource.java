@@ -0,0 +1,10 @@
+package weiner.noah.wifidirect.relay;
+
+/**
+ * Something that can fill in a {@link TelemetryFrame}. Called from the telemetry thread, so implementations need to
+ * be safe against their own update threads.
+ */
+public interface ITelemetrySource {
+    //fill in everything except seq and timeMs, which the streamer sets
+    void fillTelemetry(TelemetryFrame frame);
+}
@@ -0,0 +1,240 @@
+package weiner.noah.wifidirect.relay;
+
+/**
+ * Round trip, jitter and loss of the relay link over the last few {@link Heartbeat} pings, boiled down to one score
+ * between 0 (unusable) and 1 (clean).
+ *
+ * A ping counts as lost if its echo doesn't come back within the loss timeout. TCP won't actually drop it, but on a
+ * congested Wi-Fi Direct link an echo that late is stuck behind retransmissions, which is what we want to back off
+ * from. Safe to call from any thread.
+ */
+public class LinkQualityMonitor {
+    //each of rtt, jitter and loss scores 1 at or below "good" and 0 at or above "bad", linearly in between
+    private static final double GOOD_RTT_MS = 10;
+    private static final double BAD_RTT_MS = 150;
+    private static final double GOOD_JITTER_MS = 5;
+    private static final double BAD_JITTER_MS = 50;
+    private static final double BAD_LOSS = 0.2;
+
+    //slot states
+    private static final double PENDING = -1;
+    private static final double LOST = -2;
+
+    private final int window;
+    private final long lossTimeoutNanos;
+
+    //ring of the last `window` pings, oldest at `head`
+    private final int[] seqs;
+    private final long[] sentNanos;
+    private final double[] rttMs;
+    private int head = 0;
+    private int size = 0;
+
+    private int nextSeq = 1;
+
+    //recomputed on every change
+    private double meanRttMs = Double.NaN;
+    private double jitterMs = Double.NaN;
+    private double lossRate = 0;
+    private double score = 1;
+
+    private long pingsSent = 0;
+    private long echoesReceived = 0;
+
+    public LinkQualityMonitor(int window, long lossTimeoutMs) {
+        this.window = window;
+        this.lossTimeoutNanos = lossTimeoutMs * 1000000L;
+
+        seqs = new int[window];
+        sentNanos = new long[window];
+        rttMs = new double[window];
+    }
+
+    /**
+     * Forget everything, e.g. for a new socket.
+     */
+    public synchronized void reset() {
+        head = 0;
+        size = 0;
+        nextSeq = 1;
+        meanRttMs = Double.NaN;
+        jitterMs = Double.NaN;
+        lossRate = 0;
+        score = 1;
+    }
+
+    /**
+     * Note a ping going out.
+     *
+     * @return its sequence number, 1-65535 (0 is reserved for the controller's hello)
+     */
+    public synchronized int onPingSent(long nowNanos) {
+        int seq = nextSeq;
+        nextSeq = nextSeq == 0xffff ? 1 : nextSeq + 1;
+
+        //full window: the oldest ping falls out, answered or not
+        int slot;
+        if (size == window) {
+            slot = head;
+            head = (head + 1) % window;
+        }
+        else {
+            slot = (head + size) % window;
+            size++;
+        }
+
+        seqs[slot] = seq;
+        sentNanos[slot] = nowNanos;
+        rttMs[slot] = PENDING;
+        pingsSent++;
+
+        recompute();
+        return seq;
+    }
+
+    /**
+     * The controller echoed a ping back.
+     *
+     * @return false if we don't know the ping (too old, or from before a reset)
+     */
+    public synchronized boolean onEcho(int seq, long nowNanos) {
+        for (int i = 0; i < size; i++) {
+            int slot = (head + i) % window;
+
+            if (seqs[slot] == seq) {
+                //late echoes of pings we already gave up on stay lost
+                if (rttMs[slot] != PENDING) {
+                    return false;
+                }
+
+                rttMs[slot] = (nowNanos - sentNanos[slot]) / 1e6;
+                echoesReceived++;
+                recompute();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Mark pings that have waited too long as lost.
+     */
+    public synchronized void expire(long nowNanos) {
+        boolean changed = false;
+
+        for (int i = 0; i < size; i++) {
+            int slot = (head + i) % window;
+
+            if (rttMs[slot] == PENDING && nowNanos - sentNanos[slot] > lossTimeoutNanos) {
+                rttMs[slot] = LOST;
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            recompute();
+        }
+    }
+
+    //lock must be held
+    private void recompute() {
+        int answered = 0;
+        int lost = 0;
+        double sum = 0;
+        double jitterSum = 0;
+        double previous = Double.NaN;
+
+        //oldest to newest, so jitter is the mean change between consecutive round trips
+        for (int i = 0; i < size; i++) {
+            double rtt = rttMs[(head + i) % window];
+
+            if (rtt == LOST) {
+                lost++;
+            }
+            else if (rtt >= 0) {
+                if (!Double.isNaN(previous)) {
+                    jitterSum += Math.abs(rtt - previous);
+                }
+                previous = rtt;
+                sum += rtt;
+                answered++;
+            }
+        }
+
+        meanRttMs = answered > 0 ? sum / answered : Double.NaN;
+        jitterMs = answered > 1 ? jitterSum / (answered - 1) : Double.NaN;
+        lossRate = answered + lost > 0 ? lost / (double) (answered + lost) : 0;
+
+        //the worst of the three decides: a fast link that drops a fifth of its pings is still a bad link
+        double s = ramp(lossRate, 0, BAD_LOSS);
+        if (!Double.isNaN(meanRttMs)) {
+            s = Math.min(s, ramp(meanRttMs, GOOD_RTT_MS, BAD_RTT_MS));
+        }
+        if (!Double.isNaN(jitterMs)) {
+            s = Math.min(s, ramp(jitterMs, GOOD_JITTER_MS, BAD_JITTER_MS));
+        }
+        score = s;
+    }
+
+    //1 at or below good, 0 at or above bad
+    private static double ramp(double value, double good, double bad) {
+        if (value <= good) {
+            return 1;
+        }
+        if (value >= bad) {
+            return 0;
+        }
+        return 1 - (value - good) / (bad - good);
+    }
+
+    /**
+     * 0 (unusable) to 1 (clean). Stays at 1 until the first ping is answered or lost.
+     */
+    public synchronized double getScore() {
+        return score;
+    }
+
+    //NaN until a ping is answered
+    public synchronized double getRttMs() {
+        return meanRttMs;
+    }
+
+    //NaN until two pings are answered
+    public synchronized double getJitterMs() {
+        return jitterMs;
+    }
+
+    public synchronized double getLossRate() {
+        return lossRate;
+    }
+
+    public synchronized long getPingsSent() {
+        return pingsSent;
+    }
+
+    public synchronized long getEchoesReceived() {
+        return echoesReceived;
+    }
+
+    /**
+     * How fast the controller should send setpoints: maxHz on a clean link, down to minHz as the score drops.
+     */
+    public synchronized int recommendRateHz(int minHz, int maxHz) {
+        return minHz + (int) Math.round((maxHz - minHz) * score);
+    }
+
+    /**
+     * How long the socket may stay silent before we give up on it and hand the drone to the failsafe: minMs on a
+     * clean link, where silence really means the controller is gone, up to maxMs on a congested one, where it's
+     * more likely a stall we'd only make worse by reconnecting.
+     */
+    public synchronized int recommendFailsafeTimeoutMs(int minMs, int maxMs) {
+        return minMs + (int) Math.round((maxMs - minMs) * (1 - score));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("score %.2f, rtt %.1fms, jitter %.1fms, loss %.0f%% (%d pings, %d echoes)", score, meanRttMs, jitterMs,
+                lossRate * 100, pingsSent, echoesReceived);
+    }
+}
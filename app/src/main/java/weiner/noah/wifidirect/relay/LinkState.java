@@ -0,0 +1,20 @@
+package weiner.noah.wifidirect.relay;
+
+/**
+ * Where {@link RelayConnector} is in getting the controller link (back) up.
+ */
+public enum LinkState {
+    //no Wi-Fi Direct group, nothing to connect to
+    WAITING_FOR_GROUP,
+
+    //group is up but the drone's USB link isn't
+    WAITING_FOR_DRONE,
+
+    CONNECTING,
+    RELAYING,
+
+    //last attempt failed or the link dropped, waiting before the next try
+    BACKOFF,
+
+    STOPPED;
+}
@@ -0,0 +1,156 @@
+package weiner.noah.wifidirect.relay;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import weiner.noah.wifidirect.crtp.CrtpPacket;
+import weiner.noah.wifidirect.metrics.MetricsSnapshot;
+
+/**
+ * The phone's stage metrics, sent in answer to {@link weiner.noah.wifidirect.crtp.Signal#METRICS}: whatever the
+ * phone's {@link weiner.noah.wifidirect.metrics.MetricsRegistry} saw since the controller last asked on this
+ * connection.
+ *
+ * Variable length, little-endian, at most {@link #MAX_LENGTH} bytes:
+ * <pre>
+ *  0  magic 0xA8    1  version    2  frame length (u16)    4  entry count (u16)    6  reserved    8  window ms (u32)
+ * 12  entries, each: kind (u8), name length (u8), name (ASCII), then
+ *       histogram: samples (u32), rate/s (f32), p50 ms (f32), p99 ms (f32), max ms (f32)
+ *       counter:   total (s64), rate/s (f32)
+ *       gauge:     value (f32)
+ * </pre>
+ * Entries that don't fit are left off the end.
+ */
+public class MetricsFrame {
+    public static final byte MAGIC = (byte) 0xa8;
+    public static final byte VERSION = 1;
+    public static final int HEADER_LENGTH = 12;
+    public static final int MAX_LENGTH = 1024;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private MetricsFrame() {
+    }
+
+    public static ByteBuffer newBuffer() {
+        return ByteBuffer.allocate(MAX_LENGTH).order(CrtpPacket.BYTE_ORDER);
+    }
+
+    /**
+     * Write the snapshot into out from position 0. out must be little-endian and {@link #MAX_LENGTH} long.
+     *
+     * @return the frame's length
+     */
+    public static int encode(MetricsSnapshot snapshot, ByteBuffer out) {
+        out.clear();
+        out.position(HEADER_LENGTH);
+
+        int written = 0;
+        for (int i = 0; i < snapshot.size(); i++) {
+            MetricsSnapshot.Entry entry = snapshot.get(i);
+            byte[] name = entry.name.getBytes(ASCII);
+            int length = 2 + name.length + bodyLength(entry.kind);
+
+            if (out.position() + length > MAX_LENGTH) {
+                break;
+            }
+
+            out.put((byte) entry.kind);
+            out.put((byte) name.length);
+            out.put(name);
+
+            switch (entry.kind) {
+                case MetricsSnapshot.HISTOGRAM:
+                    out.putInt((int) Math.min(entry.count, 0xffffffffL));
+                    out.putFloat((float) entry.rate);
+                    out.putFloat((float) entry.p50Ms);
+                    out.putFloat((float) entry.p99Ms);
+                    out.putFloat((float) entry.maxMs);
+                    break;
+                case MetricsSnapshot.COUNTER:
+                    out.putLong(entry.count);
+                    out.putFloat((float) entry.rate);
+                    break;
+                default:
+                    out.putFloat((float) entry.value);
+                    break;
+            }
+            written++;
+        }
+
+        int frameLength = out.position();
+        out.put(0, MAGIC);
+        out.put(1, VERSION);
+        out.putShort(2, (short) frameLength);
+        out.putShort(4, (short) written);
+        out.putShort(6, (short) 0);
+        out.putInt(8, snapshot.windowMs);
+        return frameLength;
+    }
+
+    /**
+     * Read a whole frame (header included) from in at position 0.
+     *
+     * @return false if the magic, version or lengths don't add up
+     */
+    public static boolean decode(ByteBuffer in, MetricsSnapshot out) {
+        out.clear();
+
+        if (in.limit() < HEADER_LENGTH || in.get(0) != MAGIC || in.get(1) != VERSION) {
+            return false;
+        }
+
+        int frameLength = in.getShort(2) & 0xffff;
+        int count = in.getShort(4) & 0xffff;
+        if (frameLength > in.limit()) {
+            return false;
+        }
+        out.windowMs = in.getInt(8);
+
+        in.position(HEADER_LENGTH);
+        for (int i = 0; i < count; i++) {
+            if (in.position() + 2 > frameLength) {
+                return false;
+            }
+            int kind = in.get();
+            int nameLength = in.get() & 0xff;
+            if (kind < MetricsSnapshot.HISTOGRAM || kind > MetricsSnapshot.GAUGE ||
+                    in.position() + nameLength + bodyLength(kind) > frameLength) {
+                return false;
+            }
+
+            byte[] name = new byte[nameLength];
+            in.get(name);
+            MetricsSnapshot.Entry entry = out.add(kind, new String(name, ASCII));
+
+            switch (kind) {
+                case MetricsSnapshot.HISTOGRAM:
+                    entry.count = in.getInt() & 0xffffffffL;
+                    entry.rate = in.getFloat();
+                    entry.p50Ms = in.getFloat();
+                    entry.p99Ms = in.getFloat();
+                    entry.maxMs = in.getFloat();
+                    break;
+                case MetricsSnapshot.COUNTER:
+                    entry.count = in.getLong();
+                    entry.rate = in.getFloat();
+                    break;
+                default:
+                    entry.value = in.getFloat();
+                    break;
+            }
+        }
+        return in.position() == frameLength;
+    }
+
+    private static int bodyLength(int kind) {
+        switch (kind) {
+            case MetricsSnapshot.HISTOGRAM:
+                return 20;
+            case MetricsSnapshot.COUNTER:
+                return 12;
+            default:
+                return 4;
+        }
+    }
+}
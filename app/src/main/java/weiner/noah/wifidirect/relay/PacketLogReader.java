@@ -0,0 +1,136 @@
+package weiner.noah.wifidirect.relay;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads a log written by {@link PacketRecorder}, one record at a time.
+ *
+ * Usage: while (reader.next()) { reader.getDirection(); reader.getPayload(); ... }
+ * The payload array is reused between records.
+ */
+public class PacketLogReader implements Closeable {
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final long startWallMs;
+
+    //end of the last complete record
+    private final long committedLength;
+
+    private long pos = PacketRecorder.HEADER_LENGTH;
+
+    private long nanos;
+    private byte direction;
+    private int length;
+    private byte[] payload = new byte[256];
+
+    public PacketLogReader(File path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        FileChannel channel = file.getChannel();
+
+        long size = channel.size();
+        if (size < PacketRecorder.HEADER_LENGTH) {
+            file.close();
+            throw new IOException("Not a packet log: too short");
+        }
+
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        byte[] magic = new byte[PacketRecorder.MAGIC.length];
+        buffer.get(magic);
+        if (!Arrays.equals(magic, PacketRecorder.MAGIC)) {
+            file.close();
+            throw new IOException("Not a packet log: bad magic");
+        }
+
+        //a log from a crashed run can be longer than what was committed, never read past the commit point
+        committedLength = Math.min(size, buffer.getLong(8));
+        startWallMs = buffer.getLong(16);
+    }
+
+    /**
+     * Move to the next record.
+     *
+     * @return false at the end of the log
+     */
+    public boolean next() {
+        if (pos + PacketRecorder.RECORD_HEADER_LENGTH > committedLength) {
+            return false;
+        }
+
+        int p = (int) pos;
+        long recordNanos = buffer.getLong(p);
+        byte recordDirection = buffer.get(p + 8);
+        int recordLength = buffer.getShort(p + 9) & 0xffff;
+
+        if (pos + PacketRecorder.RECORD_HEADER_LENGTH + recordLength > committedLength) {
+            return false;
+        }
+
+        if (recordLength > payload.length) {
+            payload = new byte[recordLength];
+        }
+        buffer.position(p + PacketRecorder.RECORD_HEADER_LENGTH);
+        buffer.get(payload, 0, recordLength);
+
+        nanos = recordNanos;
+        direction = recordDirection;
+        length = recordLength;
+        pos += PacketRecorder.RECORD_HEADER_LENGTH + recordLength;
+        return true;
+    }
+
+    //ns since the recorder started
+    public long getNanos() {
+        return nanos;
+    }
+
+    public byte getDirection() {
+        return direction;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public long getStartWallMs() {
+        return startWallMs;
+    }
+
+    public static String directionName(byte direction) {
+        switch (direction) {
+            case PacketRecorder.SOCKET_IN:
+                return "SOCKET_IN";
+            case PacketRecorder.RELAY_OUT:
+                return "RELAY_OUT";
+            case PacketRecorder.SETPOINT_OUT:
+                return "SETPOINT_OUT";
+            case PacketRecorder.USB_ACK:
+                return "USB_ACK";
+            case PacketRecorder.CONTROLLER_OUT:
+                return "CONTROLLER_OUT";
+            case PacketRecorder.RELAY_STATE:
+                return "RELAY_STATE";
+            case PacketRecorder.FAILSAFE_OUT:
+                return "FAILSAFE_OUT";
+            default:
+                return "UNKNOWN(" + direction + ")";
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
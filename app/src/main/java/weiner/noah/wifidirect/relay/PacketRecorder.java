@@ -0,0 +1,173 @@
+package weiner.noah.wifidirect.relay;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Append-only binary log of everything that goes over the relay and USB links, for replaying real flights later
+ * (see pctool's ReplayTool).
+ *
+ * The file is memory-mapped in {@link #REGION_SIZE} windows, so recording a packet is a few stores into the page
+ * cache with no syscall and no allocation. Recording is safe from any thread.
+ *
+ * Layout, little-endian:
+ * <pre>
+ * header ({@link #HEADER_LENGTH} bytes):
+ *   0  magic "CRTPLOG1"   8  committed length of the file (s64)   16  wall clock at start, ms (s64)
+ * record:
+ *   0  ns since start (s64)   8  direction (u8)   9  payload length (u16)   11  payload
+ * </pre>
+ * The committed length is updated after every record, so if the app dies mid-flight the reader still knows where
+ * the last complete record ends.
+ */
+public class PacketRecorder implements Closeable {
+    public static final byte[] MAGIC = {'C', 'R', 'T', 'P', 'L', 'O', 'G', '1'};
+    public static final int HEADER_LENGTH = 24;
+    public static final int RECORD_HEADER_LENGTH = 11;
+
+    //raw chunk as read off the controller socket, before framing
+    public static final byte SOCKET_IN = 1;
+
+    //frame PacketRelay passed through to the drone, recorded just before it goes out
+    public static final byte RELAY_OUT = 2;
+
+    //setpoint HumanFollower sent to the drone
+    public static final byte SETPOINT_OUT = 3;
+
+    //byte read back from the drone over USB (0x09 ack, 0xcc ack request)
+    public static final byte USB_ACK = 4;
+
+    //bytes written back to the controller: acks, telemetry, session frames
+    public static final byte CONTROLLER_OUT = 5;
+
+    //relaying switched on (1) or off (0)
+    public static final byte RELAY_STATE = 6;
+
+    //hover packet sent by HoverFailsafe while the controller link was down
+    public static final byte FAILSAFE_OUT = 7;
+
+    static final long REGION_SIZE = 4L * 1024 * 1024;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+
+    //first HEADER_LENGTH bytes, kept mapped for the committed length
+    private final MappedByteBuffer header;
+
+    //current write window and where it starts in the file
+    private MappedByteBuffer region;
+    private long regionStart;
+
+    private long writePos = HEADER_LENGTH;
+    private final long startNanos;
+    private long recordCount = 0;
+    private boolean closed = false;
+
+    public PacketRecorder(File path) throws IOException {
+        file = new RandomAccessFile(path, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_LENGTH);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+
+        startNanos = System.nanoTime();
+
+        header.put(MAGIC);
+        header.putLong(8, writePos);
+        header.putLong(16, System.currentTimeMillis());
+
+        mapRegion(writePos);
+    }
+
+    private void mapRegion(long start) throws IOException {
+        region = channel.map(FileChannel.MapMode.READ_WRITE, start, REGION_SIZE);
+        region.order(ByteOrder.LITTLE_ENDIAN);
+        regionStart = start;
+    }
+
+    public void record(byte direction, byte[] data) {
+        record(direction, data, 0, data.length);
+    }
+
+    /**
+     * Append one record. Never throws: if the log can't be written we stop recording rather than take the flight down
+     * with us.
+     */
+    public synchronized void record(byte direction, byte[] data, int offset, int length) {
+        if (closed) {
+            return;
+        }
+
+        //length goes in a u16, nothing we record comes close
+        length = Math.min(length, 0xffff);
+
+        long now = System.nanoTime() - startNanos;
+        int recordLength = RECORD_HEADER_LENGTH + length;
+
+        try {
+            //records never straddle windows, start a new one at the write position instead
+            if (writePos + recordLength > regionStart + REGION_SIZE) {
+                mapRegion(writePos);
+            }
+        }
+        catch (IOException e) {
+            closeQuietly();
+            return;
+        }
+
+        int pos = (int) (writePos - regionStart);
+        region.putLong(pos, now);
+        region.put(pos + 8, direction);
+        region.putShort(pos + 9, (short) length);
+        region.position(pos + RECORD_HEADER_LENGTH);
+        region.put(data, offset, length);
+
+        writePos += recordLength;
+        recordCount++;
+
+        //commit only once the whole record is in
+        header.putLong(8, writePos);
+    }
+
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    public synchronized long getLength() {
+        return writePos;
+    }
+
+    /**
+     * Flush the mapped pages and trim the file to what was actually written.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        region.force();
+        header.force();
+
+        //drop the unused tail of the last window
+        channel.truncate(writePos);
+        channel.close();
+        file.close();
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        }
+        catch (IOException e) {
+            //already failing, nothing more to do
+        }
+    }
+}
@@ -0,0 +1,373 @@
+package weiner.noah.wifidirect.relay;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import weiner.noah.wifidirect.crtp.CrtpPacket;
+import weiner.noah.wifidirect.crtp.Signal;
+import weiner.noah.wifidirect.metrics.Histogram;
+import weiner.noah.wifidirect.metrics.MetricsRegistry;
+import weiner.noah.wifidirect.metrics.MetricsSnapshot;
+
+/**
+ * The relay loop: read frames from the controller, pass packets through to the drone, answer every frame with
+ * an ack. Pulled out of MainActivity so it doesn't depend on Android and the PC tool can run the exact same
+ * code over loopback.
+ */
+public class PacketRelay implements Runnable, RelayFrameDecoder.IFrameSink {
+    private final InputStream inStream;
+    private final OutputStream outStream;
+    private final IDroneLink droneLink;
+    private final IRelayListener listener;
+
+    //shared with whoever toggles relaying (MainActivity.setRelay())
+    private final AtomicBoolean relayOn;
+
+    private final RelayFrameDecoder decoder = new RelayFrameDecoder();
+
+    //raw socket reads, big enough for a few frames at once
+    private final byte[] readBuffer = new byte[RelayProtocol.MAX_FRAME_LENGTH * 4];
+
+    //what goes out over USB. The drone always expects USB_FRAME_LENGTH bytes, shorter packets are zero padded
+    private final byte[] usbFrame = new byte[RelayProtocol.USB_FRAME_LENGTH];
+
+    //ack written back to the controller for relayed packets
+    private final byte[] relayAck = new byte[RelayProtocol.RELAY_ACK_LENGTH];
+
+    private final byte[] fakeAck = new byte[] {RelayProtocol.ACK_FAKE};
+    private final byte[] relayAckHeader = new byte[] {RelayProtocol.ACK_RELAYED};
+
+    //the controller asked for relayed acks to come with a header (Signal.FRAMED_ACKS)
+    private boolean framedAcks = false;
+
+    //acks and telemetry come from different threads, so every write to the controller goes through this
+    private final Object writeLock = new Object();
+
+    private RelaySession session = null;
+    private final ByteBuffer sessionBuffer = ByteBuffer.allocate(RelaySession.FRAME_LENGTH).order(CrtpPacket.BYTE_ORDER);
+
+    //answers Signal.METRICS, with its own window so the controller's queries don't disturb the HUD's
+    private MetricsRegistry.Reader metricsReader = null;
+    private final MetricsSnapshot metricsSnapshot = new MetricsSnapshot();
+    private ByteBuffer metricsBuffer = null;
+    private Histogram usbHistogram = null;
+
+    private ITelemetrySource telemetrySource = null;
+    private PacketRecorder recorder = null;
+    private volatile TelemetryStreamer telemetryStreamer = null;
+
+    private LinkQualityMonitor linkQuality = null;
+    private Heartbeat.IListener linkQualityListener = null;
+    private Heartbeat heartbeat = null;
+
+    private volatile boolean running = true;
+
+    private long relayedCount = 0;
+    private long signalCount = 0;
+    private long skippedCount = 0;
+
+    public PacketRelay(InputStream inStream, OutputStream outStream, IDroneLink droneLink, IRelayListener listener,
+                       AtomicBoolean relayOn) {
+        this.inStream = inStream;
+        this.outStream = outStream;
+        this.droneLink = droneLink;
+        this.listener = listener;
+        this.relayOn = relayOn;
+    }
+
+    /**
+     * Session to count acks and remember setpoints in. Leave unset for a one-off relay.
+     */
+    public void setSession(RelaySession session) {
+        this.session = session;
+    }
+
+    /**
+     * Log every socket read, relayed packet and reply here. Leave unset to not record.
+     */
+    public void setRecorder(PacketRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Metrics to answer the controller's metrics queries from, and to time USB sends into. Leave unset to answer
+     * them with a fake ack.
+     */
+    public void setMetrics(MetricsRegistry registry) {
+        this.metricsReader = registry.newReader();
+        this.metricsBuffer = MetricsFrame.newBuffer();
+        this.usbHistogram = registry.histogram("relay");
+    }
+
+    /**
+     * Where telemetry comes from if the controller asks for it. Leave unset to ignore telemetry requests.
+     */
+    public void setTelemetrySource(ITelemetrySource source) {
+        this.telemetrySource = source;
+    }
+
+    /**
+     * Where to keep heartbeat stats, and who to tell after each ping. Leave unset to ignore heartbeats.
+     */
+    public void setLinkQuality(LinkQualityMonitor monitor, Heartbeat.IListener listener) {
+        this.linkQuality = monitor;
+        this.linkQualityListener = listener;
+    }
+
+    @Override
+    public void run() {
+        try {
+            relayLoop();
+        }
+        finally {
+            if (heartbeat != null) {
+                heartbeat.stop();
+            }
+            if (telemetryStreamer != null) {
+                telemetryStreamer.stop();
+            }
+        }
+    }
+
+    private void relayLoop() {
+        //infinitely get packets from the controller, relay them to the drone, and send the ack back to the controller
+        while (running) {
+            if (droneLink == null || !droneLink.isConnected()) {
+                listener.onRelayStopped("Drone link is down", null);
+                return;
+            }
+
+            int amtDataRead;
+
+            try {
+                //this call blocks until it reads in data
+                amtDataRead = inStream.read(readBuffer);
+
+                //controller closed the socket
+                if (amtDataRead < 0) {
+                    listener.onRelayStopped("Controller closed the connection", null);
+                    return;
+                }
+
+                if (recorder != null) {
+                    recorder.record(PacketRecorder.SOCKET_IN, readBuffer, 0, amtDataRead);
+                }
+
+                decoder.feed(readBuffer, 0, amtDataRead, this);
+            }
+
+            catch (IOException e) {
+                //socket is gone, looping here would just spin on the same exception
+                if (running) {
+                    listener.onRelayStopped("Relay socket error", e);
+                }
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void onFrame(byte[] frame, int length) throws IOException {
+        if (length == RelayProtocol.TELEMETRY_REQUEST_LENGTH && frame[0] == Signal.TELEMETRY.getNumber()) {
+            setTelemetryRate(frame[1] & 0xff);
+            write(fakeAck, 0, fakeAck.length);
+            return;
+        }
+
+        //heartbeat echoes aren't acked and don't count as frames either, the controller doesn't wait on them
+        if (length == RelayProtocol.HEARTBEAT_ECHO_LENGTH && frame[0] == Signal.HEARTBEAT.getNumber()) {
+            onHeartbeat((frame[1] & 0xff) | (frame[2] & 0xff) << 8);
+            return;
+        }
+
+        //session query doesn't count as a frame, so the controller can compare the count against its own
+        if (length == 1 && frame[0] == Signal.SESSION.getNumber()) {
+            if (session != null) {
+                sessionBuffer.clear();
+                session.encode(sessionBuffer);
+                write(sessionBuffer.array(), 0, RelaySession.FRAME_LENGTH);
+            }
+            else {
+                write(fakeAck, 0, fakeAck.length);
+            }
+            return;
+        }
+
+        //asking for framed acks is a setting too, not a frame
+        if (length == 1 && frame[0] == Signal.FRAMED_ACKS.getNumber()) {
+            framedAcks = true;
+            write(fakeAck, 0, fakeAck.length);
+            return;
+        }
+
+        //nor does a metrics query
+        if (length == 1 && frame[0] == Signal.METRICS.getNumber()) {
+            if (metricsReader != null) {
+                metricsReader.read(metricsSnapshot);
+                int frameLength = MetricsFrame.encode(metricsSnapshot, metricsBuffer);
+                write(metricsBuffer.array(), 0, frameLength);
+            }
+            else {
+                write(fakeAck, 0, fakeAck.length);
+            }
+            return;
+        }
+
+        //count it before the ack goes out: if the write fails the drone still got the packet, and the controller
+        //will see that in the count after it reconnects
+        if (session != null) {
+            session.onFrameHandled();
+        }
+
+        relayFrame(frame, length);
+    }
+
+    private void relayFrame(byte[] frame, int length) throws IOException {
+        //a lone byte that isn't a NULL packet is a flag from the controller's Flagger
+        if (length == 1 && RelayProtocol.isSignal(frame[0])) {
+            signalCount++;
+            listener.onSignal(Signal.getByNumber(frame[0]));
+
+            //FIXME: how to deal with ack?
+            //send fake ack back to controller
+            write(fakeAck, 0, fakeAck.length);
+        }
+
+        //otherwise a packet, so relay it, as long as we currently have relaying turned on
+        else if (relayOn.get()) {
+            Arrays.fill(usbFrame, (byte) 0);
+            System.arraycopy(frame, 0, usbFrame, 0, Math.min(length, usbFrame.length));
+
+            if (recorder != null) {
+                recorder.record(PacketRecorder.RELAY_OUT, usbFrame, 0, usbFrame.length);
+            }
+
+            //put the packet thru to the drone, getting the ack back. Cleared first, so a short or failed transfer doesn't
+            //echo the last packet's ack
+            Arrays.fill(relayAck, (byte) 0);
+            long start = System.nanoTime();
+            droneLink.sendBulkTransfer(usbFrame, relayAck);
+            if (usbHistogram != null) {
+                usbHistogram.recordSince(start);
+            }
+            relayedCount++;
+
+            if (session != null) {
+                session.recordSetpoint(frame, length);
+            }
+
+            //send ack to controller, as the drone sent it
+            if (framedAcks) {
+                synchronized (writeLock) {
+                    write(relayAckHeader, 0, relayAckHeader.length);
+                    write(relayAck, 0, relayAck.length);
+                }
+            }
+            else {
+                write(relayAck, 0, relayAck.length);
+            }
+        }
+
+        else {
+            //regular packet, but relay not allowed
+            skippedCount++;
+            write(fakeAck, 0, fakeAck.length);
+        }
+    }
+
+    private void onHeartbeat(int seq) {
+        if (linkQuality == null) {
+            return;
+        }
+
+        if (seq != 0) {
+            linkQuality.onEcho(seq, System.nanoTime());
+            return;
+        }
+
+        //hello: the controller can echo, start pinging
+        if (heartbeat == null) {
+            heartbeat = new Heartbeat(this, linkQuality, new Heartbeat.IListener() {
+                @Override
+                public void onLinkQuality(LinkQualityMonitor monitor) {
+                    adaptToLinkQuality(monitor);
+                }
+            });
+            Thread heartbeatThread = new Thread(heartbeat, "Heartbeat");
+            heartbeatThread.setDaemon(true);
+            heartbeatThread.start();
+        }
+    }
+
+    //called on the heartbeat thread
+    private void adaptToLinkQuality(LinkQualityMonitor monitor) {
+        //telemetry is the one stream we can thin out ourselves, don't let it compete with setpoints on a bad link
+        TelemetryStreamer streamer = telemetryStreamer;
+        if (streamer != null) {
+            streamer.setRateCap(monitor.recommendRateHz(1, RelayProtocol.MAX_TELEMETRY_RATE_HZ));
+        }
+
+        if (linkQualityListener != null) {
+            linkQualityListener.onLinkQuality(monitor);
+        }
+    }
+
+    private void setTelemetryRate(int hz) {
+        if (telemetrySource == null) {
+            return;
+        }
+
+        if (telemetryStreamer == null) {
+            if (hz == 0) {
+                return;
+            }
+
+            telemetryStreamer = new TelemetryStreamer(this, telemetrySource);
+            Thread telemetryThread = new Thread(telemetryStreamer, "TelemetryStreamer");
+            telemetryThread.setDaemon(true);
+            telemetryThread.start();
+        }
+
+        telemetryStreamer.setRate(hz);
+    }
+
+    /**
+     * Write bytes to the controller without interleaving with another thread's write.
+     */
+    public void write(byte[] data, int offset, int length) throws IOException {
+        synchronized (writeLock) {
+            if (recorder != null) {
+                recorder.record(PacketRecorder.CONTROLLER_OUT, data, offset, length);
+            }
+
+            outStream.write(data, offset, length);
+        }
+    }
+
+    /**
+     * Ask the loop to exit. It only notices after the current read returns, so close the socket as well.
+     */
+    public void stop() {
+        running = false;
+    }
+
+    public long getRelayedCount() {
+        return relayedCount;
+    }
+
+    public long getSignalCount() {
+        return signalCount;
+    }
+
+    public long getSkippedCount() {
+        return skippedCount;
+    }
+
+    public RelayFrameDecoder getDecoder() {
+        return decoder;
+    }
+}
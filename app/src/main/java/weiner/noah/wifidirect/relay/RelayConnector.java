@@ -0,0 +1,356 @@
+package weiner.noah.wifidirect.relay;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import weiner.noah.wifidirect.metrics.MetricsRegistry;
+
+/**
+ * Keeps a relay socket to the controller up for as long as we have a Wi-Fi Direct group: connects, runs a
+ * {@link PacketRelay} until it drops, then retries with {@link Backoff}. The {@link RelaySession} carries over from
+ * one socket to the next, and {@link HoverFailsafe} keeps the drone in the air while we're reconnecting.
+ *
+ * Whoever watches the group (MainActivity's ConnectionManager, or the PC tool in loopback) tells us when it comes and
+ * goes with {@link #onGroupFormed} and {@link #onGroupLost}.
+ *
+ * The socket blocks on reads until the controller says hello with a {@link Heartbeat}: a controller that doesn't echo
+ * pings can go quiet for as long as it likes, and that's not a dead link. Once it echoes, the phone hears from it every
+ * {@link Heartbeat#PERIOD_MS}, so the read timeout (how long a silent socket is tolerated before the failsafe takes
+ * over) is set, and follows the {@link LinkQualityMonitor} score between the bounds given to
+ * {@link #setAdaptiveReadTimeoutMs}.
+ */
+public class RelayConnector implements Runnable {
+    public interface IConnectionListener {
+        void onLinkStateChanged(LinkState state, String detail);
+    }
+
+    private final int port;
+    private final IDroneLink droneLink;
+    private final IRelayListener relayListener;
+    private final IConnectionListener connectionListener;
+    private final AtomicBoolean relayOn;
+
+    private final RelaySession session;
+    private final HoverFailsafe failsafe;
+    private final Backoff backoff;
+
+    private int connectTimeoutMs = 10000;
+
+    //applied once heartbeats are running, 0 keeps blocking forever
+    private int readTimeoutMs = 0;
+
+    //0 keeps readTimeoutMs fixed even when heartbeats are running
+    private int minReadTimeoutMs = 0;
+    private int maxReadTimeoutMs = 0;
+
+    //window of 25 pings is 5s at Heartbeat.PERIOD_MS
+    private final LinkQualityMonitor linkQuality = new LinkQualityMonitor(25, 1000);
+
+    private ITelemetrySource telemetrySource = null;
+    private PacketRecorder recorder = null;
+    private MetricsRegistry metrics = null;
+
+    private final Object lock = new Object();
+    private String groupOwnerHost = null;
+
+    //bumped on every group change, so a backoff wait can tell something happened
+    private int groupGeneration = 0;
+    private Socket currentSocket = null;
+    private PacketRelay currentRelay = null;
+    private volatile boolean running = true;
+    private LinkState state = null;
+
+    public RelayConnector(int port, IDroneLink droneLink, IRelayListener relayListener, IConnectionListener connectionListener,
+                          AtomicBoolean relayOn, RelaySession session, HoverFailsafe failsafe, Backoff backoff) {
+        this.port = port;
+        this.droneLink = droneLink;
+        this.relayListener = relayListener;
+        this.connectionListener = connectionListener;
+        this.relayOn = relayOn;
+        this.session = session;
+        this.failsafe = failsafe;
+        this.backoff = backoff;
+    }
+
+    public void setConnectTimeoutMs(int ms) {
+        connectTimeoutMs = ms;
+    }
+
+    /**
+     * Read timeout once the controller echoes heartbeats. Before that the socket always blocks.
+     */
+    public void setReadTimeoutMs(int ms) {
+        readTimeoutMs = ms;
+    }
+
+    /**
+     * Let the read timeout float between these bounds with link quality, once the controller echoes heartbeats.
+     */
+    public void setAdaptiveReadTimeoutMs(int minMs, int maxMs) {
+        minReadTimeoutMs = minMs;
+        maxReadTimeoutMs = maxMs;
+    }
+
+    //stats for the current connection
+    public LinkQualityMonitor getLinkQuality() {
+        return linkQuality;
+    }
+
+    public void setTelemetrySource(ITelemetrySource source) {
+        telemetrySource = source;
+    }
+
+    //record every relay connection into this log, see PacketRecorder
+    public void setRecorder(PacketRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    //answer the controller's metrics queries from this registry, see PacketRelay.setMetrics()
+    public void setMetrics(MetricsRegistry metrics) {
+        this.metrics = metrics;
+    }
+
+    public RelaySession getSession() {
+        return session;
+    }
+
+    //the relay currently running, or null between connections
+    public PacketRelay getCurrentRelay() {
+        synchronized (lock) {
+            return currentRelay;
+        }
+    }
+
+    /**
+     * The group (re)formed and we're the client: connect to the group owner.
+     */
+    public void onGroupFormed(String hostAddress) {
+        synchronized (lock) {
+            groupOwnerHost = hostAddress;
+            groupGeneration++;
+
+            //cut any backoff short, the link is back
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * The group went away. Drop the socket now rather than waiting for a read to time out.
+     */
+    public void onGroupLost() {
+        synchronized (lock) {
+            groupOwnerHost = null;
+            groupGeneration++;
+            closeCurrentSocket();
+            lock.notifyAll();
+        }
+    }
+
+    public void stop() {
+        running = false;
+
+        synchronized (lock) {
+            closeCurrentSocket();
+            lock.notifyAll();
+        }
+
+        failsafe.disengage();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            String host;
+
+            synchronized (lock) {
+                //wait for a group to connect to
+                while (running && groupOwnerHost == null) {
+                    setState(LinkState.WAITING_FOR_GROUP, null);
+                    if (!waitOnLock(0)) {
+                        return;
+                    }
+                }
+                host = groupOwnerHost;
+            }
+
+            if (!running) {
+                break;
+            }
+
+            //no point connecting if there's nothing to relay to
+            if (droneLink == null || !droneLink.isConnected()) {
+                setState(LinkState.WAITING_FOR_DRONE, null);
+                backOff();
+                continue;
+            }
+
+            setState(LinkState.CONNECTING, host + ":" + port);
+
+            Socket socket = new Socket();
+            try {
+                socket.bind(null);
+                socket.connect(new InetSocketAddress(host, port), connectTimeoutMs);
+                //no timeout until the heartbeat hello, see the class comment
+                socket.setSoTimeout(0);
+
+                //acks are tiny and the controller waits on each one, don't let Nagle sit on them
+                socket.setTcpNoDelay(true);
+            }
+            catch (IOException e) {
+                closeQuietly(socket);
+                setState(LinkState.BACKOFF, "connect failed: " + e.getMessage());
+                backOff();
+                continue;
+            }
+
+            final Socket relaySocket = socket;
+
+            PacketRelay relay;
+            try {
+                relay = new PacketRelay(socket.getInputStream(), socket.getOutputStream(), droneLink, relayListener, relayOn);
+            }
+            catch (IOException e) {
+                closeQuietly(socket);
+                backOff();
+                continue;
+            }
+
+            relay.setSession(session);
+            relay.setTelemetrySource(telemetrySource);
+            relay.setRecorder(recorder);
+            if (metrics != null) {
+                relay.setMetrics(metrics);
+            }
+
+            linkQuality.reset();
+            relay.setLinkQuality(linkQuality, new Heartbeat.IListener() {
+                private int appliedTimeoutMs = 0;
+
+                //only called once the controller has said hello, so from here on it's never quiet for long
+                @Override
+                public void onLinkQuality(LinkQualityMonitor monitor) {
+                    int timeoutMs = maxReadTimeoutMs > 0 ? monitor.recommendFailsafeTimeoutMs(minReadTimeoutMs, maxReadTimeoutMs)
+                            : readTimeoutMs;
+                    if (timeoutMs <= 0 || timeoutMs == appliedTimeoutMs) {
+                        return;
+                    }
+
+                    //takes effect from the next read
+                    try {
+                        relaySocket.setSoTimeout(timeoutMs);
+                        appliedTimeoutMs = timeoutMs;
+                    }
+                    catch (IOException e) {
+                        //socket already closed, the relay loop is on its way out
+                    }
+                }
+            });
+
+            synchronized (lock) {
+                if (!running) {
+                    closeQuietly(socket);
+                    break;
+                }
+                currentSocket = socket;
+                currentRelay = relay;
+            }
+
+            //controller is back, it takes over from the failsafe
+            failsafe.disengage();
+            session.onConnected();
+            backoff.reset();
+
+            setState(LinkState.RELAYING, "connect #" + session.getConnectCount());
+
+            //blocks until the link drops
+            relay.run();
+
+            synchronized (lock) {
+                currentSocket = null;
+                currentRelay = null;
+            }
+            closeQuietly(socket);
+
+            if (!running) {
+                break;
+            }
+
+            //link dropped mid-flight: keep the drone up while we reconnect, unless the follower is flying it
+            String detail = "link lost";
+            if (relayOn.get()) {
+                float height = failsafe.engage();
+                if (!Float.isNaN(height)) {
+                    detail = String.format("link lost, hovering at %.2fm", height);
+                }
+            }
+
+            setState(LinkState.BACKOFF, detail);
+            backOff();
+        }
+
+        setState(LinkState.STOPPED, null);
+    }
+
+    private void backOff() {
+        long delay = backoff.nextDelayMs();
+
+        synchronized (lock) {
+            int generationBefore = groupGeneration;
+            long deadline = System.currentTimeMillis() + delay;
+            long remaining;
+
+            //a fresh group announcement ends the wait early
+            while (running && groupGeneration == generationBefore && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                if (!waitOnLock(remaining)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    //lock must be held. Returns false if interrupted
+    private boolean waitOnLock(long ms) {
+        try {
+            lock.wait(ms);
+            return true;
+        }
+        catch (InterruptedException e) {
+            running = false;
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    //lock must be held
+    private void closeCurrentSocket() {
+        if (currentRelay != null) {
+            currentRelay.stop();
+        }
+        if (currentSocket != null) {
+            closeQuietly(currentSocket);
+        }
+    }
+
+    private void setState(LinkState newState, String detail) {
+        //don't spam the listener with the same state every loop
+        if (newState == state && detail == null) {
+            return;
+        }
+        state = newState;
+
+        if (connectionListener != null) {
+            connectionListener.onLinkStateChanged(newState, detail);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+            //nothing useful to do
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package weiner.noah.wifidirect.relay;
+
+import java.io.IOException;
+
+/**
+ * Splits the raw byte stream coming off the relay socket back into the frames the controller wrote.
+ *
+ * TCP doesn't keep write boundaries, so one read() can hold half a packet or three of them. We size each
+ * frame from its CRTP header (see {@link RelayProtocol#frameLength}). Headers we can't size fall back to the
+ * old behaviour of treating the rest of the current read as one frame.
+ */
+public class RelayFrameDecoder {
+    /**
+     * Receives each complete frame. The array is reused, so copy anything you want to keep.
+     */
+    public interface IFrameSink {
+        void onFrame(byte[] frame, int length) throws IOException;
+    }
+
+    private final byte[] partial = new byte[RelayProtocol.MAX_FRAME_LENGTH];
+    private int partialLength = 0;
+
+    //0 while we still don't know how long the current frame is
+    private int expectedLength = 0;
+
+    private long frameCount = 0;
+    private long legacyFrameCount = 0;
+
+    /**
+     * Feed bytes read from the socket, calling the sink once for every frame that completes.
+     */
+    public void feed(byte[] data, int offset, int length, IFrameSink sink) throws IOException {
+        int pos = offset;
+        final int end = offset + length;
+
+        while (pos < end) {
+            partial[partialLength++] = data[pos++];
+
+            if (expectedLength <= 0) {
+                expectedLength = RelayProtocol.frameLength(partial[0], partialLength > 1 ? partial[1] : 0, partialLength > 1);
+
+                if (expectedLength == RelayProtocol.UNKNOWN) {
+                    //can't size it, so whatever is left of this read belongs to the frame
+                    int take = Math.min(end - pos, partial.length - partialLength);
+                    System.arraycopy(data, pos, partial, partialLength, take);
+                    partialLength += take;
+                    pos += take;
+
+                    legacyFrameCount++;
+                    emit(sink);
+                    continue;
+                }
+            }
+
+            if (expectedLength > 0) {
+                int take = Math.min(end - pos, expectedLength - partialLength);
+                System.arraycopy(data, pos, partial, partialLength, take);
+                partialLength += take;
+                pos += take;
+
+                if (partialLength == expectedLength) {
+                    emit(sink);
+                }
+            }
+        }
+    }
+
+    private void emit(IFrameSink sink) throws IOException {
+        int length = partialLength;
+
+        //reset before handing off, in case the sink throws
+        partialLength = 0;
+        expectedLength = 0;
+        frameCount++;
+
+        sink.onFrame(partial, length);
+    }
+
+    /**
+     * Drop any half-received frame, e.g. when the socket is replaced.
+     */
+    public void reset() {
+        partialLength = 0;
+        expectedLength = 0;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    public long getLegacyFrameCount() {
+        return legacyFrameCount;
+    }
+}
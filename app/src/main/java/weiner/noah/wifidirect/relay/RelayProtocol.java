@@ -0,0 +1,128 @@
+package weiner.noah.wifidirect.relay;
+
+import weiner.noah.wifidirect.crtp.CrtpPort;
+import weiner.noah.wifidirect.crtp.Signal;
+
+/**
+ * Wire constants for the controller <-> phone relay socket. Nothing here touches Android, so the PC-side tool
+ * can compile it as-is.
+ *
+ * The controller sends either a one-byte {@link Signal}, the one-byte NULL packet (0xFF), or a serialized
+ * {@link weiner.noah.wifidirect.crtp.CrtpPacket}. The phone answers every frame with an ack: a single
+ * {@link #ACK_FAKE} for signals and for packets it didn't pass through, or the {@link #RELAY_ACK_LENGTH} bytes the
+ * drone sent back over USB, untouched, for packets that went out. The drone's reply can start with 0x09 too, so a
+ * controller that needs to tell the two apart sends {@link Signal#FRAMED_ACKS}, after which every relayed ack comes
+ * with an {@link #ACK_RELAYED} byte in front of it.
+ *
+ * If the controller sends {@link Signal#TELEMETRY} with a non-zero rate, the phone also interleaves
+ * {@link TelemetryFrame}s (first byte {@link TelemetryFrame#MAGIC}) between acks. {@link Signal#SESSION} is answered
+ * with a {@link RelaySession} frame (first byte {@link RelaySession#MAGIC}) instead of an ack, and
+ * {@link Signal#METRICS} with a {@link MetricsFrame} (first byte {@link MetricsFrame#MAGIC}).
+ *
+ * Once the controller sends a {@link Signal#HEARTBEAT} hello, the phone also pings it (first byte
+ * {@link Heartbeat#MAGIC}) and the controller echoes each ping back as a HEARTBEAT frame, which isn't acked.
+ */
+public final class RelayProtocol {
+    //default port the controller listens on
+    public static final int DEFAULT_PORT = 8988;
+
+    //largest frame the controller sends: HeightHold/Position packets are 18 bytes (16 data, 1 type, 1 header)
+    public static final int MAX_FRAME_LENGTH = 18;
+
+    //the drone always gets a buffer this big over USB, whatever the CRTP packet size
+    public static final int USB_FRAME_LENGTH = 18;
+
+    //ack for a signal or for a packet that wasn't relayed
+    public static final byte ACK_FAKE = 0x09;
+
+    //put in front of a relayed ack once the controller has sent Signal.FRAMED_ACKS, followed by the RELAY_ACK_LENGTH
+    //bytes of the drone's USB reply
+    public static final byte ACK_RELAYED = (byte) 0xa9;
+    public static final int RELAY_ACK_LENGTH = 18;
+
+    public static final byte NULL_HEADER = (byte) 0xff;
+
+    //lengths of the CRTP packets the controller sends, header included
+    public static final int COMMANDER_LENGTH = 15;
+    public static final int POSHOLD_LENGTH = 18;
+    public static final int GENERIC_STOP_LENGTH = 2;
+    public static final int GENERIC_SETPOINT_LENGTH = 18;
+
+    //Signal.TELEMETRY plus its rate byte
+    public static final int TELEMETRY_REQUEST_LENGTH = 2;
+
+    //fastest telemetry we'll stream, whatever the controller asks for
+    public static final int MAX_TELEMETRY_RATE_HZ = 50;
+
+    //Signal.HEARTBEAT plus the echoed u16 seq
+    public static final int HEARTBEAT_ECHO_LENGTH = 3;
+
+    //range of setpoint rates we ask the controller for in heartbeat pings, depending on link quality
+    public static final int MIN_SETPOINT_RATE_HZ = 10;
+    public static final int MAX_SETPOINT_RATE_HZ = 50;
+
+    //returned by frameLength() when we need the second byte to decide
+    public static final int NEED_MORE = 0;
+
+    //returned by frameLength() when the header isn't one we know how to size
+    public static final int UNKNOWN = -1;
+
+    private RelayProtocol() {
+    }
+
+    /**
+     * Is this byte, arriving on its own at a frame boundary, one of the controller's signals?
+     */
+    public static boolean isSignal(byte header) {
+        return Signal.getByNumber(header) != null;
+    }
+
+    /**
+     * Work out how long the frame starting with the given header is.
+     *
+     * @param header first byte of the frame
+     * @param second second byte of the frame, only looked at if haveSecond is true
+     * @param haveSecond whether the second byte has arrived yet
+     * @return frame length in bytes, {@link #NEED_MORE} or {@link #UNKNOWN}
+     */
+    public static int frameLength(byte header, byte second, boolean haveSecond) {
+        if (header == Signal.TELEMETRY.getNumber()) {
+            return TELEMETRY_REQUEST_LENGTH;
+        }
+
+        if (header == Signal.HEARTBEAT.getNumber()) {
+            return HEARTBEAT_ECHO_LENGTH;
+        }
+
+        if (header == NULL_HEADER || isSignal(header)) {
+            return 1;
+        }
+
+        //top nibble is the port, bottom two bits the channel (see CrtpPacket.Header)
+        int port = (header >> 4) & 0x0f;
+
+        if (port == CrtpPort.COMMANDER.getNumber()) {
+            return COMMANDER_LENGTH;
+        }
+        else if (port == CrtpPort.COMMANDER_POSHOLD.getNumber()) {
+            return POSHOLD_LENGTH;
+        }
+        else if (port == CrtpPort.COMMANDER_GENERIC.getNumber()) {
+            //generic commander packets carry a type byte right after the header
+            if (!haveSecond) {
+                return NEED_MORE;
+            }
+
+            switch (second) {
+                case 0x00:
+                    return GENERIC_STOP_LENGTH;
+                case 0x02:
+                    return GENERIC_SETPOINT_LENGTH;
+                default:
+                    return UNKNOWN;
+            }
+        }
+
+        return UNKNOWN;
+    }
+}
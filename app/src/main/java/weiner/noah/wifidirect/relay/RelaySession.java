@@ -0,0 +1,147 @@
+package weiner.noah.wifidirect.relay;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import weiner.noah.wifidirect.crtp.CrtpPacket;
+import weiner.noah.wifidirect.crtp.CrtpPort;
+
+/**
+ * State that outlives any one relay socket: how many controller frames we've handled, and the last setpoint that went
+ * to the drone. {@link RelayConnector} hands the same session to every {@link PacketRelay} it creates, so after a
+ * reconnect the controller can ask (with {@link weiner.noah.wifidirect.crtp.Signal#SESSION}) where we left off, and
+ * {@link HoverFailsafe} knows what height to hold while the link is down.
+ *
+ * Session frame, sent in answer to SESSION, {@link #FRAME_LENGTH} bytes little-endian:
+ * <pre>
+ *  0  magic 0xA6    1  version    2  connect count (u16)    4  session id (s32)    8  handled frame count (s64)
+ * </pre>
+ * The session id changes whenever the phone app restarts, so the controller knows a count reset isn't packet loss.
+ */
+public class RelaySession {
+    public static final byte MAGIC = (byte) 0xa6;
+    public static final byte VERSION = 1;
+    public static final int FRAME_LENGTH = 16;
+
+    //below this we treat the drone as already on the ground and won't hold it there
+    private static final float MIN_HOLD_HEIGHT = 0.05f;
+
+    private final int sessionId;
+
+    private long handledSeq = 0;
+    private int connectCount = 0;
+
+    private final byte[] lastSetpoint = new byte[RelayProtocol.USB_FRAME_LENGTH];
+    private int lastSetpointLength = 0;
+
+    public RelaySession() {
+        this(new Random().nextInt());
+    }
+
+    public RelaySession(int sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    public int getSessionId() {
+        return sessionId;
+    }
+
+    public synchronized void onConnected() {
+        connectCount++;
+    }
+
+    public synchronized int getConnectCount() {
+        return connectCount;
+    }
+
+    //one more controller frame handled (relayed, skipped or a signal)
+    public synchronized void onFrameHandled() {
+        handledSeq++;
+    }
+
+    public synchronized long getHandledSeq() {
+        return handledSeq;
+    }
+
+    /**
+     * Remember a packet that was sent to the drone. NULL packets don't change what the drone is doing, so skip those.
+     */
+    public synchronized void recordSetpoint(byte[] frame, int length) {
+        if (length < 1 || frame[0] == RelayProtocol.NULL_HEADER) {
+            return;
+        }
+
+        int n = Math.min(length, lastSetpoint.length);
+        System.arraycopy(frame, 0, lastSetpoint, 0, n);
+        lastSetpointLength = n;
+    }
+
+    public synchronized void clearSetpoint() {
+        lastSetpointLength = 0;
+    }
+
+    /**
+     * Height the drone was last told to hold, if the last packet had one (HeightHold, Position or ZDistance).
+     *
+     * @return height in meters, or NaN if the last packet was a raw Commander/stop packet or the drone was landing
+     */
+    public synchronized float getHoldHeight() {
+        if (lastSetpointLength < RelayProtocol.POSHOLD_LENGTH) {
+            return Float.NaN;
+        }
+
+        int port = (lastSetpoint[0] >> 4) & 0x0f;
+        boolean hasHeight = port == CrtpPort.COMMANDER_POSHOLD.getNumber() ||
+                (port == CrtpPort.COMMANDER_GENERIC.getNumber() && lastSetpoint[1] == 0x02);
+
+        if (!hasHeight) {
+            return Float.NaN;
+        }
+
+        //header, type, then roll/pitch/yaw floats, height is the last float
+        float height = ByteBuffer.wrap(lastSetpoint).order(CrtpPacket.BYTE_ORDER).getFloat(14);
+
+        return height > MIN_HOLD_HEIGHT ? height : Float.NaN;
+    }
+
+    public synchronized void encode(ByteBuffer out) {
+        int base = out.position();
+
+        out.put(base, MAGIC);
+        out.put(base + 1, VERSION);
+        out.putShort(base + 2, (short) connectCount);
+        out.putInt(base + 4, sessionId);
+        out.putLong(base + 8, handledSeq);
+
+        out.position(base + FRAME_LENGTH);
+    }
+
+    /**
+     * Controller-side view of a session frame.
+     */
+    public static class Info {
+        public int connectCount;
+        public int sessionId;
+        public long handledSeq;
+
+        public boolean decode(ByteBuffer in) {
+            int base = in.position();
+
+            if (in.get(base) != MAGIC || in.get(base + 1) != VERSION) {
+                return false;
+            }
+
+            connectCount = in.getShort(base + 2) & 0xffff;
+            sessionId = in.getInt(base + 4);
+            handledSeq = in.getLong(base + 8);
+
+            in.position(base + FRAME_LENGTH);
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("session %08x, connect #%d, %d frames handled", sessionId, connectCount, handledSeq);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package weiner.noah.wifidirect.relay;
+
+import java.nio.ByteBuffer;
+
+import weiner.noah.wifidirect.crtp.CrtpPacket;
+
+/**
+ * One telemetry sample sent from the phone to the ground station over the relay socket.
+ *
+ * Fixed little-endian layout, {@link #LENGTH} bytes:
+ * <pre>
+ *  0  magic 0xA5          1  version            2  length (u16)
+ *  4  seq (u32)           8  phone time ms (s64)
+ * 16  follow state       17  lateral method    18  thermal status    19  flags
+ * 20  dist to human      24  bbox center offset 28  human angle
+ * 32  x vel              36  y vel              40  angular vel
+ * 44  setpoint dx        48  setpoint dy        52  setpoint yaw rate  56  setpoint height
+ * 60  dist PID P/I/D     72  x-axis PID P/I/D   84  yaw PID P/I/D
+ * 96  control loop dt ms
+ * </pre>
+ * The magic byte can't be the first byte of an ack (0x09, or {@link RelayProtocol#ACK_RELAYED} in front of a relayed
+ * one), so the controller can tell the two apart.
+ */
+public class TelemetryFrame {
+    public static final byte MAGIC = (byte) 0xa5;
+    public static final byte VERSION = 1;
+    public static final int LENGTH = 100;
+
+    public static final int FLAG_FOLLOWING = 1;
+    public static final int FLAG_LANDING = 1 << 1;
+    public static final int FLAG_PUSHER_ON = 1 << 2;
+    public static final int FLAG_RELAY_ON = 1 << 3;
+
+    public int seq;
+    public long timeMs;
+
+    public byte followState;
+    public byte lateralMethod;
+    public byte thermalStatus;
+    public byte flags;
+
+    public float distToHum;
+    public float bbOffCenter;
+    public float humAngle;
+
+    public float xVel;
+    public float yVel;
+    public float angVel;
+
+    public float setDx;
+    public float setDy;
+    public float setYaw;
+    public float setHeight;
+
+    public float distP, distI, distD;
+    public float xAxisP, xAxisI, xAxisD;
+    public float yawP, yawI, yawD;
+
+    public float loopDtMs;
+
+    /**
+     * Write this frame into out at its current position (LENGTH bytes). out must be little-endian.
+     */
+    public void encode(ByteBuffer out) {
+        int base = out.position();
+
+        out.put(base, MAGIC);
+        out.put(base + 1, VERSION);
+        out.putShort(base + 2, (short) LENGTH);
+        out.putInt(base + 4, seq);
+        out.putLong(base + 8, timeMs);
+
+        out.put(base + 16, followState);
+        out.put(base + 17, lateralMethod);
+        out.put(base + 18, thermalStatus);
+        out.put(base + 19, flags);
+
+        out.putFloat(base + 20, distToHum);
+        out.putFloat(base + 24, bbOffCenter);
+        out.putFloat(base + 28, humAngle);
+        out.putFloat(base + 32, xVel);
+        out.putFloat(base + 36, yVel);
+        out.putFloat(base + 40, angVel);
+        out.putFloat(base + 44, setDx);
+        out.putFloat(base + 48, setDy);
+        out.putFloat(base + 52, setYaw);
+        out.putFloat(base + 56, setHeight);
+        out.putFloat(base + 60, distP);
+        out.putFloat(base + 64, distI);
+        out.putFloat(base + 68, distD);
+        out.putFloat(base + 72, xAxisP);
+        out.putFloat(base + 76, xAxisI);
+        out.putFloat(base + 80, xAxisD);
+        out.putFloat(base + 84, yawP);
+        out.putFloat(base + 88, yawI);
+        out.putFloat(base + 92, yawD);
+        out.putFloat(base + 96, loopDtMs);
+
+        out.position(base + LENGTH);
+    }
+
+    /**
+     * Read a frame written by {@link #encode} from in at its current position.
+     *
+     * @return false if the magic, version or length don't match, in which case nothing is consumed
+     */
+    public boolean decode(ByteBuffer in) {
+        int base = in.position();
+
+        if (in.get(base) != MAGIC || in.get(base + 1) != VERSION || in.getShort(base + 2) != LENGTH) {
+            return false;
+        }
+
+        seq = in.getInt(base + 4);
+        timeMs = in.getLong(base + 8);
+
+        followState = in.get(base + 16);
+        lateralMethod = in.get(base + 17);
+        thermalStatus = in.get(base + 18);
+        flags = in.get(base + 19);
+
+        distToHum = in.getFloat(base + 20);
+        bbOffCenter = in.getFloat(base + 24);
+        humAngle = in.getFloat(base + 28);
+        xVel = in.getFloat(base + 32);
+        yVel = in.getFloat(base + 36);
+        angVel = in.getFloat(base + 40);
+        setDx = in.getFloat(base + 44);
+        setDy = in.getFloat(base + 48);
+        setYaw = in.getFloat(base + 52);
+        setHeight = in.getFloat(base + 56);
+        distP = in.getFloat(base + 60);
+        distI = in.getFloat(base + 64);
+        distD = in.getFloat(base + 68);
+        xAxisP = in.getFloat(base + 72);
+        xAxisI = in.getFloat(base + 76);
+        xAxisD = in.getFloat(base + 80);
+        yawP = in.getFloat(base + 84);
+        yawI = in.getFloat(base + 88);
+        yawD = in.getFloat(base + 92);
+        loopDtMs = in.getFloat(base + 96);
+
+        in.position(base + LENGTH);
+        return true;
+    }
+
+    public void copyFrom(TelemetryFrame other) {
+        seq = other.seq;
+        timeMs = other.timeMs;
+        followState = other.followState;
+        lateralMethod = other.lateralMethod;
+        thermalStatus = other.thermalStatus;
+        flags = other.flags;
+        distToHum = other.distToHum;
+        bbOffCenter = other.bbOffCenter;
+        humAngle = other.humAngle;
+        xVel = other.xVel;
+        yVel = other.yVel;
+        angVel = other.angVel;
+        setDx = other.setDx;
+        setDy = other.setDy;
+        setYaw = other.setYaw;
+        setHeight = other.setHeight;
+        distP = other.distP;
+        distI = other.distI;
+        distD = other.distD;
+        xAxisP = other.xAxisP;
+        xAxisI = other.xAxisI;
+        xAxisD = other.xAxisD;
+        yawP = other.yawP;
+        yawI = other.yawI;
+        yawD = other.yawD;
+        loopDtMs = other.loopDtMs;
+    }
+
+    public static ByteBuffer newBuffer() {
+        return ByteBuffer.allocate(LENGTH).order(CrtpPacket.BYTE_ORDER);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("#%d t=%d state=%d lat=%d therm=%d flags=0x%02x dist=%.3f bbOff=%.1f ang=%.1f " +
+                        "vel=(%.3f, %.3f, %.3f) set=(%.3f, %.3f, %.2f, %.2f) distPid=(%.3f, %.3f, %.3f) " +
+                        "xPid=(%.3f, %.3f, %.3f) yawPid=(%.3f, %.3f, %.3f) dt=%.1fms",
+                seq, timeMs, followState, lateralMethod, thermalStatus, flags, distToHum, bbOffCenter, humAngle,
+                xVel, yVel, angVel, setDx, setDy, setYaw, setHeight, distP, distI, distD,
+                xAxisP, xAxisI, xAxisD, yawP, yawI, yawD, loopDtMs);
+    }
+}
@@ -0,0 +1,111 @@
+package weiner.noah.wifidirect.relay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Samples an {@link ITelemetrySource} at a fixed rate and writes each sample down the relay socket as a
+ * {@link TelemetryFrame}. Runs on its own thread; a rate of 0 parks it until the controller asks again.
+ *
+ * The rate can also be capped below what the controller asked for, which {@link PacketRelay} does when the link
+ * gets congested.
+ */
+public class TelemetryStreamer implements Runnable {
+    private final PacketRelay relay;
+    private final ITelemetrySource source;
+
+    //reused for every sample so streaming doesn't allocate
+    private final TelemetryFrame frame = new TelemetryFrame();
+    private final ByteBuffer buffer = TelemetryFrame.newBuffer();
+
+    private final Object rateLock = new Object();
+    private int rateHz = 0;
+    private int rateCapHz = RelayProtocol.MAX_TELEMETRY_RATE_HZ;
+
+    private volatile boolean running = true;
+    private int seq = 0;
+
+    public TelemetryStreamer(PacketRelay relay, ITelemetrySource source) {
+        this.relay = relay;
+        this.source = source;
+    }
+
+    public void setRate(int hz) {
+        synchronized (rateLock) {
+            rateHz = Math.max(0, Math.min(hz, RelayProtocol.MAX_TELEMETRY_RATE_HZ));
+            rateLock.notifyAll();
+        }
+    }
+
+    /**
+     * Stream no faster than this, whatever rate is set. Never drops below 1Hz so the controller still sees us.
+     */
+    public void setRateCap(int hz) {
+        synchronized (rateLock) {
+            rateCapHz = Math.max(1, Math.min(hz, RelayProtocol.MAX_TELEMETRY_RATE_HZ));
+            rateLock.notifyAll();
+        }
+    }
+
+    //the rate actually streamed, cap included
+    public int getRate() {
+        synchronized (rateLock) {
+            return Math.min(rateHz, rateCapHz);
+        }
+    }
+
+    public void stop() {
+        running = false;
+        synchronized (rateLock) {
+            rateLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void run() {
+        long next = System.nanoTime();
+
+        try {
+            while (running) {
+                long periodNanos;
+
+                synchronized (rateLock) {
+                    //wait until the controller turns us on
+                    while (running && rateHz == 0) {
+                        rateLock.wait();
+                        next = System.nanoTime();
+                    }
+                    if (!running) {
+                        return;
+                    }
+                    periodNanos = 1000000000L / Math.min(rateHz, rateCapHz);
+                }
+
+                source.fillTelemetry(frame);
+                frame.seq = seq++;
+                frame.timeMs = System.currentTimeMillis();
+
+                buffer.clear();
+                frame.encode(buffer);
+                relay.write(buffer.array(), 0, TelemetryFrame.LENGTH);
+
+                //schedule from the previous tick so the rate doesn't drift with fill/write time
+                next += periodNanos;
+                long sleepNanos = next - System.nanoTime();
+                if (sleepNanos > 0) {
+                    Thread.sleep(sleepNanos / 1000000L, (int) (sleepNanos % 1000000L));
+                }
+                else {
+                    //fell behind (slow socket), don't try to catch up with a burst
+                    next = System.nanoTime();
+                }
+            }
+        }
+        catch (IOException e) {
+            //relay socket is gone, PacketRelay will report it
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
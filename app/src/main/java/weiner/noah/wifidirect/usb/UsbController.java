@@ -22,8 +22,12 @@ import java.util.HashMap;
 import java.util.Map;
 
 import weiner.noah.wifidirect.control.MainActivity;
+import weiner.noah.wifidirect.metrics.Histogram;
+import weiner.noah.wifidirect.metrics.MetricsRegistry;
+import weiner.noah.wifidirect.relay.IDroneLink;
+import weiner.noah.wifidirect.relay.PacketRecorder;
 
-public class UsbController {
+public class UsbController implements IDroneLink {
     public final Context mApplicationContext;
     public final UsbManager mUsbManager;
     private UsbDevice device;
@@ -48,6 +52,9 @@ public class UsbController {
 
     private final String TAG = "UsbController";
 
+    //packet out to the drone's 0x09 back, whoever sent it (relay or follower)
+    private final Histogram usbAckHistogram = MetricsRegistry.get().histogram("usb ack");
+
     //constant variable for the UsbRunnable (data transfer loop)
     private UsbRunnable mLoop;
     private ReadRunnable mReceiver;
@@ -100,6 +107,11 @@ public class UsbController {
         return connection;
     }
 
+    @Override
+    public boolean isConnected() {
+        return connection != null;
+    }
+
     private class PermissionReceiver extends BroadcastReceiver {
         private final IPermissionListener permissionListener;
 
@@ -539,8 +551,9 @@ public class UsbController {
 
 
     //send packet to drone via USB, and receive Ack back
+    @Override
     public int sendBulkTransfer(byte[] data, byte[] receiveData) {
-        long start, end;
+        long start;
         //Log.i(TAG, "sendBulkTransfer...");
 
         int returnCode = -1;
@@ -556,7 +569,7 @@ public class UsbController {
 
         //make sure we have a valid connection
         if (connection != null) {
-            //start = System.currentTimeMillis();
+            start = System.nanoTime();
 
             //send the data, which will always be a packet here
             //connection.bulkTransfer(out, data, data.length, TRANSFER_TIMEOUT);
@@ -659,6 +672,7 @@ public class UsbController {
                 }
             }
             //Log.i(TAG, "sendBulkTransfer got notify...");
+            usbAckHistogram.recordSince(start);
 
             //at this point we've surely received 0x09 ack from drone, so we can return
 
@@ -844,6 +858,12 @@ public class UsbController {
                     byte firstChar = buffer.get(0);
                     //Log.d(TAG, "Received byte " + firstChar + " from drone");
 
+                    //log it for flight replay
+                    PacketRecorder recorder = activity.getPacketRecorder();
+                    if (recorder != null) {
+                        recorder.record(PacketRecorder.USB_ACK, buffer.array(), 0, 1);
+                    }
+
                     //if this is confirmation that drone received pkt, notify the pktSendLock
                     if (firstChar == (byte)0x09) {
                         synchronized (pktSendLock) {
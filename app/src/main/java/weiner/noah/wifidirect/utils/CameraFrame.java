@@ -0,0 +1,154 @@
+package weiner.noah.wifidirect.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One camera frame as the ImageReader handed it over, with the color conversion left until somebody asks for it.
+ *
+ * Stages that only need brightness (motion, blur, exposure checks) read the Y plane straight out of the camera's
+ * buffer through {@link #getYPlane()}: no copy, no conversion. {@link #getArgb()} converts the whole frame with
+ * {@link YuvConverter} the first time it's called for a frame and returns the same pixels after that, so a frame
+ * nobody needs in color never pays for it.
+ *
+ * The plane buffers belong to the Image, so everything here is only valid between {@link #set} and {@link #release}.
+ * One CameraFrame is reused for every frame of a stream, along with its conversion buffers.
+ */
+public class CameraFrame {
+    private final YuvConverter converter;
+
+    private ByteBuffer yPlane, uPlane, vPlane;
+    private int width, height;
+    private int yRowStride, uvRowStride, uvPixelStride;
+    private long timestampNanos;
+    private boolean valid = false;
+
+    //planes copied out for the converter, and its output. Kept across frames
+    private final byte[][] yuvBytes = new byte[3][];
+    private int[] argb = null;
+    private boolean argbReady = false;
+
+    private long frameCount = 0;
+    private long conversionCount = 0;
+
+    public CameraFrame(YuvConverter converter) {
+        this.converter = converter;
+    }
+
+    /**
+     * Point at a new frame's planes. Doesn't copy anything.
+     */
+    public void set(ByteBuffer yPlane, ByteBuffer uPlane, ByteBuffer vPlane, int width, int height, int yRowStride,
+                    int uvRowStride, int uvPixelStride, long timestampNanos) {
+        this.yPlane = yPlane;
+        this.uPlane = uPlane;
+        this.vPlane = vPlane;
+        this.width = width;
+        this.height = height;
+        this.yRowStride = yRowStride;
+        this.uvRowStride = uvRowStride;
+        this.uvPixelStride = uvPixelStride;
+        this.timestampNanos = timestampNanos;
+
+        valid = true;
+        argbReady = false;
+        frameCount++;
+    }
+
+    /**
+     * Done with this frame, the Image is about to be closed. Any Y plane view handed out is dead after this.
+     */
+    public void release() {
+        valid = false;
+        yPlane = uPlane = vPlane = null;
+    }
+
+    /**
+     * Read-only view of the camera's luma plane, positioned at the first pixel. Pixel (x, y) is at y * getYRowStride() + x;
+     * the row stride can be wider than the frame.
+     */
+    public ByteBuffer getYPlane() {
+        checkValid();
+        ByteBuffer view = yPlane.asReadOnlyBuffer();
+        view.position(0);
+        return view;
+    }
+
+    /**
+     * Luma of one pixel, 0-255.
+     */
+    public int getLuma(int x, int y) {
+        checkValid();
+        return yPlane.get(y * yRowStride + x) & 0xff;
+    }
+
+    /**
+     * The frame in ARGB8888, converted on the first call for this frame. The array is reused for the next frame, so
+     * copy it (or make the Bitmap) before calling {@link #release}.
+     */
+    public int[] getArgb() {
+        checkValid();
+
+        if (!argbReady) {
+            copyPlane(0, yPlane);
+            copyPlane(1, uPlane);
+            copyPlane(2, vPlane);
+
+            if (argb == null || argb.length != width * height) {
+                argb = new int[width * height];
+            }
+
+            converter.convert(yuvBytes[0], yuvBytes[1], yuvBytes[2], width, height, yRowStride, uvRowStride, uvPixelStride, argb);
+            argbReady = true;
+            conversionCount++;
+        }
+
+        return argb;
+    }
+
+    //the converter wants arrays. Row stride varies by device, so size them off the buffers
+    private void copyPlane(int index, ByteBuffer plane) {
+        ByteBuffer source = plane.duplicate();
+        source.position(0);
+        int length = source.limit();
+
+        if (yuvBytes[index] == null || yuvBytes[index].length < length) {
+            yuvBytes[index] = new byte[length];
+        }
+        source.get(yuvBytes[index], 0, length);
+    }
+
+    private void checkValid() {
+        if (!valid) {
+            throw new IllegalStateException("Camera frame used after release()");
+        }
+    }
+
+    public boolean hasArgb() {
+        return argbReady;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getYRowStride() {
+        return yRowStride;
+    }
+
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    //frames seen vs. frames somebody wanted in color
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    public long getConversionCount() {
+        return conversionCount;
+    }
+}
@@ -0,0 +1,77 @@
+package weiner.noah.wifidirect.utils;
+
+/**
+ * Single-slot handoff between two pipeline stages that only ever keeps the newest item.
+ *
+ * The producer never blocks: offering into a full slot replaces what's there and hands the old item back, so the
+ * caller can recycle or close it. The consumer blocks until there's something to take. A slow consumer therefore
+ * always gets the freshest frame and nothing ever queues up behind it.
+ */
+public class LatestSlot<T> {
+    private T item = null;
+    private boolean closed = false;
+
+    private long offered = 0;
+    private long dropped = 0;
+
+    /**
+     * Put an item in the slot, replacing anything the consumer hasn't taken yet.
+     *
+     * @return the item that got replaced, or the offered item itself if the slot is closed, else null
+     */
+    public synchronized T offer(T newItem) {
+        if (closed) {
+            return newItem;
+        }
+
+        T old = item;
+        item = newItem;
+        offered++;
+
+        if (old != null) {
+            dropped++;
+        }
+
+        notifyAll();
+        return old;
+    }
+
+    /**
+     * Wait for an item and take it.
+     *
+     * @return the item, or null once the slot is closed
+     */
+    public synchronized T take() throws InterruptedException {
+        while (item == null && !closed) {
+            wait();
+        }
+
+        T taken = item;
+        item = null;
+        return taken;
+    }
+
+    /**
+     * Wake up the consumer for good.
+     *
+     * @return whatever was left in the slot, for the caller to clean up
+     */
+    public synchronized T close() {
+        closed = true;
+
+        T left = item;
+        item = null;
+
+        notifyAll();
+        return left;
+    }
+
+    public synchronized long getOffered() {
+        return offered;
+    }
+
+    //items replaced before the consumer got to them
+    public synchronized long getDropped() {
+        return dropped;
+    }
+}
@@ -0,0 +1,63 @@
+package weiner.noah.wifidirect.utils;
+
+import org.opencv.core.Mat;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Debug counter for the OpenCV Mats on the camera path. A Mat's pixels are native memory that the GC doesn't see, so
+ * one created per frame and never released quietly piles up until the finalizer gets around to it.
+ *
+ * Wrap every Mat the frame path creates in {@link #created} and free it with {@link #release}. The log then shows how
+ * many are created per frame: after the first frame of a session that should be 0, and live should come back down
+ * when a session stops.
+ */
+public class MatCounter {
+    private static final AtomicLong created = new AtomicLong();
+    private static final AtomicLong released = new AtomicLong();
+
+    //created count at the last report, for the per-frame rate
+    private static long reportedCreated = 0;
+    private static long reportedFrames = 0;
+
+    private MatCounter() {
+    }
+
+    public static <T extends Mat> T created(T mat) {
+        created.incrementAndGet();
+        return mat;
+    }
+
+    /**
+     * Free the Mat's native buffer now instead of at finalization. Null is fine.
+     */
+    public static void release(Mat mat) {
+        if (mat != null) {
+            mat.release();
+            released.incrementAndGet();
+        }
+    }
+
+    public static long getCreated() {
+        return created.get();
+    }
+
+    public static long getLive() {
+        return created.get() - released.get();
+    }
+
+    /**
+     * One-line summary: totals, and Mats created per frame since the last report.
+     *
+     * @param frames frames processed so far, from whichever stage is reporting
+     */
+    public static synchronized String report(long frames) {
+        long now = created.get();
+        double perFrame = frames > reportedFrames ? (double) (now - reportedCreated) / (frames - reportedFrames) : 0;
+        reportedCreated = now;
+        reportedFrames = frames;
+
+        return String.format(Locale.US, "mats: created=%d live=%d per frame=%.2f", now, now - released.get(), perFrame);
+    }
+}
@@ -0,0 +1,53 @@
+package weiner.noah.wifidirect.utils;
+
+import java.util.Locale;
+
+import weiner.noah.wifidirect.metrics.Histogram;
+import weiner.noah.wifidirect.metrics.MetricsRegistry;
+
+/**
+ * Running timing for one stage of a pipeline: how many items it processed, and the mean and worst time per item
+ * since the last {@link #report()}. Safe to record from the stage's thread and report from another.
+ *
+ * Every sample also goes into the app's {@link MetricsRegistry} histogram of the same name, which is where the HUD
+ * and the relay get their percentiles.
+ */
+public class StageStats {
+    private final String name;
+    private final Histogram histogram;
+
+    private long count = 0;
+    private long windowCount = 0;
+    private long windowTotalNanos = 0;
+    private long windowMaxNanos = 0;
+
+    public StageStats(String name) {
+        this.name = name;
+        this.histogram = MetricsRegistry.get().histogram(name);
+    }
+
+    public synchronized void record(long nanos) {
+        histogram.record(nanos);
+        count++;
+        windowCount++;
+        windowTotalNanos += nanos;
+        windowMaxNanos = Math.max(windowMaxNanos, nanos);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * One-line summary of the window, which then starts over.
+     */
+    public synchronized String report() {
+        String line = String.format(Locale.US, "%s: n=%d mean=%.1fms max=%.1fms", name, windowCount,
+                windowCount > 0 ? windowTotalNanos / 1e6 / windowCount : 0.0, windowMaxNanos / 1e6);
+
+        windowCount = 0;
+        windowTotalNanos = 0;
+        windowMaxNanos = 0;
+        return line;
+    }
+}
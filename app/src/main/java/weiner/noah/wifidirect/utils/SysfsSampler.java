@@ -0,0 +1,260 @@
+package weiner.noah.wifidirect.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Reads integer sysfs attributes (thermal zone temps, battery current and voltage) over and over without reopening
+ * them. Each node is opened once in {@link #add}; after that a sample is one positional read (pread at offset 0, which
+ * makes sysfs regenerate the value) into a shared direct buffer, parsed straight out of the buffer. No Strings, no
+ * garbage, one syscall per node.
+ *
+ * Nodes can be sampled at different rates: {@link #sample} only rereads the ones whose period has passed, so a
+ * handful of interesting zones can be polled fast and the rest slowly.
+ *
+ * Not thread-safe, give each sampling thread its own. Plain Java, so pctool can run it against a fake sysfs tree.
+ */
+public class SysfsSampler implements Closeable {
+    //value of a node that's missing, couldn't be read or didn't hold an integer
+    public static final long MISSING = Long.MIN_VALUE;
+
+    //sysfs integers are a line of at most 20 digits and a sign
+    private static final int MAX_LENGTH = 32;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final File root;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_LENGTH);
+
+    private int count = 0;
+    private String[] paths = new String[16];
+    private FileChannel[] channels = new FileChannel[16];
+    private long[] periodNanos = new long[16];
+    private long[] dueNanos = new long[16];
+    private long[] values = new long[16];
+    private long[] sampledNanos = new long[16];
+
+    private long reads = 0;
+    private long failures = 0;
+
+    /**
+     * @param root directory node paths are relative to, e.g. /sys/class/thermal
+     */
+    public SysfsSampler(File root) {
+        this.root = root;
+    }
+
+    /**
+     * Open a node for sampling. A node that doesn't exist still gets an index, it just always reads {@link #MISSING}.
+     *
+     * @param path relative to the root
+     * @param periodNanos how often {@link #sample} rereads it, 0 for every call
+     * @return the node's index
+     */
+    public int add(String path, long periodNanos) {
+        if (count == paths.length) {
+            int size = count * 2;
+            paths = Arrays.copyOf(paths, size);
+            channels = Arrays.copyOf(channels, size);
+            this.periodNanos = Arrays.copyOf(this.periodNanos, size);
+            dueNanos = Arrays.copyOf(dueNanos, size);
+            values = Arrays.copyOf(values, size);
+            sampledNanos = Arrays.copyOf(sampledNanos, size);
+        }
+
+        FileChannel channel = null;
+        try {
+            channel = new RandomAccessFile(new File(root, path), "r").getChannel();
+        }
+        catch (IOException e) {
+            //leave it null: MISSING from now on
+        }
+
+        int node = count++;
+        paths[node] = path;
+        channels[node] = channel;
+        this.periodNanos[node] = periodNanos;
+        dueNanos[node] = Long.MIN_VALUE;
+        values[node] = MISSING;
+        sampledNanos[node] = 0;
+        return node;
+    }
+
+    /**
+     * Reread every node that's due.
+     *
+     * @return how many nodes were read
+     */
+    public int sample(long nowNanos) {
+        int sampled = 0;
+
+        for (int node = 0; node < count; node++) {
+            //MIN_VALUE: never read yet
+            if (dueNanos[node] != Long.MIN_VALUE && nowNanos - dueNanos[node] < 0) {
+                continue;
+            }
+
+            values[node] = readNode(node);
+            sampledNanos[node] = nowNanos;
+            dueNanos[node] = nowNanos + periodNanos[node];
+            sampled++;
+        }
+        return sampled;
+    }
+
+    /**
+     * Reread one node now, whatever its period.
+     *
+     * @return its value, or {@link #MISSING}
+     */
+    public long read(int node, long nowNanos) {
+        values[node] = readNode(node);
+        sampledNanos[node] = nowNanos;
+        dueNanos[node] = nowNanos + periodNanos[node];
+        return values[node];
+    }
+
+    /**
+     * Value as of the node's last read, or {@link #MISSING}.
+     */
+    public long get(int node) {
+        return values[node];
+    }
+
+    /**
+     * When the node was last read, 0 if never.
+     */
+    public long getSampledNanos(int node) {
+        return sampledNanos[node];
+    }
+
+    public boolean isOpen(int node) {
+        return channels[node] != null;
+    }
+
+    public String getPath(int node) {
+        return paths[node];
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public long getReads() {
+        return reads;
+    }
+
+    public long getFailures() {
+        return failures;
+    }
+
+    @Override
+    public void close() {
+        for (int node = 0; node < count; node++) {
+            if (channels[node] != null) {
+                try {
+                    channels[node].close();
+                }
+                catch (IOException e) {
+                    //nothing to do about it
+                }
+                channels[node] = null;
+            }
+        }
+    }
+
+    private long readNode(int node) {
+        FileChannel channel = channels[node];
+        if (channel == null) {
+            return MISSING;
+        }
+
+        reads++;
+        buffer.clear();
+        int length;
+        try {
+            length = channel.read(buffer, 0);
+        }
+        catch (IOException e) {
+            //some sensors refuse reads while they're powered down. Keep the node, it may come back
+            failures++;
+            return MISSING;
+        }
+
+        long value = parse(buffer, Math.max(length, 0));
+        if (value == MISSING) {
+            failures++;
+        }
+        return value;
+    }
+
+    //leading whitespace, optional sign, digits. Anything after the digits (newline, units) is ignored
+    static long parse(ByteBuffer buffer, int length) {
+        int i = 0;
+        while (i < length && buffer.get(i) <= ' ') {
+            i++;
+        }
+
+        boolean negative = false;
+        if (i < length && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            negative = buffer.get(i) == '-';
+            i++;
+        }
+
+        int start = i;
+        long value = 0;
+        while (i < length) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            value = value * 10 + digit;
+            i++;
+        }
+
+        if (i == start) {
+            return MISSING;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * One-off read of a text attribute, like a thermal zone's type. Trimmed, or null if it can't be read. Allocates, so
+     * for setup only.
+     */
+    public static String readString(File file) {
+        byte[] data = new byte[256];
+        int length = 0;
+
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            int n;
+            while (length < data.length && (n = in.read(data, length, data.length - length)) > 0) {
+                length += n;
+            }
+        }
+        catch (IOException e) {
+            return null;
+        }
+        finally {
+            if (in != null) {
+                try {
+                    in.close();
+                }
+                catch (IOException e) {
+                    //nothing to do about it
+                }
+            }
+        }
+
+        return new String(data, 0, length, ASCII).trim();
+    }
+}
@@ -0,0 +1,212 @@
+package weiner.noah.wifidirect.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Reads a log written by {@link ThermalLogWriter}, one row at a time.
+ *
+ * Usage: while (reader.next()) { reader.getNanos(); reader.get(column); ... }
+ * The values array is reused between rows.
+ */
+public class ThermalLogReader implements Closeable {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final long startWallMs;
+    private final String[] columns;
+
+    //end of the last complete row
+    private final long committedLength;
+
+    private long pos;
+    private boolean ended = false;
+    private boolean overrun = false;
+
+    private long micros = 0;
+    private final long[] values;
+    private final long[] last;
+
+    public ThermalLogReader(File path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        FileChannel channel = file.getChannel();
+
+        long size = channel.size();
+        if (size < 26) {
+            file.close();
+            throw new IOException("Not a thermal log: too short");
+        }
+
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        byte[] magic = new byte[ThermalLogWriter.MAGIC.length];
+        buffer.get(magic);
+        if (!Arrays.equals(magic, ThermalLogWriter.MAGIC)) {
+            file.close();
+            throw new IOException("Not a thermal log: bad magic");
+        }
+
+        committedLength = Math.min(size, buffer.getLong(8));
+        startWallMs = buffer.getLong(16);
+
+        int count = buffer.getShort(24) & 0xffff;
+        columns = new String[count];
+        buffer.position(26);
+        for (int i = 0; i < count; i++) {
+            if (buffer.remaining() < 1) {
+                file.close();
+                throw new IOException("Not a thermal log: header cut short");
+            }
+            byte[] name = new byte[buffer.get() & 0xff];
+            if (buffer.remaining() < name.length) {
+                file.close();
+                throw new IOException("Not a thermal log: header cut short");
+            }
+            buffer.get(name);
+            columns[i] = new String(name, ASCII);
+        }
+
+        pos = buffer.position();
+        values = new long[count];
+        last = new long[count];
+    }
+
+    /**
+     * Move to the next row.
+     *
+     * @return false at the end of the log
+     */
+    public boolean next() {
+        if (ended || pos >= committedLength) {
+            return false;
+        }
+
+        buffer.position((int) pos);
+
+        overrun = false;
+        long delta = getVarint();
+        if (overrun) {
+            ended = true;
+            return false;
+        }
+        micros += delta;
+
+        for (int i = 0; i < columns.length; i++) {
+            long token = getVarint();
+            if (overrun) {
+                //only a damaged log gets here: the writer commits whole rows. The deltas so far are applied, so stop
+                ended = true;
+                return false;
+            }
+
+            if ((token & 1) != 0) {
+                values[i] = SysfsSampler.MISSING;
+                continue;
+            }
+
+            long zigzag = token >>> 1;
+            last[i] += (zigzag >>> 1) ^ -(zigzag & 1);
+            values[i] = last[i];
+        }
+
+        pos = buffer.position();
+        return true;
+    }
+
+    //sets overrun if it runs past the committed length
+    private long getVarint() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (buffer.position() >= committedLength) {
+                overrun = true;
+                return 0;
+            }
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        return value;
+    }
+
+    //ns since the writer started, to the microsecond
+    public long getNanos() {
+        return micros * 1000;
+    }
+
+    public long get(int column) {
+        return values[column];
+    }
+
+    public long[] getValues() {
+        return values;
+    }
+
+    public String[] getColumns() {
+        return columns;
+    }
+
+    public int findColumn(String name) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public long getStartWallMs() {
+        return startWallMs;
+    }
+
+    /**
+     * Write the rest of the log as CSV: a header row, then seconds since start and every column per row. Missing
+     * values are left empty.
+     *
+     * @return rows written
+     */
+    public long exportCsv(Writer out) throws IOException {
+        StringBuilder line = new StringBuilder("seconds");
+        for (String column : columns) {
+            line.append(',').append(column);
+        }
+        out.write(line.append('\n').toString());
+
+        long rows = 0;
+        while (next()) {
+            line.setLength(0);
+            line.append(micros / 1000000).append('.');
+            String fraction = Long.toString(micros % 1000000);
+            for (int i = fraction.length(); i < 6; i++) {
+                line.append('0');
+            }
+            line.append(fraction);
+
+            for (long value : values) {
+                line.append(',');
+                if (value != SysfsSampler.MISSING) {
+                    line.append(value);
+                }
+            }
+            out.write(line.append('\n').toString());
+            rows++;
+        }
+        return rows;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
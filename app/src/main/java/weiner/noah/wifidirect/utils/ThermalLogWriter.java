@@ -0,0 +1,202 @@
+package weiner.noah.wifidirect.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Append-only columnar log of sysfs readings (thermal zone temps, trip points, battery current and voltage) over a
+ * flight. The column names are written once, in the header; after that each row is just the time since the last row
+ * and, per column, the change since that column's last value, all as varints. Temps mostly move by 0 or 100
+ * millidegrees between samples, so a row of 180 columns is a couple of hundred bytes.
+ *
+ * Like {@link weiner.noah.wifidirect.relay.PacketRecorder} the file is memory-mapped in {@link #REGION_SIZE} windows,
+ * so writing a row is stores into the page cache with no syscall and no allocation.
+ *
+ * Layout, little-endian:
+ * <pre>
+ * header:
+ *   0  magic "THRMLOG1"   8  committed length of the file (s64)   16  wall clock at start, ms (s64)
+ *  24  column count (u16)   26  per column: name length (u8), name (ASCII)
+ * row:
+ *   us since the previous row (unsigned varint), then per column one unsigned varint: 1 if the value is
+ *   {@link SysfsSampler#MISSING}, otherwise the zigzagged change from the column's last value (0 before the first),
+ *   shifted left one
+ * </pre>
+ * The committed length is updated after every row, so {@link ThermalLogReader} never reads half of one.
+ */
+public class ThermalLogWriter implements Closeable {
+    public static final byte[] MAGIC = {'T', 'H', 'R', 'M', 'L', 'O', 'G', '1'};
+    public static final int MAX_COLUMNS = 0xffff;
+    public static final int MAX_NAME_LENGTH = 0xff;
+
+    static final long REGION_SIZE = 1024L * 1024;
+
+    //a varint is at most 10 bytes
+    private static final int MAX_VARINT_LENGTH = 10;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final int columns;
+    private final int maxRowLength;
+
+    private MappedByteBuffer region;
+    private long regionStart;
+
+    private long writePos;
+    private final long[] last;
+    private long lastMicros;
+    private final long startNanos;
+    private long rowCount = 0;
+    private boolean closed = false;
+
+    public ThermalLogWriter(File path, String[] columnNames) throws IOException {
+        if (columnNames.length > MAX_COLUMNS) {
+            throw new IllegalArgumentException("Too many columns: " + columnNames.length);
+        }
+
+        columns = columnNames.length;
+        last = new long[columns];
+        maxRowLength = MAX_VARINT_LENGTH * (columns + 1);
+
+        byte[][] names = new byte[columns][];
+        int headerLength = 26;
+        for (int i = 0; i < columns; i++) {
+            names[i] = columnNames[i].getBytes(ASCII);
+            if (names[i].length > MAX_NAME_LENGTH) {
+                throw new IllegalArgumentException("Column name too long: " + columnNames[i]);
+            }
+            headerLength += 1 + names[i].length;
+        }
+
+        file = new RandomAccessFile(path, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, headerLength);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+
+        startNanos = System.nanoTime();
+        writePos = headerLength;
+
+        header.put(MAGIC);
+        header.putLong(writePos);
+        header.putLong(System.currentTimeMillis());
+        header.putShort((short) columns);
+        for (byte[] name : names) {
+            header.put((byte) name.length);
+            header.put(name);
+        }
+
+        mapRegion(writePos);
+    }
+
+    private void mapRegion(long start) throws IOException {
+        region = channel.map(FileChannel.MapMode.READ_WRITE, start, REGION_SIZE);
+        region.order(ByteOrder.LITTLE_ENDIAN);
+        regionStart = start;
+    }
+
+    /**
+     * Append a row. Never throws: if the log can't be written we stop logging.
+     *
+     * @param nowNanos System.nanoTime() of the sample
+     * @param values one per column, {@link SysfsSampler#MISSING} for a node that couldn't be read
+     */
+    public synchronized void write(long nowNanos, long[] values) {
+        if (closed) {
+            return;
+        }
+
+        try {
+            //rows never straddle windows
+            if (writePos + maxRowLength > regionStart + REGION_SIZE) {
+                mapRegion(writePos);
+            }
+        }
+        catch (IOException e) {
+            closeQuietly();
+            return;
+        }
+
+        long micros = Math.max(lastMicros, (nowNanos - startNanos) / 1000);
+        int pos = (int) (writePos - regionStart);
+        region.position(pos);
+
+        putVarint(micros - lastMicros);
+        lastMicros = micros;
+
+        for (int i = 0; i < columns; i++) {
+            long value = values[i];
+            if (value == SysfsSampler.MISSING) {
+                putVarint(1);
+                continue;
+            }
+
+            long delta = value - last[i];
+            putVarint(((delta << 1) ^ (delta >> 63)) << 1);
+            last[i] = value;
+        }
+
+        writePos = regionStart + region.position();
+        rowCount++;
+
+        //commit only once the whole row is in
+        header.putLong(8, writePos);
+    }
+
+    private void putVarint(long value) {
+        while ((value & ~0x7fL) != 0) {
+            region.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        region.put((byte) value);
+    }
+
+    public int getColumnCount() {
+        return columns;
+    }
+
+    public synchronized long getRowCount() {
+        return rowCount;
+    }
+
+    public synchronized long getLength() {
+        return writePos;
+    }
+
+    /**
+     * Flush the mapped pages and trim the file to what was actually written.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        region.force();
+        header.force();
+
+        channel.truncate(writePos);
+        channel.close();
+        file.close();
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        }
+        catch (IOException e) {
+            //already failing, nothing more to do
+        }
+    }
+}
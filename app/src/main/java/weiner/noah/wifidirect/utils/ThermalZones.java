@@ -0,0 +1,128 @@
+package weiner.noah.wifidirect.utils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The phone's thermal zones (/sys/class/thermal/thermal_zoneN), found once and sampled through a
+ * {@link SysfsSampler}. Zone names (each zone's type) are read once at startup. Temps of the zones whose name starts
+ * with one of the fast prefixes are reread every fastPeriodNanos, everything else (including every trip point, which
+ * hardly ever changes) every slowPeriodNanos.
+ *
+ * Temps and trip points are in millidegrees C, as the kernel reports them.
+ */
+public class ThermalZones {
+    //the zones that move with what we're doing: CPU clusters, GPU, NPU, camera, battery and the skin sensors
+    public static final String[] DEFAULT_FAST_PREFIXES = {"cpu", "gpuss", "npu", "camera", "battery", "skin", "xo-therm"};
+
+    private final SysfsSampler sampler;
+    private final String[] names;
+    private final int[] zoneNumbers;
+    private final int[] tempNodes;
+    private final int[] tripNodes;
+    private final boolean[] fast;
+
+    /**
+     * Find the zones under root and add their temp and trip_point_0_temp nodes to the sampler, whose root has to be the
+     * same directory.
+     */
+    public ThermalZones(File root, SysfsSampler sampler, long fastPeriodNanos, long slowPeriodNanos, String[] fastPrefixes) {
+        this.sampler = sampler;
+
+        //thermal_zone0..N, in number order rather than directory order
+        List<Integer> numbers = new ArrayList<Integer>();
+        String[] entries = root.list();
+        if (entries != null) {
+            for (String entry : entries) {
+                if (entry.startsWith("thermal_zone")) {
+                    try {
+                        numbers.add(Integer.parseInt(entry.substring("thermal_zone".length())));
+                    }
+                    catch (NumberFormatException e) {
+                        //not a zone
+                    }
+                }
+            }
+        }
+
+        int[] sorted = new int[numbers.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = numbers.get(i);
+        }
+        Arrays.sort(sorted);
+
+        int count = sorted.length;
+        names = new String[count];
+        zoneNumbers = sorted;
+        tempNodes = new int[count];
+        tripNodes = new int[count];
+        fast = new boolean[count];
+
+        for (int i = 0; i < count; i++) {
+            String dir = "thermal_zone" + sorted[i];
+
+            String name = SysfsSampler.readString(new File(root, dir + "/type"));
+            names[i] = name == null || name.isEmpty() ? dir : name;
+
+            for (String prefix : fastPrefixes) {
+                if (names[i].startsWith(prefix)) {
+                    fast[i] = true;
+                    break;
+                }
+            }
+
+            tempNodes[i] = sampler.add(dir + "/temp", fast[i] ? fastPeriodNanos : slowPeriodNanos);
+            tripNodes[i] = sampler.add(dir + "/trip_point_0_temp", slowPeriodNanos);
+        }
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public String getName(int zone) {
+        return names[zone];
+    }
+
+    public int getZoneNumber(int zone) {
+        return zoneNumbers[zone];
+    }
+
+    public boolean isFast(int zone) {
+        return fast[zone];
+    }
+
+    /**
+     * Index of the first zone with this name, or -1.
+     */
+    public int find(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Temp as of the last sample, or {@link SysfsSampler#MISSING}.
+     */
+    public long getTempMilliC(int zone) {
+        return sampler.get(tempNodes[zone]);
+    }
+
+    public long getTripMilliC(int zone) {
+        return sampler.get(tripNodes[zone]);
+    }
+
+    /**
+     * Is the zone past its first trip point? False if either is missing.
+     */
+    public boolean isOverTrip(int zone) {
+        long temp = getTempMilliC(zone);
+        long trip = getTripMilliC(zone);
+        return temp != SysfsSampler.MISSING && trip != SysfsSampler.MISSING && temp > trip;
+    }
+}
@@ -0,0 +1,264 @@
+package weiner.noah.wifidirect.utils;
+
+import java.io.Closeable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Drop-in replacement for {@link ImageUtils#convertYUV420ToARGB8888}, producing the exact same pixels several times
+ * faster.
+ *
+ * Same fixed-point math as ImageUtils (18-bit channels, 1192/1634/833/400/2066 coefficients), but:
+ * - the per-value terms come out of 256-entry tables instead of being multiplied out for every pixel
+ * - each U/V pair is looked up once for the 2x2 block of pixels that shares it, not four times
+ * - clamping is a table lookup on the top bits of each channel instead of two branches. ImageUtils clamps to
+ *   [0, 2^18 - 1] and then keeps bits 10-17, which is the same as clamping (channel >> 10) to [0, 255]
+ * - the frame is cut into horizontal bands that run in parallel on a small fixed pool, with the calling thread
+ *   taking the first band itself
+ *
+ * One converter per image stream; convert() isn't meant to be called from two threads at once, and is synchronized
+ * to be sure. Pure Java, so pctool can benchmark it against the original on a PC.
+ */
+public class YuvConverter implements Closeable {
+    private static final int[] Y_TABLE = new int[256];
+    private static final int[] R_FROM_V = new int[256];
+    private static final int[] G_FROM_V = new int[256];
+    private static final int[] G_FROM_U = new int[256];
+    private static final int[] B_FROM_U = new int[256];
+
+    //clamped channel value for every possible (channel >> 10), already shifted into place. Channels run from
+    //-264448 (no luma, most negative chroma) to 547270 (full luma, most positive chroma), so >> 10 lands in [-259, 534]
+    private static final int CLAMP_OFFSET = 512;
+    private static final int[] R_OUT = new int[CLAMP_OFFSET + 1024];
+    private static final int[] G_OUT = new int[CLAMP_OFFSET + 1024];
+    private static final int[] B_OUT = new int[CLAMP_OFFSET + 1024];
+
+    static {
+        for (int k = 0; k < R_OUT.length; k++) {
+            int c = Math.max(0, Math.min(255, k - CLAMP_OFFSET));
+            R_OUT[k] = 0xff000000 | (c << 16);
+            G_OUT[k] = c << 8;
+            B_OUT[k] = c;
+        }
+
+        for (int i = 0; i < 256; i++) {
+            Y_TABLE[i] = 1192 * Math.max(i - 16, 0);
+            R_FROM_V[i] = 1634 * (i - 128);
+            G_FROM_V[i] = -833 * (i - 128);
+            G_FROM_U[i] = -400 * (i - 128);
+            B_FROM_U[i] = 2066 * (i - 128);
+        }
+    }
+
+    //bands smaller than this aren't worth handing to another thread
+    private static final int MIN_BAND_ROWS = 16;
+
+    private final int threads;
+    private final ExecutorService pool;
+    private final Band[] bands;
+
+    /**
+     * @param threads how many threads share a frame, counting the caller. 1 converts on the calling thread only
+     */
+    public YuvConverter(int threads) {
+        this.threads = Math.max(1, threads);
+
+        bands = new Band[this.threads];
+        for (int i = 0; i < this.threads; i++) {
+            bands[i] = new Band();
+        }
+
+        if (this.threads > 1) {
+            pool = Executors.newFixedThreadPool(this.threads - 1, new ThreadFactory() {
+                private int count = 0;
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "YuvConverter-" + (++count));
+                    //don't keep the app (or the benchmark) alive just for us
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        else {
+            pool = null;
+        }
+    }
+
+    /**
+     * A sensible thread count for this device: all the cores, up to 4. Posenet and the camera want the rest.
+     */
+    public static int defaultThreads() {
+        return Math.min(4, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Convert YUV420 planes to ARGB8888. Same arguments as {@link ImageUtils#convertYUV420ToARGB8888}.
+     */
+    public synchronized void convert(byte[] yData, byte[] uData, byte[] vData, int width, int height, int yRowStride,
+                                     int uvRowStride, int uvPixelStride, int[] out) {
+        //bands start on even rows so a 2x2 block never straddles two of them
+        int bandCount = Math.max(1, Math.min(threads, height / MIN_BAND_ROWS));
+        int bandRows = ((height + bandCount - 1) / bandCount + 1) & ~1;
+
+        int used = 0;
+        for (int start = 0; start < height; start += bandRows) {
+            bands[used++].set(yData, uData, vData, width, yRowStride, uvRowStride, uvPixelStride, out, start,
+                    Math.min(start + bandRows, height));
+        }
+
+        if (used == 1) {
+            bands[0].run();
+            bands[0].clear();
+            return;
+        }
+
+        CountDownLatch done = new CountDownLatch(used - 1);
+        for (int i = 1; i < used; i++) {
+            bands[i].latch = done;
+            pool.execute(bands[i]);
+        }
+
+        bands[0].run();
+
+        //the other bands are a few ms of work at most, so ride out an interrupt rather than hand back a frame that's
+        //still being written to
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (int i = 0; i < used; i++) {
+            bands[i].clear();
+        }
+    }
+
+    /**
+     * Convert rows [rowStart, rowEnd) on the calling thread. rowStart must be even.
+     */
+    static void convertRows(byte[] yData, byte[] uData, byte[] vData, int width, int yRowStride, int uvRowStride,
+                            int uvPixelStride, int[] out, int rowStart, int rowEnd) {
+        //whole 2x2 blocks, then a lone last column/row if the size is odd
+        int evenWidth = width & ~1;
+
+        for (int j = rowStart; j < rowEnd; j += 2) {
+            int y0 = yRowStride * j;
+            int o0 = width * j;
+            int uv = uvRowStride * (j >> 1);
+
+            if (j + 1 == rowEnd) {
+                convertRow(yData, uData, vData, width, uvPixelStride, out, y0, o0, uv);
+                continue;
+            }
+
+            int y1 = y0 + yRowStride;
+            int o1 = o0 + width;
+
+            for (int i = 0; i < evenWidth; i += 2, uv += uvPixelStride) {
+                int u = uData[uv] & 0xff;
+                int v = vData[uv] & 0xff;
+
+                //chroma terms shared by all four pixels
+                int rc = R_FROM_V[v];
+                int gc = G_FROM_V[v] + G_FROM_U[u];
+                int bc = B_FROM_U[u];
+
+                out[o0 + i] = pixel(Y_TABLE[yData[y0 + i] & 0xff], rc, gc, bc);
+                out[o0 + i + 1] = pixel(Y_TABLE[yData[y0 + i + 1] & 0xff], rc, gc, bc);
+                out[o1 + i] = pixel(Y_TABLE[yData[y1 + i] & 0xff], rc, gc, bc);
+                out[o1 + i + 1] = pixel(Y_TABLE[yData[y1 + i + 1] & 0xff], rc, gc, bc);
+            }
+
+            if (evenWidth != width) {
+                int u = uData[uv] & 0xff;
+                int v = vData[uv] & 0xff;
+                int rc = R_FROM_V[v];
+                int gc = G_FROM_V[v] + G_FROM_U[u];
+                int bc = B_FROM_U[u];
+
+                out[o0 + evenWidth] = pixel(Y_TABLE[yData[y0 + evenWidth] & 0xff], rc, gc, bc);
+                out[o1 + evenWidth] = pixel(Y_TABLE[yData[y1 + evenWidth] & 0xff], rc, gc, bc);
+            }
+        }
+    }
+
+    //a single row with no partner below it (odd height)
+    private static void convertRow(byte[] yData, byte[] uData, byte[] vData, int width, int uvPixelStride, int[] out, int y0,
+                                   int o0, int uv) {
+        for (int i = 0; i < width; i++) {
+            int u = uData[uv + (i >> 1) * uvPixelStride] & 0xff;
+            int v = vData[uv + (i >> 1) * uvPixelStride] & 0xff;
+
+            out[o0 + i] = pixel(Y_TABLE[yData[y0 + i] & 0xff], R_FROM_V[v], G_FROM_V[v] + G_FROM_U[u], B_FROM_U[u]);
+        }
+    }
+
+    private static int pixel(int expandY, int rc, int gc, int bc) {
+        return R_OUT[((expandY + rc) >> 10) + CLAMP_OFFSET] | G_OUT[((expandY + gc) >> 10) + CLAMP_OFFSET] |
+                B_OUT[((expandY + bc) >> 10) + CLAMP_OFFSET];
+    }
+
+    /**
+     * Stop the worker threads.
+     */
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    //one band's worth of arguments, reused frame to frame
+    private static class Band implements Runnable {
+        private byte[] yData, uData, vData;
+        private int width, yRowStride, uvRowStride, uvPixelStride;
+        private int[] out;
+        private int rowStart, rowEnd;
+        private CountDownLatch latch;
+
+        void set(byte[] yData, byte[] uData, byte[] vData, int width, int yRowStride, int uvRowStride, int uvPixelStride,
+                 int[] out, int rowStart, int rowEnd) {
+            this.yData = yData;
+            this.uData = uData;
+            this.vData = vData;
+            this.width = width;
+            this.yRowStride = yRowStride;
+            this.uvRowStride = uvRowStride;
+            this.uvPixelStride = uvPixelStride;
+            this.out = out;
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+        }
+
+        //don't hold on to the frame between calls
+        void clear() {
+            yData = uData = vData = null;
+            out = null;
+            latch = null;
+        }
+
+        @Override
+        public void run() {
+            try {
+                convertRows(yData, uData, vData, width, yRowStride, uvRowStride, uvPixelStride, out, rowStart, rowEnd);
+            }
+            finally {
+                if (latch != null) {
+                    latch.countDown();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package weiner.noah.wifidirect.control;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AngleTablesTest {
+    //points to check each table at: a few between every pair of table points
+    private static final int CHECKS = 200000;
+
+    //evenly over the squeezed range, which is dense around -1 and 1 where the angle changes fastest
+    private static float squeezedRatio(int i) {
+        double w = -1 + 2.0 * i / CHECKS;
+        double s = w / (1 - Math.abs(w));
+        return (float) ((1 + s) / (1 - s));
+    }
+
+    private static void assertAnglesWithinBound(float ratio) {
+        assertEquals("torso at ratio " + ratio, AngleTables.exactTorsoAngle(ratio), AngleTables.torsoAngle(ratio),
+                AngleTables.MAX_ANGLE_ERROR_DEG);
+        assertEquals("face at ratio " + ratio, AngleTables.exactFaceAngle(ratio), AngleTables.faceAngle(ratio),
+                AngleTables.MAX_ANGLE_ERROR_DEG);
+    }
+
+    @Test
+    public void squeeze_mapsTheWholeLineOntoMinusOneToOne() {
+        assertEquals(0, AngleTables.squeeze(1), 0);
+        assertEquals(-0.5, AngleTables.squeeze(0), 1e-12);
+        assertEquals(-1, AngleTables.squeeze(-1), 0);
+        assertEquals(0.5, AngleTables.squeeze(Float.MAX_VALUE), 1e-6);
+        assertEquals(0.5, AngleTables.squeeze(-Float.MAX_VALUE), 1e-6);
+
+        double last = -1;
+        //and it keeps the order of the ratios from just past -1 on up
+        for (int i = 1; i <= 10000; i++) {
+            double r = -1 + i * 0.1;
+            double w = AngleTables.squeeze(r);
+            assertTrue("ratio " + r, w > last && w < 0.5);
+            last = w;
+        }
+    }
+
+    @Test
+    public void angles_areWithinTheBoundOverTheSqueezedRange() {
+        for (int i = 0; i <= CHECKS; i++) {
+            float r = squeezedRatio(i);
+            if (!Float.isNaN(r) && !Float.isInfinite(r)) {
+                assertAnglesWithinBound(r);
+            }
+        }
+    }
+
+    @Test
+    public void angles_areWithinTheBoundForPlainRatios() {
+        for (int i = 0; i <= CHECKS; i++) {
+            assertAnglesWithinBound((float) (-50 + 100.0 * i / CHECKS));
+        }
+    }
+
+    @Test
+    public void angles_matchWhereTheFormulasAreSpecial() {
+        float[] special = {1f, -1f, 0f, Float.MAX_VALUE, -Float.MAX_VALUE, Math.nextUp(-1f), Math.nextDown(-1f),
+                Math.nextUp(1f), Math.nextDown(1f)};
+        for (float r : special) {
+            assertAnglesWithinBound(r);
+        }
+
+        assertEquals(0, AngleTables.torsoAngle(1), 0);
+        assertEquals(0, AngleTables.faceAngle(1), 0);
+    }
+
+    @Test
+    public void pivotShrink_isWithinTheBoundOverAFullTurnEitherWay() {
+        for (int i = 0; i <= CHECKS; i++) {
+            float degrees = (float) (-360 + 720.0 * i / CHECKS);
+            assertEquals("at " + degrees + " deg", AngleTables.exactPivotShrink(degrees), AngleTables.pivotShrink(degrees),
+                    AngleTables.MAX_SHRINK_ERROR_M);
+        }
+
+        assertEquals(0, AngleTables.pivotShrink(0), 0);
+        assertEquals(AngleTables.pivotShrink(30), AngleTables.pivotShrink(-30), 0);
+        assertEquals(AngleTables.pivotShrink(30), AngleTables.pivotShrink(390), 1e-6);
+    }
+}
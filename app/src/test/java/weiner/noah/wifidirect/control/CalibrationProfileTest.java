@@ -0,0 +1,112 @@
+package weiner.noah.wifidirect.control;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import weiner.noah.wifidirect.Constants;
+
+import static org.junit.Assert.*;
+
+public class CalibrationProfileTest {
+    private static final CalibrationProfile PROFILE = new CalibrationProfile(0.058f, 213.1f, 1.2f, 6f, 3f, 18f, 30f, -22f,
+            1760000000000L);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    //a parameter replaced and the checksum made good again, so only the parameter check can turn it down
+    private static byte[] withParameter(int index, float value) {
+        byte[] bytes = PROFILE.encode();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putFloat(CalibrationProfile.MAGIC.length + 4 * index, value);
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, CalibrationProfile.FILE_LENGTH - 4);
+        buffer.putInt(CalibrationProfile.FILE_LENGTH - 4, (int) crc.getValue());
+        return bytes;
+    }
+
+    @Test
+    public void encode_decodesBackToTheSameProfile() {
+        byte[] bytes = PROFILE.encode();
+
+        assertEquals(CalibrationProfile.FILE_LENGTH, bytes.length);
+        assertEquals(PROFILE, CalibrationProfile.decode(bytes));
+        assertEquals(PROFILE.hashCode(), CalibrationProfile.decode(bytes).hashCode());
+    }
+
+    @Test
+    public void save_loadsBackAndLeavesNoTempFile() throws IOException {
+        File file = new File(folder.getRoot(), CalibrationProfile.FILE_NAME);
+        CalibrationProfile.DEFAULT.save(file);
+
+        //saving over an existing profile replaces it
+        PROFILE.save(file);
+
+        assertEquals(PROFILE, CalibrationProfile.load(file));
+        assertEquals(CalibrationProfile.FILE_LENGTH, file.length());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void missingFile_loadsAsNull() throws IOException {
+        assertNull(CalibrationProfile.load(new File(folder.getRoot(), CalibrationProfile.FILE_NAME)));
+    }
+
+    @Test
+    public void flippedBit_isTurnedDown() throws IOException {
+        File file = new File(folder.getRoot(), CalibrationProfile.FILE_NAME);
+        PROFILE.save(file);
+
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            raw.seek(12);
+            int b = raw.read();
+            raw.seek(12);
+            raw.write(b ^ 0x10);
+        }
+
+        assertNull(CalibrationProfile.load(file));
+    }
+
+    @Test
+    public void wrongLengthOrMagic_isTurnedDown() {
+        byte[] bytes = PROFILE.encode();
+
+        assertNull(CalibrationProfile.decode(Arrays.copyOf(bytes, bytes.length - 1)));
+        assertNull(CalibrationProfile.decode(Arrays.copyOf(bytes, bytes.length + 1)));
+
+        bytes[7] = '2';
+        assertNull(CalibrationProfile.decode(bytes));
+    }
+
+    @Test
+    public void parametersThatArentUsable_areTurnedDown() {
+        assertNull(CalibrationProfile.decode(withParameter(0, 0f)));
+        assertNull(CalibrationProfile.decode(withParameter(1, -219f)));
+        assertNull(CalibrationProfile.decode(withParameter(2, Float.NaN)));
+        assertNull(CalibrationProfile.decode(withParameter(5, Float.POSITIVE_INFINITY)));
+
+        //a negative offset is fine
+        assertNotNull(CalibrationProfile.decode(withParameter(3, -4f)));
+    }
+
+    @Test
+    public void defaults_areTheCompileTimeValues() {
+        CalibrationProfile defaults = CalibrationProfile.DEFAULT;
+
+        assertTrue(defaults.isDefault());
+        assertFalse(PROFILE.isDefault());
+        assertEquals(Constants.PD, defaults.pd, 0);
+        assertEquals(Constants.focalLenExp, defaults.focalLength, 0);
+        assertNotEquals(PROFILE, defaults);
+    }
+}
@@ -0,0 +1,166 @@
+package weiner.noah.wifidirect.control;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CalibratorTest {
+    private static final double[] DISTANCES_M = {0.3, 0.45, 0.6};
+    private static final long DWELL_NANOS = 8000000000L;
+    private static final long SETTLE_NANOS = 3000000000L;
+    private static final long FRAME_NANOS = 66666667L;
+    private static final long START_NANOS = 1000000000L;
+
+    //an operator with a narrower PD than the defaults, who turns their head less for the same torso angle and stands a
+    //little off center
+    private static final double PD = 0.058;
+    private static final double PIVOT_WEIGHT = 1.2;
+    private static final double TORSO_LEFT = 6;
+    private static final double TORSO_RIGHT = 3;
+    private static final double FACE_LEFT = 18;
+    private static final double FACE_RIGHT = 30;
+    private static final double CTR_OFFSET = -22;
+
+    //what PosenetStats would see of the operator, without Posenet's noise, every frame from start to done
+    private static void fly(Calibrator calibrator, double focal) {
+        calibrator.start(START_NANOS);
+
+        for (long now = START_NANOS; !calibrator.isDone(now); now += FRAME_NANOS) {
+            Calibrator.Phase phase = calibrator.getPhase(now);
+            double angle = phase.angleDeg;
+
+            double eyePixels = (PD - AngleTables.exactPivotShrink(angle) * PIVOT_WEIGHT) * focal / phase.distanceM;
+            double torso = angle + (angle > 0 ? TORSO_LEFT : angle < 0 ? -TORSO_RIGHT : 0);
+            double face = angle + (angle > 0 ? FACE_LEFT : angle < 0 ? -FACE_RIGHT : 0);
+
+            calibrator.onFrame(now, eyePixels, torso, face, CTR_OFFSET);
+        }
+    }
+
+    @Test
+    public void phases_runInOrderForTheirDwell() {
+        Calibrator calibrator = new Calibrator(DISTANCES_M, Calibrator.DEFAULT_TURN_DEG, DWELL_NANOS, SETTLE_NANOS);
+
+        assertEquals(9, calibrator.getPhases().size());
+        assertEquals(9 * DWELL_NANOS, calibrator.getDurationNanos());
+        assertNull(calibrator.getPhase(START_NANOS));
+        assertFalse(calibrator.isDone(START_NANOS));
+
+        calibrator.start(START_NANOS);
+        Calibrator.Phase first = calibrator.getPhase(START_NANOS);
+        assertEquals(0.3, first.distanceM, 0);
+        assertEquals(0, first.angleDeg, 0);
+        assertEquals("Stand 30cm from the drone and face the drone", first.getInstruction());
+
+        Calibrator.Phase left = calibrator.getPhase(START_NANOS + DWELL_NANOS);
+        assertEquals(45, left.angleDeg, 0);
+        assertEquals("Stand 30cm from the drone and turn 45 degrees to your left", left.getInstruction());
+        assertEquals(-45, calibrator.getPhase(START_NANOS + 2 * DWELL_NANOS).angleDeg, 0);
+        assertEquals(0.45, calibrator.getPhase(START_NANOS + 3 * DWELL_NANOS).distanceM, 0);
+
+        assertFalse(calibrator.isDone(START_NANOS + 9 * DWELL_NANOS - 1));
+        assertTrue(calibrator.isDone(START_NANOS + 9 * DWELL_NANOS));
+        assertNull(calibrator.getPhase(START_NANOS + 9 * DWELL_NANOS));
+    }
+
+    @Test
+    public void framesWhileSettling_areThrownAway() {
+        Calibrator calibrator = new Calibrator(DISTANCES_M, Calibrator.DEFAULT_TURN_DEG, DWELL_NANOS, SETTLE_NANOS);
+        calibrator.onFrame(START_NANOS, 40, 0, 0, 0);
+        calibrator.start(START_NANOS);
+
+        calibrator.onFrame(START_NANOS, 40, 0, 0, 0);
+        calibrator.onFrame(START_NANOS + SETTLE_NANOS - 1, 40, 0, 0, 0);
+        calibrator.onFrame(START_NANOS + SETTLE_NANOS, 40, 0, 0, 0);
+        calibrator.onFrame(START_NANOS + DWELL_NANOS + 1, 40, 0, 0, 0);
+
+        assertEquals(1, calibrator.getPhases().get(0).getFrames());
+        assertEquals(0, calibrator.getPhases().get(1).getFrames());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void settlingForTheWholePhase_isRefused() {
+        new Calibrator(DISTANCES_M, Calibrator.DEFAULT_TURN_DEG, DWELL_NANOS, DWELL_NANOS);
+    }
+
+    @Test
+    public void fit_getsTheOperatorBack() {
+        double focal = Calibrator.modelFocalLength();
+        Calibrator calibrator = new Calibrator(DISTANCES_M, Calibrator.DEFAULT_TURN_DEG, DWELL_NANOS, SETTLE_NANOS);
+        fly(calibrator, focal);
+
+        CalibrationProfile profile = calibrator.fit(CalibrationProfile.DEFAULT, focal, 1234);
+
+        assertEquals(PD, profile.pd, 1e-4);
+        assertEquals(focal, profile.focalLength, 1e-3);
+        assertEquals(PIVOT_WEIGHT, profile.pivotWeight, 0.01);
+        assertEquals(TORSO_LEFT, profile.torsoLeft, 1e-4);
+        assertEquals(TORSO_RIGHT, profile.torsoRight, 1e-4);
+        assertEquals(FACE_LEFT, profile.faceLeft, 1e-4);
+        assertEquals(FACE_RIGHT, profile.faceRight, 1e-4);
+        assertEquals(CTR_OFFSET, profile.ctrOffset, 1e-4);
+        assertEquals(1234, profile.calibratedMillis);
+
+        assertTrue(calibrator.getDistanceError(profile) < 1e-3);
+        assertTrue(calibrator.getDistanceError(profile) < calibrator.getDistanceError(CalibrationProfile.DEFAULT));
+    }
+
+    @Test
+    public void tooFewFrames_keepTheCurrentValues() {
+        Calibrator calibrator = new Calibrator(DISTANCES_M, Calibrator.DEFAULT_TURN_DEG, DWELL_NANOS, SETTLE_NANOS);
+        calibrator.start(START_NANOS);
+        for (int i = 0; i < Calibrator.MIN_FRAMES - 1; i++) {
+            calibrator.onFrame(START_NANOS + SETTLE_NANOS + i * FRAME_NANOS, 40, 1, 1, -30);
+        }
+
+        CalibrationProfile current = CalibrationProfile.DEFAULT;
+        CalibrationProfile profile = calibrator.fit(current, Calibrator.modelFocalLength(), 1234);
+
+        assertEquals(current.pd, profile.pd, 0);
+        assertEquals(current.focalLength, profile.focalLength, 0);
+        assertEquals(current.torsoLeft, profile.torsoLeft, 0);
+        assertEquals(current.ctrOffset, profile.ctrOffset, 0);
+        assertFalse(profile.isDefault());
+    }
+
+    @Test
+    public void missingMeasurements_dontCount() {
+        double focal = Calibrator.modelFocalLength();
+        Calibrator calibrator = new Calibrator(DISTANCES_M, Calibrator.DEFAULT_TURN_DEG, DWELL_NANOS, SETTLE_NANOS);
+        calibrator.start(START_NANOS);
+
+        //eyes and face in every frame, shoulders in none
+        for (long now = START_NANOS; !calibrator.isDone(now); now += FRAME_NANOS) {
+            Calibrator.Phase phase = calibrator.getPhase(now);
+            double eyePixels = (PD - AngleTables.exactPivotShrink(phase.angleDeg) * PIVOT_WEIGHT) * focal / phase.distanceM;
+            calibrator.onFrame(now, eyePixels, Double.NaN, phase.angleDeg, Double.NaN);
+        }
+
+        CalibrationProfile current = CalibrationProfile.DEFAULT;
+        CalibrationProfile profile = calibrator.fit(current, focal, 1234);
+
+        assertEquals(PD, profile.pd, 1e-4);
+        assertEquals(current.torsoLeft, profile.torsoLeft, 0);
+        assertEquals(current.torsoRight, profile.torsoRight, 0);
+        assertEquals(current.ctrOffset, profile.ctrOffset, 0);
+        assertEquals(0, profile.faceLeft, 1e-4);
+    }
+
+    @Test
+    public void noTurns_fitsPdAndKeepsThePivotWeight() {
+        double focal = Calibrator.modelFocalLength();
+        Calibrator calibrator = new Calibrator(DISTANCES_M, 0, DWELL_NANOS, SETTLE_NANOS);
+        fly(calibrator, focal);
+
+        CalibrationProfile profile = calibrator.fit(CalibrationProfile.DEFAULT, focal, 1234);
+
+        assertEquals(PD, profile.pd, 1e-4);
+        assertEquals(CalibrationProfile.DEFAULT.pivotWeight, profile.pivotWeight, 0);
+    }
+
+    @Test
+    public void noFrames_haveNoDistanceError() {
+        Calibrator calibrator = new Calibrator(DISTANCES_M, Calibrator.DEFAULT_TURN_DEG, DWELL_NANOS, SETTLE_NANOS);
+        assertTrue(Double.isNaN(calibrator.getDistanceError(CalibrationProfile.DEFAULT)));
+    }
+}
@@ -0,0 +1,301 @@
+package weiner.noah.wifidirect.control;
+
+import org.junit.Test;
+
+import weiner.noah.wifidirect.Constants;
+import weiner.noah.wifidirect.inference.Pose;
+
+import static org.junit.Assert.*;
+
+public class MeasurementFusionTest {
+    private static final CalibrationProfile PROFILE = CalibrationProfile.DEFAULT;
+
+    //eye and shoulder pixels for someone square to the camera at this distance, by the same geometry fusion assumes
+    private static double eyePixels(double d) {
+        return (double) PROFILE.pd * PROFILE.focalLength / d;
+    }
+
+    private static double shoulderPixels(double d) {
+        return MeasurementFusion.SHOULDERS_PER_PD * PROFILE.pd * PROFILE.focalLength / d;
+    }
+
+    //nothing found yet
+    private static Pose emptyPose() {
+        return new Pose(17);
+    }
+
+    private static void place(Pose pose, int keypoint, double x, double y, float score) {
+        pose.x[keypoint] = (float) x;
+        pose.y[keypoint] = (float) y;
+        pose.scores[keypoint] = score;
+    }
+
+    //left eye is on the right of the image
+    private static void eyes(Pose pose, double center, double pixels, float score) {
+        place(pose, Pose.LEFT_EYE, center + pixels / 2, 100, score);
+        place(pose, Pose.RIGHT_EYE, center - pixels / 2, 100, score);
+    }
+
+    private static void shoulders(Pose pose, double center, double pixels, float score) {
+        place(pose, Pose.LEFT_SHOULDER, center + pixels / 2, 160, score);
+        place(pose, Pose.RIGHT_SHOULDER, center - pixels / 2, 160, score);
+    }
+
+    //someone HUMAN_HEIGHT tall standing square to the camera at this distance, nose at y 40, every keypoint at this score
+    private static void standing(Pose pose, double d, float score) {
+        double fy = PROFILE.focalLength * MeasurementFusion.VERTICAL_FOCAL_RATIO;
+        double noseY = 40;
+        double shoulderY = noseY + 0.1 * Constants.HUMAN_HEIGHT * fy / d;
+        double hipY = shoulderY + MeasurementFusion.TORSO_PER_HEIGHT * Constants.HUMAN_HEIGHT * fy / d;
+        double ankleY = noseY + MeasurementFusion.NOSE_TO_ANKLE_PER_HEIGHT * Constants.HUMAN_HEIGHT * fy / d;
+        double eyeY = noseY - MeasurementFusion.NOSE_HEIGHT_PER_PD * PROFILE.pd * fy / d;
+
+        place(pose, Pose.NOSE, 128, noseY, score);
+        place(pose, Pose.LEFT_EYE, 128 + eyePixels(d) / 2, eyeY, score);
+        place(pose, Pose.RIGHT_EYE, 128 - eyePixels(d) / 2, eyeY, score);
+        shoulders(pose, 128, shoulderPixels(d), score);
+        pose.y[Pose.LEFT_SHOULDER] = pose.y[Pose.RIGHT_SHOULDER] = (float) shoulderY;
+        place(pose, Pose.LEFT_HIP, 140, hipY, score);
+        place(pose, Pose.RIGHT_HIP, 116, hipY, score);
+        place(pose, Pose.LEFT_ANKLE, 136, ankleY, score);
+        place(pose, Pose.RIGHT_ANKLE, 120, ankleY, score);
+    }
+
+    private static double keypointVariance(float score) {
+        double sigma = MeasurementFusion.KEYPOINT_SIGMA_PX / score;
+        return sigma * sigma + MeasurementFusion.QUANTIZATION_VARIANCE_PX;
+    }
+
+    @Test
+    public void nothingFound_givesNoDistanceOrOffset() {
+        MeasurementFusion fusion = new MeasurementFusion();
+
+        assertFalse(fusion.fuse(emptyPose(), PROFILE, 0));
+        assertFalse(fusion.hasDistance());
+        assertFalse(fusion.hasOffset());
+        assertTrue(Double.isNaN(fusion.getDistanceVariance()));
+        assertTrue(Double.isNaN(fusion.getEyePixels()));
+    }
+
+    @Test
+    public void eyesAlone_giveTheUsualDistanceWithTheirVariance() {
+        MeasurementFusion fusion = new MeasurementFusion();
+        Pose pose = emptyPose();
+        eyes(pose, 140, 20, 0.9f);
+
+        assertTrue(fusion.fuse(pose, PROFILE, 0));
+
+        double d = (double) PROFILE.pd * PROFILE.focalLength / 20;
+        double fromPixels = d / 20;
+        double variance = fromPixels * fromPixels * 2 * keypointVariance(0.9f) +
+                Math.pow(d * MeasurementFusion.EYES_MODEL_ERROR, 2);
+        assertEquals(d, fusion.getDistance(), 1e-6);
+        assertEquals(variance, fusion.getDistanceVariance(), 1e-9);
+        assertEquals(20, fusion.getEyePixels(), 1e-6);
+        assertEquals(140 - Constants.FRAME_CENTER, fusion.getOffset(), 1e-6);
+        assertTrue(Double.isNaN(fusion.getDistanceCue(MeasurementFusion.CUE_SHOULDERS)));
+    }
+
+    @Test
+    public void rightTurn_getsTheCameraCorrectionAndPivotShrink() {
+        MeasurementFusion fusion = new MeasurementFusion();
+        Pose pose = emptyPose();
+        eyes(pose, 128, 20, 0.9f);
+
+        fusion.fuse(pose, PROFILE, -30);
+
+        double k = (PROFILE.pd - AngleTables.pivotShrink(-30) * PROFILE.pivotWeight) * PROFILE.focalLength;
+        assertEquals(25, fusion.getEyePixels(), 1e-6);
+        assertEquals(k / 25, fusion.getDistanceCue(MeasurementFusion.CUE_EYES), 1e-9);
+    }
+
+    @Test
+    public void keypointUnderMinScore_isLeftOut() {
+        MeasurementFusion fusion = new MeasurementFusion();
+        Pose pose = emptyPose();
+        eyes(pose, 128, 20, 0.9f);
+        pose.scores[Pose.RIGHT_EYE] = Math.nextDown(MeasurementFusion.MIN_SCORE);
+
+        fusion.fuse(pose, PROFILE, 0);
+        assertTrue(Double.isNaN(fusion.getDistanceCue(MeasurementFusion.CUE_EYES)));
+
+        //at the cut it counts, for very little
+        pose.scores[Pose.RIGHT_EYE] = MeasurementFusion.MIN_SCORE;
+        fusion.fuse(pose, PROFILE, 0);
+        assertFalse(Double.isNaN(fusion.getDistanceCue(MeasurementFusion.CUE_EYES)));
+    }
+
+    @Test
+    public void lowerScores_countForLess() {
+        MeasurementFusion fusion = new MeasurementFusion();
+        Pose pose = emptyPose();
+        eyes(pose, 128, 20, 0.9f);
+        fusion.fuse(pose, PROFILE, 0);
+        double sure = fusion.getDistanceCueVariance(MeasurementFusion.CUE_EYES);
+
+        eyes(pose, 128, 20, 0.3f);
+        fusion.fuse(pose, PROFILE, 0);
+        double unsure = fusion.getDistanceCueVariance(MeasurementFusion.CUE_EYES);
+
+        assertTrue(unsure > 2 * sure);
+    }
+
+    @Test
+    public void tooShortABaseline_isntAMeasurement() {
+        MeasurementFusion fusion = new MeasurementFusion();
+        Pose pose = emptyPose();
+        eyes(pose, 128, 1, 0.9f);
+
+        fusion.fuse(pose, PROFILE, 0);
+
+        assertTrue(Double.isNaN(fusion.getDistanceCue(MeasurementFusion.CUE_EYES)));
+        assertTrue(Double.isNaN(fusion.getEyePixels()));
+        //the midpoint still says where they are
+        assertTrue(fusion.hasOffset());
+    }
+
+    @Test
+    public void shouldersTooFarTurned_areLeftOut() {
+        MeasurementFusion fusion = new MeasurementFusion();
+        Pose pose = emptyPose();
+        shoulders(pose, 128, shoulderPixels(1), 0.9f);
+
+        fusion.fuse(pose, PROFILE, 0);
+        assertEquals(1, fusion.getDistanceCue(MeasurementFusion.CUE_SHOULDERS), 1e-6);
+
+        fusion.fuse(pose, PROFILE, MeasurementFusion.MAX_SHOULDER_ANGLE_DEG + 1);
+        assertTrue(Double.isNaN(fusion.getDistanceCue(MeasurementFusion.CUE_SHOULDERS)));
+    }
+
+    @Test
+    public void noseUnderOneEye_stillGivesTheNoseCue() {
+        MeasurementFusion fusion = new MeasurementFusion();
+        Pose pose = emptyPose();
+        double noseHeight = MeasurementFusion.NOSE_HEIGHT_PER_PD * PROFILE.pd * PROFILE.focalLength *
+                MeasurementFusion.VERTICAL_FOCAL_RATIO / 0.8;
+        place(pose, Pose.LEFT_EYE, 135, 100, 0.9f);
+        place(pose, Pose.NOSE, 128, 100 + noseHeight, 0.9f);
+
+        fusion.fuse(pose, PROFILE, 0);
+
+        assertTrue(Double.isNaN(fusion.getDistanceCue(MeasurementFusion.CUE_EYES)));
+        assertEquals(0.8, fusion.getDistanceCue(MeasurementFusion.CUE_NOSE), 1e-6);
+        assertEquals(0.8, fusion.getDistance(), 1e-6);
+    }
+
+    @Test
+    public void agreeingCues_areSurerThanEitherAlone() {
+        MeasurementFusion fusion = new MeasurementFusion();
+        Pose pose = emptyPose();
+        eyes(pose, 128, eyePixels(1), 0.9f);
+        shoulders(pose, 128, shoulderPixels(1), 0.6f);
+
+        fusion.fuse(pose, PROFILE, 0);
+
+        double eyes = fusion.getDistanceCueVariance(MeasurementFusion.CUE_EYES);
+        double shoulders = fusion.getDistanceCueVariance(MeasurementFusion.CUE_SHOULDERS);
+        assertEquals(1, fusion.getDistance(), 1e-6);
+        assertEquals(1 / (1 / eyes + 1 / shoulders), fusion.getDistanceVariance(), 1e-12);
+    }
+
+    @Test
+    public void disagreeingCues_leanToTheSurerOneAndReadLessCertain() {
+        MeasurementFusion fusion = new MeasurementFusion();
+        Pose pose = emptyPose();
+
+        //the shoulders say half the distance the eyes do, over a baseline nearly four times as long
+        eyes(pose, 128, eyePixels(1), 0.9f);
+        shoulders(pose, 128, shoulderPixels(0.5), 0.9f);
+
+        fusion.fuse(pose, PROFILE, 0);
+
+        double eyes = fusion.getDistanceCueVariance(MeasurementFusion.CUE_EYES);
+        double shoulders = fusion.getDistanceCueVariance(MeasurementFusion.CUE_SHOULDERS);
+        assertTrue(shoulders < eyes);
+        assertTrue(fusion.getDistance() > 0.5 && fusion.getDistance() < 0.75);
+        assertTrue(fusion.getDistanceVariance() > 1 / (1 / eyes + 1 / shoulders));
+    }
+
+    @Test
+    public void centering_weighsTheShouldersOverTheEyes() {
+        MeasurementFusion fusion = new MeasurementFusion();
+        Pose pose = emptyPose();
+        eyes(pose, 140, 20, 0.9f);
+        shoulders(pose, 120, 70, 0.9f);
+
+        fusion.fuse(pose, PROFILE, 0);
+
+        assertEquals(140 - Constants.FRAME_CENTER, fusion.getOffsetCue(MeasurementFusion.CUE_EYES_CENTER), 1e-6);
+        assertEquals(120 - Constants.FRAME_CENTER, fusion.getOffsetCue(MeasurementFusion.CUE_SHOULDERS_CENTER), 1e-6);
+        assertTrue(fusion.getOffset() > 120 - Constants.FRAME_CENTER && fusion.getOffset() < 130 - Constants.FRAME_CENTER);
+    }
+
+    @Test
+    public void eachFrame_startsFromNothing() {
+        MeasurementFusion fusion = new MeasurementFusion();
+        Pose pose = emptyPose();
+        eyes(pose, 128, 20, 0.9f);
+        shoulders(pose, 128, 70, 0.9f);
+        fusion.fuse(pose, PROFILE, 0);
+
+        assertFalse(fusion.fuse(emptyPose(), PROFILE, 0));
+        for (int cue = 0; cue < MeasurementFusion.DISTANCE_CUES; cue++) {
+            assertTrue(Double.isNaN(fusion.getDistanceCue(cue)));
+        }
+        for (int cue = 0; cue < MeasurementFusion.OFFSET_CUES; cue++) {
+            assertTrue(Double.isNaN(fusion.getOffsetCue(cue)));
+        }
+    }
+
+    @Test
+    public void torsoAndBody_giveTheDistanceByStature() {
+        MeasurementFusion fusion = new MeasurementFusion();
+        Pose pose = emptyPose();
+        standing(pose, 2, 0.8f);
+
+        fusion.fuse(pose, PROFILE, 0);
+
+        for (int cue = 0; cue < MeasurementFusion.DISTANCE_CUES; cue++) {
+            assertEquals("cue " + cue, 2, fusion.getDistanceCue(cue), 1e-4);
+        }
+        assertEquals(2, fusion.getDistance(), 1e-4);
+    }
+
+    @Test
+    public void oneHipAndOneAnkle_areEnough() {
+        MeasurementFusion fusion = new MeasurementFusion();
+        Pose pose = emptyPose();
+        standing(pose, 2, 0.8f);
+        pose.scores[Pose.RIGHT_HIP] = 0;
+        pose.scores[Pose.LEFT_ANKLE] = 0;
+
+        fusion.fuse(pose, PROFILE, 0);
+        assertEquals(2, fusion.getDistanceCue(MeasurementFusion.CUE_TORSO), 1e-4);
+        assertEquals(2, fusion.getDistanceCue(MeasurementFusion.CUE_BODY), 1e-4);
+
+        //but not none
+        pose.scores[Pose.LEFT_HIP] = 0;
+        pose.scores[Pose.RIGHT_ANKLE] = 0;
+        fusion.fuse(pose, PROFILE, 0);
+        assertTrue(Double.isNaN(fusion.getDistanceCue(MeasurementFusion.CUE_TORSO)));
+        assertTrue(Double.isNaN(fusion.getDistanceCue(MeasurementFusion.CUE_BODY)));
+    }
+
+    @Test
+    public void farAway_theTorsoAndBodyOutweighTheEyes() {
+        MeasurementFusion fusion = new MeasurementFusion();
+        Pose pose = emptyPose();
+        standing(pose, 3, 0.8f);
+
+        //the eyes a pixel too far apart, which at under 5px is a 60cm error
+        pose.x[Pose.LEFT_EYE] += 1;
+
+        fusion.fuse(pose, PROFILE, 0);
+
+        double eyes = fusion.getDistanceCueVariance(MeasurementFusion.CUE_EYES);
+        assertTrue(fusion.getDistanceCue(MeasurementFusion.CUE_EYES) < 2.5);
+        assertTrue(fusion.getDistanceCueVariance(MeasurementFusion.CUE_TORSO) < eyes / 10);
+        assertTrue(fusion.getDistanceCueVariance(MeasurementFusion.CUE_BODY) < eyes / 10);
+        assertEquals(3, fusion.getDistance(), 0.1);
+    }
+}
@@ -0,0 +1,128 @@
+package weiner.noah.wifidirect.control;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ThermalPredictorTest {
+    private static final long MISSING = Long.MIN_VALUE;
+    private static final long SECOND = 1000000000L;
+
+    //one zone with its trip point at 50C, a temp a second for seconds [from, to) along the line
+    private static void feed(ThermalPredictor predictor, double startC, double cPerS, int from, int to) {
+        for (int s = from; s < to; s++) {
+            predictor.onSample(new long[]{Math.round((startC + cPerS * s) * 1000)}, new long[]{50000}, s * SECOND);
+        }
+    }
+
+    @Test
+    public void steadyHeating_forecastsWhenTheLimitsAreReached() {
+        ThermalPredictor predictor = new ThermalPredictor(new String[]{"cpu-0-0-usr"});
+
+        //1.2C a minute from 40C: the trip point at 500s, trip point plus the default 10C at 1000s
+        feed(predictor, 40, 0.02, 0, 61);
+
+        assertEquals(440, predictor.getSecondsToThrottle(), 1);
+        assertEquals(940, predictor.getSecondsToEmergency(), 1);
+        assertEquals(1.2, predictor.getHeatingPerMinute(0), 0.01);
+        assertEquals("cpu-0-0-usr", predictor.getLimitingZone());
+        assertTrue(predictor.isEmergencyForecastConfident());
+    }
+
+    @Test
+    public void flatTemps_arentHeadingAnywhere() {
+        ThermalPredictor predictor = new ThermalPredictor(new String[]{"cpu-0-0-usr"});
+        feed(predictor, 40, 0, 0, 61);
+
+        assertEquals(ThermalPredictor.NEVER, predictor.getSecondsToThrottle(), 0);
+        assertEquals(ThermalPredictor.NEVER, predictor.getSecondsToEmergency(), 0);
+        assertNull(predictor.getLimitingZone());
+        assertFalse(predictor.isEmergencyForecastConfident());
+    }
+
+    @Test
+    public void tooLittleHistory_hasNoTrendYet() {
+        ThermalPredictor predictor = new ThermalPredictor(new String[]{"cpu-0-0-usr"});
+        feed(predictor, 40, 0.02, 0, 10);
+
+        assertEquals(ThermalPredictor.NEVER, predictor.getSecondsToEmergency(), 0);
+        assertTrue(Double.isNaN(predictor.getHeatingPerMinute(0)));
+    }
+
+    @Test
+    public void noisyTemps_giveAForecastButNotAConfidentOne() {
+        ThermalPredictor predictor = new ThermalPredictor(new String[]{"cpu-0-0-usr"});
+
+        //a slow rise under a degree of scatter either way
+        for (int s = 0; s < 20; s++) {
+            double c = 40 + 0.01 * s + (s % 2 == 0 ? 1 : -1) * ((s / 2) % 2 == 0 ? 1 : -1);
+            predictor.onSample(new long[]{Math.round(c * 1000)}, new long[]{50000}, s * SECOND);
+        }
+
+        assertTrue(predictor.getSecondsToEmergency() < ThermalPredictor.NEVER);
+        assertFalse(predictor.isEmergencyForecastConfident());
+    }
+
+    @Test
+    public void zonesWithoutATripPointOrAlreadyOverIt_areIgnored() {
+        ThermalPredictor predictor = new ThermalPredictor(new String[]{"battery", "cpu-1-0-usr", "skin-therm"});
+
+        for (int s = 0; s < 61; s++) {
+            //battery and cpu-1 heat far faster, but only skin is heading for a trip point it's under
+            long[] temps = {30000 + s * 1000, 30000 + s * 1000, 40000 + s * 20};
+            long[] trips = {MISSING, 20000, 50000};
+            predictor.onSample(temps, trips, s * SECOND);
+        }
+
+        assertTrue(predictor.isIgnored(0));
+        assertTrue(predictor.isIgnored(1));
+        assertFalse(predictor.isIgnored(2));
+        assertEquals("skin-therm", predictor.getLimitingZone());
+        assertEquals(440, predictor.getSecondsToThrottle(), 1);
+    }
+
+    @Test
+    public void missingReadings_areSkipped() {
+        ThermalPredictor predictor = new ThermalPredictor(new String[]{"cpu-0-0-usr"});
+
+        for (int s = 0; s < 61; s++) {
+            long temp = s % 3 == 0 ? MISSING : Math.round((40 + 0.02 * s) * 1000);
+            predictor.onSample(new long[]{temp}, new long[]{50000}, s * SECOND);
+        }
+
+        assertEquals(440, predictor.getSecondsToThrottle(), 1);
+    }
+
+    @Test
+    public void thermalStatus_teachesTheMargins() {
+        ThermalPredictor predictor = new ThermalPredictor(new String[]{"cpu-0-0-usr"});
+
+        //the phone only throttles 2C past the trip point
+        feed(predictor, 40, 0.02, 0, 601);
+        predictor.onThermalStatus(ThermalPredictor.THROTTLE_STATUS, 600 * SECOND);
+
+        assertEquals(2, predictor.getThrottleMarginC(), 0.05);
+        assertEquals(0, predictor.getSecondsToThrottle(), 0);
+        //not learned yet, so still the default, which is already more than throttle plus 5C
+        assertEquals(10, predictor.getEmergencyMarginC(), 0);
+
+        feed(predictor, 40, 0.02, 601, 901);
+        predictor.onThermalStatus(ThermalPredictor.EMERGENCY_STATUS, 900 * SECOND);
+
+        assertEquals(8, predictor.getEmergencyMarginC(), 0.05);
+        assertEquals(0, predictor.getSecondsToEmergency(), 0);
+        assertTrue(predictor.isEmergencyForecastConfident());
+    }
+
+    @Test
+    public void learnedThrottleMargin_pushesTheUnlearnedEmergencyOneOut() {
+        ThermalPredictor predictor = new ThermalPredictor(new String[]{"cpu-0-0-usr"});
+
+        //throttling at 8C over leaves emergency at least 5C past that
+        feed(predictor, 40, 0.02, 0, 901);
+        predictor.onThermalStatus(ThermalPredictor.THROTTLE_STATUS, 900 * SECOND);
+
+        assertEquals(8, predictor.getThrottleMarginC(), 0.05);
+        assertEquals(13, predictor.getEmergencyMarginC(), 0.05);
+    }
+}
@@ -0,0 +1,127 @@
+package weiner.noah.wifidirect.inference;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class OneEuroFilterBankTest {
+    private static final int KEYPOINTS = 17;
+    private static final float MIN_SCORE = 0.5f;
+
+    //30fps, the camera's rate
+    private static final long FRAME_NANOS = 33333333L;
+
+    private static Pose pose(float x, float y, float score) {
+        Pose pose = new Pose(KEYPOINTS);
+        for (int k = 0; k < KEYPOINTS; k++) {
+            pose.x[k] = x;
+            pose.y[k] = y;
+            pose.scores[k] = score;
+        }
+        return pose;
+    }
+
+    @Test
+    public void firstFrame_passesThrough() {
+        OneEuroFilterBank filter = new OneEuroFilterBank(KEYPOINTS, MIN_SCORE);
+        Pose pose = pose(120, 80, 0.9f);
+
+        filter.filter(pose, 0);
+
+        assertEquals(120, pose.x[Pose.NOSE], 0);
+        assertEquals(80, pose.y[Pose.NOSE], 0);
+    }
+
+    @Test
+    public void stillKeypoint_losesMostOfItsJitter() {
+        OneEuroFilterBank filter = new OneEuroFilterBank(KEYPOINTS, MIN_SCORE);
+        Random random = new Random(1);
+
+        double rawSquares = 0, filteredSquares = 0;
+        for (int i = 0; i < 300; i++) {
+            //a pixel or so of jitter around a still eye
+            float noise = (float) random.nextGaussian();
+            Pose pose = pose(100 + noise, 100, 0.9f);
+            filter.filter(pose, i * FRAME_NANOS);
+
+            //skip the first second while the filter settles
+            if (i >= 30) {
+                rawSquares += noise * noise;
+                filteredSquares += (pose.x[Pose.LEFT_EYE] - 100) * (pose.x[Pose.LEFT_EYE] - 100);
+            }
+        }
+
+        assertTrue("filtered jitter " + Math.sqrt(filteredSquares / 270), filteredSquares < rawSquares / 4);
+    }
+
+    @Test
+    public void movingKeypoint_lagsFarLessThanAFixedCutoff() {
+        OneEuroFilterBank adaptive = new OneEuroFilterBank(KEYPOINTS, MIN_SCORE);
+        OneEuroFilterBank fixed = new OneEuroFilterBank(KEYPOINTS, MIN_SCORE);
+        fixed.setParameters(OneEuroFilterBank.DEFAULT_MIN_CUTOFF_HZ, 0, OneEuroFilterBank.DEFAULT_D_CUTOFF_HZ);
+
+        //300px/s, someone walking across the frame
+        float adaptiveLag = 0, fixedLag = 0;
+        for (int i = 0; i < 60; i++) {
+            float x = 10 * i;
+            Pose a = pose(x, 100, 0.9f);
+            Pose b = pose(x, 100, 0.9f);
+            adaptive.filter(a, i * FRAME_NANOS);
+            fixed.filter(b, i * FRAME_NANOS);
+            adaptiveLag = x - a.x[Pose.NOSE];
+            fixedLag = x - b.x[Pose.NOSE];
+        }
+
+        assertTrue("adaptive lag " + adaptiveLag, adaptiveLag > 0 && adaptiveLag < 10);
+        assertTrue("adaptive lag " + adaptiveLag + ", fixed " + fixedLag, adaptiveLag < fixedLag / 3);
+    }
+
+    @Test
+    public void keypointAtTheThreshold_isLeftAloneAndNotFedIn() {
+        OneEuroFilterBank filter = new OneEuroFilterBank(KEYPOINTS, MIN_SCORE);
+        filter.filter(pose(100, 100, 0.9f), 0);
+
+        //a bad detection far away, scored exactly at the threshold
+        Pose bad = pose(200, 200, MIN_SCORE);
+        filter.filter(bad, FRAME_NANOS);
+        assertEquals(200, bad.x[Pose.NOSE], 0);
+        assertEquals(200, bad.y[Pose.NOSE], 0);
+
+        //the next good frame carries on from 100, not from the bad one
+        Pose next = pose(100, 100, 0.9f);
+        filter.filter(next, 2 * FRAME_NANOS);
+        assertEquals(100, next.x[Pose.NOSE], 1e-3);
+        assertEquals(100, next.y[Pose.NOSE], 1e-3);
+    }
+
+    @Test
+    public void keypointMissingTooLong_startsOverFromItsRawPosition() {
+        OneEuroFilterBank filter = new OneEuroFilterBank(KEYPOINTS, MIN_SCORE);
+        filter.filter(pose(100, 100, 0.9f), 0);
+
+        Pose back = pose(180, 60, 0.9f);
+        filter.filter(back, 600000000L);
+
+        assertEquals(180, back.x[Pose.NOSE], 0);
+        assertEquals(60, back.y[Pose.NOSE], 0);
+    }
+
+    @Test
+    public void disabled_passesThroughAndForgets() {
+        OneEuroFilterBank filter = new OneEuroFilterBank(KEYPOINTS, MIN_SCORE);
+        filter.filter(pose(100, 100, 0.9f), 0);
+
+        filter.setEnabled(false);
+        Pose off = pose(150, 100, 0.9f);
+        filter.filter(off, FRAME_NANOS);
+        assertEquals(150, off.x[Pose.NOSE], 0);
+
+        //back on, the first frame is taken as is rather than smoothed toward 100
+        filter.setEnabled(true);
+        Pose on = pose(160, 100, 0.9f);
+        filter.filter(on, 2 * FRAME_NANOS);
+        assertEquals(160, on.x[Pose.NOSE], 0);
+    }
+}
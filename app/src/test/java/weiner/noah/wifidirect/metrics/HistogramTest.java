@@ -0,0 +1,97 @@
+package weiner.noah.wifidirect.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+    @Test
+    public void bucketMidpoint_isWithinHalfABucketOfTheValue() {
+        //1us to a minute, in 1% steps
+        for (double nanos = 1024; nanos < 60e9; nanos *= 1.01) {
+            long value = (long) nanos;
+            double midpoint = Histogram.midpoint(Histogram.index(value));
+
+            assertEquals("value " + value, value, midpoint, value / (2.0 * Histogram.SUB_BUCKETS));
+        }
+    }
+
+    @Test
+    public void buckets_goUpWithTheValue() {
+        int last = 0;
+        for (long nanos = 1; nanos < 1L << 40; nanos = nanos * 5 / 4 + 1) {
+            int index = Histogram.index(nanos);
+            assertTrue("value " + nanos, index >= last && index < Histogram.BUCKETS);
+            last = index;
+        }
+    }
+
+    @Test
+    public void outOfRange_landsInTheEndBuckets() {
+        assertEquals(0, Histogram.index(0));
+        assertEquals(0, Histogram.index(1023));
+        assertEquals(1, Histogram.index(1024));
+        assertEquals(Histogram.BUCKETS - 1, Histogram.index(1L << 36));
+        assertEquals(Histogram.BUCKETS - 1, Histogram.index(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void reader_reportsPercentilesOfItsWindow() {
+        MetricsRegistry registry = new MetricsRegistry();
+        Histogram histogram = registry.histogram("infer");
+        MetricsRegistry.Reader reader = registry.newReader();
+
+        //1ms to 100ms, one each
+        for (int ms = 1; ms <= 100; ms++) {
+            histogram.record(ms * 1000000L);
+        }
+
+        MetricsSnapshot snapshot = new MetricsSnapshot();
+        reader.read(snapshot);
+        MetricsSnapshot.Entry entry = snapshot.find("infer");
+
+        assertEquals(MetricsSnapshot.HISTOGRAM, entry.kind);
+        assertEquals(100, entry.count);
+        assertEquals(50, entry.p50Ms, 50 * 0.125);
+        assertEquals(99, entry.p99Ms, 99 * 0.125);
+        assertEquals(100, entry.maxMs, 100 * 0.125);
+    }
+
+    @Test
+    public void eachReader_getsItsOwnWindow() {
+        MetricsRegistry registry = new MetricsRegistry();
+        Histogram histogram = registry.histogram("infer");
+        MetricsRegistry.Reader hud = registry.newReader();
+        MetricsSnapshot snapshot = new MetricsSnapshot();
+
+        histogram.record(5000000L);
+        hud.read(snapshot);
+        assertEquals(1, snapshot.find("infer").count);
+
+        //nothing new since the HUD's last read, but a reader made now starts its window now too
+        MetricsRegistry.Reader relay = registry.newReader();
+        hud.read(snapshot);
+        assertEquals(0, snapshot.find("infer").count);
+        assertEquals(0, snapshot.find("infer").p50Ms, 0);
+
+        histogram.record(5000000L);
+        histogram.record(5000000L);
+        relay.read(snapshot);
+        assertEquals(2, snapshot.find("infer").count);
+        hud.read(snapshot);
+        assertEquals(2, snapshot.find("infer").count);
+    }
+
+    @Test
+    public void histogramRegisteredAfterTheReader_countsFromZero() {
+        MetricsRegistry registry = new MetricsRegistry();
+        MetricsRegistry.Reader reader = registry.newReader();
+
+        Histogram late = registry.histogram("late");
+        late.record(2000000L);
+
+        MetricsSnapshot snapshot = new MetricsSnapshot();
+        reader.read(snapshot);
+        assertEquals(1, snapshot.find("late").count);
+    }
+}
@@ -0,0 +1,61 @@
+package weiner.noah.wifidirect.relay;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BackoffTest {
+    //ConnectionManager's socket backoff
+    private static final long INITIAL_MS = 250;
+    private static final long MAX_MS = 4000;
+
+    //Backoff's JITTER, and the rounding
+    private static final double JITTER = 0.2;
+
+    private static void assertWithinJitter(long baseMs, long delayMs) {
+        assertTrue("delay " + delayMs + " for base " + baseMs,
+                delayMs >= Math.floor(baseMs * (1 - JITTER)) && delayMs <= Math.ceil(baseMs * (1 + JITTER)));
+    }
+
+    @Test
+    public void delays_doubleUpToTheCap() {
+        Backoff backoff = new Backoff(INITIAL_MS, MAX_MS);
+
+        long base = INITIAL_MS;
+        for (int attempt = 1; attempt <= 10; attempt++) {
+            assertWithinJitter(base, backoff.nextDelayMs());
+            assertEquals(attempt, backoff.getAttempts());
+            base = Math.min(MAX_MS, base * 2);
+        }
+    }
+
+    @Test
+    public void reset_startsShortAgain() {
+        Backoff backoff = new Backoff(INITIAL_MS, MAX_MS);
+        for (int i = 0; i < 8; i++) {
+            backoff.nextDelayMs();
+        }
+
+        backoff.reset();
+
+        assertEquals(0, backoff.getAttempts());
+        assertWithinJitter(INITIAL_MS, backoff.nextDelayMs());
+    }
+
+    @Test
+    public void jitter_spreadsEitherSideOfTheDelay() {
+        Backoff backoff = new Backoff(MAX_MS, MAX_MS);
+
+        long min = Long.MAX_VALUE, max = 0;
+        for (int i = 0; i < 500; i++) {
+            long delay = backoff.nextDelayMs();
+            assertWithinJitter(MAX_MS, delay);
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+
+        //500 draws landing all on one side, or within 10% of the range, is vanishingly unlikely
+        assertTrue(min < MAX_MS * (1 - JITTER / 2));
+        assertTrue(max > MAX_MS * (1 + JITTER / 2));
+    }
+}
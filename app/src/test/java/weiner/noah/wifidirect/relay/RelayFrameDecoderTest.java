@@ -0,0 +1,147 @@
+package weiner.noah.wifidirect.relay;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import weiner.noah.wifidirect.crtp.CommanderPacket;
+import weiner.noah.wifidirect.crtp.CrtpPacket;
+import weiner.noah.wifidirect.crtp.HeightHoldPacket;
+import weiner.noah.wifidirect.crtp.Signal;
+import weiner.noah.wifidirect.crtp.StopPacket;
+
+import static org.junit.Assert.*;
+
+public class RelayFrameDecoderTest {
+    //what the controller writes in one session: a signal, each packet type, a telemetry request and a heartbeat echo
+    private static final byte[][] FRAMES = {
+            {Signal.START_FOLLOW.getNumber()},
+            new CommanderPacket(1.5f, -2f, 30f, (char) 42000).toByteArray(),
+            new HeightHoldPacket(0.2f, -0.1f, 0f, 0.45f).toByteArray(),
+            new StopPacket().toByteArray(),
+            {RelayProtocol.NULL_HEADER},
+            {Signal.TELEMETRY.getNumber(), 20},
+            {Signal.HEARTBEAT.getNumber(), 0x34, 0x12},
+            {Signal.KILL.getNumber()}};
+
+    //collects copies of every frame, since the decoder reuses its array
+    private static class Collector implements RelayFrameDecoder.IFrameSink {
+        final List<byte[]> frames = new ArrayList<>();
+
+        @Override
+        public void onFrame(byte[] frame, int length) {
+            frames.add(Arrays.copyOf(frame, length));
+        }
+    }
+
+    private static byte[] stream() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] frame : FRAMES) {
+            out.write(frame, 0, frame.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static void assertFrames(List<byte[]> frames) {
+        assertEquals(FRAMES.length, frames.size());
+        for (int i = 0; i < FRAMES.length; i++) {
+            assertArrayEquals("frame " + i, FRAMES[i], frames.get(i));
+        }
+    }
+
+    @Test
+    public void oneRead_splitsBackToBackFrames() throws IOException {
+        RelayFrameDecoder decoder = new RelayFrameDecoder();
+        Collector sink = new Collector();
+        byte[] data = stream();
+
+        decoder.feed(data, 0, data.length, sink);
+
+        assertFrames(sink.frames);
+        assertEquals(FRAMES.length, decoder.getFrameCount());
+        assertEquals(0, decoder.getLegacyFrameCount());
+    }
+
+    @Test
+    public void anyReadBoundaries_giveTheSameFrames() throws IOException {
+        byte[] data = stream();
+
+        //every read size, including one byte at a time, which splits the generic packet between header and type
+        for (int chunk = 1; chunk <= data.length; chunk++) {
+            RelayFrameDecoder decoder = new RelayFrameDecoder();
+            Collector sink = new Collector();
+            for (int offset = 0; offset < data.length; offset += chunk) {
+                decoder.feed(data, offset, Math.min(chunk, data.length - offset), sink);
+            }
+            assertFrames(sink.frames);
+        }
+    }
+
+    @Test
+    public void unsizableHeader_takesTheRestOfTheRead() throws IOException {
+        RelayFrameDecoder decoder = new RelayFrameDecoder();
+        Collector sink = new Collector();
+
+        //a parameters packet, which the relay doesn't know the length of, then a signal in the next read
+        byte[] parameters = new CrtpPacket((byte) 0x20, new byte[]{1, 2, 3}).toByteArray();
+        decoder.feed(parameters, 0, parameters.length, sink);
+        byte[] stop = {Signal.STOP_FOLLOW.getNumber()};
+        decoder.feed(stop, 0, stop.length, sink);
+
+        assertEquals(2, sink.frames.size());
+        assertArrayEquals(parameters, sink.frames.get(0));
+        assertArrayEquals(stop, sink.frames.get(1));
+        assertEquals(1, decoder.getLegacyFrameCount());
+    }
+
+    @Test
+    public void reset_dropsHalfAFrame() throws IOException {
+        RelayFrameDecoder decoder = new RelayFrameDecoder();
+        Collector sink = new Collector();
+
+        byte[] commander = FRAMES[1];
+        decoder.feed(commander, 0, 6, sink);
+        decoder.reset();
+        decoder.feed(commander, 0, commander.length, sink);
+
+        assertEquals(1, sink.frames.size());
+        assertArrayEquals(commander, sink.frames.get(0));
+    }
+
+    @Test
+    public void throwingSink_leavesTheDecoderAtAFrameBoundary() throws IOException {
+        RelayFrameDecoder decoder = new RelayFrameDecoder();
+        final Collector collector = new Collector();
+        RelayFrameDecoder.IFrameSink sink = new RelayFrameDecoder.IFrameSink() {
+            private boolean thrown = false;
+
+            @Override
+            public void onFrame(byte[] frame, int length) throws IOException {
+                if (!thrown) {
+                    thrown = true;
+                    throw new IOException("USB gone");
+                }
+                collector.onFrame(frame, length);
+            }
+        };
+
+        byte[] first = FRAMES[1];
+        try {
+            decoder.feed(first, 0, first.length, sink);
+            fail("the sink's exception should come out of feed()");
+        }
+        catch (IOException expected) {
+            //the socket loop drops the frame and carries on
+        }
+
+        byte[] second = FRAMES[2];
+        decoder.feed(second, 0, second.length, sink);
+
+        assertEquals(1, collector.frames.size());
+        assertArrayEquals(second, collector.frames.get(0));
+    }
+}
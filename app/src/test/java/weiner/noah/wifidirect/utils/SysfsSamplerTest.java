@@ -0,0 +1,161 @@
+package weiner.noah.wifidirect.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+public class SysfsSamplerTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    //sysfs attributes end in a newline
+    static void write(File file, String text) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write((text + "\n").getBytes(ASCII));
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private static long parse(String text) {
+        byte[] bytes = text.getBytes(ASCII);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(32);
+        buffer.put(bytes);
+        return SysfsSampler.parse(buffer, bytes.length);
+    }
+
+    @Test
+    public void parse_takesTheLeadingInteger() {
+        assertEquals(45200, parse("45200\n"));
+        assertEquals(-412000, parse("-412000\n"));
+        assertEquals(7, parse("  +7 mA\n"));
+        assertEquals(0, parse("0"));
+        assertEquals(SysfsSampler.MISSING, parse("N/A\n"));
+        assertEquals(SysfsSampler.MISSING, parse("-\n"));
+        assertEquals(SysfsSampler.MISSING, parse(""));
+    }
+
+    @Test
+    public void read_givesTheNodesValue() throws IOException {
+        File battery = folder.newFolder("battery");
+        write(new File(battery, "current_now"), "-412000");
+        write(new File(battery, "voltage_now"), "4123456");
+
+        SysfsSampler sampler = new SysfsSampler(folder.getRoot());
+        int current = sampler.add("battery/current_now", 0);
+        int voltage = sampler.add("battery/voltage_now", 0);
+
+        assertEquals(-412000, sampler.read(current, 1));
+        assertEquals(4123456, sampler.read(voltage, 1));
+        assertEquals(4123456, sampler.get(voltage));
+        assertEquals(1, sampler.getSampledNanos(voltage));
+        assertEquals(0, sampler.getFailures());
+        sampler.close();
+    }
+
+    @Test
+    public void reread_seesTheNewValueThroughTheSameChannel() throws IOException {
+        File temp = folder.newFile("temp");
+        write(temp, "31000");
+
+        SysfsSampler sampler = new SysfsSampler(folder.getRoot());
+        int node = sampler.add("temp", 0);
+        assertEquals(31000, sampler.read(node, 1));
+
+        //shorter than before, so a stale tail would show up as extra digits
+        write(temp, "9500");
+        assertEquals(9500, sampler.read(node, 2));
+        assertEquals(2, sampler.getReads());
+        sampler.close();
+    }
+
+    @Test
+    public void missingNode_keepsItsIndexAndReadsMissing() throws IOException {
+        SysfsSampler sampler = new SysfsSampler(folder.getRoot());
+        int node = sampler.add("battery/charge_counter", 0);
+
+        assertFalse(sampler.isOpen(node));
+        assertEquals("battery/charge_counter", sampler.getPath(node));
+        assertEquals(SysfsSampler.MISSING, sampler.read(node, 1));
+        assertEquals(0, sampler.getReads());
+        sampler.close();
+    }
+
+    @Test
+    public void garbage_readsMissingAndCountsAFailure() throws IOException {
+        write(folder.newFile("temp"), "N/A");
+
+        SysfsSampler sampler = new SysfsSampler(folder.getRoot());
+        int node = sampler.add("temp", 0);
+
+        assertTrue(sampler.isOpen(node));
+        assertEquals(SysfsSampler.MISSING, sampler.read(node, 1));
+        assertEquals(1, sampler.getFailures());
+        sampler.close();
+    }
+
+    @Test
+    public void sample_onlyRereadsNodesThatAreDue() throws IOException {
+        File fastFile = folder.newFile("fast");
+        File slowFile = folder.newFile("slow");
+        write(fastFile, "1");
+        write(slowFile, "1");
+
+        SysfsSampler sampler = new SysfsSampler(folder.getRoot());
+        int fast = sampler.add("fast", 100);
+        int slow = sampler.add("slow", 1000);
+
+        //everything is due the first time
+        assertEquals(2, sampler.sample(0));
+
+        write(fastFile, "2");
+        write(slowFile, "2");
+        assertEquals(0, sampler.sample(99));
+        assertEquals(1, sampler.sample(100));
+        assertEquals(2, sampler.get(fast));
+        assertEquals(1, sampler.get(slow));
+
+        assertEquals(2, sampler.sample(1000));
+        assertEquals(2, sampler.get(slow));
+        sampler.close();
+    }
+
+    @Test
+    public void manyNodes_growTheArrays() throws IOException {
+        for (int i = 0; i < 40; i++) {
+            write(folder.newFile("node" + i), String.valueOf(i * 100));
+        }
+
+        SysfsSampler sampler = new SysfsSampler(folder.getRoot());
+        for (int i = 0; i < 40; i++) {
+            assertEquals(i, sampler.add("node" + i, 0));
+        }
+
+        assertEquals(40, sampler.sample(0));
+        assertEquals(40, sampler.size());
+        for (int i = 0; i < 40; i++) {
+            assertEquals(i * 100, sampler.get(i));
+        }
+        sampler.close();
+    }
+
+    @Test
+    public void readString_trimsAndGivesNullForAMissingFile() throws IOException {
+        write(folder.newFile("type"), "cpu-0-0-usr");
+
+        assertEquals("cpu-0-0-usr", SysfsSampler.readString(new File(folder.getRoot(), "type")));
+        assertNull(SysfsSampler.readString(new File(folder.getRoot(), "nothing")));
+    }
+}
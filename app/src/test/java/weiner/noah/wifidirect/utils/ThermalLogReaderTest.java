@@ -0,0 +1,113 @@
+package weiner.noah.wifidirect.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class ThermalLogReaderTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void writeBytes(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void logStillBeingWritten_readsOnlyCommittedRows() throws IOException {
+        File log = folder.newFile("open.thermlog");
+        ThermalLogWriter writer = new ThermalLogWriter(log, new String[]{"cpu", "skin"});
+        long start = System.nanoTime();
+        for (int row = 0; row < 3; row++) {
+            writer.write(start + row * 1000000L, new long[]{45000 + row * 100, 39000});
+        }
+
+        //the file is still mapped out to a whole region, zeros past the last row
+        try (ThermalLogReader reader = new ThermalLogReader(log)) {
+            int rows = 0;
+            while (reader.next()) {
+                assertEquals(45000 + rows * 100, reader.get(0));
+                rows++;
+            }
+            assertEquals(3, rows);
+        }
+        writer.close();
+    }
+
+    @Test
+    public void columns_areFoundByName() throws IOException {
+        File log = folder.newFile("columns.thermlog");
+        long before = System.currentTimeMillis();
+        new ThermalLogWriter(log, new String[]{"cpu", "cpu-TRIP", "current"}).close();
+
+        try (ThermalLogReader reader = new ThermalLogReader(log)) {
+            assertEquals(1, reader.findColumn("cpu-TRIP"));
+            assertEquals(-1, reader.findColumn("gpu"));
+            assertFalse(reader.next());
+            assertTrue(reader.getStartWallMs() >= before && reader.getStartWallMs() <= System.currentTimeMillis());
+        }
+    }
+
+    @Test
+    public void exportCsv_writesSecondsAndLeavesMissingValuesEmpty() throws IOException {
+        File log = folder.newFile("csv.thermlog");
+        try (ThermalLogWriter writer = new ThermalLogWriter(log, new String[]{"cpu", "current"})) {
+            long start = System.nanoTime();
+            writer.write(start, new long[]{45000, -412000});
+            writer.write(start + 1500000000L, new long[]{SysfsSampler.MISSING, -398000});
+        }
+
+        StringWriter csv = new StringWriter();
+        try (ThermalLogReader reader = new ThermalLogReader(log)) {
+            assertEquals(2, reader.exportCsv(csv));
+        }
+
+        String[] lines = csv.toString().split("\n");
+        assertEquals(3, lines.length);
+        assertEquals("seconds,cpu,current", lines[0]);
+        assertTrue(lines[1], lines[1].matches("0\\.\\d{6},45000,-412000"));
+        assertTrue(lines[2], lines[2].matches("1\\.5\\d{5},,-398000"));
+    }
+
+    @Test(expected = IOException.class)
+    public void tooShort_isRefused() throws IOException {
+        File log = folder.newFile("short.thermlog");
+        writeBytes(log, ThermalLogWriter.MAGIC);
+        new ThermalLogReader(log);
+    }
+
+    @Test(expected = IOException.class)
+    public void badMagic_isRefused() throws IOException {
+        File log = folder.newFile("magic.thermlog");
+        writeBytes(log, new byte[64]);
+        new ThermalLogReader(log);
+    }
+
+    @Test(expected = IOException.class)
+    public void headerCutShort_isRefused() throws IOException {
+        File log = folder.newFile("cut.thermlog");
+        new ThermalLogWriter(log, new String[]{"cpu-0-0-usr", "cpu-1-0-usr"}).close();
+
+        //drop the end of the second name
+        java.io.RandomAccessFile file = new java.io.RandomAccessFile(log, "rw");
+        try {
+            file.setLength(file.length() - 4);
+        }
+        finally {
+            file.close();
+        }
+        new ThermalLogReader(log);
+    }
+}
@@ -0,0 +1,149 @@
+package weiner.noah.wifidirect.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ThermalLogWriterTest {
+    private static final long SAMPLE_NANOS = 700000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String[] columns(int count) {
+        String[] columns = new String[count];
+        for (int i = 0; i < count; i++) {
+            columns[i] = "zone-" + i + "-usr";
+        }
+        return columns;
+    }
+
+    //writes the rows a sample apart, then checks they all read back exactly
+    private static void assertRoundTrip(File log, String[] columns, long[][] rows) throws IOException {
+        try (ThermalLogWriter writer = new ThermalLogWriter(log, columns)) {
+            long start = System.nanoTime();
+            for (int row = 0; row < rows.length; row++) {
+                writer.write(start + row * SAMPLE_NANOS, rows[row]);
+            }
+            assertEquals(rows.length, writer.getRowCount());
+        }
+
+        try (ThermalLogReader reader = new ThermalLogReader(log)) {
+            assertArrayEquals(columns, reader.getColumns());
+
+            long firstNanos = 0;
+            int row = 0;
+            while (reader.next()) {
+                assertTrue("extra row " + row, row < rows.length);
+                assertArrayEquals("row " + row, rows[row], reader.getValues());
+
+                //the first row is offset by however long the writer took to open, the rest are exact to the us
+                if (row == 0) {
+                    firstNanos = reader.getNanos();
+                }
+                assertEquals("row " + row, row * SAMPLE_NANOS, reader.getNanos() - firstNanos, 1000);
+                row++;
+            }
+            assertEquals(rows.length, row);
+        }
+    }
+
+    @Test
+    public void driftingTemps_readBackExactly() throws IOException {
+        Random random = new Random(7);
+        long[][] rows = new long[500][40];
+        long[] temps = new long[40];
+        for (int i = 0; i < temps.length; i++) {
+            temps[i] = 30000 + random.nextInt(100) * 100;
+        }
+
+        for (int row = 0; row < rows.length; row++) {
+            for (int i = 0; i < temps.length; i++) {
+                //most readings don't move between samples, the rest by a step or two
+                int r = random.nextInt(10);
+                if (r >= 6) {
+                    temps[i] += (r >= 8 ? 100 : -100) * (1 + random.nextInt(2));
+                }
+                rows[row][i] = temps[i];
+            }
+        }
+
+        assertRoundTrip(folder.newFile("drift.thermlog"), columns(40), rows);
+    }
+
+    @Test
+    public void missingValues_readBackMissingAndDontBreakTheDeltas() throws IOException {
+        long missing = SysfsSampler.MISSING;
+        long[][] rows = {
+                {missing, 45000, -412000},
+                {missing, missing, -398000},
+                {31000, 45100, missing},
+                {missing, 45100, -405000},
+                {31200, missing, -405000}};
+
+        assertRoundTrip(folder.newFile("missing.thermlog"), new String[]{"gone", "cpu", "current"}, rows);
+    }
+
+    @Test
+    public void bigJumps_eitherWay_readBackExactly() throws IOException {
+        long[][] rows = {
+                {0, 4123456},
+                {1L << 40, -(1L << 40)},
+                {-(1L << 50), 1L << 50},
+                {Integer.MAX_VALUE, Integer.MIN_VALUE},
+                {0, 0}};
+
+        assertRoundTrip(folder.newFile("jumps.thermlog"), new String[]{"a", "b"}, rows);
+    }
+
+    @Test
+    public void rowsPastTheFirstMappedRegion_readBackExactly() throws IOException {
+        //about 4kB a row, so the log runs through a couple of regions
+        int columns = 2000;
+        int count = (int) (2.5 * ThermalLogWriter.REGION_SIZE / (2 * columns));
+        long[][] rows = new long[count][columns];
+        for (int row = 0; row < count; row++) {
+            for (int i = 0; i < columns; i++) {
+                rows[row][i] = 30000 + ((row + i) % 2) * 100;
+            }
+        }
+
+        File log = folder.newFile("long.thermlog");
+        assertRoundTrip(log, columns(columns), rows);
+        assertTrue(log.length() > 2 * ThermalLogWriter.REGION_SIZE);
+    }
+
+    @Test
+    public void close_trimsTheFileAndStopsWriting() throws IOException {
+        File log = folder.newFile("closed.thermlog");
+        ThermalLogWriter writer = new ThermalLogWriter(log, new String[]{"cpu"});
+        writer.write(System.nanoTime(), new long[]{45000});
+        writer.close();
+
+        writer.write(System.nanoTime(), new long[]{46000});
+        writer.close();
+
+        assertEquals(1, writer.getRowCount());
+        assertEquals(writer.getLength(), log.length());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooManyColumns_areRefused() throws IOException {
+        new ThermalLogWriter(folder.newFile("wide.thermlog"), new String[ThermalLogWriter.MAX_COLUMNS + 1]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooLongAName_isRefused() throws IOException {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i <= ThermalLogWriter.MAX_NAME_LENGTH; i++) {
+            name.append('x');
+        }
+        new ThermalLogWriter(folder.newFile("name.thermlog"), new String[]{name.toString()});
+    }
+}
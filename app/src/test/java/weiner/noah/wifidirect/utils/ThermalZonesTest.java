@@ -0,0 +1,133 @@
+package weiner.noah.wifidirect.utils;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class ThermalZonesTest {
+    private static final long FAST_NANOS = 700000000L;
+    private static final long SLOW_NANOS = 5000000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File root;
+
+    //zone type, temp and first trip point; null leaves the file out
+    private File zone(int number, String type, String temp, String trip) throws IOException {
+        File dir = new File(root, "thermal_zone" + number);
+        assertTrue(dir.mkdirs());
+        if (type != null) {
+            SysfsSamplerTest.write(new File(dir, "type"), type);
+        }
+        if (temp != null) {
+            SysfsSamplerTest.write(new File(dir, "temp"), temp);
+        }
+        if (trip != null) {
+            SysfsSamplerTest.write(new File(dir, "trip_point_0_temp"), trip);
+        }
+        return dir;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        root = folder.newFolder("thermal");
+
+        //10 after 2, so directory name order would get it wrong
+        zone(0, "cpu-0-0-usr", "45000", "95000");
+        zone(1, "ddr-usr", "N/A", "90000");
+        zone(2, "skin-therm", "39000", null);
+        zone(10, "pm8150_tz", "52000", "50000");
+        zone(3, null, "30000", "60000");
+
+        //not zones
+        assertTrue(new File(root, "cooling_device0").mkdirs());
+        assertTrue(new File(root, "thermal_zoneX").mkdirs());
+    }
+
+    @Test
+    public void zones_areFoundInNumberOrder() {
+        SysfsSampler sampler = new SysfsSampler(root);
+        ThermalZones zones = new ThermalZones(root, sampler, FAST_NANOS, SLOW_NANOS, ThermalZones.DEFAULT_FAST_PREFIXES);
+
+        assertEquals(5, zones.size());
+        int[] expected = {0, 1, 2, 3, 10};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], zones.getZoneNumber(i));
+        }
+        //temp and trip point for each
+        assertEquals(10, sampler.size());
+        sampler.close();
+    }
+
+    @Test
+    public void names_comeFromTypeOrFallBackToTheDirectory() {
+        SysfsSampler sampler = new SysfsSampler(root);
+        ThermalZones zones = new ThermalZones(root, sampler, FAST_NANOS, SLOW_NANOS, ThermalZones.DEFAULT_FAST_PREFIXES);
+
+        assertEquals("cpu-0-0-usr", zones.getName(0));
+        assertEquals("thermal_zone3", zones.getName(3));
+        assertEquals(4, zones.find("pm8150_tz"));
+        assertEquals(-1, zones.find("gpuss-0-usr"));
+
+        assertTrue(zones.isFast(0));
+        assertFalse(zones.isFast(1));
+        assertTrue(zones.isFast(2));
+        assertFalse(zones.isFast(4));
+        sampler.close();
+    }
+
+    @Test
+    public void tempsAndTrips_areReadWithMissingOnes() {
+        SysfsSampler sampler = new SysfsSampler(root);
+        ThermalZones zones = new ThermalZones(root, sampler, FAST_NANOS, SLOW_NANOS, ThermalZones.DEFAULT_FAST_PREFIXES);
+        sampler.sample(0);
+
+        assertEquals(45000, zones.getTempMilliC(0));
+        assertEquals(95000, zones.getTripMilliC(0));
+        assertEquals(SysfsSampler.MISSING, zones.getTempMilliC(1));
+        assertEquals(SysfsSampler.MISSING, zones.getTripMilliC(2));
+
+        assertFalse(zones.isOverTrip(0));
+        assertFalse(zones.isOverTrip(1));
+        assertFalse(zones.isOverTrip(2));
+        assertTrue(zones.isOverTrip(4));
+        sampler.close();
+    }
+
+    @Test
+    public void fastZones_areRereadBeforeTheSlowOnes() throws IOException {
+        SysfsSampler sampler = new SysfsSampler(root);
+        ThermalZones zones = new ThermalZones(root, sampler, FAST_NANOS, SLOW_NANOS, ThermalZones.DEFAULT_FAST_PREFIXES);
+        sampler.sample(0);
+
+        SysfsSamplerTest.write(new File(root, "thermal_zone0/temp"), "46000");
+        SysfsSamplerTest.write(new File(root, "thermal_zone10/temp"), "53000");
+
+        //the cpu and skin temps only
+        assertEquals(2, sampler.sample(FAST_NANOS));
+        assertEquals(46000, zones.getTempMilliC(0));
+        assertEquals(52000, zones.getTempMilliC(4));
+
+        assertEquals(10, sampler.sample(SLOW_NANOS));
+        assertEquals(53000, zones.getTempMilliC(4));
+        sampler.close();
+    }
+
+    @Test
+    public void noThermalDirectory_givesNoZones() {
+        File missing = new File(folder.getRoot(), "nothing");
+        SysfsSampler sampler = new SysfsSampler(missing);
+        ThermalZones zones = new ThermalZones(missing, sampler, FAST_NANOS, SLOW_NANOS, ThermalZones.DEFAULT_FAST_PREFIXES);
+
+        assertEquals(0, zones.size());
+        assertEquals(0, sampler.sample(0));
+        sampler.close();
+    }
+}
@@ -0,0 +1,149 @@
+package weiner.noah.wifidirect.utils;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class YuvConverterTest {
+    //random planes laid out the way ImageReader hands them over
+    private static class Frame {
+        final int width, height;
+        final byte[] y, u, v;
+        final int yRowStride, uvRowStride, uvPixelStride;
+
+        Frame(int width, int height, int yRowStride, int uvPixelStride) {
+            this.width = width;
+            this.height = height;
+            this.yRowStride = yRowStride;
+            this.uvPixelStride = uvPixelStride;
+            this.uvRowStride = ((width + 1) / 2) * uvPixelStride;
+
+            Random random = new Random(width * 31 + height);
+            y = new byte[yRowStride * height];
+            u = new byte[uvRowStride * ((height + 1) / 2)];
+            v = new byte[u.length];
+            random.nextBytes(y);
+            random.nextBytes(u);
+            random.nextBytes(v);
+
+            //make sure the clamps get exercised at both ends
+            Arrays.fill(y, 0, Math.min(y.length, 8), (byte) 0);
+            Arrays.fill(u, 0, Math.min(u.length, 4), (byte) 0xff);
+            Arrays.fill(v, 0, Math.min(v.length, 4), (byte) 0xff);
+        }
+    }
+
+    private static void assertMatchesImageUtils(YuvConverter converter, Frame f) {
+        int[] expected = new int[f.width * f.height];
+        int[] actual = new int[f.width * f.height];
+        reference(f, expected);
+
+        converter.convert(f.y, f.u, f.v, f.width, f.height, f.yRowStride, f.uvRowStride, f.uvPixelStride, actual);
+
+        assertArrayEquals(String.format("%dx%d stride %d/%d", f.width, f.height, f.yRowStride, f.uvPixelStride), expected,
+                actual);
+    }
+
+    @Test
+    public void previewSize_matchesImageUtils() {
+        try (YuvConverter converter = new YuvConverter(4)) {
+            assertMatchesImageUtils(converter, new Frame(640, 480, 640, 2));
+        }
+    }
+
+    @Test
+    public void paddedStridesAndPlanarChroma_matchImageUtils() {
+        try (YuvConverter converter = new YuvConverter(4)) {
+            assertMatchesImageUtils(converter, new Frame(640, 480, 704, 1));
+        }
+    }
+
+    @Test
+    public void oddSizes_matchImageUtils() {
+        //an odd last row and column, and bands that don't divide the height evenly
+        try (YuvConverter converter = new YuvConverter(3)) {
+            assertMatchesImageUtils(converter, new Frame(33, 17, 40, 2));
+            assertMatchesImageUtils(converter, new Frame(101, 67, 101, 2));
+            assertMatchesImageUtils(converter, new Frame(1, 1, 1, 2));
+        }
+    }
+
+    @Test
+    public void oneThread_givesTheSameFrame() {
+        Frame frame = new Frame(640, 480, 640, 2);
+        int[] single = new int[640 * 480];
+        int[] pooled = new int[640 * 480];
+
+        try (YuvConverter one = new YuvConverter(1); YuvConverter four = new YuvConverter(4)) {
+            one.convert(frame.y, frame.u, frame.v, 640, 480, frame.yRowStride, frame.uvRowStride, frame.uvPixelStride, single);
+            four.convert(frame.y, frame.u, frame.v, 640, 480, frame.yRowStride, frame.uvRowStride, frame.uvPixelStride, pooled);
+        }
+
+        assertArrayEquals(single, pooled);
+    }
+
+    @Test
+    public void everyValue_clampsLikeImageUtils() {
+        //one 2x2 block per (u, v) pair, with all 256 luma values spread over the blocks
+        Frame f = new Frame(512, 512, 512, 2);
+        for (int j = 0; j < f.height; j++) {
+            for (int i = 0; i < f.width; i++) {
+                f.y[j * f.yRowStride + i] = (byte) (i + j);
+            }
+        }
+        for (int k = 0; k < f.u.length / 2; k++) {
+            f.u[k * 2] = (byte) (k & 0xff);
+            f.v[k * 2] = (byte) (k >> 8);
+        }
+
+        try (YuvConverter converter = new YuvConverter(2)) {
+            assertMatchesImageUtils(converter, f);
+        }
+    }
+
+    //ImageUtils.convertYUV420ToARGB8888 as it is in the app, line for line (it's Kotlin, so can't be called from here)
+    private static void reference(Frame f, int[] out) {
+        int outputIndex = 0;
+        for (int j = 0; j < f.height; j++) {
+            int positionY = f.yRowStride * j;
+            int positionUV = f.uvRowStride * (j >> 1);
+
+            for (int i = 0; i < f.width; i++) {
+                int uvOffset = positionUV + (i >> 1) * f.uvPixelStride;
+
+                out[outputIndex] = convertYUVToRGB(0xff & f.y[positionY + i], 0xff & f.u[uvOffset], 0xff & f.v[uvOffset]);
+                outputIndex += 1;
+            }
+        }
+    }
+
+    private static final int MAX_CHANNEL_VALUE = 262143;
+
+    private static int convertYUVToRGB(int y, int u, int v) {
+        int yNew = y - 16 < 0 ? 0 : y - 16;
+        int uNew = u - 128;
+        int vNew = v - 128;
+        int expandY = 1192 * yNew;
+        int r = expandY + 1634 * vNew;
+        int g = expandY - 833 * vNew - 400 * uNew;
+        int b = expandY + 2066 * uNew;
+
+        r = checkBoundaries(r);
+        g = checkBoundaries(g);
+        b = checkBoundaries(b);
+        return -0x1000000 | (r << 6 & 0xff0000) | (g >> 2 & 0xff00) | (b >> 10 & 0xff);
+    }
+
+    private static int checkBoundaries(int x) {
+        if (x > MAX_CHANNEL_VALUE) {
+            return MAX_CHANNEL_VALUE;
+        }
+        else if (x < 0) {
+            return 0;
+        }
+        return x;
+    }
+}
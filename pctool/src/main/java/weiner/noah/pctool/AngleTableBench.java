@@ -0,0 +1,77 @@
+package weiner.noah.pctool;
+
+import java.util.Locale;
+import java.util.Random;
+
+import weiner.noah.wifidirect.control.AngleTables;
+
+/**
+ * Times {@link AngleTables}' lookups against the exact formulas they replace. AngleTablesTest checks the error bounds.
+ *
+ * Usage: AngleTableBench [--iterations N]
+ *   --iterations N   lookups to time (default 20000000)
+ */
+public class AngleTableBench {
+    public static void main(String[] args) {
+        int iterations = 20000000;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--iterations":
+                        iterations = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (iterations < 1) {
+                throw new IllegalArgumentException("Iterations have to be positive");
+            }
+        }
+        catch (RuntimeException e) {
+            System.out.println("Bad arguments: " + e.getMessage());
+            System.out.println("Usage: AngleTableBench [--iterations N]");
+            System.exit(2);
+            return;
+        }
+
+        time(iterations);
+    }
+
+    private static void time(int iterations) {
+        //ratios and angles like a person turning in front of the camera
+        Random random = new Random(7);
+        float[] ratios = new float[4096];
+        float[] angles = new float[4096];
+        for (int i = 0; i < ratios.length; i++) {
+            ratios[i] = (float) Math.exp(random.nextGaussian());
+            angles[i] = (float) (random.nextGaussian() * 30);
+        }
+
+        //run each a few times so the JIT has compiled them before the last pass is timed
+        double sink = 0;
+        long exactNanos = 0;
+        long tableNanos = 0;
+        for (int pass = 0; pass < 3; pass++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                int j = i & (ratios.length - 1);
+                sink += AngleTables.exactTorsoAngle(ratios[j]) + AngleTables.exactFaceAngle(ratios[j]) +
+                        AngleTables.exactPivotShrink(angles[j]);
+            }
+            exactNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                int j = i & (ratios.length - 1);
+                sink += AngleTables.torsoAngle(ratios[j]) + AngleTables.faceAngle(ratios[j]) +
+                        AngleTables.pivotShrink(angles[j]);
+            }
+            tableNanos = System.nanoTime() - start;
+        }
+
+        System.out.println(String.format(Locale.US, "Torso + face + shrink: exact %.1fns, tables %.1fns (%.1fx faster) [%g]",
+                (double) exactNanos / iterations, (double) tableNanos / iterations, (double) exactNanos / tableNanos, sink));
+    }
+}
@@ -0,0 +1,132 @@
+package weiner.noah.pctool;
+
+import java.util.Locale;
+import java.util.Random;
+
+import weiner.noah.wifidirect.control.AngleTables;
+import weiner.noah.wifidirect.control.CalibrationProfile;
+import weiner.noah.wifidirect.control.Calibrator;
+
+/**
+ * Runs {@link Calibrator} through a whole calibration flight with a made-up operator, on a simulated clock, and checks
+ * it gets back the operator it was given despite Posenet's noise. CalibratorTest and CalibrationProfileTest cover the
+ * noise-free fit and the profile file.
+ *
+ * The operator has a narrower PD than the defaults assume, turns their head less for the same torso angle, and stands
+ * a little off the frame center. Posenet sees them at 15 frames a second with a pixel of noise on the eyes, a few
+ * degrees on the angles and now and then loses the shoulders or a frame.
+ *
+ * Usage: CalibrationSim [--seed N]
+ *   --seed N    seed for the noise (default 7)
+ */
+public class CalibrationSim {
+    private static final double[] DISTANCES_M = {0.3, 0.45, 0.6};
+    private static final long DWELL_NANOS = 8000000000L;
+    private static final long SETTLE_NANOS = 3000000000L;
+    private static final long FRAME_NANOS = 66666667L;
+
+    //the operator
+    private static final double PD = 0.058;
+    private static final double PIVOT_WEIGHT = 1.2;
+    private static final double TORSO_LEFT = 6;
+    private static final double TORSO_RIGHT = 3;
+    private static final double FACE_LEFT = 18;
+    private static final double FACE_RIGHT = 30;
+    private static final double CTR_OFFSET = -22;
+
+    public static void main(String[] args) {
+        long seed = 7;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--seed":
+                        seed = Long.parseLong(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+        }
+        catch (RuntimeException e) {
+            System.out.println("Bad arguments: " + e.getMessage());
+            System.out.println("Usage: CalibrationSim [--seed N]");
+            System.exit(2);
+            return;
+        }
+
+        double focal = Calibrator.modelFocalLength();
+        Calibrator calibrator = new Calibrator(DISTANCES_M, Calibrator.DEFAULT_TURN_DEG, DWELL_NANOS, SETTLE_NANOS);
+        fly(calibrator, focal, new Random(seed));
+
+        CalibrationProfile before = CalibrationProfile.DEFAULT;
+        CalibrationProfile after = calibrator.fit(before, focal, System.currentTimeMillis());
+        System.out.print(calibrator.report(before, after));
+
+        boolean ok = check(after, focal);
+
+        if (!(calibrator.getDistanceError(after) < calibrator.getDistanceError(before))) {
+            System.out.println("DISTANCE no better calibrated");
+            ok = false;
+        }
+
+        System.out.println(ok ? "OK" : "FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static void fly(Calibrator calibrator, double focal, Random random) {
+        long start = 1000000000L;
+        calibrator.start(start);
+
+        for (long now = start; !calibrator.isDone(now); now += FRAME_NANOS) {
+            Calibrator.Phase phase = calibrator.getPhase(now);
+
+            //a frame Posenet missed altogether
+            if (random.nextInt(20) == 0) {
+                continue;
+            }
+
+            //what PosenetStats would see: eye pixels from the operator's real PD and pivot, after its right turn correction
+            double shrink = AngleTables.exactPivotShrink(phase.angleDeg);
+            double eyePixels = (PD - shrink * PIVOT_WEIGHT) * focal / phase.distanceM + random.nextGaussian();
+
+            double torso = phase.angleDeg + bias(phase.angleDeg, TORSO_LEFT, TORSO_RIGHT) + 2 * random.nextGaussian();
+            double face = phase.angleDeg + bias(phase.angleDeg, FACE_LEFT, FACE_RIGHT) + 3 * random.nextGaussian();
+            double offset = CTR_OFFSET + 2 * random.nextGaussian();
+
+            //shoulders out of frame, so no torso angle and no bounding box
+            if (random.nextInt(8) == 0) {
+                torso = Double.NaN;
+                offset = Double.NaN;
+            }
+
+            calibrator.onFrame(now, eyePixels, torso, face, offset);
+        }
+    }
+
+    //how far the raw angle reads past the real one on each side
+    private static double bias(double angle, double left, double right) {
+        return angle > 0 ? left : angle < 0 ? -right : 0;
+    }
+
+    private static boolean check(CalibrationProfile profile, double focal) {
+        boolean ok = true;
+        ok &= near("PD", profile.pd, PD, 0.02 * PD);
+        ok &= near("FOCAL", profile.focalLength, focal, 1e-3);
+        ok &= near("PIVOT WEIGHT", profile.pivotWeight, PIVOT_WEIGHT, 0.1 * PIVOT_WEIGHT);
+        ok &= near("TORSO LEFT", profile.torsoLeft, TORSO_LEFT, 0.5);
+        ok &= near("TORSO RIGHT", profile.torsoRight, TORSO_RIGHT, 0.5);
+        ok &= near("FACE LEFT", profile.faceLeft, FACE_LEFT, 0.75);
+        ok &= near("FACE RIGHT", profile.faceRight, FACE_RIGHT, 0.75);
+        ok &= near("CENTER", profile.ctrOffset, CTR_OFFSET, 0.5);
+        return ok;
+    }
+
+    private static boolean near(String what, double got, double expected, double tolerance) {
+        if (Math.abs(got - expected) > tolerance) {
+            System.out.println(String.format(Locale.US, "%s %.4f, expected %.4f", what, got, expected));
+            return false;
+        }
+        return true;
+    }
+}
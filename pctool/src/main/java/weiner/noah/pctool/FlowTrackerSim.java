@@ -0,0 +1,431 @@
+package weiner.noah.pctool;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import weiner.noah.wifidirect.Constants;
+import weiner.noah.wifidirect.control.FlowKeypointTracker;
+import weiner.noah.wifidirect.inference.Pose;
+import weiner.noah.wifidirect.inference.PosenetModel;
+import weiner.noah.wifidirect.utils.CameraFrame;
+import weiner.noah.wifidirect.utils.YuvConverter;
+
+/**
+ * Runs {@link FlowKeypointTracker} on synthetic 640x480 camera frames where the true keypoints are known, and checks:
+ * - propagation: a textured scene sliding a few pixels a frame, with Posenet's answer for the keyframe coming back
+ *   two frames late. Every tracked keypoint has to stay within MAX_ERROR_PX of the truth for 30 frames, and the ones
+ *   at or under minConfidence, or not tracked at all, have to come out with score 0
+ * - forward-backward rejection: the patch around one shoulder turns to fresh noise every frame. That shoulder has to
+ *   be dropped, and the rest kept without asking for Posenet
+ * - the early keyframes: a lost eye has to ask for Posenet on the same frame, and the eyes' distance apart drifting
+ *   past 15% (the person stepping closer) within a frame of it
+ * - the keyframe interval: with Posenet's answer on time or up to two frames late, keyframes come exactly every
+ *   PosenetStats.FLOW_KEYFRAME_INTERVAL frames
+ *
+ * The mean forward-backward error trigger isn't checked: with rising sensor noise, a flickering patch or a sudden
+ * shake, a point was always dropped before the mean of the rest got near REDETECT_FB_ERROR_PX. Flowing forward and back
+ * over the same two frames agrees with itself even when both are off, so under noise it's the interval that bounds how
+ * far the points wander between keyframes.
+ *
+ * Runs on the desktop OpenCV build (org.openpnp:opencv), which has the same calcOpticalFlowPyrLK as the phone's.
+ *
+ * Usage: FlowTrackerSim [--seed N]
+ *   --seed N    seed for the scene and the noise (default 11)
+ */
+public class FlowTrackerSim {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+
+    //PosenetStats' minConfidence and FLOW_KEYFRAME_INTERVAL, and FlowKeypointTracker's MAX_EYE_SCALE_DRIFT
+    private static final float MIN_SCORE = 0.5f;
+    private static final int INTERVAL = 3;
+    private static final double EYE_SCALE_DRIFT = 0.15;
+
+    //an interval the other checks never reach, so only what they test can ask for a keyframe
+    private static final int NO_INTERVAL = 1000;
+
+    private static final double MAX_ERROR_PX = 0.5;
+
+    //camera pixels a frame the scene moves, like a person walking across at a meter
+    private static final double MOVE_X = 2.6;
+    private static final double MOVE_Y = -1.4;
+
+    //sensor noise on every frame
+    private static final double NOISE = 1.5;
+
+    //the person, in camera pixels: eyes, nose, shoulders, hips and ankles. Scores are Posenet's, one right at
+    //minConfidence so it mustn't be tracked
+    private static final int[] KEYPOINTS = {Pose.LEFT_EYE, Pose.RIGHT_EYE, Pose.NOSE, Pose.LEFT_SHOULDER, Pose.RIGHT_SHOULDER,
+            Pose.LEFT_HIP, Pose.RIGHT_HIP, Pose.LEFT_ANKLE, Pose.RIGHT_ANKLE, Pose.LEFT_WRIST};
+    private static final double[][] POSITIONS = {{340, 160}, {300, 160}, {320, 185}, {390, 260}, {250, 260},
+            {375, 370}, {265, 370}, {360, 440}, {280, 440}, {420, 330}};
+    private static final float[] SCORES = {0.9f, 0.9f, 0.8f, 0.85f, 0.85f, 0.7f, 0.7f, 0.6f, MIN_SCORE, 0.9f};
+
+    //the keypoints FlowKeypointTracker tracks. The last two here aren't: one is at minConfidence, one isn't tracked
+    private static final int TRACKED_COUNT = 8;
+
+    private static final int PATCH_HALF = 22;
+
+    public static void main(String[] args) {
+        long seed = 11;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--seed":
+                        seed = Long.parseLong(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+        }
+        catch (RuntimeException e) {
+            System.out.println("Bad arguments: " + e.getMessage());
+            System.out.println("Usage: FlowTrackerSim [--seed N]");
+            System.exit(2);
+            return;
+        }
+
+        nu.pattern.OpenCV.loadLocally();
+
+        Scene scene = new Scene(seed);
+        boolean ok = checkPropagation(scene);
+        ok &= checkRejection(scene);
+        ok &= checkLostEye(scene);
+        ok &= checkScaleDrift(scene);
+        for (int latency = 0; latency <= 2; latency++) {
+            ok &= checkInterval(scene, latency);
+        }
+
+        System.out.println(ok ? "OK" : "FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static boolean checkPropagation(Scene scene) {
+        FlowKeypointTracker tracker = new FlowKeypointTracker(PosenetModel.NUM_KEYPOINTS, NO_INTERVAL, MIN_SCORE);
+        Pose out = new Pose(PosenetModel.NUM_KEYPOINTS);
+
+        //keyframe 0 goes to Posenet, and its answer comes back after frame 2
+        scene.render(0, 1, null);
+        tracker.update(scene.frame, out);
+        tracker.markKeyframe(nanos(0));
+        boolean early = false;
+        for (int frame = 1; frame <= 2; frame++) {
+            scene.render(frame, 1, null);
+            early |= tracker.update(scene.frame, out);
+        }
+        tracker.seed(nanos(0), scene.pose(0, 1));
+
+        double worst = 0, sum = 0;
+        int count = 0;
+        boolean lost = false, leaked = false;
+        for (int frame = 3; frame <= 32; frame++) {
+            scene.render(frame, 1, null);
+            if (!tracker.update(scene.frame, out)) {
+                lost = true;
+                continue;
+            }
+            for (int i = 0; i < KEYPOINTS.length; i++) {
+                int k = KEYPOINTS[i];
+                if (i >= TRACKED_COUNT) {
+                    leaked |= out.scores[k] != 0;
+                    continue;
+                }
+                if (out.scores[k] == 0) {
+                    lost = true;
+                    continue;
+                }
+                double error = scene.error(out, i, frame, 1);
+                worst = Math.max(worst, error);
+                sum += error;
+                count++;
+            }
+        }
+        tracker.release();
+
+        System.out.println(String.format(Locale.US, "Propagation, seeded 2 frames late: %d points over 30 frames, mean error %.3fpx, worst %.3fpx",
+                count, sum / count, worst));
+
+        boolean ok = true;
+        if (early) {
+            System.out.println("POSE before Posenet's answer");
+            ok = false;
+        }
+        if (lost) {
+            System.out.println("LOST a point on a clean slide");
+            ok = false;
+        }
+        if (leaked) {
+            System.out.println("TRACKED a point at minConfidence or not tracked at all");
+            ok = false;
+        }
+        if (!(worst <= MAX_ERROR_PX)) {
+            System.out.println("ERROR over " + MAX_ERROR_PX + "px");
+            ok = false;
+        }
+        return ok;
+    }
+
+    private static boolean checkRejection(Scene scene) {
+        FlowKeypointTracker tracker = seeded(scene, NO_INTERVAL);
+        Pose out = new Pose(PosenetModel.NUM_KEYPOINTS);
+
+        //the left shoulder from frame 3 on
+        int shoulder = 3;
+        boolean dropped = false, othersLost = false, wanted = false;
+        double worst = 0;
+        for (int frame = 1; frame <= 8; frame++) {
+            scene.render(frame, 1, frame >= 3 ? scene.position(shoulder, frame, 1) : null);
+            tracker.update(scene.frame, out);
+            wanted |= tracker.wantsKeyframe();
+            for (int i = 0; i < TRACKED_COUNT; i++) {
+                if (i == shoulder) {
+                    dropped |= out.scores[KEYPOINTS[i]] == 0;
+                }
+                else if (out.scores[KEYPOINTS[i]] == 0) {
+                    othersLost = true;
+                }
+                else {
+                    worst = Math.max(worst, scene.error(out, i, frame, 1));
+                }
+            }
+        }
+        System.out.println(String.format(Locale.US, "Rejection: flickering shoulder %s, other points worst error %.3fpx, %s",
+                dropped ? "dropped" : "KEPT", worst, tracker));
+        tracker.release();
+
+        boolean ok = dropped && !othersLost && worst <= MAX_ERROR_PX;
+        if (othersLost) {
+            System.out.println("LOST a point away from the flicker");
+        }
+        if (wanted) {
+            System.out.println("KEYFRAME asked for over a shoulder");
+            ok = false;
+        }
+        return ok;
+    }
+
+    private static boolean checkLostEye(Scene scene) {
+        FlowKeypointTracker tracker = seeded(scene, NO_INTERVAL);
+        Pose out = new Pose(PosenetModel.NUM_KEYPOINTS);
+
+        //the right eye from frame 4 on
+        int firstWanted = -1;
+        for (int frame = 1; frame <= 6 && firstWanted < 0; frame++) {
+            scene.render(frame, 1, frame >= 4 ? scene.position(1, frame, 1) : null);
+            tracker.update(scene.frame, out);
+            if (tracker.wantsKeyframe()) {
+                firstWanted = frame;
+            }
+        }
+        tracker.release();
+
+        System.out.println("Lost eye from frame 4: keyframe asked for on frame " + firstWanted);
+        if (firstWanted != 4) {
+            System.out.println("LOST EYE didn't ask for a keyframe on its frame");
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean checkScaleDrift(Scene scene) {
+        FlowKeypointTracker tracker = seeded(scene, NO_INTERVAL);
+        Pose out = new Pose(PosenetModel.NUM_KEYPOINTS);
+
+        //zooming in 3% a frame from frame 1
+        int firstWanted = -1, firstDrifted = -1;
+        double zoom = 1;
+        for (int frame = 1; frame <= 12 && (firstWanted < 0 || firstDrifted < 0); frame++) {
+            zoom *= 1.03;
+            scene.render(frame, zoom, null);
+            tracker.update(scene.frame, out);
+            if (firstWanted < 0 && tracker.wantsKeyframe()) {
+                firstWanted = frame;
+            }
+            if (firstDrifted < 0 && zoom - 1 > EYE_SCALE_DRIFT) {
+                firstDrifted = frame;
+            }
+        }
+        tracker.release();
+
+        System.out.println(String.format(Locale.US, "Eye scale drift: past %.0f%% on frame %d, keyframe asked for on frame %d",
+                EYE_SCALE_DRIFT * 100, firstDrifted, firstWanted));
+        if (firstWanted < 0 || Math.abs(firstWanted - firstDrifted) > 1) {
+            System.out.println("SCALE DRIFT didn't ask for a keyframe within a frame");
+            return false;
+        }
+        return true;
+    }
+
+    //PosenetStats.preprocessFlowFrame without the governor: Posenet's answers come back latency frames after their
+    //keyframe, before the next frame's update
+    private static boolean checkInterval(Scene scene, int latency) {
+        FlowKeypointTracker tracker = new FlowKeypointTracker(PosenetModel.NUM_KEYPOINTS, INTERVAL, MIN_SCORE);
+        Pose out = new Pose(PosenetModel.NUM_KEYPOINTS);
+
+        List<Integer> keyframes = new ArrayList<>();
+        double worst = 0;
+        for (int frame = 0; frame <= 40; frame++) {
+            for (int keyframe : keyframes) {
+                if (keyframe + latency + 1 == frame) {
+                    tracker.seed(nanos(keyframe), scene.pose(keyframe, 1));
+                }
+            }
+
+            scene.render(frame, 1, null);
+            boolean keyframe = tracker.wantsKeyframe();
+            if (tracker.update(scene.frame, out)) {
+                for (int i = 0; i < TRACKED_COUNT; i++) {
+                    worst = Math.max(worst, scene.error(out, i, frame, 1));
+                }
+            }
+            if (keyframe) {
+                tracker.markKeyframe(nanos(frame));
+                keyframes.add(frame);
+            }
+        }
+        tracker.release();
+
+        //once the first answer is in, keyframes only come from the interval
+        List<Integer> gaps = new ArrayList<>();
+        boolean ok = true;
+        for (int i = 1; i < keyframes.size(); i++) {
+            if (keyframes.get(i - 1) > latency) {
+                int gap = keyframes.get(i) - keyframes.get(i - 1);
+                gaps.add(gap);
+                ok &= gap == INTERVAL;
+            }
+        }
+        System.out.println(String.format(Locale.US, "Interval %d, answers %d frames late: %d keyframes, gaps %s, worst error %.3fpx",
+                INTERVAL, latency, keyframes.size(), gaps, worst));
+
+        if (!ok || gaps.isEmpty()) {
+            System.out.println("KEYFRAMES not every " + INTERVAL + " frames");
+            return false;
+        }
+        if (!(worst <= MAX_ERROR_PX)) {
+            System.out.println("ERROR over " + MAX_ERROR_PX + "px");
+            return false;
+        }
+        return true;
+    }
+
+    //a tracker that's had Posenet's answer for frame 0 on time
+    private static FlowKeypointTracker seeded(Scene scene, int interval) {
+        FlowKeypointTracker tracker = new FlowKeypointTracker(PosenetModel.NUM_KEYPOINTS, interval, MIN_SCORE);
+        scene.render(0, 1, null);
+        tracker.update(scene.frame, new Pose(PosenetModel.NUM_KEYPOINTS));
+        tracker.markKeyframe(nanos(0));
+        tracker.seed(nanos(0), scene.pose(0, 1));
+        return tracker;
+    }
+
+    private static long nanos(int frame) {
+        return frame * 33333333L;
+    }
+
+    /**
+     * A textured scene sliding MOVE_X, MOVE_Y a frame and zooming about the face, rendered into a CameraFrame's Y
+     * plane with a padded row stride like the camera's.
+     */
+    private static class Scene {
+        private static final int STRIDE = WIDTH + 64;
+        //value noise octaves: cell size in pixels and amplitude
+        private static final int[] CELLS = {40, 13, 5};
+        private static final double[] AMPLITUDES = {70, 45, 25};
+
+        private final double[][] grids;
+        private final Random noise;
+        private final byte[] luma = new byte[STRIDE * HEIGHT];
+        private final ByteBuffer yPlane = ByteBuffer.allocateDirect(luma.length);
+        private final ByteBuffer chroma = ByteBuffer.allocateDirect(STRIDE * HEIGHT / 2);
+        final CameraFrame frame = new CameraFrame(new YuvConverter(1));
+
+        //PosenetStats.cropBitmap's crop, to go from camera pixels to the model's
+        private final double cropX, cropY, scale;
+
+        Scene(long seed) {
+            Random random = new Random(seed);
+            noise = new Random(seed + 1);
+            grids = new double[CELLS.length][];
+            for (int o = 0; o < CELLS.length; o++) {
+                //enough cells for the scene to slide and zoom out of the frame without wrapping
+                int cells = (2 * WIDTH) / CELLS[o] + 2;
+                grids[o] = new double[cells * cells];
+                for (int i = 0; i < grids[o].length; i++) {
+                    grids[o][i] = random.nextDouble() * 2 - 1;
+                }
+            }
+            scale = Math.min((double) WIDTH / Constants.MODEL_WIDTH, (double) HEIGHT / Constants.MODEL_HEIGHT);
+            cropX = (WIDTH - Constants.MODEL_WIDTH * scale) / 2;
+            cropY = (HEIGHT - Constants.MODEL_HEIGHT * scale) / 2;
+        }
+
+        //where keypoint i is on a frame, in camera pixels. The zoom is about the nose
+        double[] position(int i, int frameIndex, double zoom) {
+            double cx = POSITIONS[2][0] + MOVE_X * frameIndex, cy = POSITIONS[2][1] + MOVE_Y * frameIndex;
+            double x = POSITIONS[i][0] + MOVE_X * frameIndex, y = POSITIONS[i][1] + MOVE_Y * frameIndex;
+            return new double[]{cx + (x - cx) * zoom, cy + (y - cy) * zoom};
+        }
+
+        //Posenet's answer for a frame, in model input pixels
+        Pose pose(int frameIndex, double zoom) {
+            Pose pose = new Pose(PosenetModel.NUM_KEYPOINTS);
+            for (int i = 0; i < KEYPOINTS.length; i++) {
+                double[] p = position(i, frameIndex, zoom);
+                pose.x[KEYPOINTS[i]] = (float) ((p[0] - cropX) / scale);
+                pose.y[KEYPOINTS[i]] = (float) ((p[1] - cropY) / scale);
+                pose.scores[KEYPOINTS[i]] = SCORES[i];
+            }
+            return pose;
+        }
+
+        //distance from keypoint i in a tracked pose to the truth, in camera pixels
+        double error(Pose pose, int i, int frameIndex, double zoom) {
+            double[] p = position(i, frameIndex, zoom);
+            int k = KEYPOINTS[i];
+            return Math.hypot(pose.x[k] * scale + cropX - p[0], pose.y[k] * scale + cropY - p[1]);
+        }
+
+        //render a frame, with fresh noise in a patch around flicker if there is one
+        void render(int frameIndex, double zoom, double[] flicker) {
+            double cx = POSITIONS[2][0] + MOVE_X * frameIndex, cy = POSITIONS[2][1] + MOVE_Y * frameIndex;
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    //where this pixel is in the scene: undo the zoom about the nose, then the slide
+                    double sx = cx + (x - cx) / zoom - MOVE_X * frameIndex + WIDTH / 2.0;
+                    double sy = cy + (y - cy) / zoom - MOVE_Y * frameIndex + WIDTH / 2.0;
+                    double value = 128 + texture(sx, sy) + noise.nextGaussian() * NOISE;
+                    if (flicker != null && Math.abs(x - flicker[0]) <= PATCH_HALF && Math.abs(y - flicker[1]) <= PATCH_HALF) {
+                        value = noise.nextInt(256);
+                    }
+                    luma[y * STRIDE + x] = (byte) Math.max(0, Math.min(255, (int) Math.round(value)));
+                }
+            }
+            yPlane.clear();
+            yPlane.put(luma);
+            yPlane.flip();
+            frame.set(yPlane, chroma, chroma, WIDTH, HEIGHT, STRIDE, STRIDE, 2, nanos(frameIndex));
+        }
+
+        //smooth value noise, bilinear between random values on each octave's grid
+        private double texture(double x, double y) {
+            double value = 0;
+            for (int o = 0; o < CELLS.length; o++) {
+                double gx = x / CELLS[o], gy = y / CELLS[o];
+                int ix = (int) Math.floor(gx), iy = (int) Math.floor(gy);
+                double fx = gx - ix, fy = gy - iy;
+                int cells = (2 * WIDTH) / CELLS[o] + 2;
+                double[] grid = grids[o];
+                double top = grid[iy * cells + ix] * (1 - fx) + grid[iy * cells + ix + 1] * fx;
+                double bottom = grid[(iy + 1) * cells + ix] * (1 - fx) + grid[(iy + 1) * cells + ix + 1] * fx;
+                value += AMPLITUDES[o] * (top * (1 - fy) + bottom * fy);
+            }
+            return value;
+        }
+    }
+}
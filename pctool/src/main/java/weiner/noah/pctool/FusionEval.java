@@ -0,0 +1,365 @@
+package weiner.noah.pctool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import weiner.noah.wifidirect.Constants;
+import weiner.noah.wifidirect.control.CalibrationProfile;
+import weiner.noah.wifidirect.control.MeasurementFusion;
+import weiner.noah.wifidirect.inference.KeypointLog;
+import weiner.noah.wifidirect.inference.Pose;
+import weiner.noah.wifidirect.inference.PosenetModel;
+
+/**
+ * Runs a keypoint sequence through PosenetStats' old minConfidence gating and through {@link MeasurementFusion}, and
+ * prints how they compare; MeasurementFusionTest checks the fusion itself. It prints:
+ * - frames without a distance or a center offset, which are hover ticks for HumanFollower
+ * - how often the gated center offset switches between the shoulders and the eyes, and how far it jumps when it does
+ * - distance and center offset wobble, from a centered 5-frame average
+ * - on a synthetic sequence, also the RMS distance and center errors against the truth, over the frames both have,
+ *   and how often the true distance is within two of fusion's standard deviations
+ * - on a synthetic sequence, also the eye distance's and fusion's distance error standing still from 0.5 to 4m, where
+ *   the eyes go from 28 to 3 pixels apart and the torso and whole body come into the frame
+ *
+ * The sequence is a KeypointLog recorded with PosenetStats.RECORD_KEYPOINTS on, or, without one, a made-up person
+ * walking from 0.4 to 1.5m and back with eye and shoulder scores wandering around minConfidence.
+ *
+ * Usage: FusionEval [LOG.csv] [--seed N]
+ *   --seed N    seed for the synthetic sequence (default 3)
+ */
+public class FusionEval {
+    //PosenetStats' minConfidence
+    private static final float MIN_CONFIDENCE = 0.5f;
+
+    private static final double[] RANGE_DISTANCES_M = {0.5, 1, 2, 3, 4};
+
+    private static final int REFERENCE_HALF_WIDTH = 2;
+
+    //gated center offset source, for counting switches
+    private static final int NONE = 0;
+    private static final int SHOULDERS = 1;
+    private static final int EYES = 2;
+
+    public static void main(String[] args) {
+        String logPath = null;
+        long seed = 3;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--seed":
+                        seed = Long.parseLong(args[++i]);
+                        break;
+                    default:
+                        if (args[i].startsWith("--") || logPath != null) {
+                            throw new IllegalArgumentException("Unknown option " + args[i]);
+                        }
+                        logPath = args[i];
+                }
+            }
+        }
+        catch (RuntimeException e) {
+            System.out.println("Bad arguments: " + e.getMessage());
+            System.out.println("Usage: FusionEval [LOG.csv] [--seed N]");
+            System.exit(2);
+            return;
+        }
+
+        List<KeypointLog.Frame> frames;
+        List<double[]> truth = null;
+        if (logPath != null) {
+            try {
+                frames = KeypointLog.read(new File(logPath));
+            }
+            catch (IOException e) {
+                System.out.println("CAN'T READ LOG: " + e.getMessage());
+                System.exit(1);
+                return;
+            }
+            System.out.println("Read " + frames.size() + " frames from " + logPath);
+        }
+        else {
+            truth = new ArrayList<double[]>();
+            frames = synthesize(truth, new Random(seed));
+            System.out.println("Synthesized " + frames.size() + " frames (pass a keypoint log to use a real one)");
+        }
+
+        if (frames.size() < 4 * REFERENCE_HALF_WIDTH + 1) {
+            System.out.println("TOO FEW FRAMES: " + frames.size());
+            System.exit(1);
+            return;
+        }
+
+        CalibrationProfile profile = CalibrationProfile.DEFAULT;
+        MeasurementFusion fusion = new MeasurementFusion();
+        int n = frames.size();
+
+        double[] gatedDistance = new double[n];
+        double[] gatedOffset = new double[n];
+        int[] gatedSource = new int[n];
+        double[] fusedDistance = new double[n];
+        double[] fusedSd = new double[n];
+        double[] fusedOffset = new double[n];
+
+        for (int i = 0; i < n; i++) {
+            Pose pose = frames.get(i).pose;
+            gate(pose, profile, gatedDistance, gatedOffset, gatedSource, i);
+
+            fusion.fuse(pose, profile, Double.NaN);
+            fusedDistance[i] = fusion.getDistance();
+            fusedSd[i] = Math.sqrt(fusion.getDistanceVariance());
+            fusedOffset[i] = fusion.getOffset();
+        }
+
+        int gatedNoDistance = countNaN(gatedDistance);
+        int fusedNoDistance = countNaN(fusedDistance);
+        int gatedNoOffset = countNaN(gatedOffset);
+        int fusedNoOffset = countNaN(fusedOffset);
+        System.out.println(String.format(Locale.US, "Frames without distance: gated %d, fused %d of %d", gatedNoDistance,
+                fusedNoDistance, n));
+        System.out.println(String.format(Locale.US, "Frames without center:   gated %d, fused %d of %d", gatedNoOffset,
+                fusedNoOffset, n));
+
+        double[] gatedSwitch = switches(gatedOffset, gatedSource);
+        System.out.println(String.format(Locale.US, "Gated center switches:   %d (mean jump %.1fpx)", (int) gatedSwitch[0],
+                gatedSwitch[1]));
+
+        System.out.println(String.format(Locale.US, "Distance wobble:         gated %.2fcm, fused %.2fcm",
+                100 * wobble(gatedDistance), 100 * wobble(fusedDistance)));
+        System.out.println(String.format(Locale.US, "Center wobble:           gated %.2fpx, fused %.2fpx",
+                wobble(gatedOffset), wobble(fusedOffset)));
+
+        if (truth != null) {
+            double[] distanceError = rmsErrors(gatedDistance, fusedDistance, truth, 0);
+            double[] offsetError = rmsErrors(gatedOffset, fusedOffset, truth, 1);
+            int within = 0;
+            int counted = 0;
+            for (int i = 0; i < n; i++) {
+                if (!Double.isNaN(fusedDistance[i])) {
+                    counted++;
+                    if (Math.abs(fusedDistance[i] - truth.get(i)[0]) <= 2 * fusedSd[i]) {
+                        within++;
+                    }
+                }
+            }
+            double coverage = (double) within / Math.max(1, counted);
+            System.out.println(String.format(Locale.US, "Distance RMS error:      gated %.2fcm, fused %.2fcm",
+                    100 * distanceError[0], 100 * distanceError[1]));
+            System.out.println(String.format(Locale.US, "Center RMS error:        gated %.2fpx, fused %.2fpx", offsetError[0],
+                    offsetError[1]));
+            System.out.println(String.format(Locale.US, "Truth within 2 sd:       %.1f%%", 100 * coverage));
+
+            printRange(new Random(seed + 1));
+        }
+    }
+
+    //what PosenetStats does without fusion: distance from both eyes, center from the whole bust or else the eyes
+    private static void gate(Pose pose, CalibrationProfile profile, double[] distance, double[] offset, int[] source, int i) {
+        boolean eyes = pose.scores[Pose.LEFT_EYE] > MIN_CONFIDENCE && pose.scores[Pose.RIGHT_EYE] > MIN_CONFIDENCE;
+        boolean bust = eyes && pose.scores[Pose.NOSE] > MIN_CONFIDENCE && pose.scores[Pose.LEFT_SHOULDER] > MIN_CONFIDENCE &&
+                pose.scores[Pose.RIGHT_SHOULDER] > MIN_CONFIDENCE;
+
+        double pixels = pose.x[Pose.LEFT_EYE] - pose.x[Pose.RIGHT_EYE];
+        distance[i] = eyes ? profile.pd * profile.focalLength / pixels : Double.NaN;
+
+        if (bust) {
+            offset[i] = (pose.x[Pose.LEFT_SHOULDER] + pose.x[Pose.RIGHT_SHOULDER]) / 2 - Constants.FRAME_CENTER;
+            source[i] = SHOULDERS;
+        }
+        else if (eyes) {
+            offset[i] = (pose.x[Pose.LEFT_EYE] + pose.x[Pose.RIGHT_EYE]) / 2 - Constants.FRAME_CENTER;
+            source[i] = EYES;
+        }
+        else {
+            offset[i] = Double.NaN;
+            source[i] = NONE;
+        }
+    }
+
+    private static int countNaN(double[] values) {
+        int count = 0;
+        for (double value : values) {
+            if (Double.isNaN(value)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    //how many times the source changes between two frames that both have an offset, and the mean jump when it does
+    private static double[] switches(double[] offset, int[] source) {
+        int count = 0;
+        double jump = 0;
+        int last = -1;
+        for (int i = 0; i < offset.length; i++) {
+            if (source[i] == NONE) {
+                continue;
+            }
+            if (last >= 0 && source[i] != source[last]) {
+                count++;
+                jump += Math.abs(offset[i] - offset[last]);
+            }
+            last = i;
+        }
+        return new double[]{count, count == 0 ? 0 : jump / count};
+    }
+
+    //RMS difference from a centered average, over frames whose whole window has a value
+    private static double wobble(double[] values) {
+        double sum = 0;
+        long count = 0;
+        for (int i = REFERENCE_HALF_WIDTH; i < values.length - REFERENCE_HALF_WIDTH; i++) {
+            double average = 0;
+            for (int j = i - REFERENCE_HALF_WIDTH; j <= i + REFERENCE_HALF_WIDTH; j++) {
+                average += values[j];
+            }
+            average /= 2 * REFERENCE_HALF_WIDTH + 1;
+            if (!Double.isNaN(average)) {
+                sum += (values[i] - average) * (values[i] - average);
+                count++;
+            }
+        }
+        return Math.sqrt(sum / Math.max(1, count));
+    }
+
+    //gated and fused RMS error against the truth's column, over the frames where both have a value
+    private static double[] rmsErrors(double[] gated, double[] fused, List<double[]> truth, int column) {
+        double gatedSum = 0;
+        double fusedSum = 0;
+        long count = 0;
+        for (int i = 0; i < gated.length; i++) {
+            if (!Double.isNaN(gated[i]) && !Double.isNaN(fused[i])) {
+                double expected = truth.get(i)[column];
+                gatedSum += (gated[i] - expected) * (gated[i] - expected);
+                fusedSum += (fused[i] - expected) * (fused[i] - expected);
+                count++;
+            }
+        }
+        return new double[]{Math.sqrt(gatedSum / Math.max(1, count)), Math.sqrt(fusedSum / Math.max(1, count))};
+    }
+
+    //60s at 20 fps of someone facing the drone, walking from 0.4m out to 1.5m and back while drifting side to side, their
+    //head swaying a few pixels off their body's center line. Each keypoint's score wanders around minConfidence, slowly
+    //and from frame to frame. The truth is {distance, body center's offset} per frame
+    private static List<KeypointLog.Frame> synthesize(List<double[]> truth, Random random) {
+        List<KeypointLog.Frame> frames = new ArrayList<KeypointLog.Frame>();
+
+        //per keypoint phase of the slow score drift
+        double[] phase = new double[PosenetModel.NUM_KEYPOINTS];
+        for (int k = 0; k < phase.length; k++) {
+            phase[k] = random.nextDouble() * 2 * Math.PI;
+        }
+
+        for (int i = 0; i < 1200; i++) {
+            double t = i * 0.05;
+            double d = 0.95 - 0.55 * Math.cos(2 * Math.PI * t / 60);
+            double center = Constants.FRAME_CENTER + 30 * Math.sin(2 * Math.PI * t / 13);
+            double head = center + 3 * Math.sin(2 * Math.PI * t / 5);
+
+            Pose pose = new Pose(PosenetModel.NUM_KEYPOINTS);
+            for (int k = 0; k < PosenetModel.NUM_KEYPOINTS; k++) {
+                pose.scores[k] = (float) (0.55 + 0.2 * Math.sin(2 * Math.PI * t / 7 + phase[k]) + 0.1 * random.nextGaussian());
+            }
+            person(pose, d, center, head, 100, random);
+
+            frames.add(new KeypointLog.Frame(i * 50000000L, pose));
+            truth.add(new double[]{d, center - Constants.FRAME_CENTER});
+        }
+        return frames;
+    }
+
+    //someone standing still and square to the drone at each RANGE_DISTANCES_M, 10s each, with good scores. Prints the eyes
+    //cue's RMS error next to the fused one's at each
+    private static void printRange(Random random) {
+        CalibrationProfile profile = CalibrationProfile.DEFAULT;
+        MeasurementFusion fusion = new MeasurementFusion();
+
+        System.out.println("Range:  dist   eyes RMS  fused RMS  fused sd  cues (eyes/shoulders/nose/torso/body)");
+        for (double d : RANGE_DISTANCES_M) {
+            double eyesSum = 0, fusedSum = 0, sdSum = 0;
+            int eyesCount = 0, fusedCount = 0;
+            int[] cueCount = new int[MeasurementFusion.DISTANCE_CUES];
+            for (int i = 0; i < 200; i++) {
+                Pose pose = new Pose(PosenetModel.NUM_KEYPOINTS);
+                for (int k = 0; k < PosenetModel.NUM_KEYPOINTS; k++) {
+                    pose.scores[k] = (float) (0.8 + 0.05 * random.nextGaussian());
+                }
+                person(pose, d, Constants.FRAME_CENTER, Constants.FRAME_CENTER, 40, random);
+
+                fusion.fuse(pose, profile, 0);
+                double eyes = fusion.getDistanceCue(MeasurementFusion.CUE_EYES);
+                if (!Double.isNaN(eyes)) {
+                    eyesSum += (eyes - d) * (eyes - d);
+                    eyesCount++;
+                }
+                if (fusion.hasDistance()) {
+                    fusedSum += (fusion.getDistance() - d) * (fusion.getDistance() - d);
+                    sdSum += Math.sqrt(fusion.getDistanceVariance());
+                    fusedCount++;
+                }
+                for (int cue = 0; cue < cueCount.length; cue++) {
+                    if (!Double.isNaN(fusion.getDistanceCue(cue))) {
+                        cueCount[cue]++;
+                    }
+                }
+            }
+
+            double eyesRms = Math.sqrt(eyesSum / Math.max(1, eyesCount));
+            double fusedRms = Math.sqrt(fusedSum / Math.max(1, fusedCount));
+            System.out.println(String.format(Locale.US, "       %.1fm  %7.1fcm  %7.1fcm  %6.1fcm  %d/%d/%d/%d/%d", d,
+                    100 * eyesRms, 100 * fusedRms, 100 * sdSum / Math.max(1, fusedCount), cueCount[0], cueCount[1],
+                    cueCount[2], cueCount[3], cueCount[4]));
+        }
+    }
+
+    //place a person's nose, eyes, shoulders, hips and ankles at distance d, with the nose at noseY, and add noise by the
+    //scores already set. The eyes are the bust model's; the rest go by stature, and the person is 3% taller than
+    //HUMAN_HEIGHT with shoulders 5% wider than the bust model's. Keypoints out of the frame get a low score
+    private static void person(Pose pose, double d, double center, double head, double noseY, Random random) {
+        CalibrationProfile profile = CalibrationProfile.DEFAULT;
+        double f = profile.focalLength;
+        double fy = f * Constants.CAMERA_FOCAL_Y / Constants.CAMERA_FOCAL_X;
+        double height = 1.03 * Constants.HUMAN_HEIGHT;
+
+        double eyes = profile.pd * f / d;
+        double noseHeight = 0.708 * profile.pd * fy / d;
+        double shoulders = 1.05 * 3.875 * profile.pd * f / d;
+        double shoulderY = noseY + (0.92 - 0.818) * height * fy / d;
+        double hipY = noseY + (0.92 - 0.530) * height * fy / d;
+        double ankleY = noseY + (0.92 - 0.039) * height * fy / d;
+
+        place(pose, Pose.NOSE, head, noseY);
+        place(pose, Pose.LEFT_EYE, head + eyes / 2, noseY - noseHeight);
+        place(pose, Pose.RIGHT_EYE, head - eyes / 2, noseY - noseHeight);
+        place(pose, Pose.LEFT_SHOULDER, center + shoulders / 2, shoulderY);
+        place(pose, Pose.RIGHT_SHOULDER, center - shoulders / 2, shoulderY);
+        place(pose, Pose.LEFT_HIP, center + shoulders / 3, hipY);
+        place(pose, Pose.RIGHT_HIP, center - shoulders / 3, hipY);
+        place(pose, Pose.LEFT_ANKLE, center + shoulders / 4, ankleY);
+        place(pose, Pose.RIGHT_ANKLE, center - shoulders / 4, ankleY);
+
+        float sum = 0;
+        for (int k = 0; k < PosenetModel.NUM_KEYPOINTS; k++) {
+            if (pose.x[k] < 0 || pose.x[k] >= Constants.MODEL_WIDTH || pose.y[k] < 0 || pose.y[k] >= Constants.MODEL_HEIGHT) {
+                pose.scores[k] = 0.02f;
+            }
+            pose.scores[k] = Math.max(0.02f, Math.min(0.98f, pose.scores[k]));
+
+            //off by KEYPOINT_SIGMA_PX / score, then onto Posenet's grid
+            double sigma = 1.5 / pose.scores[k];
+            pose.x[k] = Math.round(pose.x[k] + sigma * random.nextGaussian());
+            pose.y[k] = Math.round(pose.y[k] + sigma * random.nextGaussian());
+            sum += pose.scores[k];
+        }
+        pose.score = sum / PosenetModel.NUM_KEYPOINTS;
+    }
+
+    private static void place(Pose pose, int keypoint, double x, double y) {
+        pose.x[keypoint] = (float) x;
+        pose.y[keypoint] = (float) y;
+    }
+}
@@ -0,0 +1,197 @@
+package weiner.noah.pctool;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import weiner.noah.wifidirect.control.InferenceGovernor;
+import weiner.noah.wifidirect.inference.BackendConfig;
+import weiner.noah.wifidirect.inference.BackendSelector;
+import weiner.noah.wifidirect.inference.FakeBackend;
+import weiner.noah.wifidirect.inference.InferenceBackend;
+import weiner.noah.wifidirect.inference.Pose;
+import weiner.noah.wifidirect.inference.PosenetModel;
+
+/**
+ * Exercises the app's inference path off the phone, with {@link FakeBackend} standing in for TensorFlow Lite:
+ * - decode: random poses go through the fake model's outputs and {@link PosenetModel#decode}, and must come back exact
+ * - selection: {@link BackendSelector} benchmarks a made-up phone (a failing GPU, a fast but stalling NNAPI, CPU
+ *   configs of different speeds), must pick the fastest stable one, save it, and load it next time without timing
+ *   anything
+ * - governor: {@link InferenceGovernor} is walked through a flight that heats up, to print the rate and backend it
+ *   picks at each thermal level
+ *
+ * Usage: InferenceBench [--poses N] [--scale F]
+ *   --poses N   random poses to decode (default 200)
+ *   --scale F   multiply the fake phone's inference times by F (default 0.1, to keep the benchmark quick)
+ */
+public class InferenceBench {
+    public static void main(String[] args) {
+        int poses = 200;
+        double scale = 0.1;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--poses":
+                        poses = Integer.parseInt(args[++i]);
+                        break;
+                    case "--scale":
+                        scale = Double.parseDouble(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+        }
+        catch (RuntimeException e) {
+            System.out.println("Bad arguments: " + e.getMessage());
+            System.out.println("Usage: InferenceBench [--poses N] [--scale F]");
+            System.exit(2);
+            return;
+        }
+
+        boolean ok = checkDecode(poses) && checkSelection(scale);
+        if (!ok) {
+            System.exit(1);
+            return;
+        }
+
+        walkGovernor();
+    }
+
+    private static boolean checkDecode(int poses) {
+        FakeBackend backend = new FakeBackend(BackendSelector.DEFAULT_CPU, 0);
+        ByteBuffer input = PosenetModel.allocateInput(backend);
+        float[][] outputs = PosenetModel.allocateOutputs(backend);
+        int[] heatmapShape = backend.getOutputShape(PosenetModel.HEATMAPS);
+        int[] inputShape = backend.getInputShape();
+
+        Pose pose = new Pose(PosenetModel.NUM_KEYPOINTS);
+        int[] x = new int[PosenetModel.NUM_KEYPOINTS];
+        int[] y = new int[PosenetModel.NUM_KEYPOINTS];
+        Random random = new Random(7);
+
+        for (int n = 0; n < poses; n++) {
+            for (int k = 0; k < x.length; k++) {
+                x[k] = random.nextInt(inputShape[2]);
+                y[k] = random.nextInt(inputShape[1]);
+            }
+            float score = 0.05f + 0.9f * random.nextFloat();
+            backend.setPose(x, y, score);
+
+            backend.run(input, outputs);
+            PosenetModel.decode(outputs[PosenetModel.HEATMAPS], outputs[PosenetModel.OFFSETS], heatmapShape, inputShape[2],
+                    inputShape[1], pose);
+
+            for (int k = 0; k < x.length; k++) {
+                if (pose.x[k] != x[k] || pose.y[k] != y[k] || Math.abs(pose.scores[k] - score) > 1e-4) {
+                    System.out.println(String.format("DECODE MISMATCH pose %d keypoint %d: expected (%d, %d) %.3f, got (%.0f, %.0f) %.3f",
+                            n, k, x[k], y[k], score, pose.x[k], pose.y[k], pose.scores[k]));
+                    return false;
+                }
+            }
+        }
+
+        System.out.println("Decoded " + poses + " poses exactly");
+        return true;
+    }
+
+    private static boolean checkSelection(final double scale) {
+        //the made-up phone: ms per inference, jitter (fraction either way) and stalls (every n-th run takes this many times
+        //as long) per config. No GPU
+        final Map<BackendConfig, double[]> phone = new HashMap<BackendConfig, double[]>();
+        phone.put(BackendConfig.cpu(1, false), new double[] {60, 0.05, 0, 1});
+        phone.put(BackendConfig.cpu(1, true), new double[] {45, 0.05, 0, 1});
+        phone.put(BackendConfig.cpu(2, false), new double[] {35, 0.05, 0, 1});
+        phone.put(BackendConfig.cpu(2, true), new double[] {26, 0.05, 0, 1});
+        phone.put(BackendConfig.cpu(4, false), new double[] {22, 0.05, 0, 1});
+        phone.put(BackendConfig.cpu(4, true), new double[] {16, 0.05, 0, 1});
+        phone.put(new BackendConfig(BackendConfig.Delegate.NNAPI, 4, false), new double[] {10, 0.05, 5, 4});
+
+        final Random random = new Random(3);
+        BackendSelector.Factory factory = new BackendSelector.Factory() {
+            @Override
+            public InferenceBackend create(BackendConfig config) {
+                double[] timing = phone.get(config);
+                if (timing == null) {
+                    throw new IllegalStateException("no " + config.delegate + " on this phone");
+                }
+                FakeBackend backend = new FakeBackend(config, (long) (timing[0] * scale * 1e6));
+                backend.setJitter(timing[1], random);
+                backend.setStalls((int) timing[2], timing[3]);
+                return backend;
+            }
+        };
+
+        final Map<String, String> saved = new HashMap<String, String>();
+        BackendSelector.Store store = new BackendSelector.Store() {
+            @Override
+            public String load(String key) {
+                return saved.get(key);
+            }
+
+            @Override
+            public void save(String key, String value) {
+                saved.put(key, value);
+            }
+        };
+
+        List<BackendConfig> candidates = BackendSelector.defaultCandidates(8);
+        BackendConfig expected = BackendConfig.cpu(4, true);
+
+        BackendSelector first = new BackendSelector(factory, store, "posenet:1");
+        boolean benchmarked = first.select(candidates);
+        for (BackendSelector.Result result : first.getResults()) {
+            System.out.println("  " + result);
+        }
+        if (!benchmarked || !expected.equals(first.getBest()) || !expected.equals(first.getBestCpu())) {
+            System.out.println("SELECTION WRONG: benchmarked " + benchmarked + ", picked " + first.getBest() + ", CPU " +
+                    first.getBestCpu() + ", expected " + expected);
+            return false;
+        }
+
+        BackendSelector second = new BackendSelector(factory, store, "posenet:1");
+        if (second.select(candidates) || !expected.equals(second.getBest())) {
+            System.out.println("SELECTION NOT REUSED: picked " + second.getBest());
+            return false;
+        }
+
+        BackendSelector newModel = new BackendSelector(factory, store, "posenet:2");
+        if (!newModel.select(candidates)) {
+            System.out.println("SELECTION NOT REDONE for a new model");
+            return false;
+        }
+
+        System.out.println("Selected " + first.getBest() + " (stable beats the faster but stalling NNAPI), saved as \"" +
+                saved.get("best") + "\", reused on the next run, redone for a new model");
+        return true;
+    }
+
+    //a GPU phone heating up while following someone who keeps moving
+    private static void walkGovernor() {
+        long now = 0;
+        InferenceGovernor governor = new InferenceGovernor(new BackendConfig(BackendConfig.Delegate.GPU, 4, false),
+                BackendConfig.cpu(4, true), now);
+
+        int[] statusAt = {0, 0, 1, 2, 2, 3, 3, 4, 4};
+        System.out.println("Governor over a warming flight (30s steps):");
+
+        for (int step = 0; step < statusAt.length; step++) {
+            governor.onThermalStatus(statusAt[step], now);
+
+            //30s of frames at whatever rate the governor asks for; the GPU slows down as it gets hotter
+            long end = now + 30000000000L;
+            while (now < end) {
+                BackendConfig config = governor.getConfig();
+                double ms = config.delegate == BackendConfig.Delegate.GPU ? 20 + 15 * statusAt[step] : 30;
+                governor.onInference(config, (long) (ms * 1e6), now);
+                governor.onMotion(0.6, Double.NaN, 10, now);
+                now += governor.getPeriodNanos(now);
+            }
+            System.out.println("  thermal " + statusAt[step] + ": " + governor);
+        }
+    }
+}
@@ -0,0 +1,414 @@
+package weiner.noah.pctool;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+import weiner.noah.wifidirect.crtp.CommanderPacket;
+import weiner.noah.wifidirect.crtp.HeightHoldPacket;
+import weiner.noah.wifidirect.crtp.Signal;
+import weiner.noah.wifidirect.metrics.MetricsSnapshot;
+import weiner.noah.wifidirect.relay.Heartbeat;
+import weiner.noah.wifidirect.relay.MetricsFrame;
+import weiner.noah.wifidirect.relay.RelayProtocol;
+import weiner.noah.wifidirect.relay.RelaySession;
+import weiner.noah.wifidirect.relay.TelemetryFrame;
+
+/**
+ * Plays the controller's side of the relay socket: sends signals and a stream of synthetic CRTP packets, waits
+ * for each ack, and records the round trip. Telemetry frames the phone interleaves with the acks are decoded on
+ * the way past, and heartbeat pings are echoed straight back.
+ */
+public class LoadGenerator {
+    public enum Traffic {
+        COMMANDER,
+        HEIGHTHOLD,
+        MIXED
+    }
+
+    //pre-serialize a cycle of packets so building them doesn't show up in the timings
+    private static final int PACKET_CYCLE = 64;
+
+    //how often to check for pings while waiting to send the next packet
+    private static final long POLL_NANOS = 1000000L;
+
+    private final Socket socket;
+    private final OutputStream outStream;
+    private final DataInputStream inStream;
+
+    private final byte[][] packets;
+    private final byte[] ackBuffer = new byte[RelayProtocol.RELAY_ACK_LENGTH];
+
+    private long relayedAcks = 0;
+    private long fakeAcks = 0;
+
+    private final ByteBuffer telemetryBuffer = TelemetryFrame.newBuffer();
+    private final TelemetryFrame telemetry = new TelemetryFrame();
+    private long telemetryFrames = 0;
+    private long telemetryGaps = 0;
+    private int lastTelemetrySeq = -1;
+
+    //print every telemetry frame here if set
+    private PrintStream telemetryOut = null;
+
+    private final byte[] ping = new byte[Heartbeat.LENGTH];
+    private final byte[] echo = new byte[RelayProtocol.HEARTBEAT_ECHO_LENGTH];
+    private long pingsEchoed = 0;
+
+    //what the phone's last ping said about the link, -1 before the first one
+    private int linkScore = -1;
+    private int recommendedRateHz = -1;
+
+    //slow down to the phone's recommended rate
+    private boolean adaptiveRate = false;
+
+    //hold each echo back this long, to look like a congested link
+    private long echoDelayNanos = 0;
+
+    public LoadGenerator(Socket socket, Traffic traffic) throws IOException {
+        this.socket = socket;
+        this.outStream = socket.getOutputStream();
+        this.inStream = new DataInputStream(socket.getInputStream());
+
+        //the relay waits on each ack before reading the next frame, so don't let Nagle hold our writes back
+        socket.setTcpNoDelay(true);
+
+        packets = new byte[PACKET_CYCLE][];
+        for (int i = 0; i < PACKET_CYCLE; i++) {
+            //gentle sine sweep, same magnitudes the follower actually sends
+            float s = (float) Math.sin(2 * Math.PI * i / PACKET_CYCLE);
+
+            boolean commander = traffic == Traffic.COMMANDER || (traffic == Traffic.MIXED && (i & 1) == 0);
+
+            if (commander) {
+                packets[i] = new CommanderPacket(5 * s, -5 * s, 0, (char) 30000).toByteArray();
+            }
+            else {
+                packets[i] = new HeightHoldPacket(0.2f * s, 0.1f * s, 0, 0.3f).toByteArray();
+            }
+        }
+    }
+
+    /**
+     * Send a one-byte signal and wait for its ack.
+     *
+     * @return round trip in nanoseconds
+     */
+    public long sendSignal(Signal signal) throws IOException {
+        long start = System.nanoTime();
+        outStream.write(signal.getNumber());
+        outStream.flush();
+        readAck();
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Ask the phone where its relay session is at.
+     *
+     * @return the session, or null if the phone answered with a plain ack (older build without sessions)
+     */
+    public RelaySession.Info querySession() throws IOException {
+        outStream.write(Signal.SESSION.getNumber());
+        outStream.flush();
+
+        byte first = inStream.readByte();
+        while (readAsync(first)) {
+            first = inStream.readByte();
+        }
+
+        if (first == RelayProtocol.ACK_FAKE) {
+            return null;
+        }
+        if (first != RelaySession.MAGIC) {
+            throw new IOException(String.format("Expected session frame, got 0x%02x", first));
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(RelaySession.FRAME_LENGTH).order(telemetryBuffer.order());
+        buffer.put(0, first);
+        inStream.readFully(buffer.array(), 1, RelaySession.FRAME_LENGTH - 1);
+
+        RelaySession.Info info = new RelaySession.Info();
+        if (!info.decode(buffer)) {
+            throw new IOException("Bad session frame");
+        }
+        return info;
+    }
+
+    /**
+     * Ask the phone for its stage metrics since the last time we asked on this connection.
+     *
+     * @return the metrics, or null if the phone answered with a plain ack (metrics not wired up, or an older build)
+     */
+    public MetricsSnapshot queryMetrics() throws IOException {
+        outStream.write(Signal.METRICS.getNumber());
+        outStream.flush();
+
+        byte first = inStream.readByte();
+        while (readAsync(first)) {
+            first = inStream.readByte();
+        }
+
+        if (first == RelayProtocol.ACK_FAKE) {
+            return null;
+        }
+        if (first != MetricsFrame.MAGIC) {
+            throw new IOException(String.format("Expected metrics frame, got 0x%02x", first));
+        }
+
+        //rest of the header says how much more there is
+        ByteBuffer buffer = MetricsFrame.newBuffer();
+        buffer.put(0, first);
+        inStream.readFully(buffer.array(), 1, 3);
+
+        int length = buffer.getShort(2) & 0xffff;
+        if (length < MetricsFrame.HEADER_LENGTH || length > MetricsFrame.MAX_LENGTH) {
+            throw new IOException("Bad metrics frame length " + length);
+        }
+        inStream.readFully(buffer.array(), 4, length - 4);
+        buffer.limit(length);
+
+        MetricsSnapshot snapshot = new MetricsSnapshot();
+        if (!MetricsFrame.decode(buffer, snapshot)) {
+            throw new IOException("Bad metrics frame");
+        }
+        return snapshot;
+    }
+
+    /**
+     * Ask the phone to put {@link RelayProtocol#ACK_RELAYED} in front of relayed acks, so they can't be mistaken for
+     * fake ones whatever the drone's reply starts with.
+     */
+    public void requestFramedAcks() throws IOException {
+        outStream.write(Signal.FRAMED_ACKS.getNumber());
+        outStream.flush();
+        readAck();
+    }
+
+    /**
+     * Tell the phone we echo heartbeats, so it starts pinging us. Not acked.
+     */
+    public void enableHeartbeat() throws IOException {
+        outStream.write(new byte[] {Signal.HEARTBEAT.getNumber(), 0, 0});
+        outStream.flush();
+    }
+
+    /**
+     * Follow the setpoint rate the phone asks for in its pings, whenever it's below the rate given to stream().
+     */
+    public void setAdaptiveRate(boolean adaptive) {
+        adaptiveRate = adaptive;
+    }
+
+    public void setEchoDelayMs(long ms) {
+        echoDelayNanos = ms * 1000000L;
+    }
+
+    /**
+     * Ask the phone to stream telemetry at the given rate (0 stops it).
+     */
+    public void requestTelemetry(int rateHz) throws IOException {
+        outStream.write(new byte[] {Signal.TELEMETRY.getNumber(), (byte) rateHz});
+        outStream.flush();
+        readAck();
+    }
+
+    public void setTelemetryOut(PrintStream out) {
+        telemetryOut = out;
+    }
+
+    /**
+     * Read nothing but telemetry for a while, e.g. to watch the follower with no packets being sent.
+     */
+    public void listenTelemetry(long millis) throws IOException {
+        int oldTimeout = socket.getSoTimeout();
+        long deadline = System.currentTimeMillis() + millis;
+
+        try {
+            long remaining;
+            while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+                socket.setSoTimeout((int) remaining);
+
+                byte first;
+                try {
+                    first = inStream.readByte();
+                }
+                catch (SocketTimeoutException e) {
+                    break;
+                }
+
+                if (!readAsync(first)) {
+                    throw new IOException(String.format("Expected telemetry, got 0x%02x", first));
+                }
+            }
+        }
+        finally {
+            socket.setSoTimeout(oldTimeout);
+        }
+    }
+
+    /**
+     * Stream packets to the relay.
+     *
+     * @param count number of packets to send
+     * @param rateHz packets per second, 0 or less to send the next one as soon as the last is acked
+     * @param rtts where to record each round trip
+     */
+    public void stream(int count, double rateHz, RttHistogram rtts) throws IOException {
+        long next = System.nanoTime();
+
+        for (int i = 0; i < count; i++) {
+            long periodNanos = periodNanos(rateHz);
+
+            if (periodNanos > 0) {
+                //schedule against the start time so a slow ack doesn't push every later packet back
+                next += periodNanos;
+                long wait;
+                while ((wait = next - System.nanoTime()) > 0) {
+                    //answer pings while we wait, or their round trip would include our send period
+                    if (inStream.available() > 0) {
+                        byte first = inStream.readByte();
+                        if (!readAsync(first)) {
+                            throw new IOException(String.format("Unexpected 0x%02x between acks", first));
+                        }
+                        continue;
+                    }
+                    LockSupport.parkNanos(Math.min(wait, POLL_NANOS));
+                }
+            }
+
+            long start = System.nanoTime();
+            outStream.write(packets[i % PACKET_CYCLE]);
+            outStream.flush();
+            readAck();
+            rtts.record(System.nanoTime() - start);
+        }
+    }
+
+    private long periodNanos(double rateHz) {
+        if (rateHz <= 0) {
+            return 0;
+        }
+        if (adaptiveRate && recommendedRateHz > 0 && recommendedRateHz < rateHz) {
+            return (long) (1e9 / recommendedRateHz);
+        }
+        return (long) (1e9 / rateHz);
+    }
+
+    //acks are either the single fake byte or a full RELAY_ACK_LENGTH relay ack, possibly preceded by telemetry or pings.
+    //A phone that hasn't had FRAMED_ACKS yet sends relay acks without their ACK_RELAYED header
+    private void readAck() throws IOException {
+        byte first = inStream.readByte();
+
+        while (readAsync(first)) {
+            first = inStream.readByte();
+        }
+
+        if (first == RelayProtocol.ACK_RELAYED) {
+            inStream.readFully(ackBuffer, 0, RelayProtocol.RELAY_ACK_LENGTH);
+            relayedAcks++;
+            return;
+        }
+
+        if (first == RelayProtocol.ACK_FAKE) {
+            fakeAcks++;
+            return;
+        }
+
+        ackBuffer[0] = first;
+        inStream.readFully(ackBuffer, 1, RelayProtocol.RELAY_ACK_LENGTH - 1);
+        relayedAcks++;
+    }
+
+    //handle a frame the phone sends on its own rather than in answer to ours. Returns false if first isn't one
+    private boolean readAsync(byte first) throws IOException {
+        if (first == TelemetryFrame.MAGIC) {
+            readTelemetry();
+            return true;
+        }
+        if (first == Heartbeat.MAGIC) {
+            readPing();
+            return true;
+        }
+        return false;
+    }
+
+    //the magic byte has already been read
+    private void readPing() throws IOException {
+        inStream.readFully(ping, 1, Heartbeat.LENGTH - 1);
+
+        if (echoDelayNanos > 0) {
+            LockSupport.parkNanos(echoDelayNanos);
+        }
+
+        echo[0] = Signal.HEARTBEAT.getNumber();
+        echo[1] = ping[1];
+        echo[2] = ping[2];
+        outStream.write(echo);
+        outStream.flush();
+
+        linkScore = ping[3] & 0xff;
+        recommendedRateHz = ping[4] & 0xff;
+        pingsEchoed++;
+    }
+
+    //the magic byte has already been read
+    private void readTelemetry() throws IOException {
+        byte[] raw = telemetryBuffer.array();
+        raw[0] = TelemetryFrame.MAGIC;
+        inStream.readFully(raw, 1, TelemetryFrame.LENGTH - 1);
+
+        telemetryBuffer.clear();
+        if (!telemetry.decode(telemetryBuffer)) {
+            throw new IOException("Bad telemetry frame (version or length mismatch)");
+        }
+
+        if (lastTelemetrySeq >= 0 && telemetry.seq != lastTelemetrySeq + 1) {
+            telemetryGaps++;
+        }
+        lastTelemetrySeq = telemetry.seq;
+        telemetryFrames++;
+
+        if (telemetryOut != null) {
+            telemetryOut.println(telemetry);
+        }
+    }
+
+    public long getTelemetryFrames() {
+        return telemetryFrames;
+    }
+
+    public long getTelemetryGaps() {
+        return telemetryGaps;
+    }
+
+    //most recent telemetry frame, only valid if getTelemetryFrames() > 0
+    public TelemetryFrame getLastTelemetry() {
+        return telemetry;
+    }
+
+    public long getPingsEchoed() {
+        return pingsEchoed;
+    }
+
+    //0-255 from the phone's last ping, -1 if none yet
+    public int getLinkScore() {
+        return linkScore;
+    }
+
+    public int getRecommendedRateHz() {
+        return recommendedRateHz;
+    }
+
+    public long getRelayedAcks() {
+        return relayedAcks;
+    }
+
+    public long getFakeAcks() {
+        return fakeAcks;
+    }
+}
@@ -0,0 +1,46 @@
+package weiner.noah.pctool;
+
+import java.util.concurrent.locks.LockSupport;
+
+import weiner.noah.wifidirect.relay.IDroneLink;
+
+/**
+ * Stands in for the USB link to the drone. Every packet is "acked" after a fixed delay, roughly what the real
+ * drone takes to send back its 0x09.
+ */
+public class LoopbackDroneLink implements IDroneLink {
+    private final long delayNanos;
+    private volatile long packetCount = 0;
+
+    public LoopbackDroneLink(long delayMicros) {
+        this.delayNanos = delayMicros * 1000L;
+    }
+
+    @Override
+    public int sendBulkTransfer(byte[] data, byte[] receiveData) {
+        if (delayNanos > 0) {
+            long deadline = System.nanoTime() + delayNanos;
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remaining);
+            }
+        }
+        packetCount++;
+
+        //starts with 0x09 like a fake ack does, so the load generator has to rely on the ACK_RELAYED header.
+        //UsbController doesn't return a code either
+        if (receiveData.length > 0) {
+            receiveData[0] = 0x09;
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    public long getPacketCount() {
+        return packetCount;
+    }
+}
@@ -0,0 +1,293 @@
+package weiner.noah.pctool;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.Point;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import weiner.noah.wifidirect.Constants;
+import weiner.noah.wifidirect.control.AngleTables;
+import weiner.noah.wifidirect.control.HeadPoseSolver;
+
+/**
+ * Checks {@link HeadPoseSolver} against a person whose pose is known, and against the shoulder/eye ratio and
+ * pupillary distance formulas it replaces.
+ *
+ * The person is HeadPoseSolver's head-and-shoulders model, placed 0.5 to 3m from the calibrated camera, up to 0.3m
+ * either side of its axis and turned from 60 degrees to their right to 60 to their left. Each pose is projected into
+ * Posenet's 257x257 input the way PosenetStats crops the 640x480 preview, with Gaussian noise on every keypoint, and
+ * solved for a few frames in a row from a cold start, like a person walking into view. Poses with a keypoint outside
+ * the crop are skipped.
+ *
+ * It passes if:
+ * - the yaw has the right sign on every solve turned 10 degrees or more
+ * - the yaw and the distance are closer to the truth (RMS) than the ratio formulas', and the distance within
+ *   MAX_DISTANCE_ERROR of it (RMS, relative). At 3m the eyes are 6 pixels apart, so single solves there can be off by
+ *   more
+ * - hardly any solves fail
+ * - the median solve takes under a millisecond
+ *
+ * Runs on the desktop OpenCV build (org.openpnp:opencv), which has the same Calib3d as the phone's.
+ *
+ * Usage: PoseSolverBench [--frames N] [--noise PX] [--seed N]
+ *   --frames N   solves per pose (default 5)
+ *   --noise PX   keypoint noise standard deviation, in Posenet input pixels (default 0.5, its output grid)
+ *   --seed N     noise seed (default 5)
+ */
+public class PoseSolverBench {
+    //HeadPoseSolver's model, in its units: 450 of them between the eyes. Nose, left eye, right eye, right shoulder,
+    //left shoulder, like solve() takes them
+    private static final double MODEL_UNITS_PER_PD = 450;
+    private static final double[][] MODEL = {
+            {0, 0, 0},
+            {225, -318.75, 262.5},
+            {-225, -318.75, 262.5},
+            {-871.875, 1087.5, 918.75},
+            {871.875, 1087.5, 918.75}};
+
+    private static final int PREVIEW_WIDTH = 640;
+    private static final int PREVIEW_HEIGHT = 480;
+
+    private static final double[] DISTANCES_M = {0.5, 0.75, 1, 1.5, 2, 2.5, 3};
+    private static final double[] LATERALS_M = {-0.3, 0, 0.3};
+    private static final int MAX_YAW_DEG = 60;
+    private static final int YAW_STEP_DEG = 10;
+
+    //the yaw sign has to be right from here out. Closer to facing the camera, noise can flip it
+    private static final double SIGN_FROM_DEG = 10;
+
+    private static final double MAX_DISTANCE_ERROR = 0.05;
+    private static final double MAX_FAILED = 0.02;
+    private static final double MAX_MEDIAN_MS = 1;
+
+    public static void main(String[] args) {
+        int frames = 5;
+        double noise = 0.5;
+        long seed = 5;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--frames":
+                        frames = Integer.parseInt(args[++i]);
+                        break;
+                    case "--noise":
+                        noise = Double.parseDouble(args[++i]);
+                        break;
+                    case "--seed":
+                        seed = Long.parseLong(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (frames < 1 || noise < 0) {
+                throw new IllegalArgumentException("Frames have to be positive and noise not negative");
+            }
+        }
+        catch (RuntimeException e) {
+            System.out.println("Bad arguments: " + e.getMessage());
+            System.out.println("Usage: PoseSolverBench [--frames N] [--noise PX] [--seed N]");
+            System.exit(2);
+            return;
+        }
+
+        nu.pattern.OpenCV.loadLocally();
+
+        boolean ok = run(frames, noise, new Random(seed));
+
+        System.out.println(ok ? "OK" : "FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static boolean run(int frames, double noise, Random random) {
+        //PosenetStats.allocateCameraMats()
+        Mat cameraMatrix = Mat.eye(3, 3, CvType.CV_64F);
+        cameraMatrix.put(0, 0, Constants.CAMERA_FOCAL_X, 0, Constants.CAMERA_CENTER_X, 0, Constants.CAMERA_FOCAL_Y,
+                Constants.CAMERA_CENTER_Y, 0, 0, 1);
+        MatOfDouble distortion = new MatOfDouble(0, 0, 0, 0);
+        HeadPoseSolver solver = new HeadPoseSolver(cameraMatrix, distortion, PREVIEW_WIDTH, PREVIEW_HEIGHT, Constants.PD);
+
+        //PosenetStats.cropBitmap: the middle of the preview, scaled down to the model
+        double modelToCamera = Math.min((double) PREVIEW_WIDTH / Constants.MODEL_WIDTH, (double) PREVIEW_HEIGHT / Constants.MODEL_HEIGHT);
+        double cropX = (PREVIEW_WIDTH - Constants.MODEL_WIDTH * modelToCamera) / 2;
+        double cropY = (PREVIEW_HEIGHT - Constants.MODEL_HEIGHT * modelToCamera) / 2;
+
+        //the ratio formulas get the calibrated focal length, in model pixels, so only the formulas are compared
+        double ratioFocal = Constants.CAMERA_FOCAL_X / modelToCamera;
+
+        Point[] points = new Point[MODEL.length];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new Point();
+        }
+        double[] truth = new double[MODEL.length * 2];
+
+        int poses = 0, skipped = 0, solves = 0, failed = 0, wrongSign = 0, ratioWrongSign = 0, signed = 0;
+        double yawSquares = 0, distanceSquares = 0, relativeSquares = 0;
+        double ratioYawSquares = 0, ratioDistanceSquares = 0, ratioCount = 0;
+        double worstDistance = 0;
+        String worstDistanceAt = "";
+        List<Long> nanos = new ArrayList<>();
+
+        for (double distance : DISTANCES_M) {
+            for (double lateral : LATERALS_M) {
+                for (int yaw = -MAX_YAW_DEG; yaw <= MAX_YAW_DEG; yaw += YAW_STEP_DEG) {
+                    if (!project(yaw, distance, lateral, modelToCamera, cropX, cropY, truth)) {
+                        skipped++;
+                        continue;
+                    }
+                    poses++;
+
+                    //a person walking into view: the first solve starts cold
+                    solver.reset();
+                    for (int frame = 0; frame < frames; frame++) {
+                        for (int i = 0; i < points.length; i++) {
+                            points[i].x = truth[i * 2] + random.nextGaussian() * noise;
+                            points[i].y = truth[i * 2 + 1] + random.nextGaussian() * noise;
+                        }
+
+                        long start = System.nanoTime();
+                        boolean solved = solver.solve(points[0], points[1], points[2], points[3], points[4]);
+                        nanos.add(System.nanoTime() - start);
+                        solves++;
+
+                        double ratioYaw = ratioYaw(points);
+                        double ratioDistance = ratioDistance(points, ratioYaw, ratioFocal);
+                        if (!Double.isNaN(ratioYaw) && !Double.isNaN(ratioDistance)) {
+                            ratioYawSquares += (ratioYaw - yaw) * (ratioYaw - yaw);
+                            ratioDistanceSquares += (ratioDistance - distance) * (ratioDistance - distance);
+                            ratioCount++;
+                        }
+
+                        if (!solved) {
+                            failed++;
+                            continue;
+                        }
+
+                        double yawError = solver.getYawDegrees() - yaw;
+                        double distanceError = solver.getDistance() - distance;
+                        yawSquares += yawError * yawError;
+                        distanceSquares += distanceError * distanceError;
+                        relativeSquares += (distanceError / distance) * (distanceError / distance);
+                        if (Math.abs(distanceError) / distance > worstDistance) {
+                            worstDistance = Math.abs(distanceError) / distance;
+                            worstDistanceAt = String.format(Locale.US, "%.2fm, %d deg, %.1fm lateral", distance, yaw, lateral);
+                        }
+
+                        if (Math.abs(yaw) >= SIGN_FROM_DEG) {
+                            signed++;
+                            if (Math.signum(solver.getYawDegrees()) != Math.signum(yaw)) {
+                                wrongSign++;
+                            }
+                            if (Math.signum(ratioYaw) != Math.signum(yaw)) {
+                                ratioWrongSign++;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        solver.release();
+
+        int good = solves - failed;
+        double yawRms = Math.sqrt(yawSquares / good);
+        double distanceRms = Math.sqrt(distanceSquares / good);
+        double relativeRms = Math.sqrt(relativeSquares / good);
+        double ratioYawRms = Math.sqrt(ratioYawSquares / ratioCount);
+        double ratioDistanceRms = Math.sqrt(ratioDistanceSquares / ratioCount);
+
+        long[] sorted = new long[nanos.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = nanos.get(i);
+        }
+        Arrays.sort(sorted);
+        double medianMs = sorted[sorted.length / 2] / 1e6;
+        double p99Ms = sorted[(int) (sorted.length * 0.99)] / 1e6;
+
+        System.out.println(String.format(Locale.US, "%d poses (%d outside the crop), %d solves, %d failed", poses, skipped,
+                solves, failed));
+        System.out.println(String.format(Locale.US, "Yaw:      solver %.2f deg RMS, ratios %.2f deg RMS", yawRms, ratioYawRms));
+        System.out.println(String.format(Locale.US, "Distance: solver %.1f cm RMS (%.1f%%), ratios %.1f cm RMS", distanceRms * 100,
+                relativeRms * 100, ratioDistanceRms * 100));
+        System.out.println(String.format(Locale.US, "Worst distance error %.1f%% at %s", worstDistance * 100, worstDistanceAt));
+        System.out.println(String.format(Locale.US, "Yaw sign from %.0f deg: solver %d wrong, ratios %d wrong, of %d", SIGN_FROM_DEG,
+                wrongSign, ratioWrongSign, signed));
+        System.out.println(String.format(Locale.US, "Solve time: median %.3fms, p99 %.3fms", medianMs, p99Ms));
+
+        boolean ok = true;
+        if (wrongSign > 0) {
+            System.out.println("YAW SIGN wrong on " + wrongSign + " solves");
+            ok = false;
+        }
+        if (!(yawRms < ratioYawRms) || !(distanceRms < ratioDistanceRms)) {
+            System.out.println("NOT BETTER than the ratio formulas");
+            ok = false;
+        }
+        if (!(relativeRms <= MAX_DISTANCE_ERROR)) {
+            System.out.println("DISTANCE ERROR over " + MAX_DISTANCE_ERROR * 100 + "% RMS");
+            ok = false;
+        }
+        if (failed > solves * MAX_FAILED) {
+            System.out.println("TOO MANY FAILED solves, over " + MAX_FAILED * 100 + "%");
+            ok = false;
+        }
+        if (medianMs >= MAX_MEDIAN_MS) {
+            System.out.println("TOO SLOW, median over " + MAX_MEDIAN_MS + "ms");
+            ok = false;
+        }
+        return ok;
+    }
+
+    //where the model's points land in Posenet's input, for a person turned yaw degrees (negative to their right) with
+    //their nose at distance along the camera's axis and lateral to its right, level with the camera. False if one is
+    //outside the crop
+    private static boolean project(double yaw, double distance, double lateral, double modelToCamera, double cropX,
+                                   double cropY, double[] out) {
+        //HeadPoseSolver's yaw is minus the rotation about the camera's y axis
+        double a = Math.toRadians(-yaw);
+        double cos = Math.cos(a), sin = Math.sin(a);
+        double scale = Constants.PD / MODEL_UNITS_PER_PD;
+
+        for (int i = 0; i < MODEL.length; i++) {
+            double x = MODEL[i][0] * scale, y = MODEL[i][1] * scale, z = MODEL[i][2] * scale;
+            double camX = cos * x + sin * z + lateral;
+            double camY = y;
+            double camZ = -sin * x + cos * z + distance;
+
+            double u = (Constants.CAMERA_FOCAL_X * camX / camZ + Constants.CAMERA_CENTER_X - cropX) / modelToCamera;
+            double v = (Constants.CAMERA_FOCAL_Y * camY / camZ + Constants.CAMERA_CENTER_Y - cropY) / modelToCamera;
+            if (u < 0 || v < 0 || u >= Constants.MODEL_WIDTH || v >= Constants.MODEL_HEIGHT) {
+                return false;
+            }
+            out[i * 2] = u;
+            out[i * 2 + 1] = v;
+        }
+        return true;
+    }
+
+    //PosenetStats' torso angle from the shoulder/eye ratio, with the default profile's zero torso offsets. NaN where
+    //the app gives up
+    private static double ratioYaw(Point[] p) {
+        float ratio = (float) ((p[2].x - p[3].x) / (p[4].x - p[1].x));
+        if (Float.isNaN(ratio) || Float.isInfinite(ratio)) {
+            return Double.NaN;
+        }
+        return AngleTables.torsoAngle(ratio);
+    }
+
+    //PosenetStats.calculateDistanceToHuman, less its 5 pixel fudge turned right, which was tuned to a focal length
+    //that wasn't the camera's
+    private static double ratioDistance(Point[] p, double yaw, double focal) {
+        double eyePixels = p[1].x - p[2].x;
+        if (Double.isNaN(yaw) || eyePixels <= 0) {
+            return Double.NaN;
+        }
+        return (Constants.PD - AngleTables.pivotShrink((float) yaw) * Constants.PIVOT_WEIGHT) * focal / eyePixels;
+    }
+}
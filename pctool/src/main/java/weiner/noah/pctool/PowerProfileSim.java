@@ -0,0 +1,232 @@
+package weiner.noah.pctool;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import weiner.noah.wifidirect.inference.BackendConfig;
+import weiner.noah.wifidirect.inference.PowerProfiler;
+
+/**
+ * Runs {@link PowerProfiler} through a whole profile against a made-up phone on a simulated clock, and checks that it
+ * gets back the costs the phone was built with.
+ *
+ * The phone:
+ * - draws a steady baseline with the camera running, plus a fixed overhead while the GPU delegate is up, plus a set
+ *   number of joules per inference on each config
+ * - runs each config at a set speed. The 2-thread CPU config can't keep up 30 Hz
+ * - heats each zone group in proportion to the power over idle, more on the groups the config actually uses
+ * - reports current with a few percent of noise and temps in 0.1C steps, like a Pixel
+ *
+ * Usage: PowerProfileSim [--dwell S] [--seed N]
+ *   --dwell S   seconds per step (default 60, the first 10 settling)
+ *   --seed N    seed for the noise (default 7)
+ */
+public class PowerProfileSim {
+    private static final double IDLE_WATTS = 2.2;
+    private static final double GPU_OVERHEAD_WATTS = 0.6;
+    private static final long SETTLE_NANOS = 10000000000L;
+    private static final long SAMPLE_NANOS = 250000000L;
+    private static final long TICK_NANOS = 1000000L;
+    private static final double VOLTS = 3.85;
+
+    private static final BackendConfig GPU = new BackendConfig(BackendConfig.Delegate.GPU, 4, false);
+    private static final BackendConfig CPU4 = BackendConfig.cpu(4, true);
+    private static final BackendConfig CPU2 = BackendConfig.cpu(2, true);
+
+    //per config: ms per inference, joules per inference, and C/min per watt over idle for each of cpu, gpuss, npu, camera
+    private static final BackendConfig[] CONFIGS = {GPU, CPU4, CPU2};
+    private static final double[] INFERENCE_MS = {8, 22, 40};
+    private static final double[] JOULES = {0.06, 0.11, 0.08};
+    private static final double[][] HEATING = {{0.3, 1.2, 0.1, 0.2}, {1.1, 0.2, 0.1, 0.2}, {0.9, 0.2, 0.1, 0.2}};
+    private static final int[] RATES = {30, 20, 12, 6};
+
+    public static void main(String[] args) {
+        int dwellSeconds = 60;
+        long seed = 7;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--dwell":
+                        dwellSeconds = Integer.parseInt(args[++i]);
+                        break;
+                    case "--seed":
+                        seed = Long.parseLong(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (dwellSeconds * 1000000000L <= SETTLE_NANOS + 5 * SAMPLE_NANOS) {
+                throw new IllegalArgumentException("Steps need to be longer than the settling time");
+            }
+        }
+        catch (RuntimeException e) {
+            System.out.println("Bad arguments: " + e.getMessage());
+            System.out.println("Usage: PowerProfileSim [--dwell S] [--seed N]");
+            System.exit(2);
+            return;
+        }
+
+        List<BackendConfig> configs = new ArrayList<BackendConfig>();
+        for (BackendConfig config : CONFIGS) {
+            configs.add(config);
+        }
+        PowerProfiler profiler = new PowerProfiler(configs, RATES, PowerProfiler.DEFAULT_GROUPS, dwellSeconds * 1000000000L,
+                SETTLE_NANOS);
+
+        run(profiler, new Random(seed));
+        System.out.print(profiler.report());
+
+        boolean ok = check(profiler, (dwellSeconds * 1000000000L - SETTLE_NANOS) / 60e9);
+
+        StringWriter csv = new StringWriter();
+        try {
+            profiler.writeCsv(csv);
+        }
+        catch (IOException e) {
+            //not from a StringWriter
+        }
+        int lines = csv.toString().split("\n").length;
+        if (lines != profiler.getSteps().size() + 1) {
+            System.out.println("CSV has " + lines + " lines, expected " + (profiler.getSteps().size() + 1));
+            ok = false;
+        }
+
+        System.out.println(ok ? "OK" : "FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static int indexOf(BackendConfig config) {
+        for (int i = 0; i < CONFIGS.length; i++) {
+            if (CONFIGS[i].equals(config)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static double achievedHz(int config, int hz) {
+        return Math.min(hz, 1000 / INFERENCE_MS[config]);
+    }
+
+    //what the phone was built to spend over idle per inference
+    private static double marginalJoules(int config, int hz) {
+        double overhead = CONFIGS[config].delegate == BackendConfig.Delegate.GPU ? GPU_OVERHEAD_WATTS : 0;
+        return JOULES[config] + overhead / achievedHz(config, hz);
+    }
+
+    private static void run(PowerProfiler profiler, Random random) {
+        long start = 1000000000L;
+        profiler.start(start);
+
+        String[] groups = profiler.getGroups();
+        double[] temps = new double[groups.length];
+        for (int g = 0; g < temps.length; g++) {
+            temps[g] = 35 + g;
+        }
+        long[] reported = new long[groups.length];
+
+        long nextInference = start;
+        long nextSample = start;
+        for (long now = start; !profiler.isDone(now); now += TICK_NANOS) {
+            PowerProfiler.Step step = profiler.getStep(now);
+            int config = step.isIdle() ? -1 : indexOf(step.config);
+
+            double extraWatts = 0;
+            if (config >= 0) {
+                double hz = achievedHz(config, step.hz);
+                extraWatts = marginalJoules(config, step.hz) * hz;
+
+                if (now >= nextInference) {
+                    long inferenceNanos = (long) (INFERENCE_MS[config] * 1e6);
+                    profiler.onInference(step.config, inferenceNanos, now);
+                    nextInference = now + (long) (1e9 / hz);
+                }
+            }
+
+            for (int g = 0; g < temps.length; g++) {
+                double perWatt = config >= 0 ? HEATING[config][g] : 0;
+                temps[g] += perWatt * extraWatts * TICK_NANOS / 60e9;
+            }
+
+            if (now >= nextSample) {
+                double watts = (IDLE_WATTS + extraWatts) * (1 + 0.03 * random.nextGaussian());
+                profiler.onPower((int) (-watts / VOLTS * 1e6), (int) (VOLTS * 1e6), now);
+
+                for (int g = 0; g < temps.length; g++) {
+                    reported[g] = Math.round(temps[g] * 10) * 100;
+                }
+                profiler.onTemps(reported, now);
+                nextSample = now + SAMPLE_NANOS;
+            }
+        }
+    }
+
+    private static boolean check(PowerProfiler profiler, double measureMinutes) {
+        boolean ok = true;
+
+        if (Math.abs(profiler.getIdleWatts() - IDLE_WATTS) > 0.05) {
+            System.out.println(String.format(Locale.US, "IDLE %.3fW, expected %.3fW", profiler.getIdleWatts(), IDLE_WATTS));
+            ok = false;
+        }
+
+        for (PowerProfiler.Step step : profiler.getSteps()) {
+            if (step.isIdle()) {
+                continue;
+            }
+            int config = indexOf(step.config);
+
+            double hz = achievedHz(config, step.hz);
+            if (Math.abs(profiler.getAchievedHz(step) - hz) > 0.05 * hz) {
+                System.out.println(String.format(Locale.US, "RATE of %s at %d Hz: %.2f, expected %.2f", step.config, step.hz,
+                        profiler.getAchievedHz(step), hz));
+                ok = false;
+            }
+
+            double joules = marginalJoules(config, step.hz);
+            double measured = profiler.getMarginalJoulesPerInference(step);
+            if (Math.abs(measured - joules) > 0.1 * joules) {
+                System.out.println(String.format(Locale.US, "JOULES of %s at %d Hz: %.4f over idle, expected %.4f", step.config,
+                        step.hz, measured, joules));
+                ok = false;
+            }
+
+            //the temps only move in 0.1C steps, so heating slower than one step over the measured part of the step
+            //can't be told from none
+            double resolution = 0.1 / measureMinutes;
+            for (int g = 0; g < profiler.getGroups().length; g++) {
+                double heating = HEATING[config][g] * joules * hz;
+                double got = step.getHeatingPerMinute(g);
+                if (Math.abs(got - heating) > Math.max(resolution, 0.1 * heating)) {
+                    System.out.println(String.format(Locale.US, "HEATING of %s in %s at %d Hz: %.3fC/min, expected %.3f",
+                            profiler.getGroups()[g], step.config, step.hz, got, heating));
+                    ok = false;
+                }
+            }
+        }
+
+        for (int hz : RATES) {
+            int cheapest = -1;
+            for (int config = 0; config < CONFIGS.length; config++) {
+                if (achievedHz(config, hz) >= 0.9 * hz &&
+                        (cheapest < 0 || marginalJoules(config, hz) < marginalJoules(cheapest, hz))) {
+                    cheapest = config;
+                }
+            }
+
+            PowerProfiler.Step step = profiler.getCheapest(hz);
+            BackendConfig got = step == null ? null : step.config;
+            BackendConfig expected = cheapest < 0 ? null : CONFIGS[cheapest];
+            if (got == null ? expected != null : !got.equals(expected)) {
+                System.out.println("CHEAPEST at " + hz + " Hz: " + got + ", expected " + expected);
+                ok = false;
+            }
+        }
+        return ok;
+    }
+}
@@ -0,0 +1,361 @@
+package weiner.noah.pctool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import weiner.noah.wifidirect.crtp.Signal;
+import weiner.noah.wifidirect.relay.IDroneLink;
+import weiner.noah.wifidirect.relay.IRelayListener;
+import weiner.noah.wifidirect.relay.PacketLogReader;
+import weiner.noah.wifidirect.relay.PacketRecorder;
+import weiner.noah.wifidirect.relay.PacketRelay;
+import weiner.noah.wifidirect.relay.RelaySession;
+
+/**
+ * Feeds a flight log written by {@link PacketRecorder} back through the real {@link PacketRelay} (and so the real
+ * frame decoder), with a fake drone link that checks every packet against what went out over USB during the flight.
+ *
+ * Socket reads are replayed with their original boundaries, so a log where the controller's writes got split or
+ * merged by TCP replays the same way. Relay on/off switches are applied at the point in the stream they happened.
+ *
+ * Usage: ReplayTool LOG [--realtime] [--dump] [--repeat N]
+ *   --realtime   wait the recorded time between socket reads and the recorded USB ack delay, instead of going flat out
+ *   --dump       print every record in the log and exit
+ *   --repeat N   replay the log N times, for steadier throughput numbers (default 1)
+ */
+public class ReplayTool {
+    //one thing the relay saw, in log order
+    private static class Event {
+        final long nanos;
+        final byte direction;
+        final byte[] payload;
+
+        Event(long nanos, byte direction, byte[] payload) {
+            this.nanos = nanos;
+            this.direction = direction;
+            this.payload = payload;
+        }
+    }
+
+    public static void main(String[] args) {
+        File logFile = null;
+        boolean realtime = false;
+        boolean dump = false;
+        int repeat = 1;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--realtime":
+                        realtime = true;
+                        break;
+                    case "--dump":
+                        dump = true;
+                        break;
+                    case "--repeat":
+                        repeat = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        if (args[i].startsWith("--") || logFile != null) {
+                            throw new IllegalArgumentException("Unknown option " + args[i]);
+                        }
+                        logFile = new File(args[i]);
+                }
+            }
+
+            if (logFile == null) {
+                throw new IllegalArgumentException("No log file given");
+            }
+        }
+        catch (RuntimeException e) {
+            System.out.println("Bad arguments: " + e.getMessage());
+            System.out.println("Usage: ReplayTool LOG [--realtime] [--dump] [--repeat N]");
+            System.exit(2);
+            return;
+        }
+
+        try {
+            if (dump) {
+                dump(logFile);
+                System.exit(0);
+            }
+
+            System.exit(replay(logFile, realtime, repeat) ? 0 : 1);
+        }
+        catch (IOException e) {
+            System.out.println("Replay failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void dump(File logFile) throws IOException {
+        try (PacketLogReader reader = new PacketLogReader(logFile)) {
+            System.out.println("Log started at " + new Date(reader.getStartWallMs()));
+
+            StringBuilder line = new StringBuilder();
+            while (reader.next()) {
+                line.setLength(0);
+                line.append(String.format(Locale.US, "%12.3fms %-14s", reader.getNanos() / 1e6,
+                        PacketLogReader.directionName(reader.getDirection())));
+
+                byte[] payload = reader.getPayload();
+                for (int i = 0; i < reader.getLength(); i++) {
+                    line.append(String.format(" %02x", payload[i]));
+                }
+                System.out.println(line);
+            }
+        }
+    }
+
+    private static List<Event> load(File logFile, List<byte[]> expectedUsb, List<Long> usbLatencies) throws IOException {
+        List<Event> events = new ArrayList<>();
+        long lastRelayOut = -1;
+
+        try (PacketLogReader reader = new PacketLogReader(logFile)) {
+            while (reader.next()) {
+                byte direction = reader.getDirection();
+                byte[] payload = Arrays.copyOf(reader.getPayload(), reader.getLength());
+
+                switch (direction) {
+                    case PacketRecorder.SOCKET_IN:
+                    case PacketRecorder.RELAY_STATE:
+                        events.add(new Event(reader.getNanos(), direction, payload));
+                        break;
+                    case PacketRecorder.RELAY_OUT:
+                        expectedUsb.add(payload);
+                        usbLatencies.add(0L);
+                        lastRelayOut = reader.getNanos();
+                        break;
+                    case PacketRecorder.USB_ACK:
+                        //first ack after a relayed packet is the drone answering it
+                        if (lastRelayOut >= 0) {
+                            usbLatencies.set(usbLatencies.size() - 1, reader.getNanos() - lastRelayOut);
+                            lastRelayOut = -1;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        return events;
+    }
+
+    //returns false if the relay sent anything to the drone that differs from the flight
+    private static boolean replay(File logFile, boolean realtime, int repeat) throws IOException {
+        final List<byte[]> expectedUsb = new ArrayList<>();
+        List<Long> usbLatencies = new ArrayList<>();
+        final List<Event> events = load(logFile, expectedUsb, usbLatencies);
+
+        long chunks = 0;
+        for (Event event : events) {
+            if (event.direction == PacketRecorder.SOCKET_IN) {
+                chunks++;
+            }
+        }
+        System.out.println(String.format("Loaded %d socket reads, %d relayed packets from %s", chunks, expectedUsb.size(),
+                logFile.getName()));
+
+        boolean ok = true;
+
+        for (int pass = 0; pass < repeat; pass++) {
+            AtomicBoolean relayOn = new AtomicBoolean(true);
+            ReplayDroneLink droneLink = new ReplayDroneLink(expectedUsb, realtime ? usbLatencies : null);
+            ReplayInputStream in = new ReplayInputStream(events, relayOn, realtime);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            final long[] signals = new long[1];
+            IRelayListener listener = new IRelayListener() {
+                @Override
+                public void onSignal(Signal signal) {
+                    signals[0]++;
+                }
+
+                @Override
+                public void onRelayStopped(String reason, IOException cause) {
+                    //end of the log shows up as the controller closing the socket
+                }
+            };
+
+            PacketRelay relay = new PacketRelay(in, out, droneLink, listener, relayOn);
+            relay.setSession(new RelaySession());
+
+            long start = System.nanoTime();
+            relay.run();
+            long elapsed = System.nanoTime() - start;
+
+            int missing = expectedUsb.size() - droneLink.getSent();
+            System.out.println(String.format("Pass %d: %d frames (%d legacy), %d relayed, %d signals, %d skipped, %d bytes back " +
+                            "to controller in %.2fms (%.0f frames/s)", pass + 1, relay.getDecoder().getFrameCount(),
+                    relay.getDecoder().getLegacyFrameCount(), relay.getRelayedCount(), signals[0], relay.getSkippedCount(),
+                    out.size(), elapsed / 1e6, relay.getDecoder().getFrameCount() / (elapsed / 1e9)));
+            System.out.println("Per-chunk relay time: " + in.getChunkTimes().summary());
+
+            if (droneLink.getMismatches() > 0 || droneLink.getExtra() > 0 || missing > 0) {
+                System.out.println(String.format("MISMATCH: %d packets differ (first at #%d), %d extra, %d missing",
+                        droneLink.getMismatches(), droneLink.getFirstMismatch(), droneLink.getExtra(), Math.max(missing, 0)));
+                ok = false;
+            }
+        }
+
+        if (ok) {
+            System.out.println("Replay matches the flight");
+        }
+
+        return ok;
+    }
+
+    /**
+     * Hands out the recorded socket reads one per read() call, so the decoder sees the same chunking it did in the air.
+     * Also times how long the relay takes with each chunk, from one read() returning to the next being called.
+     */
+    private static class ReplayInputStream extends InputStream {
+        private final List<Event> events;
+        private final AtomicBoolean relayOn;
+        private final boolean realtime;
+        private final RttHistogram chunkTimes;
+
+        private int next = 0;
+        private long returnedAt = 0;
+        private long replayStart = 0;
+        private long logStart = -1;
+
+        ReplayInputStream(List<Event> events, AtomicBoolean relayOn, boolean realtime) {
+            this.events = events;
+            this.relayOn = relayOn;
+            this.realtime = realtime;
+            this.chunkTimes = new RttHistogram(events.size());
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (returnedAt != 0) {
+                chunkTimes.record(System.nanoTime() - returnedAt);
+            }
+
+            while (next < events.size()) {
+                Event event = events.get(next++);
+
+                if (event.direction == PacketRecorder.RELAY_STATE) {
+                    relayOn.set(event.payload.length > 0 && event.payload[0] != 0);
+                    continue;
+                }
+
+                if (realtime) {
+                    waitUntil(event.nanos);
+                }
+
+                //PacketRelay's buffer holds several frames, a recorded read can't be bigger than it
+                int length = Math.min(len, event.payload.length);
+                System.arraycopy(event.payload, 0, b, off, length);
+                returnedAt = System.nanoTime();
+                return length;
+            }
+
+            returnedAt = 0;
+            return -1;
+        }
+
+        private void waitUntil(long logNanos) {
+            if (logStart < 0) {
+                logStart = logNanos;
+                replayStart = System.nanoTime();
+                return;
+            }
+
+            long deadline = replayStart + (logNanos - logStart);
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remaining);
+            }
+        }
+
+        RttHistogram getChunkTimes() {
+            return chunkTimes;
+        }
+    }
+
+    /**
+     * Fake USB link that checks each packet against the flight's RELAY_OUT records, in order.
+     */
+    private static class ReplayDroneLink implements IDroneLink {
+        private final List<byte[]> expected;
+        private final List<Long> latencies;
+
+        private int sent = 0;
+        private int mismatches = 0;
+        private int firstMismatch = -1;
+        private int extra = 0;
+
+        //latencies null means ack instantly
+        ReplayDroneLink(List<byte[]> expected, List<Long> latencies) {
+            this.expected = expected;
+            this.latencies = latencies;
+        }
+
+        @Override
+        public int sendBulkTransfer(byte[] data, byte[] receiveData) {
+            if (sent >= expected.size()) {
+                extra++;
+                return -1;
+            }
+
+            if (!Arrays.equals(data, expected.get(sent))) {
+                mismatches++;
+                if (firstMismatch < 0) {
+                    firstMismatch = sent;
+                }
+            }
+
+            if (latencies != null && latencies.get(sent) > 0) {
+                long deadline = System.nanoTime() + latencies.get(sent);
+                long remaining;
+                while ((remaining = deadline - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(remaining);
+                }
+            }
+
+            sent++;
+
+            //UsbController doesn't fill receiveData either
+            return -1;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        int getSent() {
+            return sent;
+        }
+
+        int getMismatches() {
+            return mismatches;
+        }
+
+        int getFirstMismatch() {
+            return firstMismatch;
+        }
+
+        int getExtra() {
+            return extra;
+        }
+    }
+}
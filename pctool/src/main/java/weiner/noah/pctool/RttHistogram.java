@@ -0,0 +1,70 @@
+package weiner.noah.pctool;
+
+import java.util.Arrays;
+
+/**
+ * Keeps every RTT sample (in nanoseconds) so we can report exact percentiles at the end of a run.
+ * A run is at most a few hundred thousand packets, so just storing them is fine.
+ */
+public class RttHistogram {
+    private long[] samples;
+    private int count = 0;
+    private boolean sorted = true;
+
+    public RttHistogram(int expectedSamples) {
+        samples = new long[Math.max(16, expectedSamples)];
+    }
+
+    public void record(long nanos) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, samples.length * 2);
+        }
+        samples[count++] = nanos;
+        sorted = false;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @param p percentile from 0 to 100
+     * @return sample at that percentile in nanoseconds, or 0 if nothing was recorded
+     */
+    public long percentile(double p) {
+        if (count == 0) {
+            return 0;
+        }
+
+        if (!sorted) {
+            Arrays.sort(samples, 0, count);
+            sorted = true;
+        }
+
+        //nearest-rank
+        int rank = (int) Math.ceil(p / 100.0 * count);
+        return samples[Math.min(count - 1, Math.max(0, rank - 1))];
+    }
+
+    public double mean() {
+        if (count == 0) {
+            return 0;
+        }
+
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += samples[i];
+        }
+        return sum / count;
+    }
+
+    public String summary() {
+        return String.format("n=%d  min=%.3fms  p50=%.3fms  p90=%.3fms  p99=%.3fms  p99.9=%.3fms  max=%.3fms  mean=%.3fms",
+                count, ms(percentile(0)), ms(percentile(50)), ms(percentile(90)), ms(percentile(99)),
+                ms(percentile(99.9)), ms(percentile(100)), mean() / 1e6);
+    }
+
+    private static double ms(long nanos) {
+        return nanos / 1e6;
+    }
+}
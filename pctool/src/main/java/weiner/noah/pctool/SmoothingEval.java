@@ -0,0 +1,360 @@
+package weiner.noah.pctool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import weiner.noah.wifidirect.Constants;
+import weiner.noah.wifidirect.inference.KeypointLog;
+import weiner.noah.wifidirect.inference.OneEuroFilterBank;
+import weiner.noah.wifidirect.inference.Pose;
+import weiner.noah.wifidirect.inference.PosenetModel;
+
+/**
+ * Runs {@link OneEuroFilterBank} over a keypoint sequence and prints what it buys and what it costs:
+ * - jitter: RMS of each keypoint's frame-to-frame wobble (its distance from a centered 5-frame average), filtered
+ *   over raw
+ * - lag: how many ms the filtered track trails the raw one, from the shift that best lines it up with that centered
+ *   (zero-lag) average
+ * - distance noise: the same wobble in the eye-distance reading PosenetStats turns into meters, in cm
+ * - on a synthetic sequence, also the RMS error against the true positions
+ *
+ * The sequence is a KeypointLog the app recorded with PosenetStats.RECORD_KEYPOINTS on (pull it from the phone's
+ * files dir), or, without one, a made-up person at about 20 fps who stands still, walks side to side and turns, with
+ * a pixel of noise and the odd low-score frame.
+ *
+ * Usage: SmoothingEval [LOG.csv] [--min-cutoff F] [--beta F] [--d-cutoff F] [--sweep]
+ *   --min-cutoff F  cutoff in Hz when still (default 1.0)
+ *   --beta F        cutoff increase per px/s of speed (default 0.02)
+ *   --d-cutoff F    cutoff in Hz of the speed estimate (default 1.0)
+ *   --sweep         also print a grid of min-cutoff and beta
+ */
+public class SmoothingEval {
+    private static final float MIN_SCORE = 0.5f;
+
+    //half width of the centered average used as the zero-lag reference
+    private static final int REFERENCE_HALF_WIDTH = 2;
+    private static final int MAX_LAG_FRAMES = 15;
+
+    private static final int LEFT_EYE = 1;
+    private static final int RIGHT_EYE = 2;
+
+    public static void main(String[] args) {
+        String logPath = null;
+        double minCutoff = OneEuroFilterBank.DEFAULT_MIN_CUTOFF_HZ;
+        double beta = OneEuroFilterBank.DEFAULT_BETA;
+        double dCutoff = OneEuroFilterBank.DEFAULT_D_CUTOFF_HZ;
+        boolean sweep = false;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--min-cutoff":
+                        minCutoff = Double.parseDouble(args[++i]);
+                        break;
+                    case "--beta":
+                        beta = Double.parseDouble(args[++i]);
+                        break;
+                    case "--d-cutoff":
+                        dCutoff = Double.parseDouble(args[++i]);
+                        break;
+                    case "--sweep":
+                        sweep = true;
+                        break;
+                    default:
+                        if (args[i].startsWith("--") || logPath != null) {
+                            throw new IllegalArgumentException("Unknown option " + args[i]);
+                        }
+                        logPath = args[i];
+                }
+            }
+        }
+        catch (RuntimeException e) {
+            System.out.println("Bad arguments: " + e.getMessage());
+            System.out.println("Usage: SmoothingEval [LOG.csv] [--min-cutoff F] [--beta F] [--d-cutoff F] [--sweep]");
+            System.exit(2);
+            return;
+        }
+
+        List<KeypointLog.Frame> frames;
+        List<KeypointLog.Frame> truth = null;
+        if (logPath != null) {
+            try {
+                frames = KeypointLog.read(new File(logPath));
+            }
+            catch (IOException e) {
+                System.out.println("CAN'T READ LOG: " + e.getMessage());
+                System.exit(1);
+                return;
+            }
+            System.out.println("Read " + frames.size() + " frames from " + logPath);
+        }
+        else {
+            truth = new ArrayList<KeypointLog.Frame>();
+            frames = synthesize(truth, new Random(11));
+            System.out.println("Synthesized " + frames.size() + " frames (pass a keypoint log to use a real one)");
+        }
+
+        if (frames.size() < 4 * MAX_LAG_FRAMES) {
+            System.out.println("TOO FEW FRAMES: " + frames.size());
+            System.exit(1);
+            return;
+        }
+
+        double frameMs = medianFrameMs(frames);
+        System.out.println(String.format("Median frame interval %.1fms", frameMs));
+
+        Result raw = evaluate(frames, frames, truth, frameMs);
+        Result filtered = evaluate(frames, smooth(frames, minCutoff, beta, dCutoff), truth, frameMs);
+
+        System.out.println(String.format("Raw:      jitter %.2fpx, distance noise %.1fcm%s", raw.jitterPx,
+                raw.distanceNoiseCm, truth != null ? String.format(", error %.2fpx", raw.errorPx) : ""));
+        System.out.println(String.format("Filtered: jitter %.2fpx (%.0f%% of raw), distance noise %.1fcm, lag %.0fms%s " +
+                "[min-cutoff %.2f, beta %.3f, d-cutoff %.2f]", filtered.jitterPx, 100 * filtered.jitterPx / raw.jitterPx,
+                filtered.distanceNoiseCm, filtered.lagMs, truth != null ? String.format(", error %.2fpx", filtered.errorPx) : "",
+                minCutoff, beta, dCutoff));
+
+        if (sweep) {
+            double[] cutoffs = {0.3, 0.5, 1, 2, 4};
+            double[] betas = {0, 0.005, 0.01, 0.02, 0.05, 0.1};
+
+            System.out.println("Jitter (% of raw) / lag (ms) by min-cutoff (rows) and beta (columns):");
+            StringBuilder header = new StringBuilder(String.format("%10s", ""));
+            for (double b : betas) {
+                header.append(String.format("%14.3f", b));
+            }
+            System.out.println(header);
+
+            for (double c : cutoffs) {
+                StringBuilder row = new StringBuilder(String.format("%10.2f", c));
+                for (double b : betas) {
+                    Result r = evaluate(frames, smooth(frames, c, b, dCutoff), truth, frameMs);
+                    row.append(String.format("%8.0f%% %4.0f", 100 * r.jitterPx / raw.jitterPx, r.lagMs));
+                }
+                System.out.println(row);
+            }
+        }
+    }
+
+    private static class Result {
+        double jitterPx;
+        double lagMs;
+        double distanceNoiseCm;
+        double errorPx;
+    }
+
+    //the filter runs on copies, so the raw frames can be reused
+    private static List<KeypointLog.Frame> smooth(List<KeypointLog.Frame> frames, double minCutoff, double beta, double dCutoff) {
+        OneEuroFilterBank filter = new OneEuroFilterBank(frames.get(0).pose.getKeypointCount(), MIN_SCORE);
+        filter.setParameters(minCutoff, beta, dCutoff);
+
+        List<KeypointLog.Frame> out = new ArrayList<KeypointLog.Frame>(frames.size());
+        for (KeypointLog.Frame frame : frames) {
+            Pose pose = copy(frame.pose);
+            filter.filter(pose, frame.timestampNanos);
+            out.add(new KeypointLog.Frame(frame.timestampNanos, pose));
+        }
+        return out;
+    }
+
+    private static Result evaluate(List<KeypointLog.Frame> raw, List<KeypointLog.Frame> track, List<KeypointLog.Frame> truth,
+                                   double frameMs) {
+        int n = raw.size();
+        int keypoints = raw.get(0).pose.getKeypointCount();
+        Result result = new Result();
+
+        double jitterSum = 0;
+        long jitterCount = 0;
+        double errorSum = 0;
+        long errorCount = 0;
+        double[] lagErrors = new double[MAX_LAG_FRAMES + 1];
+        long[] lagCounts = new long[MAX_LAG_FRAMES + 1];
+
+        for (int k = 0; k < keypoints; k++) {
+            for (int axis = 0; axis < 2; axis++) {
+                double[] reference = centeredAverage(raw, k, axis);
+                double[] value = series(track, k, axis);
+                double[] own = centeredAverage(value);
+
+                for (int i = 0; i < n; i++) {
+                    if (Double.isNaN(reference[i]) || Double.isNaN(value[i])) {
+                        continue;
+                    }
+
+                    if (!Double.isNaN(own[i])) {
+                        jitterSum += (value[i] - own[i]) * (value[i] - own[i]);
+                        jitterCount++;
+                    }
+
+                    if (truth != null) {
+                        double e = value[i] - coordinate(truth.get(i).pose, k, axis);
+                        errorSum += e * e;
+                        errorCount++;
+                    }
+                }
+
+                //how far back the smoothed track best matches the zero-lag reference
+                for (int shift = 0; shift <= MAX_LAG_FRAMES; shift++) {
+                    for (int i = shift; i < n; i++) {
+                        if (!Double.isNaN(value[i]) && !Double.isNaN(reference[i - shift])) {
+                            double e = value[i] - reference[i - shift];
+                            lagErrors[shift] += e * e;
+                            lagCounts[shift]++;
+                        }
+                    }
+                }
+            }
+        }
+
+        result.jitterPx = Math.sqrt(jitterSum / Math.max(1, jitterCount));
+        result.errorPx = Math.sqrt(errorSum / Math.max(1, errorCount));
+        result.lagMs = bestShift(lagErrors, lagCounts) * frameMs;
+        result.distanceNoiseCm = distanceNoiseCm(track);
+        return result;
+    }
+
+    //shift with the lowest mean squared error, refined between frames with a parabola through its neighbours
+    private static double bestShift(double[] errors, long[] counts) {
+        double[] mse = new double[errors.length];
+        int best = 0;
+        for (int s = 0; s < mse.length; s++) {
+            mse[s] = counts[s] == 0 ? Double.MAX_VALUE : errors[s] / counts[s];
+            if (mse[s] < mse[best]) {
+                best = s;
+            }
+        }
+
+        if (best == 0 || best == mse.length - 1) {
+            return best;
+        }
+        double denominator = mse[best - 1] - 2 * mse[best] + mse[best + 1];
+        return denominator <= 0 ? best : best + 0.5 * (mse[best - 1] - mse[best + 1]) / denominator;
+    }
+
+    //wobble of D = PD * F / eye distance, the way PosenetStats gets distance to the person
+    private static double distanceNoiseCm(List<KeypointLog.Frame> track) {
+        int n = track.size();
+        double[] distance = new double[n];
+        for (int i = 0; i < n; i++) {
+            Pose pose = track.get(i).pose;
+            if (pose.scores[LEFT_EYE] < MIN_SCORE || pose.scores[RIGHT_EYE] < MIN_SCORE) {
+                distance[i] = Double.NaN;
+                continue;
+            }
+            double pixels = Math.hypot(pose.x[LEFT_EYE] - pose.x[RIGHT_EYE], pose.y[LEFT_EYE] - pose.y[RIGHT_EYE]);
+            distance[i] = pixels > 0 ? Constants.PD * Constants.focalLenExp / pixels : Double.NaN;
+        }
+
+        double[] average = centeredAverage(distance);
+        double sum = 0;
+        long count = 0;
+        for (int i = 0; i < n; i++) {
+            if (!Double.isNaN(distance[i]) && !Double.isNaN(average[i])) {
+                sum += (distance[i] - average[i]) * (distance[i] - average[i]);
+                count++;
+            }
+        }
+        return 100 * Math.sqrt(sum / Math.max(1, count));
+    }
+
+    //NaN where the keypoint's score is under the threshold
+    private static double[] series(List<KeypointLog.Frame> frames, int keypoint, int axis) {
+        double[] out = new double[frames.size()];
+        for (int i = 0; i < out.length; i++) {
+            Pose pose = frames.get(i).pose;
+            out[i] = pose.scores[keypoint] < MIN_SCORE ? Double.NaN : coordinate(pose, keypoint, axis);
+        }
+        return out;
+    }
+
+    private static double[] centeredAverage(List<KeypointLog.Frame> frames, int keypoint, int axis) {
+        return centeredAverage(series(frames, keypoint, axis));
+    }
+
+    //NaN unless the whole window is there
+    private static double[] centeredAverage(double[] values) {
+        double[] out = new double[values.length];
+        Arrays.fill(out, Double.NaN);
+        for (int i = REFERENCE_HALF_WIDTH; i < values.length - REFERENCE_HALF_WIDTH; i++) {
+            double sum = 0;
+            for (int j = i - REFERENCE_HALF_WIDTH; j <= i + REFERENCE_HALF_WIDTH; j++) {
+                sum += values[j];
+            }
+            out[i] = sum / (2 * REFERENCE_HALF_WIDTH + 1);
+        }
+        return out;
+    }
+
+    private static double coordinate(Pose pose, int keypoint, int axis) {
+        return axis == 0 ? pose.x[keypoint] : pose.y[keypoint];
+    }
+
+    private static Pose copy(Pose pose) {
+        Pose out = new Pose(pose.getKeypointCount());
+        System.arraycopy(pose.x, 0, out.x, 0, pose.x.length);
+        System.arraycopy(pose.y, 0, out.y, 0, pose.y.length);
+        System.arraycopy(pose.scores, 0, out.scores, 0, pose.scores.length);
+        out.score = pose.score;
+        return out;
+    }
+
+    private static double medianFrameMs(List<KeypointLog.Frame> frames) {
+        double[] gaps = new double[frames.size() - 1];
+        for (int i = 1; i < frames.size(); i++) {
+            gaps[i - 1] = (frames.get(i).timestampNanos - frames.get(i - 1).timestampNanos) / 1e6;
+        }
+        Arrays.sort(gaps);
+        return gaps[gaps.length / 2];
+    }
+
+    //60s of a person in front of the camera: 10s still, then walking side to side, turning, stepping back, still again.
+    //Frames 50ms apart give or take 5ms, a pixel of noise on every keypoint, and 2% of keypoints dropping below the
+    //score threshold
+    private static List<KeypointLog.Frame> synthesize(List<KeypointLog.Frame> truth, Random random) {
+        List<KeypointLog.Frame> frames = new ArrayList<KeypointLog.Frame>();
+
+        //keypoint offsets from the nose at 2m, in px, roughly Posenet's layout: nose, eyes, ears, shoulders, elbows,
+        //wrists, hips, knees, ankles
+        float[] dx = {0, -4, 4, -10, 10, -22, 22, -30, 30, -34, 34, -14, 14, -14, 14, -14, 14};
+        float[] dy = {0, -4, -4, -2, -2, 20, 20, 48, 48, 72, 72, 80, 80, 112, 112, 140, 140};
+
+        long nanos = 0;
+        for (int i = 0; i < 1200; i++) {
+            nanos += 45000000L + (long) (random.nextDouble() * 10000000L);
+            double t = nanos / 1e9;
+
+            double cx = 128;
+            double scale = 1;
+            double turn = 1;
+            if (t >= 10 && t < 25) {
+                cx = 128 + 60 * Math.sin(2 * Math.PI * (t - 10) / 5);
+            }
+            else if (t >= 25 && t < 35) {
+                turn = Math.cos(Math.toRadians(40 * Math.sin(2 * Math.PI * (t - 25) / 4)));
+            }
+            else if (t >= 35 && t < 45) {
+                scale = 1 - 0.3 * Math.sin(Math.PI * (t - 35) / 10);
+            }
+
+            Pose exact = new Pose(PosenetModel.NUM_KEYPOINTS);
+            Pose noisy = new Pose(PosenetModel.NUM_KEYPOINTS);
+            for (int k = 0; k < PosenetModel.NUM_KEYPOINTS; k++) {
+                exact.x[k] = (float) (cx + dx[k] * scale * turn);
+                exact.y[k] = (float) (60 + dy[k] * scale);
+                exact.scores[k] = 0.9f;
+
+                noisy.x[k] = (float) (exact.x[k] + random.nextGaussian());
+                noisy.y[k] = (float) (exact.y[k] + random.nextGaussian());
+                noisy.scores[k] = random.nextDouble() < 0.02 ? 0.2f : 0.9f;
+            }
+            exact.score = noisy.score = 0.9f;
+
+            truth.add(new KeypointLog.Frame(nanos, exact));
+            frames.add(new KeypointLog.Frame(nanos, noisy));
+        }
+        return frames;
+    }
+}
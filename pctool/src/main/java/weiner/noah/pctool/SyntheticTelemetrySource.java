@@ -0,0 +1,27 @@
+package weiner.noah.pctool;
+
+import weiner.noah.wifidirect.relay.ITelemetrySource;
+import weiner.noah.wifidirect.relay.TelemetryFrame;
+
+/**
+ * Telemetry for the loopback relay: a person slowly drifting back and forth, so the stream has moving numbers in it.
+ */
+public class SyntheticTelemetrySource implements ITelemetrySource {
+    private final long startMs = System.currentTimeMillis();
+
+    @Override
+    public void fillTelemetry(TelemetryFrame frame) {
+        double t = (System.currentTimeMillis() - startMs) / 1000.0;
+        float s = (float) Math.sin(t);
+
+        frame.flags = TelemetryFrame.FLAG_FOLLOWING;
+        frame.distToHum = 0.4f + 0.1f * s;
+        frame.bbOffCenter = -15f + 40f * s;
+        frame.humAngle = 10f * s;
+        frame.xVel = 0.1f * (float) Math.cos(t);
+        frame.setDx = -0.25f * (0.395f - frame.distToHum);
+        frame.setHeight = 0.3f;
+        frame.distP = frame.setDx;
+        frame.loopDtMs = 100f;
+    }
+}
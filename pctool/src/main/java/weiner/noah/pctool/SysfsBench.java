@@ -0,0 +1,216 @@
+package weiner.noah.pctool;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+import weiner.noah.wifidirect.utils.SysfsSampler;
+import weiner.noah.wifidirect.utils.ThermalZones;
+
+/**
+ * Times a {@link SysfsSampler} pass over every zone of a fake sysfs tree in a temp dir (90 zones like a Pixel 4, a few
+ * of them broken) against the way Thermal.LogRunnable used to do it: a new RandomAccessFile, readLine and parseInt for
+ * each attribute. SysfsSamplerTest and ThermalZonesTest check what it reads.
+ *
+ * Usage: SysfsBench [--zones N] [--passes N]
+ *   --zones N    thermal zones in the fake tree (default 90)
+ *   --passes N   passes to time each way (default 2000)
+ */
+public class SysfsBench {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    //a sample of the Pixel 4's zone names, repeated with a suffix to make up the count
+    private static final String[] NAMES = {"cpu-0-0-usr", "cpu-1-0-usr", "gpuss-0-usr", "npu-usr", "camera-usr", "battery",
+            "xo-therm", "ddr-usr", "cwlan-usr", "pm8150_tz", "sdm-therm", "usbc-therm-adc", "aoss0-usr", "video-usr", "mdm-core-usr"};
+
+    public static void main(String[] args) {
+        int zones = 90;
+        int passes = 2000;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--zones":
+                        zones = Integer.parseInt(args[++i]);
+                        break;
+                    case "--passes":
+                        passes = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (zones < 1) {
+                throw new IllegalArgumentException("Need at least 1 zone");
+            }
+        }
+        catch (RuntimeException e) {
+            System.out.println("Bad arguments: " + e.getMessage());
+            System.out.println("Usage: SysfsBench [--zones N] [--passes N]");
+            System.exit(2);
+            return;
+        }
+
+        File root = null;
+        try {
+            root = File.createTempFile("sysfs", "");
+            if (!root.delete() || !root.mkdir()) {
+                throw new IOException("Can't make " + root);
+            }
+
+            File thermal = new File(root, "thermal");
+            buildTree(thermal, zones);
+
+            time(thermal, zones, passes);
+        }
+        catch (IOException e) {
+            System.out.println("Fake sysfs failed: " + e.getMessage());
+            System.exit(1);
+        }
+        finally {
+            if (root != null) {
+                delete(root);
+            }
+        }
+    }
+
+    private static String name(int zone) {
+        String name = NAMES[zone % NAMES.length];
+        return zone < NAMES.length ? name : name + "-" + zone / NAMES.length;
+    }
+
+    private static long temp(int zone) {
+        return 30000 + zone * 150;
+    }
+
+    //zone 1 has garbage in its temp and zone 2 has no trip point. Every third trip point is below its temp
+    private static void buildTree(File thermal, int zones) throws IOException {
+        for (int zone = 0; zone < zones; zone++) {
+            File dir = new File(thermal, "thermal_zone" + zone);
+            if (!dir.mkdirs()) {
+                throw new IOException("Can't make " + dir);
+            }
+
+            write(new File(dir, "type"), name(zone));
+            write(new File(dir, "temp"), zone == 1 ? "N/A" : String.valueOf(temp(zone)));
+            if (zone != 2) {
+                write(new File(dir, "trip_point_0_temp"), String.valueOf(temp(zone) + (zone % 3 == 0 ? -500 : 20000)));
+            }
+        }
+
+        //not a zone
+        if (!new File(thermal, "cooling_device0").mkdirs()) {
+            throw new IOException("Can't make cooling_device0");
+        }
+    }
+
+    private static void time(File thermal, int zones, int passes) throws IOException {
+        SysfsSampler sampler = new SysfsSampler(thermal);
+        ThermalZones tz = new ThermalZones(thermal, sampler, 0, 0, ThermalZones.DEFAULT_FAST_PREFIXES);
+
+        long sink = 0;
+
+        //warm up both
+        for (int i = 0; i < passes / 10 + 1; i++) {
+            sampler.sample(i);
+            sink += oldPass(thermal, zones);
+        }
+
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < passes; i++) {
+            sampler.sample(i);
+            sink += tz.getTempMilliC(0);
+        }
+        long newNanos = System.nanoTime() - start;
+        long newBytes = allocatedBytes() - allocated;
+
+        int oldPasses = Math.max(1, passes / 10);
+        allocated = allocatedBytes();
+        start = System.nanoTime();
+        for (int i = 0; i < oldPasses; i++) {
+            sink += oldPass(thermal, zones);
+        }
+        long oldNanos = System.nanoTime() - start;
+        long oldBytes = allocatedBytes() - allocated;
+
+        sampler.close();
+
+        double newUs = newNanos / 1e3 / passes;
+        double oldUs = oldNanos / 1e3 / oldPasses;
+        System.out.println(String.format(Locale.US, "One pass over %d zones (temp + trip): SysfsSampler %.1fus, %s; " +
+                        "open/readLine/parseInt %.1fus, %s; %.1fx faster (checksum %d)", zones, newUs,
+                bytesPerPass(newBytes, passes), oldUs, bytesPerPass(oldBytes, oldPasses), oldUs / newUs, sink & 0xff));
+    }
+
+    //what LogRunnable did for each zone, minus the logging
+    private static long oldPass(File thermal, int zones) throws IOException {
+        long sum = 0;
+        for (int zone = 0; zone < zones; zone++) {
+            String name = readLine(new File(thermal, "thermal_zone" + zone + "/type"));
+            String val = readLine(new File(thermal, "thermal_zone" + zone + "/temp"));
+            String trip = readLine(new File(thermal, "thermal_zone" + zone + "/trip_point_0_temp"));
+
+            sum += name == null ? 0 : name.length();
+            try {
+                sum += Integer.parseInt(val) + Integer.parseInt(trip);
+            }
+            catch (NumberFormatException e) {
+                //what the old code would have crashed on
+            }
+        }
+        return sum;
+    }
+
+    private static String readLine(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile reader = new RandomAccessFile(file, "r");
+        try {
+            return reader.readLine();
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    //bytes allocated by this thread so far, -1 if the JVM can't tell us
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static String bytesPerPass(long bytes, int passes) {
+        return bytes < 0 ? "allocation unknown" : String.format(Locale.US, "%d bytes allocated", bytes / passes);
+    }
+
+    private static void write(File file, String text) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write((text + "\n").getBytes(ASCII));
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+}
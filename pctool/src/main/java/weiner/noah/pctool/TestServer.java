@@ -0,0 +1,386 @@
+package weiner.noah.pctool;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import weiner.noah.wifidirect.crtp.Signal;
+import weiner.noah.wifidirect.metrics.MetricsRegistry;
+import weiner.noah.wifidirect.metrics.MetricsSnapshot;
+import weiner.noah.wifidirect.relay.Backoff;
+import weiner.noah.wifidirect.relay.HoverFailsafe;
+import weiner.noah.wifidirect.relay.IRelayListener;
+import weiner.noah.wifidirect.relay.LinkState;
+import weiner.noah.wifidirect.relay.PacketRecorder;
+import weiner.noah.wifidirect.relay.RelayConnector;
+import weiner.noah.wifidirect.relay.RelayProtocol;
+import weiner.noah.wifidirect.relay.RelaySession;
+
+/**
+ * PC-side stand-in for the controller app. Listens for the phone's relay socket (or runs an in-process relay over
+ * loopback), drives start/stop/kill signals, streams synthetic CRTP packets and prints ack RTT percentiles.
+ *
+ * Usage:
+ *   --port N            port to listen on (default 8988, 0 picks a free one with --loopback)
+ *   --rate HZ           packets per second, 0 sends back-to-back (default 50)
+ *   --count N           packets to send (default 1000)
+ *   --type T            commander | heighthold | mixed (default heighthold)
+ *   --signal S          start | stop | kill, sent before streaming. Can be repeated
+ *   --telemetry HZ      ask the phone for telemetry at this rate before streaming
+ *   --telemetry-secs N  after streaming, keep listening to telemetry for N seconds
+ *   --print-telemetry   print every telemetry frame instead of just the last one
+ *   --heartbeat         echo the phone's heartbeat pings and follow the setpoint rate it asks for
+ *   --echo-delay-ms N   with --heartbeat, hold each echo back N ms to fake a congested link
+ *   --metrics           after streaming, ask the phone for its stage timings (FPS, p50/p99 per stage) and print them
+ *   --drop-every N      close the socket every N packets and check the phone reconnects and resumes its session
+ *   --loopback          run the relay in this process with a fake drone link instead of waiting for the phone
+ *   --usb-delay-us N    fake drone ack delay for --loopback (default 0)
+ *   --record FILE       with --loopback, record the relay's traffic to FILE for ReplayTool
+ *   --probe HOST        old connectivity check: connect to HOST:port and close
+ */
+public class TestServer {
+    private static class Options {
+        int port = RelayProtocol.DEFAULT_PORT;
+        double rate = 50;
+        int count = 1000;
+        LoadGenerator.Traffic traffic = LoadGenerator.Traffic.HEIGHTHOLD;
+        List<Signal> signals = new ArrayList<>();
+        boolean loopback = false;
+        long usbDelayMicros = 0;
+        String probeHost = null;
+        int telemetryHz = 0;
+        int telemetrySecs = 0;
+        boolean printTelemetry = false;
+        int dropEvery = 0;
+        String recordPath = null;
+        boolean heartbeat = false;
+        long echoDelayMs = 0;
+        boolean metrics = false;
+    }
+
+    public static void main(String[] args) {
+        Options options = new Options();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--port":
+                        options.port = Integer.parseInt(args[++i]);
+                        break;
+                    case "--rate":
+                        options.rate = Double.parseDouble(args[++i]);
+                        break;
+                    case "--count":
+                        options.count = Integer.parseInt(args[++i]);
+                        break;
+                    case "--type":
+                        options.traffic = LoadGenerator.Traffic.valueOf(args[++i].toUpperCase(Locale.US));
+                        break;
+                    case "--signal":
+                        options.signals.add(parseSignal(args[++i]));
+                        break;
+                    case "--loopback":
+                        options.loopback = true;
+                        break;
+                    case "--usb-delay-us":
+                        options.usbDelayMicros = Long.parseLong(args[++i]);
+                        break;
+                    case "--probe":
+                        options.probeHost = args[++i];
+                        break;
+                    case "--telemetry":
+                        options.telemetryHz = Integer.parseInt(args[++i]);
+                        break;
+                    case "--telemetry-secs":
+                        options.telemetrySecs = Integer.parseInt(args[++i]);
+                        break;
+                    case "--print-telemetry":
+                        options.printTelemetry = true;
+                        break;
+                    case "--drop-every":
+                        options.dropEvery = Integer.parseInt(args[++i]);
+                        break;
+                    case "--heartbeat":
+                        options.heartbeat = true;
+                        break;
+                    case "--echo-delay-ms":
+                        options.echoDelayMs = Long.parseLong(args[++i]);
+                        break;
+                    case "--metrics":
+                        options.metrics = true;
+                        break;
+                    case "--record":
+                        options.recordPath = args[++i];
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+        }
+        catch (RuntimeException e) {
+            System.out.println("Bad arguments: " + e.getMessage());
+            System.out.println("Usage: TestServer [--port N] [--rate HZ] [--count N] [--type commander|heighthold|mixed]");
+            System.out.println("                  [--signal start|stop|kill]... [--loopback [--usb-delay-us N]] [--probe HOST]");
+            System.out.println("                  [--telemetry HZ [--telemetry-secs N] [--print-telemetry]] [--drop-every N]");
+            System.out.println("                  [--record FILE] [--heartbeat [--echo-delay-ms N]] [--metrics]");
+            System.exit(2);
+            return;
+        }
+
+        if (options.probeHost != null) {
+            System.exit(probe(options.probeHost, options.port) ? 0 : 1);
+            return;
+        }
+
+        try {
+            System.exit(run(options) ? 0 : 1);
+        }
+        catch (IOException e) {
+            System.out.println("Server exception: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static Signal parseSignal(String name) {
+        switch (name.toLowerCase(Locale.US)) {
+            case "start":
+                return Signal.START_FOLLOW;
+            case "stop":
+                return Signal.STOP_FOLLOW;
+            case "kill":
+                return Signal.KILL;
+            default:
+                throw new IllegalArgumentException("Unknown signal " + name);
+        }
+    }
+
+    //returns false if a session check failed
+    private static boolean run(Options options) throws IOException {
+        boolean ok = true;
+
+        try (ServerSocket serverSocket = new ServerSocket()) {
+            serverSocket.bind(options.loopback ? new InetSocketAddress(InetAddress.getLoopbackAddress(), options.port) :
+                    new InetSocketAddress(options.port));
+
+            int boundPort = serverSocket.getLocalPort();
+
+            LoopbackDroneLink droneLink = null;
+            RelayConnector connector = null;
+            PacketRecorder recorder = null;
+
+            if (options.loopback) {
+                if (options.recordPath != null) {
+                    recorder = new PacketRecorder(new File(options.recordPath));
+                }
+
+                droneLink = new LoopbackDroneLink(options.usbDelayMicros);
+                connector = startLoopbackRelay(boundPort, droneLink, recorder);
+            }
+            else {
+                System.out.println("Waiting for the phone to connect on port " + boundPort + "...");
+            }
+
+            RttHistogram rtts = new RttHistogram(options.count);
+            RttHistogram reconnectGaps = new RttHistogram(16);
+
+            int remaining = options.count;
+            long framesSent = 0;
+            long relayedAcks = 0;
+            long fakeAcks = 0;
+            long droppedAt = 0;
+            LoadGenerator generator = null;
+            long streamNanos = 0;
+
+            do {
+                Socket client = serverSocket.accept();
+
+                if (droppedAt != 0) {
+                    reconnectGaps.record(System.nanoTime() - droppedAt);
+                }
+
+                try {
+                    client.setTcpNoDelay(true);
+                    System.out.println("Relay connected from " + client.getRemoteSocketAddress());
+
+                    generator = new LoadGenerator(client, options.traffic);
+
+                    if (options.printTelemetry) {
+                        generator.setTelemetryOut(System.out);
+                    }
+
+                    //after a drop, the phone should pick up exactly where it left off
+                    RelaySession.Info session = generator.querySession();
+                    if (session != null) {
+                        System.out.println("Phone " + session);
+
+                        if (droppedAt != 0 && session.handledSeq != framesSent) {
+                            System.out.println("SESSION MISMATCH: phone handled " + session.handledSeq + " frames, we sent " + framesSent);
+                            ok = false;
+                        }
+                    }
+
+                    //the loopback drone's acks start with 0x09 like a fake one, so have the relayed ones marked
+                    generator.requestFramedAcks();
+
+                    if (options.heartbeat) {
+                        generator.setEchoDelayMs(options.echoDelayMs);
+                        generator.setAdaptiveRate(true);
+                        generator.enableHeartbeat();
+                    }
+
+                    //telemetry belongs to the socket, so ask again on every connection
+                    if (options.telemetryHz > 0) {
+                        generator.requestTelemetry(options.telemetryHz);
+                    }
+
+                    if (droppedAt == 0) {
+                        for (Signal signal : options.signals) {
+                            long rtt = generator.sendSignal(signal);
+                            framesSent++;
+                            System.out.println(String.format("Sent %s, acked after %.3fms", signal, rtt / 1e6));
+                        }
+                    }
+
+                    int batch = options.dropEvery > 0 ? Math.min(options.dropEvery, remaining) : remaining;
+
+                    long start = System.nanoTime();
+                    generator.stream(batch, options.rate, rtts);
+                    streamNanos += System.nanoTime() - start;
+
+                    remaining -= batch;
+                    framesSent += batch;
+                    relayedAcks += generator.getRelayedAcks();
+                    fakeAcks += generator.getFakeAcks();
+
+                    if (remaining == 0 && options.telemetryHz > 0) {
+                        generator.listenTelemetry(options.telemetrySecs * 1000L);
+                    }
+
+                    if (remaining == 0 && options.metrics) {
+                        MetricsSnapshot metrics = generator.queryMetrics();
+                        System.out.println(metrics != null ? "Phone metrics, " + metrics : "Phone doesn't export metrics");
+                    }
+                }
+                finally {
+                    client.close();
+                }
+
+                if (remaining > 0) {
+                    System.out.println("Dropped the link after " + framesSent + " frames");
+                    droppedAt = System.nanoTime();
+                }
+            }
+            while (remaining > 0);
+
+            double seconds = streamNanos / 1e9;
+            System.out.println(String.format("Sent %d %s packets in %.2fs (%.1f pkt/s), %d relayed acks, %d fake acks",
+                    options.count, options.traffic.name().toLowerCase(Locale.US), seconds, options.count / seconds, relayedAcks,
+                    fakeAcks));
+            System.out.println("Ack RTT: " + rtts.summary());
+
+            if (options.heartbeat) {
+                System.out.println(String.format("Heartbeat (last connection): %d pings echoed, phone's link score %d/255, asked for %dHz",
+                        generator.getPingsEchoed(), generator.getLinkScore(), generator.getRecommendedRateHz()));
+            }
+
+            if (reconnectGaps.getCount() > 0) {
+                System.out.println("Reconnect gap: " + reconnectGaps.summary());
+            }
+
+            if (options.telemetryHz > 0) {
+                System.out.println(String.format("Telemetry (last connection): %d frames, %d seq gaps", generator.getTelemetryFrames(),
+                        generator.getTelemetryGaps()));
+                if (generator.getTelemetryFrames() > 0) {
+                    System.out.println("Last telemetry: " + generator.getLastTelemetry());
+                }
+            }
+
+            if (connector != null) {
+                connector.stop();
+
+                RelaySession session = connector.getSession();
+                System.out.println(String.format("Relay: %d connections, %d frames handled; fake drone saw %d packets",
+                        session.getConnectCount(), session.getHandledSeq(), droneLink.getPacketCount()));
+
+                if (options.heartbeat) {
+                    System.out.println("Relay link quality: " + connector.getLinkQuality());
+                }
+            }
+
+            if (recorder != null) {
+                recorder.close();
+                System.out.println(String.format("Recorded %d records (%d bytes) to %s", recorder.getRecordCount(),
+                        recorder.getLength(), options.recordPath));
+            }
+        }
+
+        return ok;
+    }
+
+    //run the same RelayConnector the phone does, pointed at our own server socket
+    private static RelayConnector startLoopbackRelay(int port, LoopbackDroneLink droneLink, PacketRecorder recorder) {
+        IRelayListener listener = new IRelayListener() {
+            @Override
+            public void onSignal(Signal signal) {
+                System.out.println("Loopback relay got signal " + signal);
+            }
+
+            @Override
+            public void onRelayStopped(String reason, IOException cause) {
+                System.out.println("Loopback relay stopped: " + reason + (cause != null ? " (" + cause.getMessage() + ")" : ""));
+            }
+        };
+
+        RelayConnector.IConnectionListener connectionListener = new RelayConnector.IConnectionListener() {
+            @Override
+            public void onLinkStateChanged(LinkState state, String detail) {
+                System.out.println("Loopback link " + state + (detail != null ? ": " + detail : ""));
+            }
+        };
+
+        RelaySession session = new RelaySession();
+        HoverFailsafe failsafe = new HoverFailsafe(droneLink, session, 15000);
+
+        RelayConnector connector = new RelayConnector(port, droneLink, listener, connectionListener, new AtomicBoolean(true),
+                session, failsafe, new Backoff(50, 1000));
+        connector.setTelemetrySource(new SyntheticTelemetrySource());
+        connector.setAdaptiveReadTimeoutMs(1000, 4000);
+        connector.setRecorder(recorder);
+        connector.setMetrics(MetricsRegistry.get());
+        failsafe.setRecorder(recorder);
+
+        Thread connectorThread = new Thread(connector, "loopback-relay");
+        connectorThread.setDaemon(true);
+        connectorThread.start();
+
+        connector.onGroupFormed(InetAddress.getLoopbackAddress().getHostAddress());
+        return connector;
+    }
+
+    //what this class used to do: check we can reach the phone as group owner (192.168.49.1) over Wi-Fi Direct
+    private static boolean probe(String host, int port) {
+        int timeout = 10000;
+
+        try (Socket socket = new Socket()) {
+            System.out.println("Calling socket.connect...");
+
+            socket.connect(new InetSocketAddress(host, port), timeout);
+
+            System.out.println("Client-server connection successful!!");
+            return true;
+        }
+        catch (IOException e) {
+            System.out.println("Client socket connection timed out");
+            e.printStackTrace();
+            return false;
+        }
+    }
+}
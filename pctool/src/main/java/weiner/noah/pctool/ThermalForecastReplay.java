@@ -0,0 +1,313 @@
+package weiner.noah.pctool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import weiner.noah.wifidirect.control.ThermalPredictor;
+import weiner.noah.wifidirect.utils.SysfsSampler;
+import weiner.noah.wifidirect.utils.ThermalLogReader;
+import weiner.noah.wifidirect.utils.ThermalLogWriter;
+import weiner.noah.wifidirect.utils.ThermalZones;
+
+/**
+ * Replays a thermal log (thermal_*.thermlog from the phone, see ThermalLogTool) through {@link ThermalPredictor}, as
+ * ThermalService would have fed it: the fast zones, one row at a time. Then it compares each forecast against when a zone
+ * actually reached its trip point (throttle) and its trip point plus the default emergency margin, and prints how good
+ * the forecast was at each lead time.
+ *
+ * For every limit that was reached it checks the forecast is never late by more than the sensor noise over the last five
+ * minutes, is within {@link #HORIZON_ERROR} of the truth from {@link #HORIZON_FROM_S} to {@link #HORIZON_TO_S} before
+ * (where HumanFollower decides to ease off and to land), and that HumanFollower's landing rule wouldn't have fired
+ * more than {@link #HORIZON_TO_S} before EMERGENCY.
+ *
+ * Without a log it makes up an hour of a phone heating towards equilibrium under a steady load, writes it as a thermal
+ * log, and replays that.
+ *
+ * Usage: ThermalForecastReplay [LOG.thermlog]
+ */
+public class ThermalForecastReplay {
+    //what ThermalPredictor assumes until PowerManager says otherwise. A recorded log has no statuses to learn from
+    private static final double THROTTLE_MARGIN_C = 0;
+    private static final double EMERGENCY_MARGIN_C = 10;
+
+    private static final int[] LEADS_S = {600, 300, 180, 120, 60, 30, 10};
+
+    //HumanFollower lands with THERMAL_LAND_LEAD_S to spare and eases off at twice that, so that's where the forecast
+    //has to be right: within this fraction of the time left (or HORIZON_SLACK_S, near the end)
+    private static final double HORIZON_FROM_S = 60;
+    private static final double HORIZON_TO_S = 120;
+    private static final double HORIZON_ERROR = 0.25;
+    private static final double HORIZON_SLACK_S = 10;
+
+    //HumanFollower's landing rule: this many confident forecasts in a row under the landing lead
+    private static final double LAND_LEAD_S = 60;
+    private static final int LAND_CONFIRMATIONS = 3;
+
+    //synthetic phone: first-order heating towards ambient + gain, every 700ms like Thermal's log
+    private static final long ROW_NANOS = 700000000L;
+    private static final double AMBIENT_C = 30;
+    private static final double TAU_S = 900;
+
+    public static void main(String[] args) {
+        String logPath = null;
+
+        try {
+            for (String arg : args) {
+                if (arg.startsWith("--") || logPath != null) {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                }
+                logPath = arg;
+            }
+        }
+        catch (RuntimeException e) {
+            System.out.println("Bad arguments: " + e.getMessage());
+            System.out.println("Usage: ThermalForecastReplay [LOG.thermlog]");
+            System.exit(2);
+            return;
+        }
+
+        File log = null;
+        try {
+            if (logPath != null) {
+                log = new File(logPath);
+            }
+            else {
+                log = File.createTempFile("forecast", ".thermlog");
+                synthesize(log);
+            }
+
+            boolean ok = replay(log, logPath == null);
+            System.out.println(ok ? "OK" : "FAILED");
+            System.exit(ok ? 0 : 1);
+        }
+        catch (IOException e) {
+            System.out.println("Can't replay thermal log: " + e.getMessage());
+            System.exit(1);
+        }
+        finally {
+            if (logPath == null && log != null && !log.delete()) {
+                log.deleteOnExit();
+            }
+        }
+    }
+
+    //zone name, trip point and how far over ambient it would settle. cpu-1 starts out over its trip point, battery has none
+    private static final String[] NAMES = {"cpu-0-0-usr", "cpu-0-1-usr", "cpu-1-0-usr", "gpuss-0-usr", "npu-usr", "camera-usr",
+            "battery", "skin-therm", "xo-therm", "ddr-usr"};
+    private static final double[] TRIPS_C = {50, 50, 20, 52, 70, 55, -1, 45, 48, 60};
+    private static final double[] GAINS_C = {35, 33, 30, 28, 10, 20, 15, 12, 14, 25};
+
+    private static void synthesize(File log) throws IOException {
+        String[] columns = new String[NAMES.length * 2];
+        for (int i = 0; i < NAMES.length; i++) {
+            columns[i] = NAMES[i];
+            columns[NAMES.length + i] = NAMES[i] + "-TRIP";
+        }
+
+        Random random = new Random(7);
+        long[] row = new long[columns.length];
+        long rows = 3600000000000L / ROW_NANOS;
+
+        try (ThermalLogWriter writer = new ThermalLogWriter(log, columns)) {
+            long start = System.nanoTime();
+            for (long r = 0; r < rows; r++) {
+                double t = r * ROW_NANOS / 1e9;
+                for (int i = 0; i < NAMES.length; i++) {
+                    //a little sensor noise, then the kernel's 0.1C steps
+                    double c = AMBIENT_C + GAINS_C[i] * (1 - Math.exp(-t / TAU_S)) + 0.05 * random.nextGaussian();
+                    row[i] = Math.round(c * 10) * 100;
+                    row[NAMES.length + i] = TRIPS_C[i] < 0 ? SysfsSampler.MISSING : (long) (TRIPS_C[i] * 1000);
+                }
+                writer.write(start + r * ROW_NANOS, row);
+            }
+        }
+    }
+
+    private static boolean isFast(String name) {
+        for (String prefix : ThermalZones.DEFAULT_FAST_PREFIXES) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //synthetic: both limits have to be reached. A recorded flight may not have got there
+    private static boolean replay(File log, boolean synthetic) throws IOException {
+        List<long[]> temps = new ArrayList<long[]>();
+        List<long[]> trips = new ArrayList<long[]>();
+        List<Long> times = new ArrayList<Long>();
+        String[] names;
+
+        //the fast zones that have a trip point column, as ThermalService picks them
+        try (ThermalLogReader reader = new ThermalLogReader(log)) {
+            List<Integer> tempColumns = new ArrayList<Integer>();
+            List<Integer> tripColumns = new ArrayList<Integer>();
+            List<String> found = new ArrayList<String>();
+            for (int i = 0; i < reader.getColumns().length; i++) {
+                String name = reader.getColumns()[i];
+                int trip = reader.findColumn(name + "-TRIP");
+                if (isFast(name) && trip >= 0) {
+                    tempColumns.add(i);
+                    tripColumns.add(trip);
+                    found.add(name);
+                }
+            }
+            names = found.toArray(new String[0]);
+
+            while (reader.next()) {
+                long[] t = new long[names.length];
+                long[] p = new long[names.length];
+                for (int i = 0; i < names.length; i++) {
+                    t[i] = reader.get(tempColumns.get(i));
+                    p[i] = reader.get(tripColumns.get(i));
+                }
+                temps.add(t);
+                trips.add(p);
+                times.add(reader.getNanos());
+            }
+        }
+
+        if (times.isEmpty()) {
+            System.out.println("Nothing to replay in " + log.getName());
+            return false;
+        }
+
+        //forecasts as of every row
+        ThermalPredictor predictor = new ThermalPredictor(names);
+        double[] toThrottle = new double[times.size()];
+        double[] toEmergency = new double[times.size()];
+        boolean[] confident = new boolean[times.size()];
+        for (int r = 0; r < times.size(); r++) {
+            predictor.onSample(temps.get(r), trips.get(r), times.get(r));
+            toThrottle[r] = predictor.getSecondsToThrottle();
+            toEmergency[r] = predictor.getSecondsToEmergency();
+            confident[r] = predictor.isEmergencyForecastConfident();
+        }
+
+        int used = 0;
+        for (int i = 0; i < names.length; i++) {
+            used += predictor.isIgnored(i) ? 0 : 1;
+        }
+        System.out.println(String.format(Locale.US, "%s: %d rows over %.1f min, %d fast zones with trip points (%d ignored)",
+                log.getName(), times.size(), times.get(times.size() - 1) / 60e9, names.length, names.length - used));
+
+        int throttled = crossing(predictor, names, temps, trips, times, THROTTLE_MARGIN_C);
+        int emergency = crossing(predictor, names, temps, trips, times, EMERGENCY_MARGIN_C);
+
+        boolean ok = true;
+        ok &= compare("throttle", toThrottle, throttled, times, synthetic);
+        ok &= compare("emergency", toEmergency, emergency, times, synthetic);
+        ok &= checkLanding(toEmergency, confident, emergency, times);
+        return ok;
+    }
+
+    //where HumanFollower would have landed, and that it wasn't long before it had to
+    private static boolean checkLanding(double[] forecast, boolean[] confident, int crossed, List<Long> times) {
+        int votes = 0;
+        for (int r = 0; r < forecast.length; r++) {
+            boolean land = confident[r] && forecast[r] >= 0 && forecast[r] < LAND_LEAD_S;
+            votes = land ? votes + 1 : 0;
+            if (votes < LAND_CONFIRMATIONS) {
+                continue;
+            }
+
+            if (crossed < 0) {
+                System.out.println(String.format(Locale.US, "  would have landed at %.1f min, EMERGENCY never came",
+                        times.get(r) / 60e9));
+                return false;
+            }
+            double early = (times.get(crossed) - times.get(r)) / 1e9;
+            System.out.println(String.format(Locale.US, "  would have landed %.0fs before EMERGENCY", early));
+            if (early > HORIZON_TO_S) {
+                System.out.println(String.format(Locale.US, "EARLY landing, %.0fs before EMERGENCY", early));
+                return false;
+            }
+            return true;
+        }
+
+        System.out.println("  would not have landed");
+        return crossed < 0;
+    }
+
+    //row at which the first zone the predictor uses reached its trip point plus margin, -1 if none did
+    private static int crossing(ThermalPredictor predictor, String[] names, List<long[]> temps, List<long[]> trips,
+                                List<Long> times, double marginC) {
+        for (int r = 0; r < times.size(); r++) {
+            for (int i = 0; i < names.length; i++) {
+                long temp = temps.get(r)[i];
+                long trip = trips.get(r)[i];
+                if (!predictor.isIgnored(i) && temp != SysfsSampler.MISSING && trip != SysfsSampler.MISSING &&
+                        temp / 1000.0 >= trip / 1000.0 + marginC) {
+                    return r;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static boolean compare(String limit, double[] forecast, int crossed, List<Long> times, boolean synthetic) {
+        if (crossed < 0) {
+            double soonest = ThermalPredictor.NEVER;
+            for (double seconds : forecast) {
+                soonest = Math.min(soonest, seconds);
+            }
+            System.out.println(String.format(Locale.US, "  %s: never reached, soonest forecast %.0fs", limit, soonest));
+            return !synthetic;
+        }
+
+        long at = times.get(crossed);
+        System.out.println(String.format(Locale.US, "  %s: reached at %.1f min", limit, at / 60e9));
+
+        //the row closest to each lead time before the crossing
+        for (int lead : LEADS_S) {
+            long wanted = at - lead * 1000000000L;
+            if (wanted < times.get(0)) {
+                continue;
+            }
+            int r = crossed;
+            while (r > 0 && times.get(r) > wanted) {
+                r--;
+            }
+            double actual = (at - times.get(r)) / 1e9;
+            System.out.println(String.format(Locale.US, "    %4ds before: forecast %6.0fs (%+.0fs)", lead, forecast[r],
+                    forecast[r] - actual));
+        }
+
+        //over the last five minutes, a forecast may be early but never late by more than the sensor noise: a tenth of a
+        //degree is several seconds of heating this close to equilibrium
+        boolean ok = true;
+        for (int r = 0; r < crossed; r++) {
+            double actual = (at - times.get(r)) / 1e9;
+            if (actual <= 300 && forecast[r] > actual + Math.max(10, 0.05 * actual)) {
+                System.out.println(String.format(Locale.US, "LATE %s forecast %.1fs before: said %.1fs", limit, actual, forecast[r]));
+                ok = false;
+                break;
+            }
+        }
+
+        //and at the decision horizon, not much early either
+        double worst = 0;
+        for (int r = 0; r < crossed; r++) {
+            double actual = (at - times.get(r)) / 1e9;
+            if (actual < HORIZON_FROM_S || actual > HORIZON_TO_S) {
+                continue;
+            }
+            double error = forecast[r] - actual;
+            if (Math.abs(error) > Math.abs(worst)) {
+                worst = error;
+            }
+            if (ok && Math.abs(error) > Math.max(HORIZON_SLACK_S, HORIZON_ERROR * actual)) {
+                System.out.println(String.format(Locale.US, "OFF %s forecast %.1fs before: said %.1fs", limit, actual, forecast[r]));
+                ok = false;
+            }
+        }
+        System.out.println(String.format(Locale.US, "    worst error %.0f-%.0fs before: %+.0fs", HORIZON_FROM_S, HORIZON_TO_S,
+                worst));
+        return ok;
+    }
+}
@@ -0,0 +1,215 @@
+package weiner.noah.pctool;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+
+import weiner.noah.wifidirect.utils.SysfsSampler;
+import weiner.noah.wifidirect.utils.ThermalLogReader;
+import weiner.noah.wifidirect.utils.ThermalLogWriter;
+
+/**
+ * Reads a thermal log the app wrote (thermal_*.thermlog in its files dir, see Thermal.LogRunnable), prints a summary
+ * and optionally exports it as CSV.
+ *
+ * Without a log it writes a synthetic one instead: 90 zones plus their trip points, sampled every 700ms for an hour,
+ * temps drifting in 100 millidegree steps and a couple of zones missing. It compares the size against the thermal.xml
+ * the app used to write per sample and times the writer. ThermalLogWriterTest checks the values read back.
+ *
+ * Usage: ThermalLogTool [LOG.thermlog] [--csv OUT.csv] [--rows N]
+ *   --csv OUT.csv   export the (given or synthetic) log as CSV
+ *   --rows N        rows in the synthetic log (default 5143, an hour at 700ms)
+ */
+public class ThermalLogTool {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int SYNTHETIC_ZONES = 90;
+    private static final long SAMPLE_NANOS = 700000000L;
+
+    public static void main(String[] args) {
+        String logPath = null;
+        String csvPath = null;
+        int rows = 5143;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--csv":
+                        csvPath = args[++i];
+                        break;
+                    case "--rows":
+                        rows = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        if (args[i].startsWith("--") || logPath != null) {
+                            throw new IllegalArgumentException("Unknown option " + args[i]);
+                        }
+                        logPath = args[i];
+                }
+            }
+            if (rows < 1) {
+                throw new IllegalArgumentException("Need at least one row");
+            }
+        }
+        catch (RuntimeException e) {
+            System.out.println("Bad arguments: " + e.getMessage());
+            System.out.println("Usage: ThermalLogTool [LOG.thermlog] [--csv OUT.csv] [--rows N]");
+            System.exit(2);
+            return;
+        }
+
+        File log = null;
+        try {
+            if (logPath != null) {
+                log = new File(logPath);
+            }
+            else {
+                log = File.createTempFile("synthetic", ".thermlog");
+                synthetic(log, rows);
+            }
+
+            summarize(log);
+
+            if (csvPath != null) {
+                try (ThermalLogReader reader = new ThermalLogReader(log);
+                     Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csvPath), UTF8))) {
+                    long exported = reader.exportCsv(out);
+                    System.out.println("Exported " + exported + " rows to " + csvPath);
+                }
+            }
+        }
+        catch (IOException e) {
+            System.out.println("Can't read thermal log: " + e.getMessage());
+            System.exit(1);
+        }
+        finally {
+            if (logPath == null && log != null && !log.delete()) {
+                log.deleteOnExit();
+            }
+        }
+    }
+
+    private static void summarize(File log) throws IOException {
+        try (ThermalLogReader reader = new ThermalLogReader(log)) {
+            String[] columns = reader.getColumns();
+            long[] min = new long[columns.length];
+            long[] max = new long[columns.length];
+            boolean[] seen = new boolean[columns.length];
+            long rows = 0;
+            long lastNanos = 0;
+
+            while (reader.next()) {
+                for (int i = 0; i < columns.length; i++) {
+                    long value = reader.get(i);
+                    if (value == SysfsSampler.MISSING) {
+                        continue;
+                    }
+                    if (!seen[i]) {
+                        min[i] = max[i] = value;
+                        seen[i] = true;
+                    }
+                    min[i] = Math.min(min[i], value);
+                    max[i] = Math.max(max[i], value);
+                }
+                lastNanos = reader.getNanos();
+                rows++;
+            }
+
+            System.out.println(String.format(Locale.US, "%s: %d columns, %d rows over %.1f min, %d bytes (%.1f per row)",
+                    log.getName(), columns.length, rows, lastNanos / 60e9, log.length(),
+                    rows > 0 ? (double) log.length() / rows : 0.0));
+
+            //the hottest few temps, trip points are the columns ending in -TRIP
+            int shown = 0;
+            for (int pass = 0; pass < columns.length && shown < 5; pass++) {
+                int hottest = -1;
+                for (int i = 0; i < columns.length; i++) {
+                    if (seen[i] && !columns[i].endsWith("-TRIP") && (hottest < 0 || max[i] > max[hottest])) {
+                        hottest = i;
+                    }
+                }
+                if (hottest < 0) {
+                    break;
+                }
+                System.out.println(String.format(Locale.US, "  %-20s %6.1f .. %6.1f C", columns[hottest], min[hottest] / 1000.0,
+                        max[hottest] / 1000.0));
+                seen[hottest] = false;
+                shown++;
+            }
+        }
+    }
+
+    private static void synthetic(File log, int rows) throws IOException {
+        String[] columns = new String[SYNTHETIC_ZONES * 2];
+        for (int i = 0; i < SYNTHETIC_ZONES; i++) {
+            columns[i] = String.format(Locale.US, "zone-%02d-usr", i);
+            columns[SYNTHETIC_ZONES + i] = columns[i] + "-TRIP";
+        }
+
+        long[][] expected = new long[rows][columns.length];
+        Random random = new Random(7);
+        long[] temps = new long[SYNTHETIC_ZONES];
+        for (int i = 0; i < SYNTHETIC_ZONES; i++) {
+            temps[i] = 30000 + random.nextInt(100) * 100;
+        }
+
+        for (int row = 0; row < rows; row++) {
+            for (int i = 0; i < SYNTHETIC_ZONES; i++) {
+                //most readings don't move between samples, the rest by a step or two
+                int r = random.nextInt(10);
+                if (r >= 6) {
+                    temps[i] += (r >= 8 ? 100 : -100) * (1 + random.nextInt(2));
+                }
+
+                //zone 7 is never there, zone 8 drops out now and then
+                boolean missing = i == 7 || (i == 8 && row % 50 < 5);
+                expected[row][i] = missing ? SysfsSampler.MISSING : temps[i];
+                expected[row][SYNTHETIC_ZONES + i] = i == 7 ? SysfsSampler.MISSING : 95000;
+            }
+        }
+
+        long nanos = 0;
+        try (ThermalLogWriter writer = new ThermalLogWriter(log, columns)) {
+            long start = System.nanoTime();
+            for (int row = 0; row < rows; row++) {
+                //the writer timestamps against its own start, so hand it the sample times it would have seen
+                writer.write(start + row * SAMPLE_NANOS, expected[row]);
+            }
+            nanos = System.nanoTime() - start;
+        }
+
+        //what the app used to write every sample: every zone and trip point as an XML property
+        long xmlBytes = 0;
+        int xmlRows = Math.min(rows, 50);
+        for (int row = 0; row < xmlRows; row++) {
+            Properties properties = new Properties();
+            for (int i = 0; i < columns.length; i++) {
+                long value = expected[row][i];
+                properties.setProperty(columns[i], value == SysfsSampler.MISSING ? "" : String.valueOf(value));
+            }
+            ByteArrayOutputStream xml = new ByteArrayOutputStream();
+            properties.storeToXML(xml, null);
+            xmlBytes += xml.size();
+        }
+        double xmlPerRow = (double) xmlBytes / xmlRows;
+
+        StringWriter csv = new StringWriter();
+        try (ThermalLogReader reader = new ThermalLogReader(log)) {
+            reader.exportCsv(csv);
+        }
+
+        double perRow = (double) log.length() / rows;
+        System.out.println(String.format(Locale.US, "Synthetic: %.1f bytes per row, vs %.0f as XML (%.1fx smaller) and %.0f " +
+                "as CSV; %.2fus to write a row", perRow, xmlPerRow, xmlPerRow / perRow, (double) csv.getBuffer().length() / rows,
+                nanos / 1e3 / rows));
+    }
+}
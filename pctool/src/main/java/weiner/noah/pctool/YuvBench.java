@@ -0,0 +1,178 @@
+package weiner.noah.pctool;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import weiner.noah.wifidirect.utils.CameraFrame;
+import weiner.noah.wifidirect.utils.YuvConverter;
+
+/**
+ * Times {@link YuvConverter} against the app's original ImageUtils.convertYUV420ToARGB8888 (transcribed below, since
+ * pctool doesn't build Kotlin) on a random frame. Also times what a luma-only stage costs through {@link CameraFrame}'s
+ * Y plane view, for comparison. That the two give the same pixels is YuvConverterTest's job.
+ *
+ * Usage: YuvBench [--width N] [--height N] [--frames N] [--threads N]
+ *   --width, --height   frame size (default 640x480, the preview size)
+ *   --frames N          frames to time each converter on (default 300)
+ *   --threads N         YuvConverter threads (default: cores, up to 4)
+ */
+public class YuvBench {
+    public static void main(String[] args) {
+        int width = 640;
+        int height = 480;
+        int frames = 300;
+        int threads = YuvConverter.defaultThreads();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--width":
+                        width = Integer.parseInt(args[++i]);
+                        break;
+                    case "--height":
+                        height = Integer.parseInt(args[++i]);
+                        break;
+                    case "--frames":
+                        frames = Integer.parseInt(args[++i]);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+        }
+        catch (RuntimeException e) {
+            System.out.println("Bad arguments: " + e.getMessage());
+            System.out.println("Usage: YuvBench [--width N] [--height N] [--frames N] [--threads N]");
+            System.exit(2);
+            return;
+        }
+
+        try (YuvConverter converter = new YuvConverter(threads)) {
+            Frame frame = new Frame(width, height, width, 2, new Random(1));
+            int[] out = new int[width * height];
+
+            //warm both up so the JIT has compiled them before we time anything
+            for (int i = 0; i < 50; i++) {
+                reference(frame, width, height, out);
+                converter.convert(frame.y, frame.u, frame.v, width, height, frame.yRowStride, frame.uvRowStride,
+                        frame.uvPixelStride, out);
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < frames; i++) {
+                reference(frame, width, height, out);
+            }
+            long referenceNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < frames; i++) {
+                converter.convert(frame.y, frame.u, frame.v, width, height, frame.yRowStride, frame.uvRowStride,
+                        frame.uvPixelStride, out);
+            }
+            long converterNanos = System.nanoTime() - start;
+
+            System.out.println(String.format("%dx%d, %d frames: ImageUtils %.3fms/frame, YuvConverter (%d threads) %.3fms/frame, %.1fx",
+                    width, height, frames, referenceNanos / 1e6 / frames, threads, converterNanos / 1e6 / frames,
+                    referenceNanos / (double) converterNanos));
+
+            //a stage that only wants brightness: mean luma straight off the Y plane, no conversion
+            CameraFrame cameraFrame = new CameraFrame(converter);
+            ByteBuffer yBuffer = ByteBuffer.allocateDirect(frame.y.length);
+            yBuffer.put(frame.y);
+            ByteBuffer uBuffer = ByteBuffer.wrap(frame.u);
+            ByteBuffer vBuffer = ByteBuffer.wrap(frame.v);
+
+            long lumaSum = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < frames; i++) {
+                cameraFrame.set(yBuffer, uBuffer, vBuffer, width, height, frame.yRowStride, frame.uvRowStride, frame.uvPixelStride, i);
+                lumaSum += meanLuma(cameraFrame);
+                cameraFrame.release();
+            }
+            long lumaNanos = System.nanoTime() - start;
+
+            System.out.println(String.format("Luma-only stage via CameraFrame: %.3fms/frame, %d conversions (mean luma %d)",
+                    lumaNanos / 1e6 / frames, cameraFrame.getConversionCount(), lumaSum / frames));
+        }
+    }
+
+    private static int meanLuma(CameraFrame frame) {
+        ByteBuffer y = frame.getYPlane();
+        int stride = frame.getYRowStride();
+        long sum = 0;
+
+        for (int row = 0; row < frame.getHeight(); row++) {
+            int base = row * stride;
+            for (int col = 0; col < frame.getWidth(); col++) {
+                sum += y.get(base + col) & 0xff;
+            }
+        }
+        return (int) (sum / ((long) frame.getWidth() * frame.getHeight()));
+    }
+
+    //random planes laid out the way ImageReader hands them over
+    private static class Frame {
+        final byte[] y, u, v;
+        final int yRowStride, uvRowStride, uvPixelStride;
+
+        Frame(int width, int height, int yRowStride, int uvPixelStride, Random random) {
+            this.yRowStride = yRowStride;
+            this.uvPixelStride = uvPixelStride;
+            this.uvRowStride = ((width + 1) / 2) * uvPixelStride;
+
+            y = new byte[yRowStride * height];
+            u = new byte[uvRowStride * ((height + 1) / 2)];
+            v = new byte[u.length];
+            random.nextBytes(y);
+            random.nextBytes(u);
+            random.nextBytes(v);
+        }
+    }
+
+    //ImageUtils.convertYUV420ToARGB8888 as it is in the app, line for line. The Kotlin version also builds a clamping
+    //lambda per pixel, which this doesn't, so the speedup on the phone is if anything bigger than what we print
+    private static void reference(Frame f, int width, int height, int[] out) {
+        int outputIndex = 0;
+        for (int j = 0; j < height; j++) {
+            int positionY = f.yRowStride * j;
+            int positionUV = f.uvRowStride * (j >> 1);
+
+            for (int i = 0; i < width; i++) {
+                int uvOffset = positionUV + (i >> 1) * f.uvPixelStride;
+
+                out[outputIndex] = convertYUVToRGB(0xff & f.y[positionY + i], 0xff & f.u[uvOffset], 0xff & f.v[uvOffset]);
+                outputIndex += 1;
+            }
+        }
+    }
+
+    private static final int MAX_CHANNEL_VALUE = 262143;
+
+    private static int convertYUVToRGB(int y, int u, int v) {
+        int yNew = y - 16 < 0 ? 0 : y - 16;
+        int uNew = u - 128;
+        int vNew = v - 128;
+        int expandY = 1192 * yNew;
+        int r = expandY + 1634 * vNew;
+        int g = expandY - 833 * vNew - 400 * uNew;
+        int b = expandY + 2066 * uNew;
+
+        r = checkBoundaries(r);
+        g = checkBoundaries(g);
+        b = checkBoundaries(b);
+        return -0x1000000 | (r << 6 & 0xff0000) | (g >> 2 & 0xff00) | (b >> 10 & 0xff);
+    }
+
+    private static int checkBoundaries(int x) {
+        if (x > MAX_CHANNEL_VALUE) {
+            return MAX_CHANNEL_VALUE;
+        }
+        else if (x < 0) {
+            return 0;
+        }
+        return x;
+    }
+}